@@ -0,0 +1,213 @@
+/*****************************************************************************
+ * Copyright (c) Minh Duc Cao, Monash Uni & UQ, All rights reserved.         *
+ *                                                                           *
+ * Redistribution and use in source and binary forms, with or without        *
+ * modification, are permitted provided that the following conditions        *
+ * are met:                                                                  * 
+ *                                                                           *
+ * 1. Redistributions of source code must retain the above copyright notice, *
+ *    this list of conditions and the following disclaimer.                  *
+ * 2. Redistributions in binary form must reproduce the above copyright      *
+ *    notice, this list of conditions and the following disclaimer in the    *
+ *    documentation and/or other materials provided with the distribution.   *
+ * 3. Neither the names of the institutions nor the names of the contributors*
+ *    may be used to endorse or promote products derived from this software  *
+ *    without specific prior written permission.                             *
+ *                                                                           *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS   *
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, *
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR    *
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR         *
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,     *
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,       *
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR        *
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF    *
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING      *
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS        *
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.              *
+ ****************************************************************************/
+
+package japsa.bio.alignment;
+
+import java.util.Arrays;
+
+/**
+ * Primitive storage for the dynamic programming of {@link ProfileDP} and
+ * {@link ProbFSM}, to replace the linked list of emission objects indexed by
+ * string keys.
+ *
+ * Each entry of the lattice (a state at a position of the profile, a position
+ * of the sequence and, for profiles with a repeat, an iteration) is kept in a
+ * set of columns, in the order of creation. Since the engines append new
+ * entries to the end of their work list, this is also the order in which the
+ * entries are processed. Entries are looked up by an index laid out by 
+ * (profilePos, seqPos), which points to a short chain of the entries of the
+ * cell with different tags (the state or the iteration).
+ *
+ * A lattice is reused between alignments; use {@link #local()} to get the one
+ * of the current thread.
+ */
+public final class DenseLattice {
+	/**
+	 * Cells above this are not indexed densely; the callers fall back to the
+	 * hashed engine
+	 */
+	public static final long MAX_CELLS = 1L << 28;
+
+	//A lattice grown larger than this is released after an alignment
+	private static final int RETAIN_ENTRIES = 1 << 22;
+	private static final int INITIAL_ENTRIES = 1 << 12;
+
+	private static final ThreadLocal<DenseLattice> lattices = new ThreadLocal<DenseLattice>(){
+		@Override
+		protected DenseLattice initialValue(){
+			return new DenseLattice();
+		}
+	};
+
+	/**
+	 * @return the lattice of the current thread
+	 */
+	public static DenseLattice local(){
+		return lattices.get();
+	}
+
+	//Columns of the entries
+	int [] tag, pos1, pos2, bwd;
+	byte [] type;
+	double [] score;
+	int size;
+
+	//the previous entry in the same cell, -1 if none
+	private int [] chain;
+	private int [] cell;
+
+	//head[cell] = 1 + the last entry created in the cell, 0 if none
+	private int [] head = new int[0];
+	private int width;
+
+	public DenseLattice(){
+		allocate(INITIAL_ENTRIES);
+	}
+
+	private void allocate(int capacity){
+		tag   = new int[capacity];
+		pos1  = new int[capacity];
+		pos2  = new int[capacity];
+		bwd   = new int[capacity];
+		chain = new int[capacity];
+		cell  = new int[capacity];
+		type  = new byte[capacity];
+		score = new double[capacity];
+	}
+
+	private void grow(){
+		int capacity = tag.length * 2;
+		tag   = Arrays.copyOf(tag, capacity);
+		pos1  = Arrays.copyOf(pos1, capacity);
+		pos2  = Arrays.copyOf(pos2, capacity);
+		bwd   = Arrays.copyOf(bwd, capacity);
+		chain = Arrays.copyOf(chain, capacity);
+		cell  = Arrays.copyOf(cell, capacity);
+		type  = Arrays.copyOf(type, capacity);
+		score = Arrays.copyOf(score, capacity);
+	}
+
+	/**
+	 * Prepare the lattice for positions -1..length1-1 of the profile and 
+	 * -1..length2-1 of the sequence
+	 * @param length1
+	 * @param length2
+	 */
+	void reset(int length1, int length2){
+		clear();
+		width = length2 + 1;
+		int cells = (length1 + 1) * width;
+		if (head.length < cells)
+			head = new int[cells];
+	}
+
+	/**
+	 * Clear the index, and release the storage if it has grown too large
+	 */
+	void clear(){
+		for (int e = 0; e < size; e++)
+			head[cell[e]] = 0;
+		size = 0;
+		if (tag.length > RETAIN_ENTRIES){
+			allocate(INITIAL_ENTRIES);
+			head = new int[0];
+		}
+	}
+
+	/**
+	 * Find the entry of a tag in a cell
+	 * @return the entry, or -1 if none
+	 */
+	int find(int t, int p1, int p2){
+		for (int e = head[(p1 + 1) * width + p2 + 1] - 1; e >= 0; e = chain[e]){
+			if (tag[e] == t)
+				return e;
+		}
+		return -1;
+	}
+
+	/**
+	 * Append a new entry, indexed if the position is on the lattice
+	 * @return the entry
+	 */
+	int add(int t, int p1, int p2, double s, int from, byte ty, boolean indexed){
+		if (size == tag.length)
+			grow();
+		int e = size++;
+		tag[e] = t;
+		pos1[e] = p1;
+		pos2[e] = p2;
+		score[e] = s;
+		bwd[e] = from;
+		type[e] = ty;
+		if (indexed){
+			int c = (p1 + 1) * width + p2 + 1;
+			cell[e] = c;
+			chain[e] = head[c] - 1;
+			head[c] = e + 1;
+		}else{
+			cell[e] = 0;
+			chain[e] = -1;
+		}
+		return e;
+	}
+
+	/**
+	 * Set the score of an entry reached from another entry, if it is an
+	 * improvement
+	 */
+	void relax(int e, double s, int from, byte ty){
+		if (score[e] > s){
+			score[e] = s;
+			bwd[e] = from;
+			type[e] = ty;
+		}
+	}
+
+	/**
+	 * Remove an entry from the index, so that the next visit to the same key
+	 * creates a new entry
+	 * @param e
+	 */
+	void remove(int e){
+		int c = cell[e];
+		int prev = head[c] - 1;
+		if (prev == e){
+			head[c] = chain[e] + 1;
+			return;
+		}
+		while (prev >= 0){
+			if (chain[prev] == e){
+				chain[prev] = chain[e];
+				return;
+			}
+			prev = chain[prev];
+		}
+	}
+}
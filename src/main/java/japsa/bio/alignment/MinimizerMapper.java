@@ -0,0 +1,778 @@
+/*****************************************************************************
+ * Copyright (c) Minh Duc Cao, Monash Uni & UQ, All rights reserved.         *
+ *                                                                           *
+ * Redistribution and use in source and binary forms, with or without        *
+ * modification, are permitted provided that the following conditions        *
+ * are met:                                                                  * 
+ *                                                                           *
+ * 1. Redistributions of source code must retain the above copyright notice, *
+ *    this list of conditions and the following disclaimer.                  *
+ * 2. Redistributions in binary form must reproduce the above copyright      *
+ *    notice, this list of conditions and the following disclaimer in the    *
+ *    documentation and/or other materials provided with the distribution.   *
+ * 3. Neither the names of the institutions nor the names of the contributors*
+ *    may be used to endorse or promote products derived from this software  *
+ *    without specific prior written permission.                             *
+ *                                                                           *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS   *
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, *
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR    *
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR         *
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,     *
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,       *
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR        *
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF    *
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING      *
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS        *
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.              *
+ ****************************************************************************/
+
+package japsa.bio.alignment;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Supplier;
+
+import htsjdk.samtools.Cigar;
+import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SAMSequenceRecord;
+import japsa.seq.Alphabet;
+import japsa.seq.Sequence;
+import japsa.seq.SequenceReader;
+import japsa.util.IntArray;
+import japsa.util.LongArray;
+
+/**
+ * An in-process mapper of long reads to a small set of references (contigs,
+ * gene databases, MLST schemes), in the manner of minimap2: the references
+ * are indexed by their (w,k)-minimizers; the minimizers of a read shared with
+ * a reference are chained into co-linear anchors, and the alignment is made
+ * by filling the gaps between anchors and extending the ends of the chain
+ * with banded dynamic programming.
+ *
+ * The mappings are returned as SAMRecord against {@link #getHeader()}, so 
+ * they can be fed to the consumers of the output of bwa/minimap2 without
+ * going through a separate process and SAM text. An index is read-only once
+ * built; reads can be mapped from many threads.
+ */
+public class MinimizerMapper {
+	/**
+	 * Name to select this mapper in place of an external aligner
+	 */
+	public static final String NAME = "japsa";
+
+	public static final int DEFAULT_K = 15, DEFAULT_W = 10;
+
+	//Scores of the alignment, as loose as bwa mem -A1 -B1 -O1 -E1 for nanopore reads
+	static final int MATCH = 1, MISMATCH = 1, GAP = 1;
+	static final int ZDROP = 100;
+	//half width of the bands of the dynamic programming
+	static final int BAND = 64;
+
+	//Chaining: anchors looked back, max distance between anchors on either
+	//sequence and between their diagonals
+	static final int MAX_LOOKBACK = 50, MAX_GAP = 5000, MAX_DIAGONAL = 500;
+	static final int MIN_CHAIN_SCORE = 40, MIN_ANCHORS = 3;
+
+	private final int k, w;
+	private final SAMFileHeader header;
+	private final byte [][] refBases;
+
+	//minimizers of the references, sorted, and their hits: ref << 32 | pos << 1 | strand
+	private final long [] keys;
+	private final long [] hits;
+	private int maxOccurrence = 200;
+	private int maxSecondary = 5;
+
+	/**
+	 * Index the references with the default k and w
+	 * @param refs
+	 */
+	public MinimizerMapper(List<Sequence> refs){
+		this(refs, DEFAULT_K, DEFAULT_W);
+	}
+
+	/**
+	 * Index the references
+	 * @param refs
+	 * @param k length of k-mers, at most 16
+	 * @param w number of consecutive k-mers a minimizer is chosen from
+	 */
+	public MinimizerMapper(List<Sequence> refs, int k, int w){
+		if (k < 4 || k > 16)
+			throw new RuntimeException("k-mer length " + k + " out of range [4,16]");
+		if (w < 1)
+			throw new RuntimeException("Window size must be positive");
+		this.k = k;
+		this.w = w;
+
+		SAMSequenceDictionary dict = new SAMSequenceDictionary();
+		refBases = new byte[refs.size()][];
+		LongArray allKeys = new LongArray(), allHits = new LongArray();
+		for (int r = 0; r < refs.size(); r++){
+			Sequence ref = refs.get(r);
+			dict.addSequence(new SAMSequenceRecord(ref.getName(), ref.length()));
+			refBases[r] = codes(ref);
+
+			LongArray refKeys = new LongArray();
+			IntArray refPos = new IntArray();
+			sketch(refBases[r], refBases[r].length, refKeys, refPos);
+			for (int i = 0; i < refKeys.size(); i++){
+				allKeys.add(refKeys.get(i));
+				allHits.add(((long) r << 32) | (refPos.get(i) & 0xffffffffL));
+			}
+		}
+		header = new SAMFileHeader();
+		header.setSequenceDictionary(dict);
+		header.setSortOrder(SAMFileHeader.SortOrder.unsorted);
+
+		//sort the hits by minimizer (of at most 32 bits)
+		int n = allKeys.size();
+		long [] order = new long[n];
+		for (int i = 0; i < n; i++)
+			order[i] = (allKeys.get(i) << 31) | i;
+		Arrays.sort(order);
+		keys = new long[n];
+		hits = new long[n];
+		for (int i = 0; i < n; i++){
+			int x = (int) (order[i] & 0x7fffffffL);
+			keys[i] = allKeys.get(x);
+			hits[i] = allHits.get(x);
+		}
+	}
+
+	/**
+	 * @param maxOccurrence minimizers occurring more than this in the
+	 * references are not used as seeds
+	 */
+	public void setMaxOccurrence(int maxOccurrence) {
+		this.maxOccurrence = maxOccurrence;
+	}
+
+	/**
+	 * @param maxSecondary maximum number of secondary alignments reported
+	 * for a read
+	 */
+	public void setMaxSecondary(int maxSecondary) {
+		this.maxSecondary = maxSecondary;
+	}
+
+	/**
+	 * @return the header of the mappings, with the references as sequences
+	 */
+	public SAMFileHeader getHeader() {
+		return header;
+	}
+
+	/**
+	 * Map a read to the references
+	 * @param read
+	 * @return the alignments of the read, the primary first, or an unmapped
+	 * record if none
+	 */
+	public List<SAMRecord> map(Sequence read){
+		byte [] forward = codes(read);
+		int length = forward.length;
+		byte [] reverse = new byte[length];
+		for (int i = 0; i < length; i++)
+			reverse[length - 1 - i] = forward[i] < 4 ? (byte) (3 - forward[i]) : 4;
+
+		List<Chain> chains = chain(forward);
+		List<SAMRecord> records = new ArrayList<SAMRecord>();
+		if (chains.isEmpty()){
+			SAMRecord rec = new SAMRecord(header);
+			rec.setReadName(read.getName());
+			rec.setReadString(bases(forward));
+			rec.setBaseQualities(SAMRecord.NULL_QUALS);
+			rec.setReadUnmappedFlag(true);
+			records.add(rec);
+			return records;
+		}
+
+		//Chains mostly covering the same part of the read as a better chain are
+		//secondary to it; the others are parts of the primary alignment
+		ArrayList<Chain> kept = new ArrayList<Chain>();
+		ArrayList<Chain> secondary = new ArrayList<Chain>();
+		for (Chain c:chains){
+			Chain over = null;
+			for (Chain p:kept){
+				if (c.overlap(p, length) * 2 >= c.qEnd - c.qStart){
+					over = p;
+					break;
+				}
+			}
+			if (over == null)
+				kept.add(c);
+			else{
+				over.sub = Math.max(over.sub, c.score);
+				if (secondary.size() < maxSecondary)
+					secondary.add(c);
+			}
+		}
+
+		for (int i = 0; i < kept.size(); i++){
+			Chain c = kept.get(i);
+			double mapq = 40.0 * (1.0 - (double) c.sub / c.score) * Math.min(1.0, c.anchors / 10.0) * Math.log(c.score);
+			records.add(toRecord(read.getName(), c, c.strand == 0 ? forward : reverse,
+				(int) Math.max(0, Math.min(60, mapq)), i > 0, false));
+		}
+		for (Chain c:secondary)
+			records.add(toRecord(read.getName(), c, c.strand == 0 ? forward : reverse, 0, false, true));
+
+		return records;
+	}
+
+	/**
+	 * A chain of anchors, on the read in the direction of the strand
+	 */
+	static class Chain{
+		int ref, strand, score, sub = 0, anchors;
+		int [] r, q;//end positions of the anchors
+		int qStart, qEnd;
+
+		//overlap of the two chains on the forward read
+		int overlap(Chain o, int length){
+			int s1 = strand == 0 ? qStart : length - qEnd, e1 = strand == 0 ? qEnd : length - qStart;
+			int s2 = o.strand == 0 ? o.qStart : length - o.qEnd, e2 = o.strand == 0 ? o.qEnd : length - o.qStart;
+			return Math.max(0, Math.min(e1, e2) - Math.max(s1, s2));
+		}
+	}
+
+	/**
+	 * Collect the anchors of the read on the references, and chain them
+	 * @return the chains, the best first
+	 */
+	List<Chain> chain(byte [] read){
+		int length = read.length;
+		LongArray mKeys = new LongArray();
+		IntArray mPos = new IntArray();
+		sketch(read, length, mKeys, mPos);
+
+		//anchors: (ref * 2 + strand) << 32 | anchor, and its positions
+		LongArray groups = new LongArray();
+		IntArray anchorR = new IntArray(), anchorQ = new IntArray();
+		for (int i = 0; i < mKeys.size(); i++){
+			long h = mKeys.get(i);
+			int lo = lowerBound(keys, h), hi = lowerBound(keys, h + 1);
+			if (hi - lo > maxOccurrence)
+				continue;
+			int qPos = mPos.get(i) >>> 1, qStrand = mPos.get(i) & 1;
+			for (int x = lo; x < hi; x++){
+				int ref = (int) (hits[x] >>> 32);
+				int rPos = (int) (hits[x] & 0xffffffffL) >>> 1;
+				int strand = qStrand ^ (int) (hits[x] & 1);
+				groups.add(((long) (ref * 2 + strand) << 32) | anchorR.size());
+				anchorR.add(rPos);
+				//k-mer end on the read in the direction of the strand
+				anchorQ.add(strand == 0 ? qPos : length - qPos + k - 2);
+			}
+		}
+
+		long [] sorted = groups.toArray();
+		Arrays.sort(sorted);
+		ArrayList<Chain> chains = new ArrayList<Chain>();
+		int start = 0;
+		while (start < sorted.length){
+			long group = sorted[start] >>> 32;
+			int end = start;
+			while (end < sorted.length && (sorted[end] >>> 32) == group)
+				end ++;
+			if (end - start >= MIN_ANCHORS){
+				long [] rq = new long[end - start];
+				for (int i = start; i < end; i++){
+					int a = (int) sorted[i];
+					rq[i - start] = ((long) anchorR.get(a) << 32) | anchorQ.get(a);
+				}
+				Arrays.sort(rq);
+				chainGroup((int) (group >>> 1), (int) (group & 1), rq, chains);
+			}
+			start = end;
+		}
+
+		//best first, sorting (score, position) to be deterministic
+		long [] order = new long[chains.size()];
+		for (int i = 0; i < order.length; i++)
+			order[i] = ((long) (Integer.MAX_VALUE - chains.get(i).score) << 32) | i;
+		Arrays.sort(order);
+		ArrayList<Chain> ranked = new ArrayList<Chain>(chains.size());
+		for (long o:order)
+			ranked.add(chains.get((int) o));
+		return ranked;
+	}
+
+	private void chainGroup(int ref, int strand, long [] rq, List<Chain> chains){
+		int n = rq.length;
+		int [] f = new int[n], p = new int[n];
+		for (int i = 0; i < n; i++){
+			int ri = (int) (rq[i] >>> 32), qi = (int) rq[i];
+			int best = k, from = -1;
+			for (int j = i - 1; j >= 0 && j >= i - MAX_LOOKBACK; j--){
+				int dr = ri - (int) (rq[j] >>> 32), dq = qi - (int) rq[j];
+				if (dr > MAX_GAP)
+					break;
+				if (dr <= 0 || dq <= 0 || dq > MAX_GAP)
+					continue;
+				int dd = Math.abs(dr - dq);
+				if (dd > MAX_DIAGONAL)
+					continue;
+				int gain = Math.min(Math.min(dr, dq), k);
+				int cost = dd == 0 ? 0 : (int) (0.01 * k * dd + 0.5 * Math.log(dd) / Math.log(2));
+				int sc = f[j] + gain - cost;
+				if (sc > best){
+					best = sc;
+					from = j;
+				}
+			}
+			f[i] = best;
+			p[i] = from;
+		}
+
+		//extract chains from the best ends, stopping at anchors already used
+		long [] order = new long[n];
+		for (int i = 0; i < n; i++)
+			order[i] = ((long) (Integer.MAX_VALUE - f[i]) << 32) | i;
+		Arrays.sort(order);
+		boolean [] used = new boolean[n];
+		IntArray members = new IntArray();
+		for (long o:order){
+			int i = (int) o;
+			if (used[i])
+				continue;
+			members.clear();
+			int j = i;
+			while (j >= 0 && !used[j]){
+				used[j] = true;
+				members.add(j);
+				j = p[j];
+			}
+			int score = f[i] - (j >= 0 ? f[j] : 0);
+			if (members.size() < MIN_ANCHORS || score < MIN_CHAIN_SCORE)
+				continue;
+
+			Chain c = new Chain();
+			c.ref = ref;
+			c.strand = strand;
+			c.score = score;
+			c.anchors = members.size();
+			c.r = new int[c.anchors];
+			c.q = new int[c.anchors];
+			for (int x = 0; x < c.anchors; x++){
+				int a = members.get(c.anchors - 1 - x);
+				c.r[x] = (int) (rq[a] >>> 32);
+				c.q[x] = (int) rq[a];
+			}
+			c.qStart = c.q[0] - k + 1;
+			c.qEnd = c.q[c.anchors - 1] + 1;
+			chains.add(c);
+		}
+	}
+
+	private static final int OP_M = 0, OP_I = 1, OP_D = 2;
+
+	/**
+	 * Align the read along a chain and make a record of it
+	 */
+	private SAMRecord toRecord(String name, Chain c, byte [] read, int mapq, boolean supplementary, boolean secondary){
+		byte [] ref = refBases[c.ref];
+		int length = read.length;
+		IntArray cigar = new IntArray(), segment = new IntArray();
+
+		//1. extend the first anchor to the left, on the reversed sequences
+		int qs = c.q[0] - k + 1, rs = c.r[0] - k + 1;
+		int n = Math.min(qs, rs + BAND), m = Math.min(rs, n + BAND);
+		byte [] a = new byte[n], b = new byte[m];
+		for (int i = 0; i < n; i++)
+			a[i] = read[qs - 1 - i];
+		for (int j = 0; j < m; j++)
+			b[j] = ref[rs - 1 - j];
+		int [] end = bandedAlign(a, n, b, m, false, segment);
+		//the traceback of the reversed sequences is in the forward order
+		for (int i = 0; i < segment.size(); i++)
+			addOp(cigar, segment.get(i) & 3, segment.get(i) >>> 2);
+		int qStart = qs - end[0], rStart = rs - end[1];
+
+		//2. the anchors and the gaps between them
+		addOp(cigar, OP_M, k);
+		for (int x = 1; x < c.anchors; x++){
+			int dq = c.q[x] - c.q[x - 1], dr = c.r[x] - c.r[x - 1];
+			if (dq == dr && dq <= k){
+				addOp(cigar, OP_M, dq);
+				continue;
+			}
+			a = Arrays.copyOfRange(read, c.q[x - 1] + 1, c.q[x] + 1);
+			b = Arrays.copyOfRange(ref, c.r[x - 1] + 1, c.r[x] + 1);
+			segment.clear();
+			bandedAlign(a, dq, b, dr, true, segment);
+			for (int i = segment.size() - 1; i >= 0; i--)
+				addOp(cigar, segment.get(i) & 3, segment.get(i) >>> 2);
+		}
+
+		//3. extend the last anchor to the right
+		int qe = c.q[c.anchors - 1] + 1, re = c.r[c.anchors - 1] + 1;
+		n = Math.min(length - qe, ref.length - re + BAND);
+		m = Math.min(ref.length - re, n + BAND);
+		a = Arrays.copyOfRange(read, qe, qe + n);
+		b = Arrays.copyOfRange(ref, re, re + m);
+		segment.clear();
+		end = bandedAlign(a, n, b, m, false, segment);
+		for (int i = segment.size() - 1; i >= 0; i--)
+			addOp(cigar, segment.get(i) & 3, segment.get(i) >>> 2);
+		int qEnd = qe + end[0];
+
+		ArrayList<CigarElement> elements = new ArrayList<CigarElement>();
+		if (qStart > 0)
+			elements.add(new CigarElement(qStart, CigarOperator.S));
+		for (int i = 0; i < cigar.size(); i++){
+			int op = cigar.get(i) & 3;
+			elements.add(new CigarElement(cigar.get(i) >>> 2, 
+				op == OP_M ? CigarOperator.M : (op == OP_I ? CigarOperator.I : CigarOperator.D)));
+		}
+		if (qEnd < length)
+			elements.add(new CigarElement(length - qEnd, CigarOperator.S));
+
+		SAMRecord rec = new SAMRecord(header);
+		rec.setReadName(name);
+		rec.setSupplementaryAlignmentFlag(supplementary);
+		rec.setSecondaryAlignment(secondary);
+		rec.setReadNegativeStrandFlag(c.strand == 1);
+		rec.setReferenceIndex(c.ref);
+		rec.setAlignmentStart(rStart + 1);
+		rec.setMappingQuality(mapq);
+		rec.setCigar(new Cigar(elements));
+		rec.setReadString(bases(read));
+		rec.setBaseQualities(SAMRecord.NULL_QUALS);
+		rec.setAttribute("AS", c.score);
+		return rec;
+	}
+
+	private static void addOp(IntArray cigar, int op, int length){
+		if (length <= 0)
+			return;
+		int last = cigar.size() - 1;
+		if (last >= 0 && (cigar.get(last) & 3) == op)
+			cigar.set(last, cigar.get(last) + (length << 2));
+		else
+			cigar.add((length << 2) | op);
+	}
+
+	/**
+	 * Banded alignment of a[0..n) to b[0..m), either global or extending 
+	 * from the start with a free end (stopping when the score drops more
+	 * than ZDROP below the best). The operations of the path are added to
+	 * ops, merged, from the end of the path to its start. The band of a 
+	 * global alignment is widened by the difference of the lengths, which 
+	 * the chaining allows up to MAX_DIAGONAL, to keep the band connected.
+	 *
+	 * @return the end of the path on a and on b
+	 */
+	static int [] bandedAlign(byte [] a, int n, byte [] b, int m, boolean global, IntArray ops){
+		final int NEG = Integer.MIN_VALUE / 2;
+		final int band = global ? BAND + Math.abs(m - n) : BAND;
+		int width = 2 * band + 1;
+		byte [] trace = new byte[(n + 1) * width];
+		int [] prev = new int[width], cur = new int[width];
+
+		//row 0
+		for (int d = 0; d < width; d++){
+			int j = d - band;
+			prev[d] = (j >= 0 && j <= m) ? -j * GAP : NEG;
+			trace[d] = (byte) OP_D;
+		}
+		int best = 0, bestI = 0, bestJ = 0;
+		for (int i = 1; i <= n; i++){
+			int ci = center(i, n, m, global), cp = center(i - 1, n, m, global);
+			int shift = ci - cp;//offset of the previous row in band coordinates
+			byte base = a[i - 1];
+			int rowMax = NEG, rowJ = 0;
+			for (int d = 0; d < width; d++){
+				int j = ci - band + d;
+				if (j < 0 || j > m){
+					cur[d] = NEG;
+					continue;
+				}
+				int score = NEG, op = OP_M;
+				int dDiag = d + shift - 1, dUp = d + shift;
+				if (j > 0 && dDiag >= 0 && dDiag < width && prev[dDiag] > NEG)
+					score = prev[dDiag] + ((base == b[j - 1] && base < 4) ? MATCH : -MISMATCH);
+				if (dUp >= 0 && dUp < width && prev[dUp] > NEG && prev[dUp] - GAP > score){
+					score = prev[dUp] - GAP;
+					op = OP_I;
+				}
+				if (d > 0 && cur[d - 1] > NEG && cur[d - 1] - GAP > score){
+					score = cur[d - 1] - GAP;
+					op = OP_D;
+				}
+				cur[d] = score;
+				trace[i * width + d] = (byte) op;
+				if (score > rowMax){
+					rowMax = score;
+					rowJ = j;
+				}
+			}
+			int [] tmp = prev; prev = cur; cur = tmp;
+
+			if (!global){
+				if (rowMax > best){
+					best = rowMax;
+					bestI = i;
+					bestJ = rowJ;
+				}else if (rowMax <= NEG || rowMax < best - ZDROP)
+					break;
+			}
+		}
+		if (global){
+			bestI = n;
+			bestJ = m;
+		}
+
+		//traceback
+		int i = bestI, j = bestJ;
+		while (i > 0 || j > 0){
+			int d = j - (center(i, n, m, global) - band);
+			int op = (i == 0) ? OP_D : trace[i * width + d];
+			addOp(ops, op, 1);
+			if (op == OP_M){
+				i --;
+				j --;
+			}else if (op == OP_I)
+				i --;
+			else
+				j --;
+		}
+		return new int[]{bestI, bestJ};
+	}
+
+	private static int center(int i, int n, int m, boolean global){
+		if (!global)
+			return i;
+		return n == 0 ? 0 : (int) ((long) i * m / n);
+	}
+
+	/**
+	 * Compute the (w,k)-minimizers of a sequence. The positions are of the
+	 * last base of the k-mer, shifted left by one, with the strand of the
+	 * k-mer chosen (the lesser of the k-mer and its reverse complement) in the
+	 * lowest bit.
+	 */
+	void sketch(byte [] seq, int length, LongArray outKeys, IntArray outPos){
+		int n = length - k + 1;
+		if (n <= 0)
+			return;
+		long mask = (1L << (2 * k)) - 1;
+		int shift = 2 * (k - 1);
+		long [] hash = new long[n];
+		byte [] strand = new byte[n];
+		long fwd = 0, rev = 0;
+		int valid = 0;
+		for (int i = 0; i < length; i++){
+			int c = seq[i];
+			if (c > 3){
+				valid = 0;
+				fwd = rev = 0;
+			}else{
+				fwd = ((fwd << 2) | c) & mask;
+				rev = (rev >>> 2) | ((long) (3 - c) << shift);
+				valid ++;
+			}
+			if (i >= k - 1){
+				int x = i - k + 1;
+				if (valid >= k && fwd != rev){
+					hash[x] = hash(fwd < rev ? fwd : rev, mask);
+					strand[x] = (byte) (fwd < rev ? 0 : 1);
+				}else
+					hash[x] = Long.MAX_VALUE;
+			}
+		}
+
+		int last = -1;
+		int windows = Math.max(1, n - w + 1);
+		for (int s = 0; s < windows; s++){
+			int min = s;
+			for (int x = s + 1; x < Math.min(s + w, n); x++){
+				if (hash[x] < hash[min])
+					min = x;
+			}
+			if (hash[min] == Long.MAX_VALUE || min == last)
+				continue;
+			outKeys.add(hash[min]);
+			outPos.add(((min + k - 1) << 1) | strand[min]);
+			last = min;
+		}
+	}
+
+	//Invertible hash of a k-mer (Thomas Wang), as minimap2
+	private static long hash(long key, long mask){
+		key = (~key + (key << 21)) & mask;
+		key = key ^ (key >>> 24);
+		key = ((key + (key << 3)) + (key << 8)) & mask;
+		key = key ^ (key >>> 14);
+		key = ((key + (key << 2)) + (key << 4)) & mask;
+		key = key ^ (key >>> 28);
+		key = (key + (key << 31)) & mask;
+		return key;
+	}
+
+	private static int lowerBound(long [] array, long key){
+		int lo = 0, hi = array.length;
+		while (lo < hi){
+			int mid = (lo + hi) >>> 1;
+			if (array[mid] < key)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	//bases as 0-3 for ACGT, 4 for others
+	private static byte [] codes(Sequence seq){
+		byte [] codes = new byte[seq.length()];
+		for (int i = 0; i < codes.length; i++){
+			byte base = seq.getBase(i);
+			codes[i] = (base >= 0 && base < 4) ? base : 4;
+		}
+		return codes;
+	}
+
+	private static String bases(byte [] codes){
+		char [] chars = new char[codes.length];
+		for (int i = 0; i < codes.length; i++)
+			chars[i] = "ACGTN".charAt(codes[i]);
+		return new String(chars);
+	}
+
+	/**
+	 * Map the reads from a reader on a pool of threads. The records are
+	 * returned in the order of the reads, those of a read together, as they
+	 * are from bwa.
+	 *
+	 * @param reader the reads, closed when all are read
+	 * @param threads
+	 * @return
+	 */
+	public SAMRecordIterator iterator(SequenceReader reader, int threads){
+		return new MappingIterator(reader, Math.max(1, threads));
+	}
+
+	private class MappingIterator implements SAMRecordIterator{
+		private final SequenceReader reader;
+		private final ExecutorService pool;
+		private final BlockingQueue<CompletableFuture<List<SAMRecord>>> results;
+		private final Thread feeder;
+		private List<SAMRecord> current = new ArrayList<SAMRecord>();
+		private int next = 0;
+		private boolean done = false;
+
+		MappingIterator(SequenceReader reader, int threads){
+			this.reader = reader;
+			this.pool = Executors.newFixedThreadPool(threads, new ThreadFactory(){
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "minimizer-mapper");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+			results = new ArrayBlockingQueue<CompletableFuture<List<SAMRecord>>>(threads * 16);
+
+			feeder = new Thread("minimizer-mapper-reader"){
+				@Override
+				public void run(){
+					CompletableFuture<List<SAMRecord>> last = CompletableFuture.completedFuture(null);
+					try{
+						Sequence read;
+						while ((read = MappingIterator.this.reader.nextSequence(Alphabet.DNA())) != null){
+							final Sequence myRead = read;
+							results.put(CompletableFuture.supplyAsync(new Supplier<List<SAMRecord>>(){
+								@Override
+								public List<SAMRecord> get() {
+									return map(myRead);
+								}
+							}, pool));
+						}
+					}catch (InterruptedException e){
+						return;
+					}catch (IOException e){
+						last = new CompletableFuture<List<SAMRecord>>();
+						last.completeExceptionally(e);
+					}
+					try{
+						results.put(last);
+					}catch (InterruptedException e){
+						//closed
+					}
+				}
+			};
+			feeder.setDaemon(true);
+			feeder.start();
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (next >= current.size()){
+				if (done)
+					return false;
+				List<SAMRecord> list;
+				try{
+					list = results.take().join();
+				}catch (InterruptedException e){
+					throw new RuntimeException(e);
+				}catch (RuntimeException e){
+					throw new RuntimeException("Mapping failed: " + e.getMessage(), e);
+				}
+				if (list == null){
+					done = true;
+					return false;
+				}
+				current = list;
+				next = 0;
+			}
+			return true;
+		}
+
+		@Override
+		public SAMRecord next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			return current.get(next++);
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public void close() {
+			done = true;
+			feeder.interrupt();
+			pool.shutdownNow();
+			try{
+				reader.close();
+			}catch (IOException e){
+				//ignore
+			}
+		}
+
+		@Override
+		public SAMRecordIterator assertSorted(SAMFileHeader.SortOrder sortOrder) {
+			if (sortOrder != SAMFileHeader.SortOrder.unsorted)
+				throw new IllegalStateException("Mappings are in the order of the reads");
+			return this;
+		}
+	}
+}
@@ -0,0 +1,548 @@
+/*****************************************************************************
+ * Copyright (c) Minh Duc Cao, Monash Uni & UQ, All rights reserved.         *
+ *                                                                           *
+ * Redistribution and use in source and binary forms, with or without        *
+ * modification, are permitted provided that the following conditions        *
+ * are met:                                                                  * 
+ *                                                                           *
+ * 1. Redistributions of source code must retain the above copyright notice, *
+ *    this list of conditions and the following disclaimer.                  *
+ * 2. Redistributions in binary form must reproduce the above copyright      *
+ *    notice, this list of conditions and the following disclaimer in the    *
+ *    documentation and/or other materials provided with the distribution.   *
+ * 3. Neither the names of the institutions nor the names of the contributors*
+ *    may be used to endorse or promote products derived from this software  *
+ *    without specific prior written permission.                             *
+ *                                                                           *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS   *
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, *
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR    *
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR         *
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,     *
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,       *
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR        *
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF    *
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING      *
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS        *
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.              *
+ ****************************************************************************/
+
+package japsa.bio.alignment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import japsa.seq.Alphabet;
+import japsa.seq.Sequence;
+import japsa.seq.SequenceBuilder;
+
+
+/**
+ * Partial order alignment (POA) of DNA sequences, to build a consensus of a
+ * set of reads entirely in memory. Sequences are added one by one to a
+ * directed acyclic graph of bases: each sequence is aligned to the graph with
+ * dynamic programming, and the graph is extended with the new bases. The
+ * consensus is the heaviest bundle of the graph, ie the path following the
+ * edges supported by the most sequences.
+ * 
+ * Sequences are aligned semi-globally: the whole sequence is aligned, while
+ * the parts of the graph before and after it are free. This suits reads that
+ * cover only parts of a gene. The dynamic programming is restricted to an
+ * adaptive band around the best cell of the predecessor nodes, and the score
+ * matrix is kept between alignments, so an aligner can be reused to make many
+ * consensus sequences. An aligner is not thread-safe; use 
+ * {@link #consensus(List, int)} to get one per thread.
+ */
+public class PartialOrderAligner {
+	static final int NEG_INF = Integer.MIN_VALUE / 2;
+
+	private static final ThreadLocal<PartialOrderAligner> ALIGNER = new ThreadLocal<PartialOrderAligner>(){
+		@Override
+		protected PartialOrderAligner initialValue() {
+			return new PartialOrderAligner();
+		}
+	};
+
+	private final int match, mismatch, gap;
+	//The band is minBand + bandRatio * sequence length either side
+	private final int minBand;
+	private final double bandRatio;
+
+	/**
+	 * A node of the graph
+	 */
+	static final class Node{
+		final byte base;
+		int rank;//position in topological order
+
+		int nIn = 0, nOut = 0, nAligned = 0;
+		int [] in = new int[2], inWeight = new int[2];
+		int [] inRank = new int[2];//rank of the predecessors, updated on sort
+		int [] out = new int[2];
+		//nodes of different bases at the same column of the alignment
+		int [] aligned = new int[0];
+
+		Node(byte base){
+			this.base = base;
+		}
+
+		void addAligned(int id){
+			if (nAligned == aligned.length)
+				aligned = Arrays.copyOf(aligned, nAligned * 2 + 1);
+			aligned[nAligned++] = id;
+		}
+	}
+
+	private final ArrayList<Node> nodes = new ArrayList<Node>();
+	private int [] order = new int[0];//node ids in topological order
+	private int nSequences = 0;
+
+	//Reusable dynamic programming storage, rows indexed by rank
+	private int [] score = new int[0];
+	private int [] rowStart = new int[0], rowLo = new int[0], rowHi = new int[0], rowBest = new int[0];
+	//Alignment of the last sequence: node aligned to each base, -1 for insertion
+	private int [] baseToNode = new int[0];
+	private byte [] readBases = new byte[0];
+	private int endRank, endJ;
+
+	/**
+	 * Create an aligner with the default scores: match 5, mismatch -4 
+	 * and gap -8, and a band of 50 + 5% of the sequence length either side
+	 */
+	public PartialOrderAligner(){
+		this(5, -4, -8, 50, 0.05);
+	}
+
+	/**
+	 * @param match score of a match (positive)
+	 * @param mismatch score of a mismatch (negative)
+	 * @param gap score of an insertion or a deletion (negative)
+	 * @param minBand minimum half-width of the band
+	 * @param bandRatio additional half-width of the band as a fraction of 
+	 * the length of the sequence being aligned
+	 */
+	public PartialOrderAligner(int match, int mismatch, int gap, int minBand, double bandRatio){
+		this.match = match;
+		this.mismatch = mismatch;
+		this.gap = gap;
+		this.minBand = minBand;
+		this.bandRatio = bandRatio;
+	}
+
+	/**
+	 * Remove all sequences from the graph. The score matrix is kept for reuse.
+	 */
+	public void clear(){
+		nodes.clear();
+		nSequences = 0;
+	}
+
+	/**
+	 * @return the number of sequences added
+	 */
+	public int getNumberSequences(){
+		return nSequences;
+	}
+
+	/**
+	 * @return the number of nodes in the graph
+	 */
+	public int getNumberNodes(){
+		return nodes.size();
+	}
+
+	/**
+	 * Align a sequence to the graph and add it in. 
+	 * @param seq
+	 */
+	public void addSequence(Sequence seq){
+		int length = seq.length();
+		if (length == 0)
+			return;
+
+		if (baseToNode.length < length){
+			baseToNode = new int[length];
+			readBases = new byte[length];
+		}
+		for (int j = 0; j < length; j++)
+			readBases[j] = seq.getBase(j);
+
+		if (nodes.isEmpty())
+			Arrays.fill(baseToNode, 0, length, -1);
+		else
+			align(seq);
+
+		addAlignment(seq);
+		topologicalSort();
+		nSequences ++;
+	}
+
+	private int subScore(byte a, byte b){
+		return (a == b && a < 4) ? match : mismatch;
+	}
+
+	/**
+	 * Align the sequence to the graph into baseToNode. If less than half of
+	 * the sequence is matched within the band, as can be when it starts
+	 * well before or after the others, the alignment is redone without the 
+	 * band.
+	 * @param seq
+	 */
+	private void align(Sequence seq){
+		int length = seq.length();
+		int band = minBand + (int) (bandRatio * length);
+
+		if (rowStart.length < order.length){
+			int size = Math.max(order.length, rowStart.length * 3 / 2);
+			rowStart = new int[size];
+			rowLo = new int[size];
+			rowHi = new int[size];
+			rowBest = new int[size];
+		}
+
+		fillMatrix(length, band);
+		if (traceBack(endRank, endJ, length) * 2 < length && band < length){
+			fillMatrix(length, length);
+			traceBack(endRank, endJ, length);
+		}
+	}
+
+	/**
+	 * Fill in the banded score matrix, and find the best end of the alignment
+	 * 
+	 * @param length length of the sequence
+	 * @param band half-width of the band
+	 */
+	private void fillMatrix(int length, int band){
+		int nNodes = order.length;
+		//Bands are decided before the scores, from the best cells of the predecessors
+		//The virtual start node (every node can follow it) has its best at 0
+		int cells = 0;
+		for (int r = 0; r < nNodes; r++){
+			Node node = nodes.get(order[r]);
+			int lo = 0, hi = 0;
+			if (node.nIn > 0){
+				lo = Integer.MAX_VALUE;
+				hi = 0;
+				for (int e = 0; e < node.nIn; e++){
+					int best = rowBest[node.inRank[e]];
+					if (best < lo) lo = best;
+					if (best > hi) hi = best;
+				}
+			}
+			rowLo[r] = Math.max(0, lo + 1 - band);
+			rowHi[r] = Math.min(length, hi + 1 + band);
+			rowStart[r] = cells;
+			cells += rowHi[r] - rowLo[r] + 1;
+
+			if (score.length < cells)
+				score = Arrays.copyOf(score, Math.max(cells, score.length * 3 / 2));
+
+			fillRow(r, node);
+		}
+
+		//Find the best end: the whole sequence aligned, the rest of the graph free
+		int bestScore = length * gap;//all bases are insertions
+		endRank = -1;
+		endJ = length;
+		for (int r = 0; r < nNodes; r++){
+			int hi = rowHi[r];
+			//bases after the band are inserted after the node
+			int s = score[rowStart[r] + hi - rowLo[r]] + (length - hi) * gap;
+			if (s > bestScore){
+				bestScore = s;
+				endRank = r;
+				endJ = hi;
+			}
+		}
+	}
+
+	/**
+	 * Score of the cell of the row at rank r and base index j, NEG_INF if 
+	 * outside the band.
+	 */
+	private int cell(int r, int j){
+		if (r < 0)
+			return j * gap;//the virtual start
+		if (j < rowLo[r] || j > rowHi[r])
+			return NEG_INF;
+		return score[rowStart[r] + j - rowLo[r]];
+	}
+
+	private void fillRow(int r, Node node){
+		int lo = rowLo[r], hi = rowHi[r], start = rowStart[r] - lo;
+		byte nodeBase = node.base;
+
+		//From the virtual start: match the base, or delete this node
+		score[start + lo] = (lo == 0) ? 0 : Math.max((lo - 1) * gap + subScore(nodeBase, readBases[lo - 1]), (lo + 1) * gap);
+		for (int j = Math.max(lo, 1); j <= hi; j++)
+			score[start + j] = Math.max((j - 1) * gap + subScore(nodeBase, readBases[j - 1]), (j + 1) * gap);
+
+		for (int e = 0; e < node.nIn; e++){
+			int p = node.inRank[e];
+			int pLo = rowLo[p], pHi = rowHi[p], pStart = rowStart[p] - pLo;
+
+			//match or mismatch from the cell (p, j - 1)
+			int to = Math.min(hi, pHi + 1);
+			for (int j = Math.max(Math.max(lo, pLo + 1), 1); j <= to; j++){
+				int s = score[pStart + j - 1] + subScore(nodeBase, readBases[j - 1]);
+				if (s > score[start + j])
+					score[start + j] = s;
+			}
+			//deletion of this node from the cell (p, j)
+			to = Math.min(hi, pHi);
+			for (int j = Math.max(Math.max(lo, pLo), 1); j <= to; j++){
+				int s = score[pStart + j] + gap;
+				if (s > score[start + j])
+					score[start + j] = s;
+			}
+		}
+
+		//insertion of base j after this node, the graph before the sequence is free
+		if (lo == 0)
+			score[start] = 0;
+		int best = score[start + lo], bestJ = lo;
+		for (int j = lo + 1; j <= hi; j++){
+			int s = score[start + j - 1] + gap;
+			if (s > score[start + j])
+				score[start + j] = s;
+			if (score[start + j] > best){
+				best = score[start + j];
+				bestJ = j;
+			}
+		}
+		rowBest[r] = bestJ;
+	}
+
+	/**
+	 * Trace back the alignment ending at the cell (r, j) into baseToNode
+	 * @return the number of bases matched
+	 */
+	private int traceBack(int r, int j, int length){
+		int matched = 0;
+		//bases not reached are insertions
+		Arrays.fill(baseToNode, 0, length, -1);
+		while (r >= 0 && j > 0){
+			Node node = nodes.get(order[r]);
+			int s = cell(r, j);
+			int sub = subScore(node.base, readBases[j - 1]);
+
+			//insertion within the row
+			if (j > rowLo[r] && cell(r, j - 1) + gap == s){
+				j--;
+				continue;
+			}
+
+			int next = -2;//-2: not found
+			boolean diag = false;
+			for (int e = 0; e < node.nIn && next == -2; e++){
+				int p = node.inRank[e];
+				if (cell(p, j - 1) + sub == s){
+					next = p;
+					diag = true;
+				}else if (cell(p, j) + gap == s)
+					next = p;
+			}
+			if (next == -2){
+				//from the virtual start
+				if ((j - 1) * gap + sub == s){
+					baseToNode[j - 1] = order[r];
+					return sub == match ? matched + 1 : matched;
+				}
+				next = -1;//deletion from the virtual start
+			}
+			if (diag){
+				baseToNode[j - 1] = order[r];
+				if (sub == match)
+					matched ++;
+				j--;
+			}
+			r = next;
+		}
+		return matched;
+	}
+
+	/**
+	 * Add the sequence to the graph following the alignment in baseToNode
+	 * @param seq
+	 */
+	private void addAlignment(Sequence seq){
+		int prev = -1;
+		for (int j = 0; j < seq.length(); j++){
+			byte base = seq.getBase(j);
+			int aligned = baseToNode[j];
+			int current = -1;
+
+			if (aligned >= 0){
+				Node node = nodes.get(aligned);
+				if (node.base == base)
+					current = aligned;
+				else{
+					for (int a = 0; a < node.nAligned; a++){
+						if (nodes.get(node.aligned[a]).base == base){
+							current = node.aligned[a];
+							break;
+						}
+					}
+					if (current < 0){
+						current = newNode(base);
+						Node newNode = nodes.get(current);
+						for (int a = 0; a < node.nAligned; a++){
+							newNode.addAligned(node.aligned[a]);
+							nodes.get(node.aligned[a]).addAligned(current);
+						}
+						newNode.addAligned(aligned);
+						node.addAligned(current);
+					}
+				}
+			}else
+				current = newNode(base);
+
+			if (prev >= 0)
+				addEdge(prev, current);
+			prev = current;
+		}
+	}
+
+	private int newNode(byte base){
+		nodes.add(new Node(base));
+		return nodes.size() - 1;
+	}
+
+	private void addEdge(int from, int to){
+		Node toNode = nodes.get(to);
+		for (int e = 0; e < toNode.nIn; e++){
+			if (toNode.in[e] == from){
+				toNode.inWeight[e] ++;
+				return;
+			}
+		}
+		if (toNode.nIn == toNode.in.length){
+			toNode.in = Arrays.copyOf(toNode.in, toNode.nIn * 2);
+			toNode.inWeight = Arrays.copyOf(toNode.inWeight, toNode.nIn * 2);
+			toNode.inRank = Arrays.copyOf(toNode.inRank, toNode.nIn * 2);
+		}
+		toNode.in[toNode.nIn] = from;
+		toNode.inWeight[toNode.nIn] = 1;
+		toNode.nIn ++;
+
+		Node fromNode = nodes.get(from);
+		if (fromNode.nOut == fromNode.out.length)
+			fromNode.out = Arrays.copyOf(fromNode.out, fromNode.nOut * 2);
+		fromNode.out[fromNode.nOut++] = to;
+	}
+
+	private void topologicalSort(){
+		int nNodes = nodes.size();
+		if (order.length != nNodes)
+			order = new int[nNodes];
+
+		int [] inDegree = new int[nNodes];
+		int head = 0, tail = 0;
+		for (int i = 0; i < nNodes; i++){
+			inDegree[i] = nodes.get(i).nIn;
+			if (inDegree[i] == 0)
+				order[tail++] = i;
+		}
+		while (head < tail){
+			Node node = nodes.get(order[head]);
+			node.rank = head;
+			head ++;
+			for (int e = 0; e < node.nOut; e++){
+				if (--inDegree[node.out[e]] == 0)
+					order[tail++] = node.out[e];
+			}
+		}
+		if (tail != nNodes)
+			throw new IllegalStateException("Partial order graph has a cycle");
+
+		for (int i = 0; i < nNodes; i++){
+			Node node = nodes.get(i);
+			for (int e = 0; e < node.nIn; e++)
+				node.inRank[e] = nodes.get(node.in[e]).rank;
+		}
+	}
+
+	/**
+	 * Get the consensus of the sequences added: the heaviest bundle, where 
+	 * each node follows its predecessor with the heaviest edge.
+	 * Ambiguous bases are left out.
+	 *  
+	 * @return the consensus sequence, null if no sequences have been added
+	 */
+	public Sequence consensus(){
+		int nNodes = order.length;
+		if (nodes.isEmpty() || nNodes != nodes.size())
+			return null;
+
+		int [] pathScore = new int[nNodes];
+		int [] pathPrev = new int[nNodes];
+		int endRank = 0;
+		for (int r = 0; r < nNodes; r++){
+			Node node = nodes.get(order[r]);
+			int bestPrev = -1, bestWeight = 0;
+			for (int e = 0; e < node.nIn; e++){
+				int p = node.inRank[e];
+				int w = node.inWeight[e];
+				if (w > bestWeight || (w == bestWeight && pathScore[p] > pathScore[bestPrev])){
+					bestWeight = w;
+					bestPrev = p;
+				}
+			}
+			pathPrev[r] = bestPrev;
+			pathScore[r] = bestPrev < 0 ? 0 : pathScore[bestPrev] + bestWeight;
+			if (pathScore[r] > pathScore[endRank])
+				endRank = r;
+		}
+
+		int pathLength = 0;
+		for (int r = endRank; r >= 0; r = pathPrev[r])
+			pathLength ++;
+		byte [] path = new byte[pathLength];
+		for (int r = endRank; r >= 0; r = pathPrev[r])
+			path[--pathLength] = nodes.get(order[r]).base;
+
+		SequenceBuilder sb = new SequenceBuilder(Alphabet.DNA(), path.length);
+		for (byte base:path){
+			if (base >= 0 && base < 4)
+				sb.append(base);
+		}
+		sb.setName("consensus");
+		return sb.toSequence();
+	}
+
+	/**
+	 * Make the consensus of (up to max of) the sequences using the aligner 
+	 * of the calling thread. Longer sequences are added first, as they give 
+	 * a better backbone for the others.
+	 * 
+	 * @param seqList
+	 * @param max maximum number of sequences to use
+	 * @return the consensus, or null if the list is empty
+	 */
+	public static Sequence consensus(List<Sequence> seqList, int max){
+		if (seqList == null || seqList.isEmpty())
+			return null;
+
+		ArrayList<Sequence> seqs = new ArrayList<Sequence>(seqList.subList(0, Math.min(max, seqList.size())));
+		Collections.sort(seqs, new Comparator<Sequence>(){
+			@Override
+			public int compare(Sequence o1, Sequence o2) {
+				return o2.length() - o1.length();
+			}
+		});
+
+		PartialOrderAligner aligner = ALIGNER.get();
+		aligner.clear();
+		try{
+			for (Sequence seq:seqs)
+				aligner.addSequence(seq);
+			return aligner.consensus();
+		}finally{
+			aligner.clear();
+		}
+	}
+}
@@ -73,6 +73,9 @@ public abstract class ProbFSM {
 	Sequence mSeq;//sequence belong to the model
 	double insEmissionCost = 2, changeEmissionCost = JapsaMath.log2(3);
 
+	//band of the dense engine, 0 for none
+	int band = 0;
+
 	Alphabet alphabet = Alphabet.DNA();
 
 	/**
@@ -613,6 +616,157 @@ public abstract class ProbFSM {
 		return retEmission;
 	}
 
+	/**************************************************************
+	 * Same as {@link #align(Sequence)}, but the lattice is kept in the
+	 * primitive arrays of the thread's {@link DenseLattice} rather than in
+	 * hashed emission objects. The result is identical unless banding is set;
+	 * only the emissions of the best path are created.
+	 * @param genSeq
+	 * @return
+	 */
+	public Emission alignDense(Sequence genSeq) {
+		return alignDense(genSeq, false);
+	}
+
+	/**************************************************************
+	 * Same as {@link #alignGenerative(Sequence)} on the dense lattice
+	 * @param genSeq
+	 * @return
+	 */
+	public Emission alignGenerativeDense(Sequence genSeq) {
+		return alignDense(genSeq, true);
+	}
+
+	/**
+	 * Restrict the dense engine to the band of diagonals between the
+	 * alignments of the starts and of the ends of the two sequences, widened
+	 * by band on each side
+	 * @param band the width, 0 (the default) for no banding
+	 */
+	public void setBand(int band) {
+		this.band = band;
+	}
+
+	private Emission alignDense(Sequence genSeq, boolean generative) {
+		int mLength = mSeq.length(), gLength = genSeq.length();
+		if ((mLength + 1L) * (gLength + 1L) > DenseLattice.MAX_CELLS)
+			return generative ? alignGenerative(genSeq) : align(genSeq);
+
+		//transitions by state index
+		int nStates = states.length;
+		int[] delTo = new int[nStates], insTo = new int[nStates], matTo = new int[nStates];
+		for (int s = 0; s < nStates; s++) {
+			delTo[s] = indexOf(states[s].delState);
+			insTo[s] = indexOf(states[s].insState);
+			matTo[s] = indexOf(states[s].matchState);
+		}
+
+		int lo = Math.min(0, gLength - mLength) - band, hi = Math.max(0, gLength - mLength) + band;
+
+		DenseLattice dp = DenseLattice.local();
+		dp.reset(mLength, gLength);
+
+		//Entry 0 is the result if no path is found, entry 1 the start
+		int ret = dp.add(0, mLength - 1, gLength - 1, genSeq.length() * (insEmissionCost + 4), -1, NO_TYPE, false);
+		dp.add(0, -1, -1, 0, -1, NO_TYPE, true);
+
+		for (int e = 1; e < dp.size; e++) {//in the order of the linked list
+			int s = dp.tag[e], mPos = dp.pos1[e], gPos = dp.pos2[e];
+			double myCost = dp.score[e];
+			MachineState state = states[s];
+
+			if (gPos >= gLength - 1) {
+				//done generating genSeq
+				if (myCost < dp.score[ret]) {
+					ret = e;
+				}
+			} else if (myCost < dp.score[ret]) {
+				double cost;
+				EmissionType type;
+
+				//1. consider deletion if profile has something to offer
+				if (mPos + 1 < mLength && delTo[s] >= 0) {
+					if (generative && gPos < 0) {
+						cost = myCost;
+						type = EmissionType.DELETION_FIRST;
+					} else {
+						cost = myCost + state.delCost;
+						type = EmissionType.DELETION;
+					}
+					visit(dp, delTo[s], mPos + 1, gPos, cost, e, type, lo, hi);
+				}
+
+				//2. insertion
+				if (gPos + 1 < gLength && insTo[s] >= 0) {
+					if (generative && (mPos < 0 || mPos >= mLength - 1)) {
+						cost = myCost + 2;
+						type = EmissionType.INSERTION_FIRST;
+					} else {
+						cost = myCost + state.insCost + this.insEmissionCost;
+						type = EmissionType.INSERTION;
+					}
+					visit(dp, insTo[s], mPos, gPos + 1, cost, e, type, lo, hi);
+				}
+
+				//3.Match
+				if (gPos + 1 < gLength && mPos + 1 < mLength) {
+					if (mSeq.getBase(mPos + 1) == genSeq.getBase(gPos + 1)) {
+						cost = myCost + state.matchCost + state.copyCost;
+						type = EmissionType.COPY;
+					} else {
+						cost = myCost + state.matchCost + state.changeCost + this.changeEmissionCost;
+						type = EmissionType.MUTATE;
+					}
+
+					if (cost < dp.score[ret]) {
+						visit(dp, matTo[s], mPos + 1, gPos + 1, cost, e, type, lo, hi);
+					}
+				}//match
+			}
+			if (!generative)
+				dp.remove(e);
+		}
+		LOG.debug("Lattice = " + dp.size);
+
+		//Only the best path is turned into emissions
+		Emission retEmission = toEmission(dp, ret), emiss = retEmission;
+		for (int b = dp.bwd[ret]; b >= 0; b = dp.bwd[b]) {
+			emiss.bwdEmission = toEmission(dp, b);
+			emiss = emiss.bwdEmission;
+		}
+		dp.clear();
+		return retEmission;
+	}
+
+	private static final byte NO_TYPE = -1;
+	private static final EmissionType[] TYPES = EmissionType.values();
+
+	private void visit(DenseLattice dp, int s, int mPos, int gPos, double cost, int from, EmissionType type, int lo, int hi) {
+		int e = dp.find(s, mPos, gPos);
+		if (e >= 0)
+			dp.relax(e, cost, from, (byte) type.ordinal());
+		else if (band <= 0 || (gPos - mPos >= lo && gPos - mPos <= hi))
+			dp.add(s, mPos, gPos, cost, from, (byte) type.ordinal(), true);
+	}
+
+	private Emission toEmission(DenseLattice dp, int e) {
+		Emission emiss = new Emission(states[dp.tag[e]], dp.pos1[e], dp.pos2[e]);
+		emiss.myCost = dp.score[e];
+		if (dp.type[e] != NO_TYPE)
+			emiss.type = TYPES[dp.type[e]];
+		return emiss;
+	}
+
+	private int indexOf(MachineState state) {
+		if (state == null)
+			return -1;
+		for (int s = 0; s < states.length; s++) {
+			if (states[s] == state)
+				return s;
+		}
+		throw new RuntimeException("State " + state.name + " is not of the machine");
+	}
+
 	/********************************************************************/
 
 	public static enum EmissionType {
@@ -707,25 +861,32 @@ public abstract class ProbFSM {
 			states[0].matchState = states[0];
 			states[0].insState = states[1];
 			states[0].delState = states[2];
-			states[0].setCopyProb(0.9);
-			states[0].setTransitionProb(.8, 0.1, 0.1);
-
 
 			states[1].matchState = states[0];
 			states[1].insState = states[1];
 			states[1].delState = null;
-			states[1].setCopyProb(0.9);
-			states[1].setTransitionProb(.8, 0.2, 0);
-
 
 			states[2].matchState = states[0];
 			states[2].insState = null;
 			states[2].delState = states[2];
 
+			resetProb();
+			this.mSeq = seq;
+		}
+
+		/**
+		 * Set the parameters back to their initial values, so that a machine
+		 * can be reused for a new training
+		 */
+		public void resetProb() {
+			states[0].setCopyProb(0.9);
+			states[0].setTransitionProb(.8, 0.1, 0.1);
+
+			states[1].setCopyProb(0.9);
+			states[1].setTransitionProb(.8, 0.2, 0);
+
 			states[2].setCopyProb(0.9);
 			states[2].setTransitionProb(.8, 0, 0.2);
-
-			this.mSeq = seq;
 		}
 
 		public MachineState getMatState() {
@@ -35,6 +35,7 @@
 package japsa.bio.alignment;
 
 import java.io.IOException;
+import java.io.PrintStream;
 import java.util.HashMap;
 import java.util.Random;
 
@@ -85,6 +86,12 @@ public class ProfileDP {
 	Sequence profileSeq;
 	int repStart, repEnd;	
 
+	//band of the dense engine, 0 for none
+	int band = 0;
+
+	//where the estimates of the alignments are printed
+	PrintStream trace = System.out;
+
 
 
 	public ProfileDP(Sequence seq, int repStart, int repEnd){
@@ -348,12 +355,166 @@ public class ProfileDP {
 		}
 		//System.out.printf("Consider %d states\n",complexity);
 
-		System.out.printf("Estimate: %2d %3d %3d %3d %3d %8.4f %8.4f\n",retState.iter, retState.countMG, retState.countMB, 
+		trace.printf("Estimate: %2d %3d %3d %3d %3d %8.4f %8.4f\n",retState.iter, retState.countMG, retState.countMB, 
 				retState.countIns, retState.countDel, retState.score,
 				retState.countMG * (matCost + matchCost) + retState.countMB *(matCost + misMatchCost) + 
 				retState.countIns * insCost + retState.countDel * delCost);	return retState;//bestScore;
 	}
 
+	/**
+	 * Set the stream the estimates of the alignments are printed to, 
+	 * standard output by default
+	 * @param trace
+	 */
+	public void setTrace(PrintStream trace){
+		this.trace = trace;
+	}
+
+	/**
+	 * Restrict {@link #alignDense(Sequence)} to the entries whose position on
+	 * the sequence is within band of their position on the profile unrolled
+	 * over the iterations of the repeat
+	 * @param band the width, 0 (the default) for no banding
+	 */
+	public void setBand(int band){
+		this.band = band;
+	}
+
+	private static final byte DEL = 0, INS = 1, MATCH = 2, MISMATCH = 3, START = -1;
+
+	/**
+	 * Same as {@link #align(Sequence)}, but the lattice is kept in the 
+	 * primitive arrays of the thread's {@link DenseLattice} rather than in
+	 * hashed emission states. The result is identical unless banding is set;
+	 * only the states of the best path are created.
+	 * @param seq
+	 * @return
+	 */
+	public EmissionState alignDense(Sequence seq){
+		int profileLength = profileSeq.length(), seqLength = seq.length();
+		if ((profileLength + 1L) * (seqLength + 1L) > DenseLattice.MAX_CELLS)
+			return align(seq);
+
+		int period = repEnd - repStart + 1;
+		DenseLattice dp = DenseLattice.local();
+		dp.reset(profileLength, seqLength);
+
+		//Entry 0 is the result if no path is found, entry 1 the start.
+		//The tag of an entry is its iteration
+		int ret = dp.add(0, profileLength - 1, seqLength - 1, seqLength * (insCost + 2), -1, START, false);
+		dp.add(0, -1, -1, 0, -1, START, true);
+
+		for (int e = 1; e < dp.size; e++){
+			int iter = dp.tag[e], profilePos = dp.pos1[e], seqPos = dp.pos2[e];
+			double score = dp.score[e];
+			if (seqPos >= seqLength - 1){
+				if (score < dp.score[ret]){
+					//stays indexed, as the hashed engine does
+					ret = e;
+					continue;
+				}
+			}
+
+			double cost;
+			int iterAdvance = 0;
+			//if it is about the enter the repeat
+			if (profilePos + 1 == repStart){
+				iterAdvance = 1;
+			}
+
+			//1. consider deletion if profile has something to offer
+			if (profilePos + 1 < profileLength){
+				cost = score + delCost;
+				if (cost < dp.score[ret])
+					visit(dp, iter + iterAdvance, profilePos + 1, seqPos, cost, e, DEL, period);
+			}
+
+			//2. insertion
+			if (seqPos + 1 < seqLength){
+				cost = score + insCost;
+				if (cost < dp.score[ret])
+					visit(dp, iter, profilePos, seqPos + 1, cost, e, INS, period);
+			}
+
+			//3.Match
+			if (seqPos + 1 < seqLength && profilePos + 1 < profileLength){
+				boolean same = seq.getBase(seqPos + 1) == profileSeq.getBase(profilePos + 1);
+				cost = score + matCost + (same ? matchCost : misMatchCost);
+				if (cost < dp.score[ret])
+					visit(dp, iter + iterAdvance, profilePos + 1, seqPos + 1, cost, e, same ? MATCH : MISMATCH, period);
+			}
+
+			//Consider jumping to the beginning of the rep
+			if (profilePos == repEnd){
+				cost = score + delCost;
+				if (cost < dp.score[ret])
+					visit(dp, iter + 1, repStart, seqPos, cost, e, DEL, period);
+
+				if (seqPos + 1 < seqLength && profilePos + 1 < profileLength){
+					boolean same = seq.getBase(seqPos + 1) == profileSeq.getBase(repStart);
+					cost = score + matCost + (same ? matchCost : misMatchCost);
+					if (cost < dp.score[ret])
+						visit(dp, iter + 1, repStart, seqPos + 1, cost, e, same ? MATCH : MISMATCH, period);
+				}
+			}
+			dp.remove(e);
+		}
+
+		//Only the best path is turned into states, from the start
+		int pathLength = 0;
+		for (int b = ret; b >= 0; b = dp.bwd[b])
+			pathLength ++;
+		int [] path = new int[pathLength];
+		for (int b = ret, i = pathLength; b >= 0; b = dp.bwd[b])
+			path[--i] = b;
+
+		EmissionState retState = null;
+		for (int i = 0; i < pathLength; i++){
+			int e = path[i];
+			EmissionState state = new EmissionState(dp.pos2[e], dp.pos1[e], dp.tag[e]);
+			state.score = dp.score[e];
+			state.bwdState = retState;
+			if (retState != null){
+				state.countDel = retState.countDel;
+				state.countIns = retState.countIns;
+				state.countMG  = retState.countMG;
+				state.countMB  = retState.countMB;
+			}
+			switch (dp.type[e]){
+			case DEL:
+				state.countDel ++;
+				break;
+			case INS:
+				state.countIns ++;
+				break;
+			case MATCH:
+				state.countMG ++;
+				break;
+			case MISMATCH:
+				state.countMB ++;
+				break;
+			default:
+				break;
+			}
+			retState = state;
+		}
+		dp.clear();
+
+		trace.printf("Estimate: %2d %3d %3d %3d %3d %8.4f %8.4f\n",retState.iter, retState.countMG, retState.countMB, 
+				retState.countIns, retState.countDel, retState.score,
+				retState.countMG * (matCost + matchCost) + retState.countMB *(matCost + misMatchCost) + 
+				retState.countIns * insCost + retState.countDel * delCost);
+		return retState;
+	}
+
+	private void visit(DenseLattice dp, int iter, int profilePos, int seqPos, double cost, int from, byte type, int period){
+		int e = dp.find(iter, profilePos, seqPos);
+		if (e >= 0){
+			dp.relax(e, cost, from, type);
+		}else if (band <= 0 || Math.abs(seqPos - profilePos - (iter > 0 ? (iter - 1) * period : 0)) <= band)
+			dp.add(iter, profilePos, seqPos, cost, from, type, true);
+	}
+
 	public static class EmissionState{
 		int countDel = 0, countIns = 0, countMG = 0, countMB = 0;
 
@@ -0,0 +1,401 @@
+/*****************************************************************************
+ * Copyright (c) Minh Duc Cao, Monash Uni & UQ, All rights reserved.         *
+ *                                                                           *
+ * Redistribution and use in source and binary forms, with or without        *
+ * modification, are permitted provided that the following conditions        *
+ * are met:                                                                  * 
+ *                                                                           *
+ * 1. Redistributions of source code must retain the above copyright notice, *
+ *    this list of conditions and the following disclaimer.                  *
+ * 2. Redistributions in binary form must reproduce the above copyright      *
+ *    notice, this list of conditions and the following disclaimer in the    *
+ *    documentation and/or other materials provided with the distribution.   *
+ * 3. Neither the names of the institutions nor the names of the contributors*
+ *    may be used to endorse or promote products derived from this software  *
+ *    without specific prior written permission.                             *
+ *                                                                           *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS   *
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, *
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR    *
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR         *
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,     *
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,       *
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR        *
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF    *
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING      *
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS        *
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.              *
+ ****************************************************************************/
+
+package japsa.bio.hts;
+
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SamInputResource;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.ValidationStringency;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A single pass over a b/sam file shared by several analyses. 
+ * 
+ * The file is read once, with the decompression done asynchronously by 
+ * htsjdk. Records are grouped into batches, and the batches are processed by 
+ * a pool of workers. Two kinds of analyses can subscribe to the pass:
+ * <ul>
+ * <li>A {@link Visitor} sees the records of a batch on a worker thread, and 
+ * keeps what it computes in an accumulator private to the worker. The 
+ * accumulators of all workers are merged at the end of the pass. This is 
+ * for statistics that do not depend on the order of the records. The lazy
+ * decoding of the bam records (cigar, bases, qualities) happens on the 
+ * workers too.</li>
+ * <li>An {@link OrderedVisitor} sees every record in the order of the file, 
+ * on the thread calling {@link #run()}, once all visitors are done with the 
+ * batch of the record. It can thus write or even modify the records, and 
+ * can decline further records when it is finished.</li>
+ * </ul>
+ * 
+ * A typical use:
+ * <pre>
+ * BamPass pass = new BamPass(bamFile);
+ * pass.setThreads(8);
+ * BamPass.Subscription&lt;IdentityStatistics.Totals&gt; identity = 
+ *     pass.subscribe(new IdentityStatistics(genomes, qual));
+ * pass.subscribe(new BamPass.OrderedVisitor(){...});
+ * pass.run();
+ * IdentityStatistics.Totals totals = identity.getResult();
+ * </pre>
+ */
+public class BamPass {
+	/**
+	 * An analysis of records in any order, with one accumulator per worker
+	 *
+	 * @param <A> type of the accumulator
+	 */
+	public interface Visitor<A>{
+		/**
+		 * @return a new, empty accumulator
+		 */
+		A newAccumulator();
+		/**
+		 * Visit a record. The accumulator is only used by the calling thread. 
+		 * The record must not be modified.
+		 */
+		void visit(A accumulator, SAMRecord sam);
+		/**
+		 * Merge the content of accumulator from into accumulator to 
+		 */
+		void merge(A to, A from);
+	}
+
+	/**
+	 * An analysis of records in the order of the file
+	 */
+	public interface OrderedVisitor{
+		/**
+		 * Visit the next record
+		 * @param sam
+		 * @return false if the visitor does not need any further record
+		 * @throws IOException
+		 */
+		boolean visit(SAMRecord sam) throws IOException;
+	}
+
+	/**
+	 * The handle to the result of a visitor, available after the pass
+	 *
+	 * @param <A>
+	 */
+	public static class Subscription<A>{
+		private final Visitor<A> visitor;
+		private A result;
+
+		private Subscription(Visitor<A> visitor){
+			this.visitor = visitor;
+		}
+
+		@SuppressWarnings("unchecked")
+		private void merge(Object accumulator){
+			if (result == null)
+				result = (A) accumulator;
+			else
+				visitor.merge(result, (A) accumulator);
+		}
+
+		/**
+		 * @return the merged accumulator of the visitor
+		 */
+		public A getResult(){
+			if (result == null)
+				throw new IllegalStateException("The pass has not been run");
+			return result;
+		}
+	}
+
+	private final SamReader samReader;
+	private final String fileName;
+
+	private int threads = 1;
+	private int batchSize = 512;
+
+	private final ArrayList<Subscription<?>> subscriptions = new ArrayList<Subscription<?>>();
+	private final ArrayList<OrderedVisitor> orderedVisitors = new ArrayList<OrderedVisitor>();
+
+	//Accumulators of all subscriptions, one set per worker. A batch takes a 
+	//set from the pool, and returns it when done
+	private final ConcurrentLinkedQueue<Object[]> accumulators = new ConcurrentLinkedQueue<Object[]>();
+	private final ArrayList<Object[]> allAccumulators = new ArrayList<Object[]>();
+
+	private ExecutorService workers;
+	private final ArrayDeque<Future<ArrayList<SAMRecord>>> inFlight = new ArrayDeque<Future<ArrayList<SAMRecord>>>();
+
+	private long numRecords = 0;
+	private boolean done = false;
+
+	/**
+	 * Open a b/sam file for a pass
+	 * @param fileName name of the file, - for standard input
+	 * @throws IOException
+	 */
+	public BamPass(String fileName) throws IOException{
+		this.fileName = fileName;
+		SamReaderFactory factory = SamReaderFactory.makeDefault()
+			.validationStringency(ValidationStringency.SILENT)
+			.setUseAsyncIo(true);
+
+		if ("-".equals(fileName))
+			samReader = factory.open(SamInputResource.of(System.in));
+		else
+			samReader = factory.open(new File(fileName));
+	}
+
+	/**
+	 * @return the header of the file
+	 */
+	public SAMFileHeader getFileHeader(){
+		return samReader.getFileHeader();
+	}
+
+	/**
+	 * @return the name of the file
+	 */
+	public String getFileName(){
+		return fileName;
+	}
+
+	/**
+	 * Set the number of threads processing the batches. With one thread, 
+	 * everything is done by the thread calling run()
+	 * @param threads
+	 */
+	public void setThreads(int threads){
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * Set the number of records in a batch
+	 * @param batchSize
+	 */
+	public void setBatchSize(int batchSize){
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	/**
+	 * @return the number of records read in the pass
+	 */
+	public long getNumRecords(){
+		return numRecords;
+	}
+
+	/**
+	 * Subscribe an analysis of records in any order
+	 * @param visitor
+	 * @return the handle to the result of the visitor
+	 */
+	public <A> Subscription<A> subscribe(Visitor<A> visitor){
+		if (done)
+			throw new IllegalStateException("The pass has been run");
+		Subscription<A> subscription = new Subscription<A>(visitor);
+		subscriptions.add(subscription);
+		return subscription;
+	}
+
+	/**
+	 * Subscribe an analysis of records in the order of the file
+	 * @param visitor
+	 */
+	public void subscribe(OrderedVisitor visitor){
+		if (done)
+			throw new IllegalStateException("The pass has been run");
+		orderedVisitors.add(visitor);
+	}
+
+	/**
+	 * Run the pass and close the file. The pass stops early if there is no 
+	 * visitor and all ordered visitors have declined further records. 
+	 * @throws IOException
+	 */
+	public void run() throws IOException{
+		if (done)
+			throw new IllegalStateException("The pass has been run");
+		done = true;
+
+		if (threads > 1 && subscriptions.size() > 0){
+			workers = Executors.newFixedThreadPool(threads, new ThreadFactory(){
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "bam-pass");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+
+		SAMRecordIterator samIter = samReader.iterator();
+		try{
+			boolean more = true;
+			ArrayList<SAMRecord> batch = new ArrayList<SAMRecord>(batchSize);
+			while (more && samIter.hasNext()){
+				batch.add(samIter.next());
+				numRecords ++;
+				if (batch.size() >= batchSize){
+					more = submit(batch);
+					batch = new ArrayList<SAMRecord>(batchSize);
+				}
+			}
+			if (more && batch.size() > 0)
+				more = submit(batch);
+
+			while (more && !inFlight.isEmpty())
+				more = completeNext();
+		}finally{
+			if (workers != null){
+				workers.shutdownNow();
+				workers = null;
+			}
+			inFlight.clear();
+			samIter.close();
+			samReader.close();
+		}
+
+		//Merge the accumulators of the workers, there is at least one set even
+		//if no record has been seen
+		if (allAccumulators.size() == 0)
+			newAccumulators();
+		for (Object [] sets:allAccumulators){
+			for (int i = 0; i < sets.length; i++)
+				subscriptions.get(i).merge(sets[i]);
+		}
+	}
+
+	/**
+	 * Close the file without running the pass
+	 * @throws IOException
+	 */
+	public void close() throws IOException{
+		done = true;
+		samReader.close();
+	}
+
+	/**
+	 * Submit a batch, and complete the earliest ones if too many are in 
+	 * flight
+	 * @return false if the pass can stop
+	 */
+	private boolean submit(final ArrayList<SAMRecord> batch) throws IOException{
+		if (workers == null){
+			visitAll(batch);
+			return visitOrdered(batch);
+		}
+
+		inFlight.add(workers.submit(new Callable<ArrayList<SAMRecord>>(){
+			@Override
+			public ArrayList<SAMRecord> call() {
+				visitAll(batch);
+				return batch;
+			}
+		}));
+
+		boolean more = true;
+		while (more && inFlight.size() >= threads * 2)
+			more = completeNext();
+		return more;
+	}
+
+	private boolean completeNext() throws IOException{
+		try{
+			return visitOrdered(inFlight.poll().get());
+		}catch (InterruptedException e){
+			throw new InterruptedIOException();
+		}catch (ExecutionException e){
+			throw new IOException(e.getCause());
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private void visitAll(ArrayList<SAMRecord> batch){
+		if (subscriptions.size() == 0)
+			return;
+
+		Object [] sets = accumulators.poll();
+		if (sets == null)
+			sets = newAccumulators();
+
+		try{
+			for (SAMRecord sam:batch){
+				for (int i = 0; i < sets.length; i++)
+					((Visitor<Object>) subscriptions.get(i).visitor).visit(sets[i], sam);
+			}
+		}finally{
+			accumulators.add(sets);
+		}
+	}
+
+	private Object[] newAccumulators(){
+		Object [] sets = new Object[subscriptions.size()];
+		for (int i = 0; i < sets.length; i++)
+			sets[i] = subscriptions.get(i).visitor.newAccumulator();
+		synchronized(allAccumulators){
+			allAccumulators.add(sets);
+		}
+		return sets;
+	}
+
+	/**
+	 * @return false if there is no visitor, and all ordered visitors have 
+	 * declined
+	 */
+	private boolean visitOrdered(ArrayList<SAMRecord> batch) throws IOException{
+		if (orderedVisitors.size() == 0)
+			return true;
+
+		SAMFileHeader samHeader = samReader.getFileHeader();
+		for (SAMRecord sam:batch){
+			for (int i = 0; i < orderedVisitors.size(); i++){
+				if (!orderedVisitors.get(i).visit(sam))
+					orderedVisitors.remove(i--);
+				//A writer of htsjdk attaches the records it writes to its own
+				//header, which is null if it was given the header text only
+				if (sam.getHeader() != samHeader)
+					sam.setHeader(samHeader);
+			}
+			if (orderedVisitors.size() == 0)
+				return subscriptions.size() > 0;
+		}
+		return true;
+	}
+}
@@ -0,0 +1,140 @@
+/*****************************************************************************
+ * Copyright (c) Minh Duc Cao, Monash Uni & UQ, All rights reserved.         *
+ *                                                                           *
+ * Redistribution and use in source and binary forms, with or without        *
+ * modification, are permitted provided that the following conditions        *
+ * are met:                                                                  * 
+ *                                                                           *
+ * 1. Redistributions of source code must retain the above copyright notice, *
+ *    this list of conditions and the following disclaimer.                  *
+ * 2. Redistributions in binary form must reproduce the above copyright      *
+ *    notice, this list of conditions and the following disclaimer in the    *
+ *    documentation and/or other materials provided with the distribution.   *
+ * 3. Neither the names of the institutions nor the names of the contributors*
+ *    may be used to endorse or promote products derived from this software  *
+ *    without specific prior written permission.                             *
+ *                                                                           *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS   *
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, *
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR    *
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR         *
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,     *
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,       *
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR        *
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF    *
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING      *
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS        *
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.              *
+ ****************************************************************************/
+
+package japsa.bio.hts;
+
+import htsjdk.samtools.SAMRecord;
+import japsa.seq.Sequence;
+import japsa.util.HTSUtilities;
+
+import java.util.List;
+
+/**
+ * Accumulate the identity profiles ({@link HTSUtilities#identity}) of the 
+ * alignments of a b/sam file against the reference. Records with no read 
+ * sequence (such as secondary alignments by bwa) are ignored; unmapped 
+ * records and alignments with mapping quality lower than the threshold are
+ * counted as not aligned.
+ */
+public class IdentityStatistics implements BamPass.Visitor<IdentityStatistics.Totals>{
+	private final List<Sequence> genomes;
+	private final int qual;
+	private final String pattern;
+
+	/**
+	 * @param genomes the reference sequences, in the order of the header
+	 * @param qual minimum mapping quality
+	 * @param pattern if not null, only reads with the name containing the 
+	 * pattern are considered
+	 */
+	public IdentityStatistics(List<Sequence> genomes, int qual, String pattern){
+		this.genomes = genomes;
+		this.qual = qual;
+		this.pattern = pattern;
+	}
+
+	/**
+	 * The totals of the identity profiles
+	 */
+	public static class Totals{
+		/**
+		 * Number of records considered, of records with no read sequence, of 
+		 * records not aligned, and of alignments profiled
+		 */
+		public long numRecords, numNoSequence, numNotAligned, numAligned;
+		public long match, mismatch, baseIns, baseDel, numIns, numDel, readClipped, refBase, readBase;
+
+		//reused for each alignment
+		private final HTSUtilities.CigarWalker walker = new HTSUtilities.CigarWalker();
+		private final HTSUtilities.IdentityProfile profile = new HTSUtilities.IdentityProfile();
+
+		void add(HTSUtilities.IdentityProfile profile){
+			baseIns  += profile.baseIns;
+			baseDel  += profile.baseDel;
+			numIns   += profile.numIns;
+			numDel   += profile.numDel;
+			mismatch += profile.mismatch;
+			match    += profile.match;
+
+			readBase += profile.readBase;
+			refBase  += profile.refBase;
+			readClipped += profile.readClipped;
+		}
+
+		void add(Totals other){
+			numRecords += other.numRecords;
+			numNoSequence += other.numNoSequence;
+			numNotAligned += other.numNotAligned;
+			numAligned += other.numAligned;
+
+			baseIns  += other.baseIns;
+			baseDel  += other.baseDel;
+			numIns   += other.numIns;
+			numDel   += other.numDel;
+			mismatch += other.mismatch;
+			match    += other.match;
+
+			readBase += other.readBase;
+			refBase  += other.refBase;
+			readClipped += other.readClipped;
+		}
+	}
+
+	@Override
+	public Totals newAccumulator() {
+		return new Totals();
+	}
+
+	@Override
+	public void visit(Totals totals, SAMRecord sam) {
+		if (pattern != null && (!sam.getReadName().contains(pattern)))
+			return;
+
+		totals.numRecords ++;
+		//no read sequence stored, e.g. a secondary alignment by bwa
+		if (sam.getReadLength() <= 1){
+			totals.numNoSequence ++;
+			return;
+		}
+
+		if (sam.getReadUnmappedFlag() || sam.getMappingQuality() < qual){
+			totals.numNotAligned ++;
+			return;
+		}
+
+		Sequence chr = genomes.get(sam.getReferenceIndex());
+		totals.add(totals.walker.identity(chr.toBytes(), sam, totals.profile));
+		totals.numAligned ++;
+	}
+
+	@Override
+	public void merge(Totals to, Totals from) {
+		to.add(from);
+	}
+}
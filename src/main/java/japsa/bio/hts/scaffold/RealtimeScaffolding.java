@@ -7,6 +7,7 @@ import java.lang.ProcessBuilder.Redirect;
 import java.util.ArrayList;
 import java.util.Date;
 
+import japsa.bio.alignment.MinimizerMapper;
 import japsa.bio.np.RealtimeAnalysis;
 import japsa.seq.Alphabet;
 import japsa.seq.Sequence;
@@ -60,12 +61,16 @@ public class RealtimeScaffolding {
 		SamReader reader = null;
 
 		Process bwaProcess = null;
+		SAMRecordIterator mappings = null;
 
 		if (format.endsWith("am")){//bam or sam
 			if ("-".equals(inFile))
 				reader = SamReaderFactory.makeDefault().open(SamInputResource.of(System.in));
 			else
 				reader = SamReaderFactory.makeDefault().open(new File(inFile));	
+		}else if (MinimizerMapper.NAME.equals(bwaExe)){
+			LOG.info("Starting the built-in mapper at " + new Date());
+			mappings = graph.mapReads(inFile, bwaThread);
 		}else{
 			LOG.info("Starting bwa  at " + new Date());
 			ProcessBuilder pb = null;
@@ -146,7 +151,7 @@ public class RealtimeScaffolding {
 			reader = SamReaderFactory.makeDefault().open(SamInputResource.of(bwaProcess.getInputStream()));
 
 		}
-		SAMRecordIterator iter = reader.iterator();
+		SAMRecordIterator iter = (reader != null) ? reader.iterator() : mappings;
 
 		String readID = "";
 		ReadFilling readFilling = null;
@@ -164,6 +169,7 @@ public class RealtimeScaffolding {
 						currentReadCount ++;
 						currentBaseCount += rec.getReadLength();
 					}
+					scaffolder.notifyReads();
 				}
 				continue;		
 			}
@@ -190,6 +196,7 @@ public class RealtimeScaffolding {
 					currentReadCount ++;
 					currentBaseCount += rec.getReadLength();
 				}
+				scaffolder.notifyReads();
 			}
 
 			samList.add(myRec);
@@ -198,7 +205,8 @@ public class RealtimeScaffolding {
 		scaffolder.stopWaiting();
 		thread.join();
 		iter.close();
-		reader.close();
+		if (reader != null)
+			reader.close();
 
 		if (bwaProcess != null){
 			bwaProcess.waitFor();
@@ -240,6 +248,7 @@ public class RealtimeScaffolding {
 						currentReadCount ++;
 						currentBaseCount += rec.getReadLength();
 					}
+					scaffolder.notifyReads();
 				}
 				continue;		
 			}
@@ -266,6 +275,7 @@ public class RealtimeScaffolding {
 					currentReadCount ++;
 					currentBaseCount += rec.getReadLength();
 				}
+				scaffolder.notifyReads();
 			}
 
 			samList.add(myRec);
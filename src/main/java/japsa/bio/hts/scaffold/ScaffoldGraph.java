@@ -40,6 +40,7 @@ import htsjdk.samtools.SamInputResource;
 import htsjdk.samtools.SamReader;
 import htsjdk.samtools.SamReaderFactory;
 import htsjdk.samtools.ValidationStringency;
+import japsa.bio.alignment.MinimizerMapper;
 import japsa.seq.Alphabet;
 import japsa.seq.JapsaFeature;
 import japsa.seq.Sequence;
@@ -59,7 +60,11 @@ import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 public class ScaffoldGraph{
+	private static final Logger LOG = LoggerFactory.getLogger(ScaffoldGraph.class);
 	public static int maxRepeatLength=7500; //for ribosomal repeat cluster in bacteria (Koren S et al 2013), it's 9.1kb for yeast.
 	public static int marginThres = 1000;
 	public static int minContigLength = 300;
@@ -252,6 +257,21 @@ public class ScaffoldGraph{
 
 		return gapCount+" ("+gapMaxLen+")";	
 	}
+	/**
+	 * Map long reads to the contigs with the built-in mapper
+	 * @param inFile fasta/fastq file of the reads, - for stdin
+	 * @param threads
+	 * @return the mappings, in the order of the reads
+	 * @throws IOException
+	 */
+	SAMRecordIterator mapReads(String inFile, int threads) throws IOException{
+		ArrayList<Sequence> seqs = new ArrayList<Sequence>(contigs.size());
+		for (Contig ctg:contigs)
+			seqs.add(ctg.contigSequence);
+		MinimizerMapper mapper = new MinimizerMapper(seqs);
+		return mapper.iterator(SequenceReader.getReader(inFile), threads);
+	}
+
 	/**
 	 * MDC added second version that include bwa
 	 * @param bamFile
@@ -266,12 +286,16 @@ public class ScaffoldGraph{
 
 		SamReader reader = null;
 		Process bwaProcess = null;
+		SAMRecordIterator mappings = null;
 
 		if (format.endsWith("am")){//bam or sam
 			if ("-".equals(inFile))
 				reader = SamReaderFactory.makeDefault().open(SamInputResource.of(System.in));
 			else
 				reader = SamReaderFactory.makeDefault().open(new File(inFile));	
+		}else if (MinimizerMapper.NAME.equals(bwaExe)){
+			LOG.info("Starting the built-in mapper at " + new Date());
+			mappings = mapReads(inFile, bwaThread);
 		}else{
 			Logging.info("Starting bwa  at " + new Date());
 
@@ -331,7 +355,7 @@ public class ScaffoldGraph{
 		//else
 		//	reader = SamReaderFactory.makeDefault().open(new File(bamFile));	
 
-		SAMRecordIterator iter = reader.iterator();
+		SAMRecordIterator iter = (reader != null) ? reader.iterator() : mappings;
 
 		String readID = "";
 		ReadFilling readFilling = null;
@@ -374,7 +398,8 @@ public class ScaffoldGraph{
 		iter.close();
 
 		//outOS.close();
-		reader.close();		
+		if (reader != null)
+			reader.close();		
 		if (bwaProcess != null){
 			bwaProcess.waitFor();
 		}
@@ -0,0 +1,166 @@
+/*****************************************************************************
+ * Copyright (c) Minh Duc Cao, Monash Uni & UQ, All rights reserved.         *
+ *                                                                           *
+ * Redistribution and use in source and binary forms, with or without        *
+ * modification, are permitted provided that the following conditions        *
+ * are met:                                                                  * 
+ *                                                                           *
+ * 1. Redistributions of source code must retain the above copyright notice, *
+ *    this list of conditions and the following disclaimer.                  *
+ * 2. Redistributions in binary form must reproduce the above copyright      *
+ *    notice, this list of conditions and the following disclaimer in the    *
+ *    documentation and/or other materials provided with the distribution.   *
+ * 3. Neither the names of the institutions nor the names of the contributors*
+ *    may be used to endorse or promote products derived from this software  *
+ *    without specific prior written permission.                             *
+ *                                                                           *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS   *
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, *
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR    *
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR         *
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,     *
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,       *
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR        *
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF    *
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING      *
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS        *
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.              *
+ ****************************************************************************/
+
+package japsa.bio.np;
+
+import java.util.Arrays;
+import java.util.List;
+
+import japsa.seq.Sequence;
+
+/**
+ * A k-mer index of the alleles of a gene, to shortlist the alleles most
+ * similar to a sequence before scoring them with a full alignment.
+ *
+ * The distinct k-mers of each allele are kept as (k-mer, allele) pairs in a
+ * sorted array; the alleles are ranked by the number of distinct k-mers they
+ * share with the query. Once built, an index is read-only and can be shared
+ * by threads.
+ */
+public class AlleleIndex {
+	/**
+	 * Default length of k-mers, short enough to survive the errors left in a
+	 * consensus of nanopore reads
+	 */
+	public static final int DEFAULT_K = 11;
+
+	private final int k;
+	private final int numAlleles;
+	//(k-mer << 32 | allele), sorted
+	private final long [] entries;
+
+	/**
+	 * Index the alleles
+	 * @param alleles
+	 * @param k length of k-mers, at most 15
+	 */
+	public AlleleIndex(List<Sequence> alleles, int k){
+		if (k < 1 || k > 15)
+			throw new RuntimeException("k-mer length " + k + " out of range [1,15]");
+		this.k = k;
+		this.numAlleles = alleles.size();
+
+		long [][] kmers = new long[numAlleles][];
+		int total = 0;
+		for (int a = 0; a < numAlleles; a++){
+			kmers[a] = distinctKmers(alleles.get(a));
+			total += kmers[a].length;
+		}
+
+		entries = new long[total];
+		int n = 0;
+		for (int a = 0; a < numAlleles; a++){
+			for (long kmer:kmers[a])
+				entries[n++] = (kmer << 32) | a;
+		}
+		Arrays.sort(entries);
+	}
+
+	public AlleleIndex(List<Sequence> alleles){
+		this(alleles, DEFAULT_K);
+	}
+
+	/**
+	 * @return the number of indexed alleles
+	 */
+	public int size(){
+		return numAlleles;
+	}
+
+	/**
+	 * Count, for each allele, the distinct k-mers shared with a sequence
+	 * @param seq
+	 * @return the count indexed by the position of the allele in the list
+	 */
+	public int [] sharedKmers(Sequence seq){
+		int [] counts = new int[numAlleles];
+		for (long kmer:distinctKmers(seq)){
+			//the first entry of the k-mer
+			int i = Arrays.binarySearch(entries, kmer << 32);
+			if (i < 0)
+				i = -i - 1;
+			for (; i < entries.length && (entries[i] >>> 32) == kmer; i++)
+				counts[(int) entries[i]] ++;
+		}
+		return counts;
+	}
+
+	/**
+	 * Rank the alleles by the k-mers shared with a sequence
+	 * @param seq
+	 * @param top maximum number of alleles to return
+	 * @param use which alleles can be returned, null for all
+	 * @return positions of the top alleles, the most similar first
+	 */
+	public int [] shortlist(Sequence seq, int top, boolean [] use){
+		int [] counts = sharedKmers(seq);
+		//sort by count, descending, then by position
+		long [] keys = new long[numAlleles];
+		int n = 0;
+		for (int a = 0; a < numAlleles; a++){
+			if (use == null || use[a])
+				keys[n++] = ((long) (Integer.MAX_VALUE - counts[a]) << 32) | a;
+		}
+		Arrays.sort(keys, 0, n);
+
+		int [] list = new int[Math.min(top, n)];
+		for (int i = 0; i < list.length; i++)
+			list[i] = (int) keys[i];
+		return list;
+	}
+
+	/**
+	 * @return the sorted distinct k-mers of a sequence, skipping k-mers
+	 * over bases outside ACGT
+	 */
+	private long [] distinctKmers(Sequence seq){
+		int length = seq.length();
+		long [] kmers = new long[Math.max(0, length - k + 1)];
+		long mask = (1L << (2 * k)) - 1;
+		long kmer = 0;
+		int n = 0, valid = 0;
+		for (int i = 0; i < length; i++){
+			int base = seq.getBase(i);
+			if (base < 0 || base > 3){
+				valid = 0;
+				continue;
+			}
+			kmer = ((kmer << 2) | base) & mask;
+			if (++valid >= k)
+				kmers[n++] = kmer;
+		}
+		Arrays.sort(kmers, 0, n);
+		int distinct = 0;
+		for (int i = 0; i < n; i++){
+			if (distinct == 0 || kmers[i] != kmers[distinct - 1])
+				kmers[distinct++] = kmers[i];
+		}
+		return Arrays.copyOf(kmers, distinct);
+	}
+}
@@ -0,0 +1,242 @@
+/*****************************************************************************
+ * Copyright (c) Minh Duc Cao, Monash Uni & UQ, All rights reserved.         *
+ *                                                                           *
+ * Redistribution and use in source and binary forms, with or without        *
+ * modification, are permitted provided that the following conditions        *
+ * are met:                                                                  * 
+ *                                                                           *
+ * 1. Redistributions of source code must retain the above copyright notice, *
+ *    this list of conditions and the following disclaimer.                  *
+ * 2. Redistributions in binary form must reproduce the above copyright      *
+ *    notice, this list of conditions and the following disclaimer in the    *
+ *    documentation and/or other materials provided with the distribution.   *
+ * 3. Neither the names of the institutions nor the names of the contributors*
+ *    may be used to endorse or promote products derived from this software  *
+ *    without specific prior written permission.                             *
+ *                                                                           *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS   *
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, *
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR    *
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR         *
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,     *
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,       *
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR        *
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF    *
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING      *
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS        *
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.              *
+ ****************************************************************************/
+
+package japsa.bio.np;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import japsa.seq.Sequence;
+
+
+/**
+ * A long-lived scheduler to make gene consensus sequences and score them,
+ * shared by the real-time analysers. Each round of analysis is run as two
+ * pipelined stages on separate pools of daemon threads: a gene is scored 
+ * as soon as its consensus is made, while other genes are still being
+ * aligned. The total number of threads is bounded by the budget given when
+ * the scheduler is created.
+ * 
+ * A {@link ReadSnapshot} keeps track of the read lists of the genes, so that 
+ * only the genes with new reads since the last round are analysed again.
+ */
+public class ConsensusScheduler {
+	private static final Logger LOG = LoggerFactory.getLogger(ConsensusScheduler.class);
+
+	/**
+	 * Default thread budget of the shared scheduler
+	 */
+	public static int THREADS = Runtime.getRuntime().availableProcessors();
+
+	private static ConsensusScheduler shared = null;
+
+	/**
+	 * Get the shared scheduler, creating it with the default budget if needed
+	 */
+	public static ConsensusScheduler getShared(){
+		return getShared(THREADS);
+	}
+
+	/**
+	 * Get the shared scheduler, creating it with the thread budget if needed.
+	 * The budget of a scheduler already created is not changed.
+	 * @param threads
+	 */
+	public static synchronized ConsensusScheduler getShared(int threads){
+		if (shared == null)
+			shared = new ConsensusScheduler(threads);
+		return shared;
+	}
+
+	/**
+	 * The two stages of the analysis of a gene 
+	 *
+	 * @param <K> the type of gene keys
+	 */
+	public interface Stages<K>{
+		/**
+		 * Make the consensus of the reads of a gene
+		 * @return the consensus, or null to skip the gene
+		 */
+		Sequence consensus(K gene, List<Sequence> reads) throws Exception;
+		/**
+		 * Score the consensus of a gene
+		 */
+		void score(K gene, Sequence consensus) throws Exception;
+	}
+
+	private final ExecutorService consensusExecutor, scoreExecutor;
+
+	/**
+	 * Create a scheduler with a budget of threads, split between the 
+	 * consensus and the scoring stages.
+	 * @param threads
+	 */
+	public ConsensusScheduler(int threads){
+		int consensusThreads = Math.max(1, (threads + 1) / 2);
+		int scoreThreads = Math.max(1, threads - consensusThreads);
+		consensusExecutor = Executors.newFixedThreadPool(consensusThreads, daemonFactory("consensus"));
+		scoreExecutor = Executors.newFixedThreadPool(scoreThreads, daemonFactory("consensus-score"));
+		LOG.info("Consensus scheduler with " + consensusThreads + " + " + scoreThreads + " threads");
+	}
+
+	private static ThreadFactory daemonFactory(final String name){
+		final AtomicInteger count = new AtomicInteger();
+		return new ThreadFactory(){
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * Run a round of analysis on the genes, and wait for all of them. A 
+	 * failure of a gene is logged and does not stop the others. 
+	 * 
+	 * @param readLists reads of the genes to analyse, eg from a ReadSnapshot
+	 * @param stages
+	 * @return the number of genes scored
+	 * @throws InterruptedException
+	 */
+	public <K> int runRound(Map<K, List<Sequence>> readLists, final Stages<K> stages) throws InterruptedException{
+		ArrayList<CompletableFuture<Boolean>> futures = new ArrayList<CompletableFuture<Boolean>>(readLists.size());
+		ArrayList<K> genes = new ArrayList<K>(readLists.size());
+
+		for (Map.Entry<K, List<Sequence>> entry:readLists.entrySet()){
+			final K gene = entry.getKey();
+			final List<Sequence> reads = entry.getValue();
+
+			CompletableFuture<Boolean> future = CompletableFuture.supplyAsync(new Supplier<Sequence>(){
+				@Override
+				public Sequence get() {
+					try{
+						return stages.consensus(gene, reads);
+					}catch (Exception e){
+						throw new CompletionException(e);
+					}
+				}
+			}, consensusExecutor).thenApplyAsync(new Function<Sequence, Boolean>(){
+				@Override
+				public Boolean apply(Sequence consensus) {
+					if (consensus == null)
+						return false;
+					try{
+						stages.score(gene, consensus);
+					}catch (Exception e){
+						throw new CompletionException(e);
+					}
+					return true;
+				}
+			}, scoreExecutor);
+
+			futures.add(future);
+			genes.add(gene);
+		}
+
+		int scored = 0;
+		for (int i = 0; i < futures.size(); i++){
+			try{
+				if (futures.get(i).get())
+					scored ++;
+			}catch (ExecutionException e){
+				LOG.error("Fail to analyse " + genes.get(i), e.getCause());
+			}
+		}
+		return scored;
+	}
+
+	/**
+	 * Snapshots of the read lists of genes. Only the genes that have new reads
+	 * since the last snapshot are taken, so a round costs nothing for the 
+	 * genes that have not changed. The read lists are assumed to be only 
+	 * appended to.
+	 *
+	 * @param <K> the type of gene keys
+	 */
+	public static class ReadSnapshot<K>{
+		private final HashMap<K, Integer> lastSize = new HashMap<K, Integer>();
+		private final LinkedHashMap<K, List<Sequence>> changed = new LinkedHashMap<K, List<Sequence>>();
+
+		/**
+		 * Take a copy of the reads of the gene if they have changed. This 
+		 * should be called holding the lock that guards the list, and is
+		 * quick as only references are copied. 
+		 * @param gene
+		 * @param reads
+		 * @return true if the gene has new reads
+		 */
+		public boolean take(K gene, List<Sequence> reads){
+			if (reads == null || reads.isEmpty())
+				return false;
+			Integer size = lastSize.get(gene);
+			if (size != null && size == reads.size())
+				return false;
+
+			lastSize.put(gene, reads.size());
+			changed.put(gene, new ArrayList<Sequence>(reads));
+			return true;
+		}
+
+		/**
+		 * Forget a gene, so that it is taken again at the next snapshot
+		 * @param gene
+		 */
+		public void reset(K gene){
+			lastSize.remove(gene);
+		}
+
+		/**
+		 * Get the genes taken since the last call, and clear them
+		 * @return reads of the genes that changed, in the order taken
+		 */
+		public Map<K, List<Sequence>> drain(){
+			LinkedHashMap<K, List<Sequence>> ret = new LinkedHashMap<K, List<Sequence>>(changed);
+			changed.clear();
+			return ret;
+		}
+	}
+}
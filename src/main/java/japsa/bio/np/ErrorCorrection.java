@@ -49,6 +49,7 @@ import java.util.List;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import japsa.bio.alignment.PartialOrderAligner;
 import japsa.seq.Alphabet;
 import japsa.seq.Alphabet.DNA;
 import japsa.seq.FastaReader;
@@ -70,6 +71,16 @@ public class ErrorCorrection {
 
 	public static String prefix = "tmp";
 	public static String msa = "kalign";
+	/**
+	 * The in-process partial order alignment, which needs no external 
+	 * program nor temporary files
+	 */
+	public static final String JAPSA_POA = "japsa-poa";
+	/**
+	 * Maximum number of reads in a japsa-poa consensus: more reads add 
+	 * little to the consensus but grow the graph
+	 */
+	public static int poaMaxReads = 100;
 
 	public static double needle(Sequence seq1, Sequence seq2, String prefix) throws IOException, InterruptedException{
 		String seq1File = prefix + seq1.getName() + ".fasta";
@@ -122,6 +133,17 @@ public class ErrorCorrection {
     }
     
     public static void runMultipleAlignment(String faiFile, String faoFile) throws IOException, InterruptedException{
+    	runMultipleAlignment(faiFile, faoFile, msa);
+    }
+
+    /**
+     * Run the multiple alignment of the sequences in faiFile with the given
+     * tool, writing the alignment to faoFile
+     * @param faiFile
+     * @param faoFile
+     * @param msa the name of the tool (poa, spoa, muscle, clustalo, kalign...)
+     */
+    public static void runMultipleAlignment(String faiFile, String faoFile, String msa) throws IOException, InterruptedException{
     	{
 			String[] cmd;
     	    File temp = File.createTempFile("tempfile", ".tmp"); 
@@ -288,6 +310,10 @@ public class ErrorCorrection {
 			if (readList.size() == 1){
 				readList.get(0).setName("consensus");
 				consensus = readList.get(0);
+			}else if (JAPSA_POA.equals(msa)){
+				consensus = PartialOrderAligner.consensus(readList, Math.min(max, poaMaxReads));
+				if (consensus != null)
+					LOG.info(consensus.getName() + "  " + consensus.length());
 			}else{
 				
 				String faiFile = prefix + "_ai.fasta";//name of fasta files of reads mapped to the gene				
@@ -298,7 +324,7 @@ public class ErrorCorrection {
 				
 				//2.0 Run multiple alignment
 				try{
-					runMultipleAlignment(faiFile, faoFile);
+					runMultipleAlignment(faiFile, faoFile, msa);
 				}catch(InterruptedException exc){
 					return null;
 				}
@@ -7,7 +7,14 @@ import java.io.File;
 import java.io.FilenameFilter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import japsa.util.DoubleArray;
+import japsa.util.IntArray;
 
 
 public class PresenceAbsence {
@@ -50,16 +57,20 @@ public class PresenceAbsence {
 	double mixp = 0.8;
 	double mixq = 1-mixp;
 
-	List<Double>[] likelihoods;
-	List<Double> bg_likelihood = new ArrayList<Double>();
+	LikelihoodTable likelihoods;
+	DoubleArray bg_likelihood = new DoubleArray();
+	//reused by likelihood(readLength, gene)
+	private double[] row;
 
 	double[] sumLogL;
 	double bg_sumLogL=0;
 
-	double[] sample_sumLogL;
-	double sample_bg_sumLogL=0;
 	double[][] sample_posterior;
 
+	//the number of threads of the bootstrap, and their pool
+	private int threads = 1;
+	private ForkJoinPool pool = null;
+
 	static FilenameFilter fnFilter = 
 		new FilenameFilter(){
 		@Override
@@ -124,18 +135,22 @@ public class PresenceAbsence {
 
 
 
-	@SuppressWarnings("unchecked")
 	PresenceAbsence(int len){
 		spl = new SpeciesLikelihood[len];
 		bg = new SpeciesLikelihood();
-		likelihoods = new List[len];
+		likelihoods = new LikelihoodTable(len);
+		row = new double[len];
 		sumLogL = new double[len];
-		this.sample_sumLogL = new double[len];
 		Arrays.fill(sumLogL, 0);
 		posterior = new double[len];
-		for(int i=0; i<len; i++){
-			likelihoods[i] = new ArrayList<Double>();
-		}
+	}
+
+	/**
+	 * Set the number of threads sampling the posterior
+	 * @param threads
+	 */
+	public void setThreads(int threads){
+		this.threads = Math.max(threads, 1);
 	}
 
 
@@ -149,13 +164,39 @@ public class PresenceAbsence {
 			double likelihood = spl[i].likelihood(readLength, gene)*mixp + bg_lhood * mixq;
 			double logLikelihood = Math.log(likelihood);
 			this.sumLogL[i]+=logLikelihood;
-			this.likelihoods[i].add(logLikelihood);
-
+			row[i] = logLikelihood;
 		}
+		likelihoods.addRow(row);
 	}
 
 
 
+	/**
+	 * Same as likelihood(readLength, gene), for when the species that have 
+	 * the gene are known: only these are looked up, the others share the 
+	 * likelihood of the background
+	 * @param readLength
+	 * @param gene
+	 * @param species the indices of the species with the gene, increasing
+	 */
+	public void likelihood(double readLength, String gene, int [] species){
+		double bg_lhood = bg.likelihood(readLength, gene);
+		bg_sumLogL+=Math.log(bg_lhood);
+		this.bg_likelihood.add(bg_lhood);
+		double absentLogLikelihood = Math.log(bg_lhood * mixq);
+		int next = 0;
+		likelihoods.startRow(absentLogLikelihood);
+		for(int i=0; i<spl.length; i++){
+			double logLikelihood = absentLogLikelihood;
+			if (next < species.length && species[next] == i){
+				logLikelihood = Math.log(spl[i].likelihood(readLength, gene)*mixp + bg_lhood * mixq);
+				likelihoods.addEntry(i, logLikelihood);
+				next ++;
+			}
+			this.sumLogL[i]+=logLikelihood;
+		}
+	}
+
 	public static void calcPosterior(double[] sumLogL, double[] posterior){
 		double s = 0;
 		double maxL = 0;
@@ -218,32 +259,189 @@ public class PresenceAbsence {
 		return res;
 	}
 
+	/**
+	 * Sample the posterior by bootstrapping the reads. The replicates are 
+	 * shared between the threads, each with its own stream of random numbers
+	 * @param numreps the number of replicates
+	 * @return the posterior of each replicate
+	 */
 	public double[][] calcPosterior(int numreps){
 		sample_posterior = new double[numreps][this.spl.length];
-		for(int k=0; k<numreps; k++){
-			samplePosterior(sample_posterior[k], this.bg_likelihood.size());
+		Bootstrap bootstrap = new Bootstrap(likelihoods.snapshot(this.bg_likelihood.size()), 
+			sample_posterior, 0, numreps, new SplittableRandom(), 
+			Math.max(1, numreps / (threads * 4)));
+		if (threads <= 1)
+			bootstrap.compute();
+		else{
+			if (pool == null)
+				pool = new ForkJoinPool(threads);
+			pool.invoke(bootstrap);
 		}
 		return sample_posterior;
 	}
 
+	/**
+	 * Sample the posterior from a bootstrap replicate of the first n reads
+	 * @param sample_post
+	 * @param n
+	 */
 	public void samplePosterior(double[] sample_post, int n) {
-		Arrays.fill(sample_sumLogL, 0);
-		//	double sum=0;
-		//	int n = this.bg_likelihood.size();
-		//if(n<5) throw new RuntimeException("must have at least 5 reads");
-		for(int i=0; i<n; i++){
-			int s = SpeciesLikelihood.sample(0, n);;
-			if(s!=n){
-				for(int k=0; k<this.spl.length; k++){
-					this.sample_sumLogL[k]+=this.likelihoods[k].get(s);
-				}
-			}else{
-				i--;
+		new Bootstrap(likelihoods.snapshot(n), null, 0, 1, new SplittableRandom(), 1)
+			.replicate(sample_post);
+	}
+
+	/**
+	 * The log likelihoods of the species given the reads, in primitive 
+	 * arrays. Each read is a row: a base value, which is that of all species
+	 * but those listed in the row with their difference to the base. A dense
+	 * row has the values of all species in order, and base 0.
+	 */
+	static class LikelihoodTable{
+		final int numSpecies;
+		int rows = 0;
+		DoubleArray base = new DoubleArray();
+		//where a row starts in values and in species
+		IntArray valueStart = new IntArray(), speciesStart = new IntArray();
+		BitSet dense = new BitSet();
+		DoubleArray values = new DoubleArray();
+		IntArray species = new IntArray();
+
+		LikelihoodTable(int numSpecies){
+			this.numSpecies = numSpecies;
+		}
+
+		/**
+		 * Add a dense row
+		 */
+		void addRow(double [] row){
+			dense.set(rows);
+			startRow(0);
+			for (int i = 0; i < numSpecies; i++)
+				values.add(row[i]);
+		}
+
+		/**
+		 * Start a row whose species have the base value, but those then 
+		 * added by addEntry
+		 */
+		void startRow(double baseValue){
+			base.add(baseValue);
+			valueStart.add(values.size());
+			speciesStart.add(species.size());
+			rows ++;
+		}
+
+		void addEntry(int s, double value){
+			values.add(value - base.get(rows - 1));
+			species.add(s);
+		}
+
+		/**
+		 * Copy the first n rows into plain arrays, which threads can read
+		 * while the table grows
+		 */
+		Snapshot snapshot(int n){
+			Snapshot snapshot = new Snapshot();
+			snapshot.numSpecies = numSpecies;
+			snapshot.rows = n;
+			snapshot.base = new double[n];
+			snapshot.dense = new boolean[n];
+			snapshot.valueStart = new int[n + 1];
+			snapshot.speciesStart = new int[n];
+			for (int r = 0; r < n; r++){
+				snapshot.base[r] = base.get(r);
+				snapshot.dense[r] = dense.get(r);
+				snapshot.valueStart[r] = valueStart.get(r);
+				snapshot.speciesStart[r] = speciesStart.get(r);
 			}
+			snapshot.valueStart[n] = n < rows ? valueStart.get(n) : values.size();
+			snapshot.values = new double[snapshot.valueStart[n]];
+			for (int i = 0; i < snapshot.values.length; i++)
+				snapshot.values[i] = values.get(i);
+			snapshot.species = new int[n < rows ? speciesStart.get(n) : species.size()];
+			for (int i = 0; i < snapshot.species.length; i++)
+				snapshot.species[i] = species.get(i);
+			return snapshot;
+		}
+	}
+
+	static class Snapshot{
+		int numSpecies, rows;
+		double [] base, values;
+		boolean [] dense;
+		int [] valueStart, speciesStart, species;
+	}
 
+	/**
+	 * Bootstrap replicates [from, to). A replicate draws the number of times
+	 * each read is sampled, then adds the rows of the reads drawn, times
+	 * that number, to the sums of the species.
+	 */
+	static class Bootstrap extends RecursiveAction{
+		private static final long serialVersionUID = 1L;
+		final Snapshot table;
+		final double [][] out;
+		final int from, to, grain;
+		final SplittableRandom random;
+
+		Bootstrap(Snapshot table, double [][] out, int from, int to, SplittableRandom random, int grain){
+			this.table = table;
+			this.out = out;
+			this.from = from;
+			this.to = to;
+			this.random = random;
+			this.grain = grain;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > grain){
+				int mid = (from + to) >>> 1;
+				invokeAll(new Bootstrap(table, out, from, mid, random.split(), grain),
+					new Bootstrap(table, out, mid, to, random.split(), grain));
+				return;
+			}
+			for (int k = from; k < to; k++)
+				replicate(out[k]);
 		}
-		calcPosterior(sample_sumLogL, sample_post);
 
+		private int [] counts;
+		private double [] sums;
+
+		void replicate(double [] sample_post){
+			int n = table.rows, numSpecies = table.numSpecies;
+			if (counts == null){
+				counts = new int[n];
+				sums = new double[numSpecies];
+			}
+			Arrays.fill(counts, 0);
+			Arrays.fill(sums, 0);
+			for (int i = 0; i < n; i++)
+				counts[random.nextInt(n)] ++;
+
+			double baseSum = 0;
+			double [] values = table.values;
+			for (int r = 0; r < n; r++){
+				int c = counts[r];
+				if (c == 0)
+					continue;
+				int from = table.valueStart[r], to = table.valueStart[r + 1];
+				int s = table.speciesStart[r];
+				if (table.dense[r]){
+					for (int i = 0; i < numSpecies; i++)
+						sums[i] += c * values[from + i];
+				}else{
+					baseSum += c * table.base[r];
+					for (int i = from; i < to; i++, s++)
+						sums[table.species[s]] += c * values[i];
+				}
+			}
+			if (baseSum != 0){
+				for (int i = 0; i < numSpecies; i++)
+					sums[i] += baseSum;
+			}
+			calcPosterior(sums, sample_post);
+		}
 	}
 
 }
@@ -35,6 +35,9 @@
 package japsa.bio.np;
 
 import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,6 +45,13 @@ import org.slf4j.LoggerFactory;
 /**
  * Real time analysis in a thread that runs in parallel with the thread conecting
  * data.
+ * 
+ * The analysis thread waits on a condition rather than polling: the thread
+ * collecting data calls {@link #notifyReads()} when it has new reads, and 
+ * {@link #stopWaiting()} when the input closes, so that an analysis starts as
+ * soon as the number of reads is due, and the final analysis as soon as all
+ * reads are in. A thread that does not notify still gets analysed, after at
+ * most a power nap.
  *  
  * @author minhduc
  *
@@ -52,22 +62,68 @@ public abstract class RealtimeAnalysis implements Runnable {
 
 	private int readPeriod = 0;//Min number of reads before a new analysis
 	private int timePeriod = 0;//Min number of miliseconds before a new analysis	
-	private int powerNap = 1000;//sleep time in miliseconds (1 second by default)
+	private int powerNap = 1000;//max time to wait for a notification in miliseconds (1 second by default)
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition due = lock.newCondition();
+
+	//Metrics of the rounds of analysis
+	private int rounds = 0;
+	private long lastLatency = 0, maxLatency = 0, totalLatency = 0;//in miliseconds
+	private int lastBacklog = 0, maxBacklog = 0;//number of reads waiting for an analysis
 
 	protected RealtimeAnalysis(){
 	}
 
-	private boolean waiting = true;
+	private volatile boolean waiting = true;
 
-	protected Long lastTime = 0L;//The last time an analysis is done
+	protected volatile Long lastTime = 0L;//The last time an analysis is done
 	protected Long startTime;
-	protected Integer lastReadNumber = 0;
+	protected volatile Integer lastReadNumber = 0;
 	protected String timeNow;
 
 	public void stopWaiting(){	
 		LOG.info("All reads received at " + new Date());
 		waiting = false;
-		//TODO: implement notifies if I am sleeping
+		signal();
+	}
+
+	/**
+	 * Tell the analysis that new reads have arrived. The analysis thread is
+	 * woken up only when both the number of reads and the time are due, so 
+	 * this is cheap to call for every read.
+	 */
+	public void notifyReads(){
+		if (getCurrentRead() - lastReadNumber >= readPeriod 
+			&& System.currentTimeMillis() - lastTime >= timePeriod)
+			signal();
+	}
+
+	private void signal(){
+		lock.lock();
+		try{
+			due.signalAll();
+		}finally{
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Wait until notified or for the time given
+	 * @param millis
+	 * @param forReads whether waiting for reads, if so the number of reads is 
+	 * checked again under the lock to not miss a notification 
+	 */
+	private void await(long millis, boolean forReads){
+		lock.lock();
+		try{
+			if (waiting && (!forReads || getCurrentRead() - lastReadNumber < readPeriod))
+				due.await(millis, TimeUnit.MILLISECONDS);
+		}catch (InterruptedException e) {
+			e.printStackTrace();
+		}finally{
+			lock.unlock();
+		}
 	}
 
 	/* (non-Javadoc)
@@ -82,42 +138,45 @@ public abstract class RealtimeAnalysis implements Runnable {
 			//Need to wait if timing is not right
 			long timeSleep = timePeriod - (System.currentTimeMillis() - lastTime);
 			if (timeSleep > 0){
-				try {
-					LOG.info("Not due time, sleep for " + timeSleep/1000.0 + " seconds");
-					Thread.sleep(timeSleep);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
+				LOG.info("Not due time, wait for " + timeSleep/1000.0 + " seconds");
+				await(timeSleep, false);
 				continue;//the next round I wont be here again
 			}
 			//assert: time satisfied
 			int currentRead = getCurrentRead();
 			if (currentRead - lastReadNumber < readPeriod){
-				try {
-					LOG.info("Not due read (" + currentRead + "), sleep for " + powerNap/1000.0 + " seconds");
-					Thread.sleep(powerNap);
-				} catch (InterruptedException e) {
-					e.printStackTrace();
-				}
+				LOG.debug("Not due read (" + currentRead + "), wait");
+				await(powerNap, true);
 				continue;//the next round I wont be here again
 			}
-			lastReadNumber = currentRead;
-			lastTime = System.currentTimeMillis();
 			//assert: read number satisfied
-			timeNow = new Date(lastTime).toString();
-			analysis();
-			LOG.info("RUNTIME\t" + timeNow  + "\t" + (this.lastTime - this.startTime)/1000.0 + "\t" + this.lastReadNumber + "\t" + (System.currentTimeMillis() - lastTime)/1000.0);
+			runAnalysis(currentRead);
 		}//while
 
 		//perform the final analysis
+		runAnalysis(getCurrentRead());
+		//.. and close it
+		close();
+		LOG.info("Real time analysis done (" + rounds + " rounds, mean " + getMeanLatency()/1000.0 + " seconds, max " + maxLatency/1000.0 + " seconds)");
+	}
+
+	private void runAnalysis(int currentRead){
+		int backlog = currentRead - lastReadNumber;
+		lastReadNumber = currentRead;
 		lastTime = System.currentTimeMillis();
-		lastReadNumber =  getCurrentRead();
 		timeNow = new Date(lastTime).toString();
 		analysis();
-		LOG.info("RUNTIME\t" + timeNow  + "\t" + (this.lastTime - this.startTime)/1000.0 + "\t" + this.lastReadNumber + "\t" + (System.currentTimeMillis() - lastTime)/1000.0);
-		//.. and close it
-		close();
-		LOG.info("Real time analysis done");
+
+		long latency = System.currentTimeMillis() - lastTime;
+		rounds ++;
+		lastLatency = latency;
+		totalLatency += latency;
+		if (latency > maxLatency)
+			maxLatency = latency;
+		lastBacklog = backlog;
+		if (backlog > maxBacklog)
+			maxBacklog = backlog;
+		LOG.info("RUNTIME\t" + timeNow  + "\t" + (this.lastTime - this.startTime)/1000.0 + "\t" + this.lastReadNumber + "\t" + latency/1000.0 + "\t" + backlog);
 	}
 
 	abstract protected void close();
@@ -141,5 +200,49 @@ public abstract class RealtimeAnalysis implements Runnable {
 
 	void setPowerNap(int powerNap){
 		this.powerNap = powerNap;
-	}	
+	}
+
+	/**
+	 * @return the number of rounds of analysis done
+	 */
+	public int getRounds(){
+		return rounds;
+	}
+
+	/**
+	 * @return the time the last round of analysis took, in miliseconds
+	 */
+	public long getLastLatency(){
+		return lastLatency;
+	}
+
+	/**
+	 * @return the longest time a round of analysis took, in miliseconds
+	 */
+	public long getMaxLatency(){
+		return maxLatency;
+	}
+
+	/**
+	 * @return the mean time of a round of analysis, in miliseconds
+	 */
+	public double getMeanLatency(){
+		return rounds == 0 ? 0 : totalLatency / (double) rounds;
+	}
+
+	/**
+	 * @return the number of new reads the last round of analysis was 
+	 * triggered with
+	 */
+	public int getLastBacklog(){
+		return lastBacklog;
+	}
+
+	/**
+	 * @return the largest number of new reads a round of analysis was 
+	 * triggered with
+	 */
+	public int getMaxBacklog(){
+		return maxBacklog;
+	}
 }
@@ -34,7 +34,6 @@
 
 package japsa.bio.np;
 
-import japsa.bio.alignment.ProbFSM;
 import japsa.bio.alignment.ProbFSM.Emission;
 import japsa.bio.alignment.ProbFSM.ProbThreeSM;
 import japsa.bio.amra.MLSTyping;
@@ -59,9 +58,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.List;
 
 /**
  * @author minhduc
@@ -72,6 +69,8 @@ public class RealtimeMLST{
 	/////////////////////////////////////////////////////////////////////////////	
 	private double minQual = 0;
 	private boolean twoDOnly = false;
+	private String msa = "kalign";
+	private int candidates = 20;
 	//private int numThread = 16;
 
 	ArrayList<Sequence> [] alignmentLists;
@@ -115,6 +114,20 @@ public class RealtimeMLST{
 	public void setTwoDOnly(boolean twoDOnly) {
 		this.twoDOnly = twoDOnly;
 	}
+
+	/**
+	 * @param msa the multiple alignment method to make gene consensus
+	 */
+	public void setMsa(String msa) {
+		this.msa = msa;
+	}
+	/**
+	 * @param candidates the number of alleles of each gene, shortlisted by
+	 * shared k-mers with the consensus, to score by alignment; 0 for all
+	 */
+	public void setCandidates(int candidates) {
+		this.candidates = candidates;
+	}
 	/**
 	 * @param bamFile
 	 * @param top
@@ -149,6 +162,7 @@ public class RealtimeMLST{
 
 				currentReadCount ++;	
 				currentBaseCount += record.getReadLength();
+				typer.notifyReads();
 
 				//Get the read
 				if (!record.getReadUnmappedFlag()){
@@ -202,6 +216,13 @@ public class RealtimeMLST{
 		int top = 10;
 		double [][] typerScoreMatrix; 		
 		String prefix = "_tmp_" + System.currentTimeMillis() + "_";
+		private final ConsensusScheduler.ReadSnapshot<Integer> snapshot = new ConsensusScheduler.ReadSnapshot<Integer>();
+
+		//Built once: k-mer indexes of the alleles of each gene, which of them
+		//are used by some ST, and the machines to score them
+		AlleleIndex [] alleleIndexes;
+		boolean [][] usedAlleles;
+		ProbThreeSM [][] alleleModels;
 
 		RealtimeMLSTyper(RealtimeMLST typing, String mlstDir, String output) throws IOException{
 			this.typing = typing;
@@ -213,6 +234,20 @@ public class RealtimeMLST{
 				typerScoreMatrix[i] = new double[mlstScheme.alleles(i).size()];
 				Arrays.fill(typerScoreMatrix[i], 0);
 			}
+
+			alleleIndexes = new AlleleIndex[numGenes];
+			usedAlleles = new boolean[numGenes][];
+			alleleModels = new ProbThreeSM[numGenes][];
+			for (int i = 0; i < numGenes; i++){
+				ArrayList<Sequence> alleles = mlstScheme.alleles(i);
+				alleleIndexes[i] = new AlleleIndex(alleles);
+				usedAlleles[i] = new boolean[alleles.size()];
+				for (int x = 0; x < alleles.size(); x++){
+					int alleleNo = Integer.parseInt(alleles.get(x).getName().split("_")[1]);
+					usedAlleles[i][x] = mlstScheme.useAlleleNo(i, alleleNo);
+				}
+				alleleModels[i] = new ProbThreeSM[alleles.size()];
+			}
 		}
 
 
@@ -250,84 +285,64 @@ public class RealtimeMLST{
 		}
 
 
-		private void makeTypingConsensus() throws IOException, InterruptedException{
-			int count = typing.currentReadCount;
+		private void makeTypingConsensus() throws InterruptedException{
+			final int count = typing.currentReadCount;
 
-			ExecutorService executor = Executors.newFixedThreadPool(7);
+			//Only take the genes with new reads, and align them out of the lock
 			synchronized(typing.alignmentLists){
 				for (int i = 0; i < typing.alignmentLists.length;i++){
-					Sequence consensus = ErrorCorrection.consensusSequence(typing.alignmentLists[i], prefix + mlstScheme.getGeneName(i) + "kalign" + count, "kalign");
-					if (consensus == null){
+					if (typing.alignmentLists[i].isEmpty())
 						LOG.warn("No read found for " + mlstScheme.getGeneName(i));
-						continue;
-					}
-
-					MLFSMThread mlFSM = new MLFSMThread(this, i, consensus);
-					executor.execute(mlFSM);
+					else
+						snapshot.take(i, typing.alignmentLists[i]);
 				}//for i
 			}//synchronized
-			executor.shutdown(); 
-			executor.awaitTermination(3, TimeUnit.DAYS);
-		}
 
-		private void makeTypingMLwithFSM(int top) throws IOException{
-			synchronized(typerScoreMatrix){
-				for (MLSType type:mlstScheme.profiles){
-					type.typeScore = 0;
-					for (int i = 0; i < numGenes;i++){
-						type.typeScore += typerScoreMatrix[i][mlstScheme.alleleIndex(type, i)];
-					}
+			ConsensusScheduler.getShared().runRound(snapshot.drain(), new ConsensusScheduler.Stages<Integer>(){
+				@Override
+				public Sequence consensus(Integer gene, List<Sequence> reads) throws Exception {
+					return ErrorCorrection.consensusSequence(reads, prefix + mlstScheme.getGeneName(gene) + typing.msa + count, typing.msa);
 				}
-			}
-
-			Collections.sort(mlstScheme.profiles);
-			Collections.reverse(mlstScheme.profiles);
-
-			if (top > mlstScheme.profiles.size())
-				top = mlstScheme.profiles.size();
-
-			countsOS.print("============================================== " + typing.currentReadCount);
-			countsOS.println();
-			for (int i = 0; i < top;i++){
-				MLSType profile = mlstScheme.profiles.get(i);
-				countsOS.print(profile.getST() + "\t" + profile.getScore());
-				countsOS.println();
-			}
-		}
-	}
-
-	static class MLFSMThread implements Runnable{
-		RealtimeMLSTyper typer;
-		int geneIndex;
-		Sequence readSeq;
 
-		MLFSMThread(RealtimeMLSTyper typer, int index, Sequence read){
-			this.typer = typer;
-			this.geneIndex = index;
-			this.readSeq = read;
+				@Override
+				public void score(Integer gene, Sequence consensus) {
+					scoreAlleles(gene, consensus);
+				}
+			});
 		}
 
-		/* (non-Javadoc)
-		 * @see java.lang.Runnable#run()
+		/**
+		 * Score the alleles of a gene against its consensus. Only the alleles
+		 * sharing the most k-mers with the consensus are aligned; the others
+		 * get the lowest score of those.
+		 * @param geneIndex
+		 * @param readSeq the consensus of the reads of the gene
 		 */
-		@Override
-		public void run() {
+		private void scoreAlleles(int geneIndex, Sequence readSeq){
 			LOG.info("Running thread " + geneIndex + " on " + readSeq.getName());
-			ArrayList<Sequence> alleles = typer.mlstScheme.alleles(geneIndex);
+			ArrayList<Sequence> alleles = mlstScheme.alleles(geneIndex);
 			int numAlleles = alleles.size();
+			boolean [] used = usedAlleles[geneIndex];
+
+			int [] shortlist = alleleIndexes[geneIndex].shortlist(readSeq,
+				typing.candidates > 0 ? typing.candidates : numAlleles, used);
+			LOG.info("Scoring " + shortlist.length + " alleles of " + mlstScheme.getGeneName(geneIndex));
+
 			double [] myScore = new double[numAlleles];
-			for (int x = 0; x < numAlleles; x ++){
+			double lowest = Double.POSITIVE_INFINITY;
+			for (int x:shortlist){
 				Sequence seq = alleles.get(x);
-				int alleleNo = Integer.parseInt(seq.getName().split("_")[1]);
-				if (!typer.mlstScheme.useAlleleNo(geneIndex, alleleNo))
-					continue;
-				
-				ProbFSM tsm = new ProbThreeSM(seq);
+				//Models are kept between rounds, and restarted from the initial parameters
+				ProbThreeSM tsm = alleleModels[geneIndex][x];
+				if (tsm == null)
+					tsm = alleleModels[geneIndex][x] = new ProbThreeSM(seq);
+				else
+					tsm.resetProb();
 				double cost = 1000000;
 
 				for (int c = 0; c < 10; c++){
 					tsm.resetCount();
-					Emission retState = tsm.alignGenerative(readSeq);
+					Emission retState = tsm.alignGenerativeDense(readSeq);
 					if (cost  <= retState.myCost)
 						break;
 
@@ -343,16 +358,54 @@ public class RealtimeMLST{
 				//LOG.info(" Saving " + (readSeq.length() * 2 - cost) + " on " + readSeq.getName() + " by " + seq.getName());
 				//if (cost < readSeq.length() * 2){
 				myScore[x] = (readSeq.length() * 2 - cost);
+				lowest = Math.min(lowest, myScore[x]);
 				LOG.info("Score for " + seq.getName() + " " + myScore[x]);
 				//}else
 				//	myScore[x] = 0;
 			}//for
-			synchronized (typer.typerScoreMatrix){
+
+			if (shortlist.length < numAlleles){
+				boolean [] scored = new boolean[numAlleles];
+				for (int x:shortlist)
+					scored[x] = true;
+				//alleles off the shortlist score strictly worse than any 
+				//shortlisted one, so they never tie with a candidate
 				for (int x = 0; x < numAlleles; x ++){
-					typer.typerScoreMatrix[geneIndex][x] = myScore[x];
+					if (used[x] && !scored[x])
+						myScore[x] = lowest - 1;
+				}
+			}
+			synchronized (typerScoreMatrix){
+				for (int x = 0; x < numAlleles; x ++){
+					typerScoreMatrix[geneIndex][x] = myScore[x];
 				}
 			}
 			LOG.info("Done thread " + geneIndex + " on " + readSeq.getName());
-		}//run		
+		}
+
+		private void makeTypingMLwithFSM(int top) throws IOException{
+			synchronized(typerScoreMatrix){
+				for (MLSType type:mlstScheme.profiles){
+					type.typeScore = 0;
+					for (int i = 0; i < numGenes;i++){
+						type.typeScore += typerScoreMatrix[i][mlstScheme.alleleIndex(type, i)];
+					}
+				}
+			}
+
+			Collections.sort(mlstScheme.profiles);
+			Collections.reverse(mlstScheme.profiles);
+
+			if (top > mlstScheme.profiles.size())
+				top = mlstScheme.profiles.size();
+
+			countsOS.print("============================================== " + typing.currentReadCount);
+			countsOS.println();
+			for (int i = 0; i < top;i++){
+				MLSType profile = mlstScheme.profiles.get(i);
+				countsOS.print(profile.getST() + "\t" + profile.getScore());
+				countsOS.println();
+			}
+		}
 	}
-}
\ No newline at end of file
+}
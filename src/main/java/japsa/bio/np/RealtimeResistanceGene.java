@@ -58,9 +58,6 @@ import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.util.*;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
 
 /**
  * 
@@ -154,6 +151,7 @@ public class RealtimeResistanceGene {
 
 				currentReadCount ++;	
 				currentBaseCount += record.getReadLength();
+				resistFinder.notifyReads();
 
 				//Get the read
 				if (!record.getReadUnmappedFlag()){
@@ -208,7 +206,7 @@ public class RealtimeResistanceGene {
 	//5. Future improve: incrementally multiple alignment
 
 	public static class ResistanceGeneFinder extends RealtimeAnalysis{
-		private final Map<String, ArrayList<Sequence>> alignmentMapSnap = new HashMap<String, ArrayList<Sequence>>();
+		private final ConsensusScheduler.ReadSnapshot<String> alignmentSnapshot = new ConsensusScheduler.ReadSnapshot<String>();
 		private final Map<String, String> gene2GeneName = new HashMap<String,String>();
 		private final Map<String, String> gene2Group = new HashMap<String,String>();
 		private final Map<String, Sequence> geneMap = new HashMap<String,Sequence>();
@@ -301,7 +299,6 @@ public class RealtimeResistanceGene {
 	    	}
 	    }
 
-	    @SuppressWarnings("unchecked")
 		private void antiBioticAnalysis(){
 
 	    	try {
@@ -320,13 +317,13 @@ public class RealtimeResistanceGene {
     			}
 	    		sequenceOutputStream.flush();
 
-				//1. Make a snapshot of the current alignment
+				//1. Make a snapshot of the genes with new reads
 				synchronized(resistGene){
 					//lastTime = System.currentTimeMillis();
 					//lastReadNumber = resistGene.currentReadCount;
 					for (String gene:resistGene.alignmentMap.keySet()){
-						ArrayList<Sequence> readMap = resistGene.alignmentMap.get(gene);					 
-						alignmentMapSnap.put(gene, (ArrayList<Sequence>) readMap.clone());
+						if (!predictedGenes.contains(gene))
+							alignmentSnapshot.take(gene, resistGene.alignmentMap.get(gene));
 					}
 				}//synchronized(resistGene)
 
@@ -347,39 +344,36 @@ public class RealtimeResistanceGene {
 		 */
 
 		int runIndex = 0;		
-		private void antiBioticsProfile() throws IOException, InterruptedException{						 
-			int jobNo = 0;			
-			//Get list of genes from my
-			ExecutorService executor = Executors.newFixedThreadPool((resistGene.numThead > 2)?resistGene.numThead-2:1);
-
-			for (String geneID: geneList){				
-				if (predictedGenes.contains(geneID))
-					continue;
-
-				List<Sequence> alignmentList = alignmentMapSnap.get(geneID);
-				Sequence consensus = 
-					ErrorCorrection.consensusSequence(alignmentList, recordPrefix + "_" + geneID + "_" + runIndex, resistGene.msa);
-
-				if (consensus == null){
-					continue;//gene
+		private void antiBioticsProfile() throws IOException, InterruptedException{
+			final int myRun = runIndex;
+			//Consensus and scoring of genes are run on the shared scheduler
+			int jobNo = ConsensusScheduler.getShared(resistGene.numThead).runRound(alignmentSnapshot.drain(), new ConsensusScheduler.Stages<String>(){
+				@Override
+				public Sequence consensus(String geneID, List<Sequence> alignmentList) throws Exception {
+					return ErrorCorrection.consensusSequence(alignmentList, recordPrefix + "_" + geneID + "_" + myRun, resistGene.msa);
 				}
 
-				Sequence gene = geneMap.get(geneID);
-				gene = gene.subSequence(99, gene.length() - 100);
-				gene.setName(geneID);//for log only
+				@Override
+				public void score(String geneID, Sequence consensus) throws IOException {
+					Sequence gene = geneMap.get(geneID);
+					gene = gene.subSequence(99, gene.length() - 100);
+					gene.setName(geneID);//for log only
+					scoreGene(geneID, consensus, gene);
+				}
+			});
+			LOG.info("===Found " + predictedGenes.size() + " vs " + geneMap.size() + "  " + resistGene.alignmentMap.size() + " with " + jobNo);
+		}
 
-				FSMThread thread = new FSMThread();		
-				thread.resGeneFinder = this;
-				thread.consensus =consensus;
-				thread.gene = gene;
-				thread.geneID = geneID;
+		private void scoreGene(String geneID, Sequence consensus, Sequence gene) throws IOException{
+			double score = fsmAlignment(consensus, gene);
+			LOG.info("SGF: score=" + score + " geneID=" + geneID + " group=" + gene2Group.get(geneID));
 
-				executor.execute(thread);
-				jobNo ++;
+			if (score >= resistGene.scoreThreshold){
+				synchronized(this){
+					addPreditedGene(geneID);
+					LOG.info("ADDF " + geneID);//
+				}
 			}
-			executor.shutdown(); 
-			executor.awaitTermination(3, TimeUnit.DAYS);			
-			LOG.info("===Found " + predictedGenes.size() + " vs " + geneMap.size() + "  " + alignmentMapSnap.size() + " with " + jobNo);
 		}
 
 		private void addPreditedGene(String geneID) throws IOException {
@@ -410,7 +404,7 @@ public class RealtimeResistanceGene {
 			double cost = 100000000;						
 			for (int c = 0; c < 10; c++){
 				tsmF.resetCount();
-				Emission retState = tsmF.alignGenerative(consensus);
+				Emission retState = tsmF.alignGenerativeDense(consensus);
 				if (cost  <= retState.myCost)
 					break;//for c
 
@@ -473,31 +467,4 @@ public class RealtimeResistanceGene {
 
 		}
 	}
-
-	static class FSMThread implements Runnable{
-		ResistanceGeneFinder resGeneFinder;
-		Sequence consensus, gene;
-		String geneID;
-
-		/* (non-Javadoc)
-		 * @see java.lang.Runnable#run()
-		 */
-		@Override
-		public void run() {
-			double score = ResistanceGeneFinder.fsmAlignment(consensus, gene);
-			LOG.info("SGF: score=" + score + " geneID=" + geneID + " group=" + resGeneFinder.gene2Group.get(geneID));
-
-			if (score >= resGeneFinder.resistGene.scoreThreshold){
-				synchronized(resGeneFinder){
-					try {
-						resGeneFinder.addPreditedGene(geneID);
-						LOG.info("ADDF " + geneID);//
-					} catch (IOException e) {						
-						e.printStackTrace();
-					}
-				}
-			}
-		}
-
-	}
-}
\ No newline at end of file
+}
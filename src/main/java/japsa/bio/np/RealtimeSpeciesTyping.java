@@ -47,6 +47,9 @@ import org.slf4j.LoggerFactory;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author Minh Duc Cao, Son Hoang Nguyen
@@ -69,19 +72,32 @@ public class RealtimeSpeciesTyping {
 	private boolean twoDOnly = false;
 
 
-	Integer currentReadCount = 0;
-	Integer currentReadAligned = 0;
-	Long currentBaseCount = 0L;
+	//Updated by the thread reading the alignments, read by the typer
+	final AtomicInteger currentReadCount = new AtomicInteger();
+	final AtomicInteger currentReadAligned = new AtomicInteger();
+	final AtomicLong currentBaseCount = new AtomicLong();
 
 
 	//seq ID to species name (from index ref file)
 	HashMap<String, String> seq2Species = new HashMap<String, String>();
-	//HashMap<String, SpeciesCount> species2Count = new HashMap<String, SpeciesCount>();
+	//seq ID to the index of its species in speciesList
+	HashMap<String, Integer> seq2SpeciesIndex = new HashMap<String, Integer>();
 	ArrayList<String> speciesList = new ArrayList<String>(); 
+
+	//Reads are interned to IDs, in the order they are aligned. Only the thread
+	//reading the alignments writes readIDs, readNames and speciesReads; it 
+	//does so holding the lock of this object, under which the typer takes
+	//a snapshot of readNames and speciesReads to output the binned reads
+	HashMap<String, Integer> readIDs = new HashMap<String, Integer>();
+	ArrayList<String> readNames = new ArrayList<String>();
+	//For each species: the number of reads (which the typer reads), the
+	//reads and the last read assigned (to skip the other alignments of a read)
+	AtomicIntegerArray speciesCounts;
+	BitSet [] speciesReads;
+	int [] lastRead;
 	
 	//to output binned sequences
 	public static boolean OUTSEQ=false;
-	HashMap<String, ArrayList<String>> species2ReadList = new HashMap<String, ArrayList<String>>();
 
 	public RealtimeSpeciesTyping(String indexFile, String outputFile) throws IOException{
 		LOG.debug("string string");
@@ -135,6 +151,7 @@ public class RealtimeSpeciesTyping {
 
 	private void preTyping() throws IOException{
 		String line = "";
+		HashMap<String, Integer> species2Index = new HashMap<String, Integer>();
 		while ( (line = indexBufferedReader.readLine())!=null){
 			if (line.startsWith("#"))
 				continue;
@@ -156,14 +173,25 @@ public class RealtimeSpeciesTyping {
 //			else
 //				LOG.info("==>adding " + seq + " to " + sp);
 			
-			if (species2ReadList.get(sp) == null){
+			if (species2Index.get(sp) == null){
 //				LOG.info("add species: "+sp);
-				species2ReadList.put(sp,new ArrayList<String>());
+				species2Index.put(sp, -1);
 			}			
 		}//while
 		indexBufferedReader.close();
-		LOG.info(seq2Species.size() + "   " + species2ReadList.size());
-		speciesList.addAll(species2ReadList.keySet());
+		LOG.info(seq2Species.size() + "   " + species2Index.size());
+		speciesList.addAll(species2Index.keySet());
+		for (int i = 0; i < speciesList.size(); i++)
+			species2Index.put(speciesList.get(i), i);
+		for (Map.Entry<String, String> entry:seq2Species.entrySet())
+			seq2SpeciesIndex.put(entry.getKey(), species2Index.get(entry.getValue()));
+
+		speciesCounts = new AtomicIntegerArray(speciesList.size());
+		speciesReads = new BitSet[speciesList.size()];
+		lastRead = new int[speciesList.size()];
+		for (int i = 0; i < speciesList.size(); i++)
+			speciesReads[i] = new BitSet();
+		Arrays.fill(lastRead, -1);
 
 		//Write header				
 	}
@@ -206,6 +234,21 @@ public class RealtimeSpeciesTyping {
 		}
 		
 	}
+	/**
+	 * @return the ID of a read, assigned when the read is first seen
+	 */
+	private int internRead(String readName){
+		Integer readID = readIDs.get(readName);
+		if (readID == null){
+			synchronized (this){
+				readID = readNames.size();
+				readIDs.put(readName, readID);
+				readNames.add(readName);
+			}
+		}
+		return readID;
+	}
+
 	public void typing(InputStream bamInputStream, int readNumber, int timeNumber) throws IOException, InterruptedException{
 		//if (readNumber <= 0)
 		//	readNumber = 1;			
@@ -225,7 +268,12 @@ public class RealtimeSpeciesTyping {
 		LOG.info("starting RealtimeSpeciesTyper thread");
 		thread.start();
 		LOG.info("started  RealtimeSpeciesTyper thread");
-		HashSet<String> skipList = new HashSet<>();
+		//species filtered out, and reads to skip as their primary alignment is to one
+		boolean [] filtered = new boolean[speciesList.size()];
+		for (int i = 0; i < filtered.length; i++)
+			filtered[i] = filterSet.contains(speciesList.get(i));
+		BitSet skipList = new BitSet();
+		int readID = -1;
 		while (samIter.hasNext()){
 //			try{
 			SAMRecord sam = samIter.next();
@@ -239,10 +287,10 @@ public class RealtimeSpeciesTyping {
 
 			if (!sam.getReadName().equals(readName)){
 				readName = sam.getReadName();
-				synchronized(this){
-					currentReadCount ++;
-					currentBaseCount += sam.getReadLength();
-				}
+				readID = -1;//interned once aligned
+				currentReadCount.incrementAndGet();
+				currentBaseCount.addAndGet(sam.getReadLength());
+				typer.notifyReads();
 			} 
 			
 			if (sam.getReadUnmappedFlag()){
@@ -255,35 +303,35 @@ public class RealtimeSpeciesTyping {
 				continue;
 			}
 
-			if(skipList.contains(readName)){
+			if (readID < 0)
+				readID = internRead(readName);
+
+			if(skipList.get(readID)){
 				LOG.debug("filter {}", readName);
 				continue;
 			}
 			
 			refName = sam.getReferenceName();
-			if(filterSet.contains(seq2Species.get(refName))){
-				if(!sam.isSecondaryOrSupplementary())
-					skipList.add(readName);
-				continue;
-			}
-			
-			String species = seq2Species.get(refName);
+			Integer species = seq2SpeciesIndex.get(refName);
 			if (species == null){
 				throw new RuntimeException(" Can't find species with ref " + refName + " line " + currentReadCount );
 			}
 
-			//SpeciesCount sCount = species2Count.get(species);
-			ArrayList<String> readList = species2ReadList.get(species);
-			if (readList == null){
-				throw new RuntimeException(" Can't find record with species " + species + " line " + currentReadCount );
+			if(filtered[species]){
+				if(!sam.isSecondaryOrSupplementary())
+					skipList.set(readID);
+				continue;
 			}
-			if(readList.size()==0 || !readList.contains(readName))
-				synchronized(this) {
-					currentReadAligned ++;			
 
-					readList.add(readName);
-	
+			//the other alignments of a read to the same species mostly follow
+			if (lastRead[species] != readID && !speciesReads[species].get(readID)){
+				lastRead[species] = readID;
+				synchronized (this){
+					speciesReads[species].set(readID);
 				}
+				speciesCounts.incrementAndGet(species);
+				currentReadAligned.incrementAndGet();
+			}
 //			}catch(Exception exc){
 //				exc.printStackTrace();
 //			}
@@ -318,12 +366,15 @@ public class RealtimeSpeciesTyping {
 			//Date date = new Date(lastTime);
 			Long step = (lastTime - startTime)/1000;//convert to second
 
+			//The reads aligned are counted from the same snapshot as the species
 			int sum = 0;
 			double [] count = new double[typing.speciesList.size()];
 			for (int i = 0; i < count.length;i++){			
-				count[i] = typing.species2ReadList.get(typing.speciesList.get(i)).size();			
+				count[i] = typing.speciesCounts.get(i);
 				sum += count[i];
 			}
+			Integer aligned = sum;
+			Long bases = typing.currentBaseCount.get();
 			DoubleArray countArray = new DoubleArray();
 			ArrayList<String> speciesArray = new ArrayList<String> ();
 
@@ -355,7 +406,7 @@ public class RealtimeSpeciesTyping {
 				Double mid = (results[i][0] + results[i][1])/2;
 				Double err = mid - results[i][0];
 				if(!JSON) {
-					countsOS.print(timeNow + "\t" + step + "\t" + lastReadNumber + "\t" + typing.currentBaseCount + "\t" + speciesArray.get(i).replaceAll("_", " ") + "\t" + mid + "\t" + err + "\t" + typing.currentReadAligned + "\t" + countArray.get(i));
+					countsOS.print(timeNow + "\t" + step + "\t" + lastReadNumber + "\t" + bases + "\t" + speciesArray.get(i).replaceAll("_", " ") + "\t" + mid + "\t" + err + "\t" + aligned + "\t" + countArray.get(i));
 					countsOS.println();
 				}
 				else {
@@ -363,10 +414,10 @@ public class RealtimeSpeciesTyping {
 					jo.addProperty("species", speciesArray.get(i).replaceAll("_", " "));
 					jo.addProperty("step", step.toString());
 					jo.addProperty("reads", lastReadNumber.toString());
-					jo.addProperty("bases", typing.currentBaseCount.toString());
+					jo.addProperty("bases", bases.toString());
 					jo.addProperty("prob", mid.toString());
 					jo.addProperty("err", err.toString());
-					jo.addProperty("tAligned", typing.currentReadAligned.toString());
+					jo.addProperty("tAligned", aligned.toString());
 					jo.addProperty("sAligned", Double.valueOf(countArray.get(i)).toString());
 					data.add(jo);
 
@@ -395,14 +446,22 @@ public class RealtimeSpeciesTyping {
 			
 			//print out
 			if(OUTSEQ){
+				//snapshot the reads, which the reading thread may still update
+				BitSet [] speciesReads = new BitSet[typing.speciesReads.length];
+				String [] readNames;
+				synchronized (typing){
+					for(int sp = 0; sp < speciesReads.length; sp++)
+						speciesReads[sp] = (BitSet) typing.speciesReads[sp].clone();
+					readNames = typing.readNames.toArray(new String[typing.readNames.size()]);
+				}
 				try (BufferedWriter bw = new BufferedWriter(new FileWriter("species2reads.map"))) {
-					for(String sp:typing.species2ReadList.keySet()){
-						ArrayList<String> readList = typing.species2ReadList.get(sp);
-						if(readList.size()==0)
+					for(int sp = 0; sp < typing.speciesList.size(); sp++){
+						BitSet reads = speciesReads[sp];
+						if(reads.isEmpty())
 							continue;
-						bw.write(">"+sp+"\n");
-						for(String read:readList)
-							bw.write(read+"\n");
+						bw.write(">"+typing.speciesList.get(sp)+"\n");
+						for(int read = reads.nextSetBit(0); read >= 0; read = reads.nextSetBit(read + 1))
+							bw.write(readNames[read]+"\n");
 					}			
 
 				} catch (IOException e) {
@@ -430,7 +489,7 @@ public class RealtimeSpeciesTyping {
 		 */
 		@Override
 		protected int getCurrentRead() {
-			return typing.currentReadCount;
+			return typing.currentReadCount.get();
 		}
 	}
 
@@ -39,6 +39,7 @@ import japsa.seq.Sequence;
 import japsa.seq.SequenceOutputStream;
 import japsa.seq.SequenceReader;
 import japsa.util.HTSUtilities;
+import japsa.util.IntArray;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordIterator;
 import htsjdk.samtools.SamInputResource;
@@ -53,10 +54,15 @@ import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * @author minhduc
@@ -71,7 +77,11 @@ public class RealtimeStrainTyping {
 	//TODO: make the below private
 	ArrayList<Sequence> geneList;
 	HashMap<String, Sequence> geneMap;
+	//the position of a gene in geneList
+	HashMap<String, Integer> geneIndex;
 	HashMap<String, ArrayList<Sequence>> alignmentMap;
+	//genes (by position in geneList) aligned to since the last analysis
+	BitSet touchedGenes = new BitSet();
 
 	int  currentReadCount = 0;
 	long currentBaseCount = 0;
@@ -95,9 +105,12 @@ public class RealtimeStrainTyping {
 	public void readGenes(String geneFile) throws IOException{
 		geneList = SequenceReader.readAll(geneFile, Alphabet.DNA());		 
 		geneMap = new HashMap<String, Sequence>();
+		geneIndex = new HashMap<String, Integer>();
 
-		for (Sequence gene:geneList){
+		for (int i = 0; i < geneList.size(); i++){
+			Sequence gene = geneList.get(i);
 			geneMap.put(gene.getName(), gene);		
+			geneIndex.put(gene.getName(), i);
 		}
 	}
 
@@ -105,6 +118,14 @@ public class RealtimeStrainTyping {
 		minQual = qual;
 	}
 
+	/**
+	 * Set the number of threads bootstrapping the confidence intervals
+	 * @param threads
+	 */
+	public void setThreads(int threads) {
+		typer.lcTyping.setThreads(threads);
+	}
+
 	/**
 	 * @param twoOnly the twoOnly to set
 	 */
@@ -149,6 +170,7 @@ public class RealtimeStrainTyping {
 
 				currentReadCount ++;	
 				currentBaseCount += record.getReadLength();
+				typer.notifyReads();
 
 				//Get the read
 				if (!record.getReadUnmappedFlag()){
@@ -188,6 +210,7 @@ public class RealtimeStrainTyping {
 					LOG.warn("Read sequence is NULL sequence ");
 				}else{
 					alignmentList.add(readSeq);
+					touchedGenes.set(geneIndex.get(geneID));
 				}
 			}
 		}//while	
@@ -207,23 +230,107 @@ public class RealtimeStrainTyping {
 	}
 
 
+	/**
+	 * Gene IDs interned to consecutive integers, in the order they are first
+	 * added, so that a set of genes is a bitset
+	 */
+	public static class GeneDictionary{
+		HashMap<String, Integer> index = new HashMap<String, Integer>();
+		ArrayList<String> names = new ArrayList<String>();
+
+		/**
+		 * @return the integer of a gene, assigned if the gene is new
+		 */
+		public int intern(String geneID){
+			Integer gene = index.get(geneID);
+			if (gene == null){
+				gene = names.size();
+				index.put(geneID, gene);
+				names.add(geneID);
+			}
+			return gene;
+		}
+
+		/**
+		 * @return the integer of a gene, -1 if the gene is not in the dictionary
+		 */
+		public int get(String geneID){
+			Integer gene = index.get(geneID);
+			return gene == null ? -1 : gene;
+		}
+
+		public String getName(int gene){
+			return names.get(gene);
+		}
+
+		public int size(){
+			return names.size();
+		}
+	}
+
+	/**
+	 * The genes of a strain, as a bitset of the genes in a dictionary
+	 */
 	public static class GeneProfile implements Comparable<GeneProfile>{
 		String strainID;
 		double score = 0.0;
 		double f1 = 0, precision, recall;
-		HashSet<String> genes;
+		final GeneDictionary dictionary;
+		long [] genes = new long[0];
+		int numGenes = 0;
 
-		public GeneProfile(String id){
+		public GeneProfile(String id, GeneDictionary dictionary){
 			strainID = id;
-			genes = new HashSet<String>();
+			this.dictionary = dictionary;
 		}
 
 		public void addGene(String geneID){
-			genes.add(geneID);
+			int gene = dictionary.intern(geneID);
+			int word = gene >>> 6;
+			if (word >= genes.length)
+				genes = Arrays.copyOf(genes, Math.max(word + 1, genes.length * 3 / 2));
+			long bit = 1L << gene;
+			if ((genes[word] & bit) == 0){
+				genes[word] |= bit;
+				numGenes ++;
+			}
 		}
 
-		public HashSet<String>  getGeneList(){
-			return genes;
+		public boolean contains(int gene){
+			int word = gene >>> 6;
+			return word < genes.length && (genes[word] & (1L << gene)) != 0;
+		}
+
+		/**
+		 * @return the number of genes in the profile
+		 */
+		public int size(){
+			return numGenes;
+		}
+
+		/**
+		 * @return the number of genes shared with another profile
+		 */
+		public int countCommon(GeneProfile o){
+			int len = Math.min(genes.length, o.genes.length), count = 0;
+			for (int i = 0; i < len; i++)
+				count += Long.bitCount(genes[i] & o.genes[i]);
+			return count;
+		}
+
+		/**
+		 * @return the genes of the profile, in the order of the dictionary
+		 */
+		public ArrayList<String>  getGeneList(){
+			ArrayList<String> list = new ArrayList<String>(numGenes);
+			for (int i = 0; i < genes.length; i++){
+				long word = genes[i];
+				while (word != 0){
+					list.add(dictionary.getName((i << 6) + Long.numberOfTrailingZeros(word)));
+					word &= word - 1;
+				}
+			}
+			return list;
 		}
 
 		/* (non-Javadoc)
@@ -251,9 +358,68 @@ public class RealtimeStrainTyping {
 		return (intersect + 0.0) / (notIn + s2.size());
 	}
 
+	/**
+	 * Same as distance(s1, s2) on the gene sets of two profiles
+	 */
+	protected static double distance (GeneProfile p1, GeneProfile p2){
+		int intersect = p1.countCommon(p2);
+		return (intersect + 0.0) / (p1.size() - intersect + p2.size());
+	}
+
+	/**
+	 * Compute 1 - distance of all pairs of profiles, with the rows shared 
+	 * between threads
+	 * @param profiles
+	 * @param threads
+	 * @return
+	 */
+	public static double[][] distanceMatrix(List<GeneProfile> profiles, int threads){
+		int n = profiles.size();
+		double [][] mtx = new double[n][n];
+		ForkJoinPool pool = new ForkJoinPool(Math.max(threads, 1));
+		try{
+			pool.invoke(new DistanceRows(profiles, mtx, 0, n));
+		}finally{
+			pool.shutdown();
+		}
+		return mtx;
+	}
+
+	private static class DistanceRows extends RecursiveAction{
+		private static final long serialVersionUID = 1L;
+		final List<GeneProfile> profiles;
+		final double [][] mtx;
+		final int from, to;
+
+		DistanceRows(List<GeneProfile> profiles, double [][] mtx, int from, int to){
+			this.profiles = profiles;
+			this.mtx = mtx;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 8){
+				int mid = (from + to) >>> 1;
+				invokeAll(new DistanceRows(profiles, mtx, from, mid), new DistanceRows(profiles, mtx, mid, to));
+				return;
+			}
+			for (int i = from; i < to; i++){
+				GeneProfile aProfile = profiles.get(i);
+				mtx[i][i] = 0;
+				for (int j = i + 1; j < profiles.size(); j++)
+					mtx[i][j] = mtx[j][i] = 1 - distance(aProfile, profiles.get(j));
+			}
+		}
+	}
+
 	public static class RealtimeStrainTyper extends RealtimeAnalysis{
-		//Set of genes that seen from the sample
-		HashSet<String> seenGenes = new HashSet<String>();
+		//Set of genes (by position in the gene list) seen from the sample
+		BitSet seenGenes = new BitSet();
+		GeneDictionary dictionary = new GeneDictionary();
+		//for each gene in the dictionary, the profiles that have it
+		int [][] profilesOf;
 		double threshold = 0;
 		public SequenceOutputStream datOS = null;
 		RealtimeStrainTyping typing;
@@ -291,7 +457,7 @@ public class RealtimeStrainTyping {
 				if (strainID.equals(currentStrainID)){
 					profile.addGene(geneFamID);
 				}else{
-					profile = new RealtimeStrainTyping.GeneProfile(strainID);
+					profile = new RealtimeStrainTyping.GeneProfile(strainID, dictionary);
 					currentStrainID = strainID;
 					profile.addGene(geneFamID);
 					myProfileList.add(profile);				
@@ -301,16 +467,7 @@ public class RealtimeStrainTyping {
 
 			/*****************************************************************
 			//Checking			
-			double [][] mtx = new double[myProfileList.size()][myProfileList.size()];
-
-			for (int i = 0; i < myProfileList.size();i++){
-				mtx[i][i] = 0;
-				RealtimeStrainTyping.GeneProfile aProfile = myProfileList.get(i);
-				for (int j = i + 1; j < myProfileList.size();j++){					
-					RealtimeStrainTyping.GeneProfile bProfile = myProfileList.get(j);					 
-					mtx[i][j] = mtx[j][i] = 1 - distance(aProfile.genes, bProfile.genes);
-				}
-			}
+			double [][] mtx = distanceMatrix(myProfileList, Runtime.getRuntime().availableProcessors());
 
 			PrintStream out = new PrintStream(new FileOutputStream("infile"));
 			out.println(" " + myProfileList.size());
@@ -331,6 +488,19 @@ public class RealtimeStrainTyping {
 			/*****************************************************************/
 			LOG.info("There are " + myProfileList.size() +" strains");
 			lcTyping = new PresenceAbsence(myProfileList);
+
+			IntArray [] profiles = new IntArray[dictionary.size()];
+			for (int i = 0; i < myProfileList.size(); i++){
+				for (String gene:myProfileList.get(i).getGeneList()){
+					int g = dictionary.get(gene);
+					if (profiles[g] == null)
+						profiles[g] = new IntArray();
+					profiles[g].add(i);
+				}
+			}
+			profilesOf = new int[profiles.length][];
+			for (int g = 0; g < profiles.length; g++)
+				profilesOf[g] = profiles[g] == null ? new int[0] : profiles[g].toArray();
 		}
 
 		/* (non-Javadoc)
@@ -367,20 +537,27 @@ public class RealtimeStrainTyping {
 			boolean compute = false;
 
 			synchronized(typing){
-				for (Sequence gene:typing.geneList){			
+				//Only the genes with new alignments can become seen. They are
+				//visited in the order of the gene list
+				BitSet touched = typing.touchedGenes;
+				for (int g = touched.nextSetBit(0); g >= 0; g = touched.nextSetBit(g + 1)){
+					if (seenGenes.get(g))
+						continue;
+					Sequence gene = typing.geneList.get(g);
 					ArrayList<Sequence> alignmentList =  typing.alignmentMap.get(gene.getName());
 					//This method use the simple scoreing as it involes ten thousands of genes
 					if (alignmentScore2(gene, alignmentList) > threshold){
-						//myGenes.add(gene.getName());
-						if (!seenGenes.contains(gene.getName())){
-							lcTyping.likelihood(100,gene.getName());
-							seenGenes.add(gene.getName());
-							compute = true;//only need to compute if new evidence is observed
-						}				
+						//only the profiles with the gene need their likelihood computed
+						int d = dictionary.get(gene.getName());
+						lcTyping.likelihood(100, gene.getName(), d < 0 ? new int[0] : profilesOf[d]);
+						seenGenes.set(g);
+						compute = true;//only need to compute if new evidence is observed
 					}
 				}
+				touched.clear();
 			}
-			LOG.info(timeNow + ": Found " + seenGenes.size() + "  " + compute);
+			int numSeen = seenGenes.cardinality();
+			LOG.info(timeNow + ": Found " + numSeen + "  " + compute);
 
 			if (compute){
 				posterior = lcTyping.calcPosterior();
@@ -403,7 +580,7 @@ public class RealtimeStrainTyping {
 
 				if (lr.postProb < 0.010)
 					break;
-				datOS.print(timeNow + "\t" + step  + "\t" + lastReadNumber + "\t" + typing.currentBaseCount + "\t" + lr.strainID + "\t" + lr.postProb +"\t" + (lr.postProb - lr.l) + "\t" + (lr.h -lr.postProb)  +"\t"+seenGenes.size());
+				datOS.print(timeNow + "\t" + step  + "\t" + lastReadNumber + "\t" + typing.currentBaseCount + "\t" + lr.strainID + "\t" + lr.postProb +"\t" + (lr.postProb - lr.l) + "\t" + (lr.h -lr.postProb)  +"\t"+numSeen);
 				datOS.println();			
 			}
 			datOS.flush();
@@ -1,8 +1,6 @@
 package japsa.bio.np.barcode;
 
 import japsa.seq.Alphabet;
-import japsa.seq.FastaReader;
-import japsa.seq.FastqReader;
 import japsa.seq.Sequence;
 import japsa.seq.SequenceOutputStream;
 import japsa.seq.SequenceReader;
@@ -121,9 +119,9 @@ public class BarCodeAnalysis {
 		Sequence seq;
 		String format="";
 		if(print){
-			if(reader instanceof FastaReader)
+			if(reader.isFasta())
 				format="fasta";
-			else if (reader instanceof FastqReader)
+			else if (reader.isFastq())
 				format="fastq";
 			else 
 				format="out";
@@ -140,11 +138,14 @@ public class BarCodeAnalysis {
 				lr = new double[nSamples],	//left-reversed
 				rr = new double[nSamples], //right-reversed
 				rf = new double[nSamples]; //right-forward
-		
-		SWGAlignment 	alignmentLF = new SWGAlignment(),
-						alignmentLR = new SWGAlignment(),
-						alignmentRF = new SWGAlignment(),
-						alignmentRR = new SWGAlignment();
+
+		//Barcodes are scored without traceback, only the best one is aligned in full
+		BarcodeProfile [] profilesLeft = new BarcodeProfile[nSamples],
+						profilesRight = new BarcodeProfile[nSamples];
+		for(int i=0;i<nSamples; i++){
+			profilesLeft[i] = new BarcodeProfile(barCodesLeft.get(i));
+			profilesRight[i] = new BarcodeProfile(barCodesRight.get(i));
+		}
 
 		SWGAlignment 	bestLeftAlignment = new SWGAlignment(),
 						bestRightAlignment = new SWGAlignment();
@@ -160,6 +161,7 @@ public class BarCodeAnalysis {
 
 			s5 = seq.subSequence(0, SCAN_WINDOW);
 			s3 = Alphabet.DNA.complement(seq.subSequence(seq.length()-SCAN_WINDOW,seq.length()));
+			byte [] w5 = s5.toBytes(), w3 = s3.toBytes();
 
 
 
@@ -167,21 +169,16 @@ public class BarCodeAnalysis {
 			double distance = 0.0; //distance between bestscore and the runner-up
 			
 			int bestIndex = nSamples;
+			boolean bestForward = true;//best alignments are left-forward and right-reversed
 
 			for(int i=0;i<nSamples; i++){
-				Sequence barcodeLeft = barCodesLeft.get(i);
-				Sequence barcodeRight = barCodesRight.get(i); //rc of right barcode sequence
+				BarcodeProfile profileLeft = profilesLeft[i];
+				BarcodeProfile profileRight = profilesRight[i]; //rc of right barcode sequence
 
-			
-				alignmentLF = SWGAlignment.align(s5, barcodeLeft);
-				alignmentLR = SWGAlignment.align(s3, barcodeLeft);
-				alignmentRF = SWGAlignment.align(s5, barcodeRight);
-				alignmentRR = SWGAlignment.align(s3, barcodeRight);
-				
-				lf[i] = alignmentLF.getIdentity()/(float)Math.max(barcodeLeft.length(),alignmentLF.getLength());
-				lr[i] = alignmentLR.getIdentity()/(float)Math.max(barcodeLeft.length(),alignmentLR.getLength());
-				rf[i] = alignmentRF.getIdentity()/(float)Math.max(barcodeRight.length(),alignmentRF.getLength());
-				rr[i] = alignmentRR.getIdentity()/(float)Math.max(barcodeRight.length(),alignmentRR.getLength());
+				lf[i] = profileLeft.align(w5, w5.length);
+				lr[i] = profileLeft.align(w3, w3.length);
+				rf[i] = profileRight.align(w5, w5.length);
+				rr[i] = profileRight.align(w3, w3.length);
 				
 
 				double myScore = 0.0;
@@ -198,21 +195,12 @@ public class BarCodeAnalysis {
 					bestScore = myScore;		
 					bestIndex = i;
 					if(twoends){
-						if(lf[i] + rr[i] > lr[i] + rf[i]){
-							bestLeftAlignment = alignmentLF;
-							bestRightAlignment = alignmentRR;
-						}else{
-							bestLeftAlignment = alignmentLR;
-							bestRightAlignment = alignmentRF;
-						}
-						
+						bestForward = lf[i] + rr[i] > lr[i] + rf[i];
 					}else{
 						if(myScore==lf[i] || myScore==rr[i]){
-							bestLeftAlignment = alignmentLF;
-							bestRightAlignment = alignmentRR;
+							bestForward = true;
 						}else if(myScore==lr[i] || myScore==rf[i]){
-							bestLeftAlignment = alignmentLR;
-							bestRightAlignment = alignmentRF;
+							bestForward = false;
 						}
 					}
 					
@@ -221,6 +209,16 @@ public class BarCodeAnalysis {
 				}
 					
 			}
+
+			if (bestIndex < nSamples){
+				if (bestForward){
+					bestLeftAlignment = SWGAlignment.align(s5, barCodesLeft.get(bestIndex));
+					bestRightAlignment = SWGAlignment.align(s3, barCodesRight.get(bestIndex));
+				}else{
+					bestLeftAlignment = SWGAlignment.align(s3, barCodesLeft.get(bestIndex));
+					bestRightAlignment = SWGAlignment.align(s5, barCodesRight.get(bestIndex));
+				}
+			}
 			
 			
 			String retval="";
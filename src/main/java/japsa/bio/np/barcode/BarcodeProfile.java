@@ -0,0 +1,182 @@
+package japsa.bio.np.barcode;
+
+import japsa.seq.Sequence;
+
+/**
+ * A barcode prepared for fast Smith-Waterman-Gotoh alignment against many
+ * read windows. The scores of the barcode against each base are precomputed
+ * as a query profile in integer units, and the score matrix columns are kept
+ * between alignments, so aligning a window allocates nothing.
+ *
+ * Only the score and the statistics of the best local alignment (the number
+ * of identical pairs, the length and the end cell) are computed. The
+ * statistics are carried along the dynamic programming following the same
+ * rules as the traceback of {@link SWGAlignment}, so they are the same as
+ * those of the full alignment; the traceback itself is only needed for the
+ * barcode that wins.
+ *
+ * An instance is not thread-safe.
+ */
+public class BarcodeProfile {
+	/**
+	 * Scores are kept as integers in 1/SCALE units
+	 */
+	static final int SCALE = 100;
+
+	//A cell of the dynamic programming is packed in a long: the score in the
+	//high bits, then 3 bits of preference (used only to break ties the same
+	//way as the traceback of SWGAlignment), then the number of identical 
+	//pairs (16 bits) and the length (16 bits) of the alignment. Cells are 
+	//then chosen and updated with max and add, without branches.
+	private static final int SCORE_SHIFT = 35;
+	private static final long PREFERENCE = 7L << 32,
+		PREFER_STOP = 4L << 32, PREFER_DIAGONAL = 3L << 32, PREFER_UP = 2L << 32, PREFER_LEFT = 1L << 32;
+	private static final long IDENTITY = 1L << 16;
+	private static final long NEG_INF = (-(1L << 27)) << SCORE_SHIFT;
+
+	private final Sequence barcode;
+	private final int length;
+	//profile[b][j]: cell increment of base b of the window against base j of the barcode
+	private final long [][] profile;
+	//subtracted to open (prefered on ties) or extend a gap, adding one to the length
+	private final long open, extend;
+
+	//Reusable columns of the best cells and of the cells ending with a vertical gap
+	private final long [] v, g;
+
+	//Result of the last alignment
+	private int score, identity, alignLength, end1, end2;
+
+	/**
+	 * Prepare the barcode with the current scoring scheme of SWGAlignment
+	 * @param barcode
+	 */
+	public BarcodeProfile(Sequence barcode){
+		this.barcode = barcode;
+		this.length = barcode.length();
+		byte [] bases = barcode.toBytes();
+
+		int alphabetSize = SWGAlignment.matrix.length;
+		//ambiguous bases of the window score the lowest score of the matrix
+		int lowest = 0;
+		for (float [] row:SWGAlignment.matrix)
+			for (float s:row)
+				lowest = Math.min(lowest, scale(s));
+
+		profile = new long[alphabetSize + 1][length];
+		for (int b = 0; b <= alphabetSize; b++){
+			for (int j = 0; j < length; j++){
+				byte base = bases[j];
+				long score = (b < alphabetSize && base < alphabetSize) ? scale(SWGAlignment.matrix[b][base]) : lowest;
+				profile[b][j] = (score << SCORE_SHIFT) | PREFER_DIAGONAL | (b == base ? IDENTITY + 1 : 1);
+			}
+		}
+		open = ((long) scale(SWGAlignment.open) << SCORE_SHIFT) - PREFER_LEFT - 1;
+		extend = ((long) scale(SWGAlignment.extend) << SCORE_SHIFT) - 1;
+
+		v = new long[length + 1];
+		g = new long[length + 1];
+	}
+
+	private static int scale(float s){
+		return Math.round(s * SCALE);
+	}
+
+	/**
+	 * Align the barcode to the window, locally.
+	 *
+	 * @param window bases of the window
+	 * @param windowLength
+	 * @return the identity of the alignment, ie the number of identical pairs
+	 * over the length of the barcode or of the alignment, whichever is longer
+	 */
+	public float align(byte [] window, int windowLength){
+		int n = length;
+		int noBase = profile.length - 1;
+		for (int j = 0; j <= n; j++){
+			v[j] = 0;
+			g[j] = NEG_INF;
+		}
+
+		long best = 0;
+		int bestI = 0, bestJ = 0;
+
+		for (int i = 1; i <= windowLength; i++){
+			byte base = window[i - 1];
+			long [] scores = profile[(base >= 0 && base < noBase) ? base : noBase];
+
+			long h = NEG_INF, vDiagonal = 0, vLeft = 0;//v[0] is always 0
+			for (int j = 1; j <= n; j++){
+				long f = vDiagonal + scores[j - 1];
+				long vUp = v[j];
+
+				//gap in the barcode, extended only if strictly better
+				long gj = Math.max(g[j] - extend, vUp - open) & ~PREFERENCE;
+				g[j] = gj;
+				//gap in the window
+				h = Math.max(h - extend, vLeft - open) & ~PREFERENCE;
+
+				//on ties: stop, diagonal, up then left
+				long s = Math.max(Math.max(f, gj | PREFER_UP), Math.max(h | PREFER_LEFT, PREFER_STOP)) & ~PREFERENCE;
+
+				vDiagonal = vUp;
+				v[j] = vLeft = s;
+
+				if ((s >> SCORE_SHIFT) > (best >> SCORE_SHIFT)){
+					best = s;
+					bestI = i;
+					bestJ = j;
+				}
+			}
+		}
+
+		score = (int) (best >> SCORE_SHIFT);
+		identity = (int) ((best >>> 16) & 0xffff);
+		alignLength = (int) (best & 0xffff);
+		end1 = bestI;
+		end2 = bestJ;
+		return identity / (float) Math.max(length, alignLength);
+	}
+
+	/**
+	 * @return the barcode
+	 */
+	public Sequence getBarcode() {
+		return barcode;
+	}
+
+	/**
+	 * @return the score of the last alignment
+	 */
+	public float getScore() {
+		return score / (float) SCALE;
+	}
+
+	/**
+	 * @return the number of identical pairs of the last alignment
+	 */
+	public int getIdentity() {
+		return identity;
+	}
+
+	/**
+	 * @return the length of the last alignment, including gaps
+	 */
+	public int getLength() {
+		return alignLength;
+	}
+
+	/**
+	 * @return the end (exclusive) of the last alignment in the window
+	 */
+	public int getEnd1() {
+		return end1;
+	}
+
+	/**
+	 * @return the end (exclusive) of the last alignment in the barcode
+	 */
+	public int getEnd2() {
+		return end2;
+	}
+}
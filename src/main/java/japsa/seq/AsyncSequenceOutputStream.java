@@ -0,0 +1,204 @@
+/*****************************************************************************
+ * Copyright (c) Minh Duc Cao, Monash Uni & UQ, All rights reserved.         *
+ *                                                                           *
+ * Redistribution and use in source and binary forms, with or without        *
+ * modification, are permitted provided that the following conditions        *
+ * are met:                                                                  * 
+ *                                                                           *
+ * 1. Redistributions of source code must retain the above copyright notice, *
+ *    this list of conditions and the following disclaimer.                  *
+ * 2. Redistributions in binary form must reproduce the above copyright      *
+ *    notice, this list of conditions and the following disclaimer in the    *
+ *    documentation and/or other materials provided with the distribution.   *
+ * 3. Neither the names of the institutions nor the names of the contributors*
+ *    may be used to endorse or promote products derived from this software  *
+ *    without specific prior written permission.                             *
+ *                                                                           *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS   *
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, *
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR    *
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR         *
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,     *
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,       *
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR        *
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF    *
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING      *
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS        *
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.              *
+ ****************************************************************************/
+
+package japsa.seq;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * A SequenceOutputStream that writes in the background. The stream fills 
+ * one buffer while the other is being written to the underlying stream, so
+ * the calling thread only blocks when it fills a buffer before the previous
+ * one has been written. If the underlying stream is a file, it is written 
+ * through its FileChannel from a direct buffer.
+ * 
+ * The writes of all streams are done by a small pool of daemon threads 
+ * shared by all streams, so opening many streams (e.g., one file per 
+ * sequence) does not create many threads. A stream has at most one buffer
+ * being written at a time, so its writes stay in order.
+ * 
+ * flush() and close() wait until all data written so far have been passed
+ * to the underlying stream. As SequenceOutputStream, this class is not 
+ * thread-safe for the calling threads.
+ */
+public class AsyncSequenceOutputStream extends SequenceOutputStream{
+	private static final ExecutorService WRITERS = Executors.newFixedThreadPool(
+		Math.max(2, Math.min(8, Runtime.getRuntime().availableProcessors())), new ThreadFactory(){
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "sequence-writer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+
+	private final FileChannel channel;
+	private ByteBuffer direct = null;
+
+	//the buffer being written, if any, and the write
+	private byte [] spare;
+	private Future<Void> pending = null;
+
+	private IOException error = null;
+	private boolean closed = false;
+
+	public AsyncSequenceOutputStream(OutputStream out) {
+		this(out, 1 << 16);
+	}
+
+	public AsyncSequenceOutputStream(OutputStream out, int size) {
+		super(out, size);
+		spare = new byte[size];
+		channel = (out instanceof FileOutputStream) ? ((FileOutputStream) out).getChannel() : null;
+	}
+
+	/**
+	 * Write a buffer to the underlying stream, on a thread of the pool
+	 */
+	private void writeOut(byte [] data, int length) throws IOException{
+		if (channel != null){
+			if (direct == null)
+				direct = ByteBuffer.allocateDirect(buf.length);
+			direct.clear();
+			direct.put(data, 0, length);
+			direct.flip();
+			while (direct.hasRemaining())
+				channel.write(direct);
+		}else
+			out.write(data, 0, length);
+	}
+
+	/**
+	 * Hand the current buffer to the writers and continue with the other 
+	 * buffer, once it has been written
+	 */
+	@Override
+	protected void flushBuffer() throws IOException {
+		if (count == 0){
+			checkError();
+			return;
+		}
+		await();
+		final byte [] data = buf;
+		final int length = count;
+		pending = WRITERS.submit(new Callable<Void>(){
+			@Override
+			public Void call() throws IOException {
+				writeOut(data, length);
+				return null;
+			}
+		});
+		buf = spare;
+		spare = data;
+		count = 0;
+	}
+
+	private void checkError() throws IOException{
+		if (error != null)
+			throw error;
+	}
+
+	/**
+	 * Wait until the buffer being written, if any, has been written
+	 */
+	private void await() throws IOException{
+		if (pending != null){
+			try{
+				pending.get();
+			}catch (InterruptedException e){
+				throw new InterruptedIOException();
+			}catch (ExecutionException e){
+				Throwable cause = e.getCause();
+				error = (cause instanceof IOException) ? (IOException) cause : new IOException(cause);
+			}finally{
+				pending = null;
+			}
+		}
+		checkError();
+	}
+
+	/* (non-Javadoc)
+	 * @see japsa.seq.SequenceOutputStream#write(byte[], int, int)
+	 */
+	@Override
+	public void write(byte b[], int off, int len) throws IOException {
+		//Pass all data through the buffers to keep them in order
+		while (len > 0){
+			if (count >= buf.length)
+				flushBuffer();
+			int n = Math.min(len, buf.length - count);
+			System.arraycopy(b, off, buf, count, n);
+			count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see japsa.seq.SequenceOutputStream#flush()
+	 */
+	@Override
+	public void flush() throws IOException {
+		flushBuffer();
+		await();
+		out.flush();
+	}
+
+	/* (non-Javadoc)
+	 * @see japsa.seq.SequenceOutputStream#close()
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		IOException exception = null;
+		try{
+			flushBuffer();
+			await();
+		}catch (IOException e){
+			exception = e;
+		}
+		out.close();
+		if (exception != null)
+			throw exception;
+	}
+}
@@ -0,0 +1,282 @@
+/*****************************************************************************
+ * Copyright (c) Minh Duc Cao, Monash Uni & UQ, All rights reserved.         *
+ *                                                                           *
+ * Redistribution and use in source and binary forms, with or without        *
+ * modification, are permitted provided that the following conditions        *
+ * are met:                                                                  * 
+ *                                                                           *
+ * 1. Redistributions of source code must retain the above copyright notice, *
+ *    this list of conditions and the following disclaimer.                  *
+ * 2. Redistributions in binary form must reproduce the above copyright      *
+ *    notice, this list of conditions and the following disclaimer in the    *
+ *    documentation and/or other materials provided with the distribution.   *
+ * 3. Neither the names of the institutions nor the names of the contributors*
+ *    may be used to endorse or promote products derived from this software  *
+ *    without specific prior written permission.                             *
+ *                                                                           *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS   *
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, *
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR    *
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR         *
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,     *
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,       *
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR        *
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF    *
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING      *
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS        *
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.              *
+ ****************************************************************************/
+
+package japsa.seq;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+
+/**
+ * An index of a fasta file, compatible with the .fai index of samtools 
+ * faidx. For each sequence, the index records its name, length, the file 
+ * offset of its first base, the number of bases per line and the number of 
+ * bytes per line (including the end of line characters).
+ */
+public class FastaIndex {
+	private static final Logger LOG = LoggerFactory.getLogger(FastaIndex.class);
+
+	/**
+	 * An entry of the index
+	 */
+	public static class Entry{
+		public final String name;
+		public final int length;
+		public final long offset;
+		public final int lineBases;
+		public final int lineWidth;
+
+		public Entry(String name, int length, long offset, int lineBases, int lineWidth){
+			this.name = name;
+			this.length = length;
+			this.offset = offset;
+			this.lineBases = lineBases;
+			this.lineWidth = lineWidth;
+		}
+
+		/**
+		 * Return the file offset of the base at position pos (0-index)
+		 * @param pos
+		 * @return
+		 */
+		public long offsetOf(int pos){
+			if (lineBases == 0)
+				return offset;
+			return offset + (long) (pos / lineBases) * lineWidth + pos % lineBases;
+		}
+	}
+
+	private final ArrayList<Entry> entries = new ArrayList<Entry>();
+	private final HashMap<String, Entry> map = new HashMap<String, Entry>();
+
+	private void add(Entry entry){
+		if (map.containsKey(entry.name))
+			throw new RuntimeException("Duplicate sequence name " + entry.name + " in the index");
+		entries.add(entry);
+		map.put(entry.name, entry);
+	}
+
+	/**
+	 * Get the entry of the sequence with the name, null if not found
+	 * @param name
+	 * @return
+	 */
+	public Entry get(String name){
+		return map.get(name);
+	}
+
+	/**
+	 * @return the entries of the index, in the order of the file
+	 */
+	public ArrayList<Entry> getEntries(){
+		return entries;
+	}
+
+	public int size(){
+		return entries.size();
+	}
+
+	/**
+	 * Return the name of the index file of a fasta file
+	 * @param fastaFile
+	 * @return
+	 */
+	public static String indexFileName(String fastaFile){
+		return fastaFile + ".fai";
+	}
+
+	/**
+	 * Read an index from a .fai file
+	 * @param faiFile
+	 * @return
+	 * @throws IOException
+	 */
+	public static FastaIndex read(String faiFile) throws IOException{
+		FastaIndex index = new FastaIndex();
+		BufferedReader reader = new BufferedReader(new FileReader(faiFile));
+		String line;
+		while ((line = reader.readLine()) != null){
+			if (line.trim().length() == 0)
+				continue;
+			String [] toks = line.split("\t");
+			if (toks.length < 5){
+				reader.close();
+				throw new IOException("Invalid line in index " + faiFile + " : " + line);
+			}
+			index.add(new Entry(toks[0], Integer.parseInt(toks[1]), Long.parseLong(toks[2]),
+					Integer.parseInt(toks[3]), Integer.parseInt(toks[4])));
+		}
+		reader.close();
+		return index;
+	}
+
+	/**
+	 * Write the index in .fai format
+	 * @param faiFile
+	 * @throws IOException
+	 */
+	public void write(String faiFile) throws IOException{
+		SequenceOutputStream out = SequenceOutputStream.makeOutputStream(faiFile);
+		for (Entry entry:entries){
+			out.print(entry.name);
+			out.print('\t');
+			out.print(entry.length);
+			out.print('\t');
+			out.print(entry.offset);
+			out.print('\t');
+			out.print(entry.lineBases);
+			out.print('\t');
+			out.print(entry.lineWidth);
+			out.print('\n');
+		}
+		out.close();
+	}
+
+	/**
+	 * Build the index of an uncompressed fasta file. All lines of a 
+	 * sequence, except the last, must have the same length.
+	 * 
+	 * @param fastaFile
+	 * @return
+	 * @throws IOException
+	 */
+	public static FastaIndex build(String fastaFile) throws IOException{
+		FastaIndex index = new FastaIndex();
+
+		InputStream in = new BufferedInputStream(new FileInputStream(fastaFile), 1 << 16);
+		StringBuilder name = new StringBuilder();
+		long fileOffset = 0;//offset of the next byte
+		long offset = 0;
+		int length = 0, lineBases = -1, lineWidth = -1;
+		int bases = 0, width = 0;//bases and bytes in the current line
+		boolean inHeader = false, inName = false, inSequence = false, lastLine = false;
+
+		int b;
+		while ((b = in.read()) >= 0){
+			fileOffset ++;
+			if (inHeader){
+				if (b == '\n'){
+					inHeader = false;
+					inSequence = true;
+					offset = fileOffset;
+				}else if (inName){
+					if (b == ' ' || b == '\t' || b == '\r')
+						inName = false;
+					else
+						name.append((char) b);
+				}
+				continue;
+			}
+
+			if (b == '>' && width == 0){
+				if (inSequence)
+					index.add(new Entry(name.toString(), length, offset, Math.max(lineBases, 0), Math.max(lineWidth, 0)));
+				name.setLength(0);
+				length = 0;
+				lineBases = lineWidth = -1;
+				lastLine = false;
+				inHeader = inName = true;
+				inSequence = false;
+				continue;
+			}
+			if (!inSequence)
+				throw new IOException("Fasta file " + fastaFile + " does not start with a header");
+
+			width ++;
+			if (b == '\n'){
+				if (bases > 0){
+					if (lastLine)
+						throw new IOException("Different line length in sequence " + name + " of " + fastaFile);
+					if (lineBases < 0){
+						lineBases = bases;
+						lineWidth = width;
+					}else if (bases != lineBases || width != lineWidth){
+						if (bases > lineBases)
+							throw new IOException("Different line length in sequence " + name + " of " + fastaFile);
+						lastLine = true;
+					}
+				}else 
+					lastLine = lastLine || lineBases >= 0;//a blank line ends the sequence
+				bases = width = 0;
+			}else if (b != '\r'){
+				if (lastLine)
+					throw new IOException("Different line length in sequence " + name + " of " + fastaFile);
+				bases ++;
+				length ++;
+			}
+		}
+		in.close();
+
+		if (bases > 0){//the last line is not terminated
+			if (lineBases < 0){
+				lineBases = bases;
+				lineWidth = width;
+			}else if (lastLine || bases > lineBases)
+				throw new IOException("Different line length in sequence " + name + " of " + fastaFile);
+		}
+		if (inSequence || inHeader)
+			index.add(new Entry(name.toString(), length, inHeader ? fileOffset : offset, Math.max(lineBases, 0), Math.max(lineWidth, 0)));
+
+		return index;
+	}
+
+	/**
+	 * Load the index of a fasta file from its .fai file if exists, otherwise
+	 * build the index and try to save it.
+	 * 
+	 * @param fastaFile
+	 * @return
+	 * @throws IOException
+	 */
+	public static FastaIndex load(String fastaFile) throws IOException{
+		String faiFile = indexFileName(fastaFile);
+		File fai = new File(faiFile);
+		if (fai.exists() && fai.lastModified() >= new File(fastaFile).lastModified())
+			return read(faiFile);
+
+		LOG.info("Building index " + faiFile);
+		FastaIndex index = build(fastaFile);
+		try{
+			index.write(faiFile);
+		}catch (IOException e){
+			LOG.warn("Cannot write index " + faiFile + ": " + e.getMessage());
+		}
+		return index;
+	}
+}
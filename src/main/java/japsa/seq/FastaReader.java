@@ -80,6 +80,11 @@ public class FastaReader extends SequenceReader{
 		this(new FileInputStream(fileName));
 	}
 
+	@Override
+	public boolean isFasta(){
+		return true;
+	}
+
 	/* (non-Javadoc)
 	 * @see japsa.seq.SequenceFileReader#hasNext()
 	 */
@@ -180,7 +185,7 @@ public class FastaReader extends SequenceReader{
 	}
 	
 
-	static private Sequence makeSequence
+	static Sequence makeSequence
 	  (Alphabet alphabet, byte[] byteArray, int length, String name){
 		String[] toks = name.split("\\s",2);
 		if (toks.length >= 2){
@@ -239,7 +244,7 @@ public class FastaReader extends SequenceReader{
 
 
 			if (magic == GZIPInputStream.GZIP_MAGIC)
-				this.in = new GZIPInputStream(ins);		
+				this.in = gunzip(ins);		
 			else
 				/**************************************************************/
 				this.in = ins;
@@ -69,6 +69,11 @@ public class FastqReader extends SequenceReader{
 	public FastqReader(InputStream ins) throws IOException{
 		super(ins);
 	}
+	
+	@Override
+	public boolean isFastq(){
+		return true;
+	}
 
 	
 	/* (non-Javadoc)
@@ -0,0 +1,344 @@
+/*****************************************************************************
+ * Copyright (c) Minh Duc Cao, Monash Uni & UQ, All rights reserved.         *
+ *                                                                           *
+ * Redistribution and use in source and binary forms, with or without        *
+ * modification, are permitted provided that the following conditions        *
+ * are met:                                                                  * 
+ *                                                                           *
+ * 1. Redistributions of source code must retain the above copyright notice, *
+ *    this list of conditions and the following disclaimer.                  *
+ * 2. Redistributions in binary form must reproduce the above copyright      *
+ *    notice, this list of conditions and the following disclaimer in the    *
+ *    documentation and/or other materials provided with the distribution.   *
+ * 3. Neither the names of the institutions nor the names of the contributors*
+ *    may be used to endorse or promote products derived from this software  *
+ *    without specific prior written permission.                             *
+ *                                                                           *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS   *
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, *
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR    *
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR         *
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,     *
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,       *
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR        *
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF    *
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING      *
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS        *
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.              *
+ ****************************************************************************/
+
+package japsa.seq;
+
+import java.util.Arrays;
+import java.util.List;
+
+import japsa.util.IntArray;
+
+/**
+ * An immutable index of the features of an annotation for finding the
+ * features overlapping, containing or nearest to a region in logarithmic 
+ * time. Features are sorted by their start into primitive arrays, which
+ * are laid out as an implicit binary tree: the feature at index i with 
+ * its lowest k bits set to 1 is a node at level k, and each node keeps 
+ * the maximum end of its subtree.
+ * 
+ * Locations are 1-index and inclusive as those of JapsaFeature. Features 
+ * found are reported by their indices in the list the index is built from,
+ * in increasing order, ie the order a scan of the list finds them. The 
+ * index does not see the changes of the features after it is built.
+ */
+public class FeatureIndex {
+	private final JapsaFeature [] features;//in the order of the list
+	private final int n;
+	//of the features sorted by start, and by the order in the list on ties
+	private final int [] start, end, order;
+	//the maximum end of the subtree rooted at a feature
+	private final int [] maxEnd;
+	//the feature with the maximum end of the features up to a feature
+	private final int [] prefixMaxEnd;
+	private final int maxLevel;
+
+	/**
+	 * Build the index of a list of features
+	 * @param featureList
+	 */
+	public FeatureIndex(List<JapsaFeature> featureList){
+		n = featureList.size();
+		features = featureList.toArray(new JapsaFeature[n]);
+
+		long [] keys = new long[n];
+		for (int i = 0; i < n; i++)
+			keys[i] = ((long) features[i].getStart() << 32) | i;
+		Arrays.sort(keys);
+
+		start = new int[n];
+		end = new int[n];
+		order = new int[n];
+		for (int i = 0; i < n; i++){
+			int index = (int) keys[i];
+			order[i] = index;
+			start[i] = features[index].getStart();
+			end[i] = features[index].getEnd();
+		}
+
+		prefixMaxEnd = new int[n];
+		for (int i = 0; i < n; i++){
+			prefixMaxEnd[i] = i;
+			if (i > 0 && 
+				(end[prefixMaxEnd[i - 1]] > end[i] || 
+				(end[prefixMaxEnd[i - 1]] == end[i] && order[prefixMaxEnd[i - 1]] < order[i])))
+				prefixMaxEnd[i] = prefixMaxEnd[i - 1];
+		}
+
+		maxEnd = new int[n];
+		maxLevel = buildTree();
+	}
+
+	/**
+	 * Compute the maximum ends of the subtrees, level by level. 
+	 * @return the level of the root
+	 */
+	private int buildTree(){
+		if (n == 0)
+			return -1;
+		//the leaves
+		int last = 0, lastIndex = 0;
+		for (int i = 0; i < n; i += 2){
+			lastIndex = i;
+			maxEnd[i] = last = end[i];
+		}
+
+		int k = 1;
+		for (; (1L << k) <= n; k++){
+			int x = 1 << (k - 1), step = x << 2;
+			for (int i = (x << 1) - 1; i < n; i += step){
+				//the right child may be out of the array, then its maximum
+				//is that of the last subtree
+				int leftMax = maxEnd[i - x];
+				int rightMax = (i + x < n) ? maxEnd[i + x] : last;
+				maxEnd[i] = Math.max(end[i], Math.max(leftMax, rightMax));
+			}
+			//move to the parent of the last subtree
+			lastIndex = ((lastIndex >> k) & 1) != 0 ? lastIndex - x : lastIndex + x;
+			if (lastIndex < n && maxEnd[lastIndex] > last)
+				last = maxEnd[lastIndex];
+		}
+		return k - 1;
+	}
+
+	/**
+	 * @return the number of features indexed
+	 */
+	public int size(){
+		return n;
+	}
+
+	/**
+	 * Return the feature at an index of the list
+	 * @param index
+	 * @return
+	 */
+	public JapsaFeature getFeature(int index){
+		return features[index];
+	}
+
+	/**
+	 * Find the features that start at or before maxStart and end at or 
+	 * after minEnd. The other queries are particular cases of this one.
+	 * 
+	 * @param maxStart
+	 * @param minEnd
+	 * @param out the indices of the features found are appended to out, 
+	 * if out is null, the search stops at the first feature found
+	 * @return the number of features found
+	 */
+	public int query(int maxStart, int minEnd, IntArray out){
+		if (n == 0)
+			return 0;
+		int found = 0, offset = out == null ? 0 : out.size();
+
+		//Traversal from the root, a node is pushed with its level, and 
+		//whether its left subtree has been visited
+		int [] stackNode = new int[64], stackLevel = new int[64];
+		boolean [] stackLeftDone = new boolean[64];
+		int top = 0;
+		stackNode[top] = (1 << maxLevel) - 1;
+		stackLevel[top] = maxLevel;
+		stackLeftDone[top++] = false;
+
+		while (top > 0){
+			top --;
+			int x = stackNode[top], k = stackLevel[top];
+			if (k <= 3){
+				//a small subtree: scan it
+				int i0 = x >> k << k, i1 = Math.min(i0 + (1 << (k + 1)) - 1, n);
+				for (int i = i0; i < i1 && start[i] <= maxStart; i++){
+					if (end[i] >= minEnd){
+						found ++;
+						if (out == null)
+							return found;
+						out.add(order[i]);
+					}
+				}
+			}else if (!stackLeftDone[top]){
+				int y = x - (1 << (k - 1));//left child, which may be out of the array
+				stackLeftDone[top ++] = true;
+				if (y >= n || maxEnd[y] >= minEnd){
+					stackNode[top] = y;
+					stackLevel[top] = k - 1;
+					stackLeftDone[top++] = false;
+				}
+			}else if (x < n && start[x] <= maxStart){
+				if (end[x] >= minEnd){
+					found ++;
+					if (out == null)
+						return found;
+					out.add(order[x]);
+				}
+				stackNode[top] = x + (1 << (k - 1));
+				stackLevel[top] = k - 1;
+				stackLeftDone[top++] = false;
+			}
+		}
+		if (out != null)
+			sortTail(out, offset);
+		return found;
+	}
+
+	/**
+	 * Find the features that overlap with region [start, end]
+	 * @param start
+	 * @param end
+	 * @param out the indices of the features found are appended to out
+	 * @return the number of features found
+	 */
+	public int overlap(int start, int end, IntArray out){
+		return query(end, start, out);
+	}
+
+	/**
+	 * Check if any feature overlaps with region [start, end]
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	public boolean overlaps(int start, int end){
+		return query(end, start, null) > 0;
+	}
+
+	/**
+	 * Find the features that contain region [start, end]
+	 * @param start
+	 * @param end
+	 * @param out the indices of the features found are appended to out
+	 * @return the number of features found
+	 */
+	public int contain(int start, int end, IntArray out){
+		return query(start, end, out);
+	}
+
+	/**
+	 * Find the features that are inside region [start, end]
+	 * @param start
+	 * @param end
+	 * @param out the indices of the features found are appended to out
+	 * @return the number of features found
+	 */
+	public int within(int start, int end, IntArray out){
+		int offset = out.size(), found = 0;
+		for (int i = firstAfter(start - 1); i < n && this.start[i] <= end; i++){
+			if (this.end[i] <= end){
+				out.add(order[i]);
+				found ++;
+			}
+		}
+		sortTail(out, offset);
+		return found;
+	}
+
+	/**
+	 * Find the feature nearest to region [start, end]. If some features 
+	 * overlap with the region, the first of them in the list is returned. 
+	 * Otherwise, the feature with the shortest gap to the region, the one
+	 * before the region on ties.
+	 * 
+	 * @param start
+	 * @param end
+	 * @return the index of the feature, or -1 if the index is empty
+	 */
+	public int nearest(int start, int end){
+		if (n == 0)
+			return -1;
+
+		IntArray hits = new IntArray(4);
+		if (overlap(start, end, hits) > 0)
+			return hits.get(0);
+
+		//None overlaps, so the features starting before the region all end
+		//before it
+		int right = firstAfter(end);
+		int left = right > 0 ? prefixMaxEnd[right - 1] : -1;
+		if (right >= n)
+			return order[left];
+		if (left < 0)
+			return order[right];
+		return (start - this.end[left] <= this.start[right] - end) ? order[left] : order[right];
+	}
+
+	/**
+	 * Return the distance between a feature and region [start, end], 0 if 
+	 * they overlap
+	 * @param index
+	 * @param start
+	 * @param end
+	 * @return
+	 */
+	public int distance(int index, int start, int end){
+		JapsaFeature feature = features[index];
+		if (feature.getEnd() < start)
+			return start - feature.getEnd();
+		if (feature.getStart() > end)
+			return feature.getStart() - end;
+		return 0;
+	}
+
+	/**
+	 * @param pos
+	 * @return the first index of the sorted arrays with start after pos
+	 */
+	private int firstAfter(int pos){
+		int low = 0, high = n;
+		while (low < high){
+			int mid = (low + high) >>> 1;
+			if (start[mid] <= pos)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+	/**
+	 * Sort the indices appended to out into the order of the list
+	 */
+	private static void sortTail(IntArray out, int offset){
+		int size = out.size();
+		if (size - offset <= 16){
+			for (int i = offset + 1; i < size; i++){
+				int v = out.get(i), j = i - 1;
+				while (j >= offset && out.get(j) > v){
+					out.set(j + 1, out.get(j));
+					j --;
+				}
+				out.set(j + 1, v);
+			}
+		}else{
+			int [] tail = new int[size - offset];
+			for (int i = offset; i < size; i++)
+				tail[i - offset] = out.get(i);
+			Arrays.sort(tail);
+			for (int i = offset; i < size; i++)
+				out.set(i, tail[i - offset]);
+		}
+	}
+}
@@ -0,0 +1,306 @@
+/*****************************************************************************
+ * Copyright (c) Minh Duc Cao, Monash Uni & UQ, All rights reserved.         *
+ *                                                                           *
+ * Redistribution and use in source and binary forms, with or without        *
+ * modification, are permitted provided that the following conditions        *
+ * are met:                                                                  * 
+ *                                                                           *
+ * 1. Redistributions of source code must retain the above copyright notice, *
+ *    this list of conditions and the following disclaimer.                  *
+ * 2. Redistributions in binary form must reproduce the above copyright      *
+ *    notice, this list of conditions and the following disclaimer in the    *
+ *    documentation and/or other materials provided with the distribution.   *
+ * 3. Neither the names of the institutions nor the names of the contributors*
+ *    may be used to endorse or promote products derived from this software  *
+ *    without specific prior written permission.                             *
+ *                                                                           *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS   *
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, *
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR    *
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR         *
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,     *
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,       *
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR        *
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF    *
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING      *
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS        *
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.              *
+ ****************************************************************************/
+
+package japsa.seq;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Random access to regions of an uncompressed fasta file through its 
+ * faidx-compatible index (see FastaIndex). Only the blocks of the file 
+ * covering a requested region are read, with positional reads, and the most
+ * recently used blocks are kept in a small LRU cache. The whole sequence is
+ * never loaded unless requested.
+ */
+public class IndexedFastaReader implements Closeable{
+	private static final Logger LOG = LoggerFactory.getLogger(IndexedFastaReader.class);
+	static final int BLOCK_SIZE = 1 << 16;
+
+	private final FastaIndex index;
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final long fileSize;
+	private final LinkedHashMap<Long, byte[]> cache;
+
+	/**
+	 * Open a fasta file for random access, building its index if the .fai 
+	 * file does not exist
+	 * @param fastaFile
+	 * @throws IOException
+	 */
+	public IndexedFastaReader(String fastaFile) throws IOException{
+		this(fastaFile, 64);
+	}
+
+	/**
+	 * Open a fasta file for random access, building its index if the .fai 
+	 * file does not exist
+	 * @param fastaFile
+	 * @param cacheBlocks the number of 64KB blocks to cache
+	 * @throws IOException
+	 */
+	public IndexedFastaReader(String fastaFile, final int cacheBlocks) throws IOException{
+		this.index = FastaIndex.load(fastaFile);
+		this.file = new RandomAccessFile(fastaFile, "r");
+		this.channel = file.getChannel();
+		this.fileSize = channel.size();
+		this.cache = new LinkedHashMap<Long, byte[]>(16, 0.75f, true){
+			private static final long serialVersionUID = 1L;
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+				return size() > cacheBlocks;
+			}
+		};
+	}
+
+	/**
+	 * Check if the file can be accessed with an IndexedFastaReader, ie, it 
+	 * is a regular uncompressed fasta file
+	 * @param fastaFile
+	 * @return
+	 * @throws IOException
+	 */
+	public static boolean canIndex(String fastaFile) throws IOException{
+		File f = new File(fastaFile);
+		if (!f.isFile() || f.length() < 2)
+			return false;
+		byte [] magic = new byte[2];
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try{
+			raf.readFully(magic);
+		}finally{
+			raf.close();
+		}
+		if ((magic[0] & 0xff | ((magic[1] << 8) & 0xff00)) == GZIPInputStream.GZIP_MAGIC)
+			return false;
+		return magic[0] == '>';
+	}
+
+	/**
+	 * Open a fasta file for random access if it can be indexed, ie, it is a 
+	 * regular uncompressed fasta file whose sequences are in lines of the 
+	 * same width. Otherwise return null, and the caller should read the 
+	 * sequences in full (eg, with SequenceReader.readAll) as before.
+	 * @param fastaFile
+	 * @return the reader, or null if the file cannot be indexed
+	 * @throws IOException
+	 */
+	public static IndexedFastaReader openIfIndexable(String fastaFile) throws IOException{
+		if (!canIndex(fastaFile))
+			return null;
+		try{
+			return new IndexedFastaReader(fastaFile);
+		}catch (IOException e){
+			LOG.info("Cannot index " + fastaFile + " (" + e.getMessage() + "), reading it in full");
+		}catch (RuntimeException e){
+			LOG.info("Cannot index " + fastaFile + " (" + e.getMessage() + "), reading it in full");
+		}
+		return null;
+	}
+
+	public FastaIndex getIndex(){
+		return index;
+	}
+
+	/**
+	 * @param name
+	 * @return true if the file contains the sequence
+	 */
+	public boolean contains(String name){
+		return index.get(name) != null;
+	}
+
+	/**
+	 * Return the length of a sequence, -1 if not found
+	 * @param name
+	 * @return
+	 */
+	public int sequenceLength(String name){
+		FastaIndex.Entry entry = index.get(name);
+		return entry == null ? -1 : entry.length;
+	}
+
+	private FastaIndex.Entry entry(String name){
+		FastaIndex.Entry entry = index.get(name);
+		if (entry == null)
+			throw new RuntimeException("Sequence " + name + " not found in the index");
+		return entry;
+	}
+
+	/**
+	 * Get the block number blockNo of the file
+	 */
+	private byte[] block(long blockNo) throws IOException{
+		byte [] block = cache.get(blockNo);
+		if (block == null){
+			long start = blockNo * BLOCK_SIZE;
+			block = new byte[(int) Math.min(BLOCK_SIZE, fileSize - start)];
+			ByteBuffer buffer = ByteBuffer.wrap(block);
+			while (buffer.hasRemaining()){
+				if (channel.read(buffer, start + buffer.position()) < 0)
+					throw new IOException("Unexpected end of file");
+			}
+			cache.put(blockNo, block);
+		}
+		return block;
+	}
+
+	/**
+	 * Decode the bases [start, end) of the sequence into seq from position
+	 * seqPos
+	 */
+	private void decode(FastaIndex.Entry entry, int start, int end, Alphabet alphabet, Sequence seq, int seqPos) throws IOException{
+		int pos = start;
+		while (pos < end){
+			//the segment of the line that holds pos
+			int segment = Math.min(end - pos, entry.lineBases - pos % entry.lineBases);
+			long offset = entry.offsetOf(pos);
+			for (int i = 0; i < segment;){
+				long blockNo = (offset + i) / BLOCK_SIZE;
+				byte [] block = block(blockNo);
+				int b = (int) (offset + i - blockNo * BLOCK_SIZE);
+				for (; b < block.length && i < segment; b++, i++){
+					byte nucleotide = alphabet.byte2index(block[b]);
+					if (nucleotide < 0)
+						throw new RuntimeException("Unexecpected character '" + (char) block[b] + "' for dna {" + alphabet + "} in sequence " + entry.name + " at " + (pos + i));
+					seq.setSymbol(seqPos++, nucleotide);
+				}
+			}
+			pos += segment;
+		}
+	}
+
+	/**
+	 * Return the subsequence [start, end) (0-index) of a sequence.
+	 * 
+	 * @param name name of the sequence
+	 * @param start 0-index, inclusive
+	 * @param end 0-index, exclusive
+	 * @param alphabet
+	 * @return
+	 * @throws IOException
+	 */
+	public synchronized Sequence subSequence(String name, int start, int end, Alphabet alphabet) throws IOException{
+		FastaIndex.Entry entry = entry(name);
+		if (start < 0 || end > entry.length || start > end)
+			throw new IndexOutOfBoundsException("Invalid region [" + start + ", " + end + ") of sequence " + name + " of length " + entry.length);
+
+		if (alphabet == null)
+			alphabet = Alphabet.DNA16();
+		Sequence seq = new Sequence(alphabet, end - start, name);
+		decode(entry, start, end, alphabet, seq, 0);
+		return seq;
+	}
+
+	/**
+	 * Return the subsequence [start - flank, end + flank) (0-index) of a 
+	 * DNA sequence, the positions outside the sequence being N. This is the
+	 * same as Sequence.subsequenceWithFlank.
+	 * 
+	 * @param name
+	 * @param start 0-index, inclusive
+	 * @param end 0-index, exclusive
+	 * @param flank
+	 * @param alphabet
+	 * @return
+	 * @throws IOException
+	 */
+	public synchronized Sequence subsequenceWithFlank(String name, int start, int end, int flank, Alphabet.DNA alphabet) throws IOException{
+		FastaIndex.Entry entry = entry(name);
+		Sequence seq = new Sequence(alphabet, end - start + 2 * flank, name);
+
+		int from = Math.max(0, start - flank), to = Math.min(entry.length, end + flank);
+		for (int i = 0; i < seq.length(); i++){
+			int j = start - flank + i;
+			if (j < from || j >= to)
+				seq.setSymbol(i, Alphabet.DNA.N);
+		}
+		if (from < to)
+			decode(entry, from, to, alphabet, seq, from - (start - flank));
+		return seq;
+	}
+
+	/**
+	 * Return a whole sequence
+	 * @param name
+	 * @param alphabet
+	 * @return
+	 * @throws IOException
+	 */
+	public Sequence getSequence(String name, Alphabet alphabet) throws IOException{
+		return subSequence(name, 0, entry(name).length, alphabet);
+	}
+
+	/**
+	 * Return the region specified in the samtools format chr:start-end 
+	 * (1-index, inclusive), chr:start or chr
+	 * 
+	 * @param region
+	 * @param alphabet
+	 * @return
+	 * @throws IOException
+	 */
+	public Sequence query(String region, Alphabet alphabet) throws IOException{
+		String name = region;
+		int start = 1, end = Integer.MAX_VALUE;
+
+		int colon = region.lastIndexOf(':');
+		if (colon > 0 && !contains(region)){
+			name = region.substring(0, colon);
+			String [] toks = region.substring(colon + 1).replace(",", "").split("-");
+			start = Integer.parseInt(toks[0]);
+			if (toks.length > 1 && toks[1].length() > 0)
+				end = Integer.parseInt(toks[1]);
+		}
+		FastaIndex.Entry entry = entry(name);
+		return subSequence(name, Math.max(0, start - 1), Math.min(end, entry.length), alphabet);
+	}
+
+	/**
+	 * Close the file
+	 */
+	@Override
+	public void close() throws IOException {
+		cache.clear();
+		channel.close();
+		file.close();
+	}
+}
@@ -58,6 +58,8 @@ public class JapsaAnnotation {
 	private ArrayList<String> annoDescription;// Description of the feature	
 	private ArrayList<JapsaFeature> featureList;
 	private String annotationID;
+	//built on demand, and dropped when the features may have changed
+	private FeatureIndex index = null;
 
 	/**
 	 * Create an annotation for a sequence 
@@ -99,6 +101,20 @@ public class JapsaAnnotation {
 
 	public void sortFeatures() {
 		Collections.sort(featureList);
+		index = null;
+	}
+
+	/**
+	 * Return the index of the features of the annotation, which is built
+	 * on the first call and after the features are added, removed, sorted 
+	 * or obtained through getFeatureList(). The index does not see changes
+	 * of the locations of the features.
+	 * @return
+	 */
+	public FeatureIndex getIndex() {
+		if (index == null)
+			index = new FeatureIndex(featureList);
+		return index;
 	}
 
 	/**
@@ -162,6 +178,7 @@ public class JapsaAnnotation {
 	 */
 	public void add(JapsaFeature feature) {
 		featureList.add(feature);
+		index = null;
 	}
 
 	/**
@@ -199,6 +216,7 @@ public class JapsaAnnotation {
 	 * @return
 	 */
 	public boolean remove(JapsaFeature feature) {
+		index = null;
 		return featureList.remove(feature);
 	}
 
@@ -216,6 +234,8 @@ public class JapsaAnnotation {
 	 * @return
 	 */
 	public ArrayList<JapsaFeature>  getFeatureList() {
+		//the caller may change the list
+		index = null;
 		return featureList;
 	}
 
@@ -243,19 +263,15 @@ public class JapsaAnnotation {
 	 */
 
 	public void compareAnnotationAtFeatureLevel(JapsaAnnotation model, int gap) {
-		// A slow implementation
 		int TP = 0, FP = 0, FN = 0;
 
+		//A feature matches f if it starts at or before f.end - gap and ends 
+		//at or after f.start + gap
+		FeatureIndex modelIndex = model.getIndex();
 		//Check the positives
 		for (int i = 0; i < this.numFeatures(); i++) {
 			JapsaFeature myFeature = this.getFeature(i);
-			boolean match = false;
-			for (int j = 0; j < model.numFeatures(); j++) {
-				if (model.getFeature(j).match(myFeature, gap)){
-					match = true;
-					break;
-				}//if
-			}//for
+			boolean match = modelIndex.query(myFeature.getEnd() - gap, myFeature.getStart() + gap, null) > 0;
 			if (match){
 				TP ++;
 			}else
@@ -266,15 +282,10 @@ public class JapsaAnnotation {
 
 		TP = 0;
 		FN = 0;
+		FeatureIndex myIndex = this.getIndex();
 		for (int i = 0; i < model.numFeatures(); i++) {
 			JapsaFeature modelFeature = model.getFeature(i);
-			boolean match = false;
-			for (int j = 0; j < this.numFeatures(); j++) {
-				if (this.getFeature(j).match(modelFeature, gap)){
-					match = true;
-					break;
-				}//if
-			}//for
+			boolean match = myIndex.query(modelFeature.getEnd() - gap, modelFeature.getStart() + gap, null) > 0;
 			if (match){
 				TP ++;
 			}else
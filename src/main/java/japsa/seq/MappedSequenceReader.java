@@ -0,0 +1,365 @@
+/*****************************************************************************
+ * Copyright (c) Minh Duc Cao, Monash Uni & UQ, All rights reserved.         *
+ *                                                                           *
+ * Redistribution and use in source and binary forms, with or without        *
+ * modification, are permitted provided that the following conditions        *
+ * are met:                                                                  * 
+ *                                                                           *
+ * 1. Redistributions of source code must retain the above copyright notice, *
+ *    this list of conditions and the following disclaimer.                  *
+ * 2. Redistributions in binary form must reproduce the above copyright      *
+ *    notice, this list of conditions and the following disclaimer in the    *
+ *    documentation and/or other materials provided with the distribution.   *
+ * 3. Neither the names of the institutions nor the names of the contributors*
+ *    may be used to endorse or promote products derived from this software  *
+ *    without specific prior written permission.                             *
+ *                                                                           *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS   *
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, *
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR    *
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR         *
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,     *
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,       *
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR        *
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF    *
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING      *
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS        *
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.              *
+ ****************************************************************************/
+
+package japsa.seq;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+
+/**
+ * A reader for uncompressed fasta and fastq files that maps the file into
+ * memory rather than pulling it through an input stream byte by byte. Record
+ * boundaries are located by scanning the mapped region directly, and the
+ * nucleotides are decoded straight from the mapping into the sequence, 
+ * avoiding the intermediate line buffers of FastaReader and FastqReader.
+ * 
+ * Files larger than what a single mapping can hold (2GB) are mapped in
+ * windows; a window is re-mapped from the start of the record that straddles
+ * its end. A record must therefore be smaller than one window.
+ */
+public class MappedSequenceReader extends SequenceReader{
+	private static final Logger LOG = LoggerFactory.getLogger(MappedSequenceReader.class);
+
+	static final long WINDOW_SIZE = 1L << 30;//1GB per mapping
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final long fileSize;
+	private final boolean fastq;
+
+	private MappedByteBuffer buf;
+	private long base = 0;//file offset of the start of the current window
+	private int limit = 0;//size of the current window
+	private int pos = 0;//position in the window of the next record
+
+	//Temporary arrays for the record being decoded
+	private byte [] seq = new byte[8192];
+	private byte [] qual = new byte[8192];
+	private byte [] name = new byte[512];
+
+	/**
+	 * Construct the reader from a file. The file must be an uncompressed fasta
+	 * or fastq file.
+	 * @param fileName
+	 * @throws IOException
+	 */
+	public MappedSequenceReader(String fileName) throws IOException{
+		super();
+		file = new RandomAccessFile(fileName, "r");
+		channel = file.getChannel();
+		fileSize = channel.size();
+		map(0);
+
+		int first = skipBlank(0);
+		if (first < limit && buf.get(first) == '@')
+			fastq = true;
+		else if (first >= limit || buf.get(first) == '>')
+			fastq = false;
+		else{
+			close();
+			throw new IOException("File " + fileName + " is neither in fasta nor fastq format");
+		}
+		pos = first;
+		eof = (first >= limit);
+	}
+
+	/**
+	 * Open a file with the mapped reader if possible. Return null if the file
+	 * is not a regular file, is compressed, or is not in fasta/fastq format,
+	 * in which case the stream based readers should be used.
+	 * 
+	 * @param fileName
+	 * @return the reader, or null if the file cannot be mapped
+	 * @throws IOException
+	 */
+	public static MappedSequenceReader open(String fileName) throws IOException{
+		File f = new File(fileName);
+		if (!f.isFile() || f.length() < 2)
+			return null;
+
+		byte [] magic = new byte[2];
+		RandomAccessFile raf = new RandomAccessFile(f, "r");
+		try{
+			raf.readFully(magic);
+		}finally{
+			raf.close();
+		}
+		if ((magic[0] & 0xff | ((magic[1] << 8) & 0xff00)) == GZIPInputStream.GZIP_MAGIC)
+			return null;
+		if (magic[0] != '>' && magic[0] != '@')
+			return null;
+
+		return new MappedSequenceReader(fileName);
+	}
+
+	/**
+	 * @return true if the underlying file is in fastq format
+	 */
+	@Override
+	public boolean isFastq(){
+		return fastq;
+	}
+
+	/**
+	 * @return true if the underlying file is in fasta format
+	 */
+	@Override
+	public boolean isFasta(){
+		return !fastq;
+	}
+
+	/**
+	 * Map a window of the file starting from the offset
+	 */
+	private void map(long offset) throws IOException{
+		base = offset;
+		limit = (int) Math.min(WINDOW_SIZE, fileSize - offset);
+		buf = channel.map(FileChannel.MapMode.READ_ONLY, base, limit);
+		pos = 0;
+	}
+
+	/**
+	 * Move the window so that it starts at the current record. Return false
+	 * if that is not possible, ie, the record does not fit in a window
+	 */
+	private boolean remap() throws IOException{
+		if (pos == 0)
+			return false;
+		map(base + pos);
+		return true;
+	}
+
+	/**
+	 * @return true if the current window covers the end of the file
+	 */
+	private boolean lastWindow(){
+		return base + limit >= fileSize;
+	}
+
+	/**
+	 * Return the index of the next LF from index from, or limit if none
+	 * found in the current window
+	 */
+	private int lineEnd(int from){
+		int i = from;
+		while (i < limit && buf.get(i) != '\n')
+			i++;
+		return i;
+	}
+
+	/**
+	 * Return the end of the content of a line that ends at lineEnd, ie, the
+	 * trailing CR, if any, excluded
+	 */
+	private int trimCR(int start, int lineEnd){
+		if (lineEnd > start && buf.get(lineEnd - 1) == '\r')
+			return lineEnd - 1;
+		return lineEnd;
+	}
+
+	private int skipBlank(int from){
+		int i = from;
+		while (i < limit){
+			byte b = buf.get(i);
+			if (b != '\n' && b != '\r')
+				break;
+			i++;
+		}
+		return i;
+	}
+
+	/**
+	 * Copy bytes [start, end) of the window to the array, enlarging it if needed
+	 */
+	private byte[] copy(byte [] array, int start, int end){
+		int length = end - start;
+		if (array.length < length)
+			array = new byte[Math.max(length, array.length * 2)];
+		buf.position(start);
+		buf.get(array, 0, length);
+		return array;
+	}
+
+	private void ensureSeq(int length){
+		if (seq.length < length)
+			seq = Arrays.copyOf(seq, Math.max(length, seq.length * 2));
+	}
+
+	/* (non-Javadoc)
+	 * @see japsa.seq.SequenceReader#nextSequence(japsa.seq.Alphabet)
+	 */
+	@Override
+	public Sequence nextSequence(Alphabet alphabet) throws IOException {
+		if (alphabet == null){
+			alphabet = Alphabet.DNA16();//The most conservative
+		}
+
+		while (!eof){
+			pos = skipBlank(pos);
+			if (pos >= limit){
+				if (lastWindow()){
+					eof = true;
+					return null;
+				}
+				map(base + pos);
+				continue;
+			}
+
+			Sequence sequence = fastq ? nextFastq(alphabet) : nextFasta(alphabet);
+			if (sequence != null)
+				return sequence;
+
+			//the record straddles the window boundary			
+			if (!remap())
+				throw new RuntimeException("Record at offset " + (base + pos) + " is too long to handle");
+		}
+		return null;
+	}
+
+	/**
+	 * Decode the fasta record at pos. Return null if the record is not
+	 * entirely in the current window.
+	 */
+	private Sequence nextFasta(Alphabet alphabet){
+		if (buf.get(pos) != '>')
+			throw new RuntimeException("> is expected at offset " + (base + pos) + ", found " + ((char) buf.get(pos)));
+
+		int headerEnd = lineEnd(pos + 1);
+		if (headerEnd >= limit && !lastWindow())
+			return null;
+
+		int seqIndex = 0;
+		int i = headerEnd + 1;
+		for (; i < limit; i++){
+			byte b = buf.get(i);
+			byte nucleotide = alphabet.byte2index(b);
+			if (nucleotide >= 0){
+				if (seqIndex >= seq.length)
+					ensureSeq(seqIndex + 1);
+				seq[seqIndex++] = nucleotide;
+			}else if (b == '>'){
+				break;
+			}else if (nucleotide == -1){
+				throw new RuntimeException("Unexecpected character '" + (char) b + "' for dna {" + alphabet + "} at offset  " + (base + i));
+			}
+		}
+		if (i >= limit && !lastWindow())
+			return null;
+
+		int headerStart = pos + 1;
+		name = copy(name, headerStart, headerEnd);
+		String header = new String(name, 0, headerEnd - headerStart).trim();
+		pos = i;
+		return FastaReader.makeSequence(alphabet, seq, seqIndex, header);
+	}
+
+	/**
+	 * Decode the fastq record at pos. Return null if the record is not
+	 * entirely in the current window.
+	 */
+	private FastqSequence nextFastq(Alphabet alphabet){
+		if (buf.get(pos) != '@')
+			throw new RuntimeException("@ is expected at offset " + (base + pos));
+
+		int nameEnd = lineEnd(pos + 1);
+		int seqEnd = lineEnd(nameEnd + 1);
+		int plusEnd = lineEnd(seqEnd + 1);
+		int qualEnd = lineEnd(plusEnd + 1);
+
+		if (qualEnd >= limit && !lastWindow())
+			return null;
+
+		int seqStart = nameEnd + 1, qualStart = plusEnd + 1;
+		nameEnd = trimCR(pos + 1, Math.min(nameEnd, limit));
+		seqEnd = trimCR(seqStart, Math.min(seqEnd, limit));
+		int qualStop = trimCR(qualStart, Math.min(qualEnd, limit));
+
+		int seqLength = Math.max(0, seqEnd - seqStart);
+		ensureSeq(seqLength);
+		for (int i = 0; i < seqLength; i++){
+			byte b = buf.get(seqStart + i);
+			byte nucleotide = alphabet.byte2index(b);
+			if (nucleotide < 0)
+				throw new RuntimeException("Unexecpected character '" + (char) b + "' for dna {" + alphabet + "} at offset  " + (base + seqStart + i));
+			seq[i] = nucleotide;
+		}
+
+		int qualLength = Math.max(0, qualStop - qualStart);
+		if (qualLength > 0)
+			qual = copy(qual, qualStart, qualStop);
+		if (qual.length < seqLength)
+			qual = Arrays.copyOf(qual, seqLength);
+
+		if (seqLength != qualLength){
+			LOG.warn("Lengths of sequence and quality strings do not match at offset " + (base + pos) + " : " + seqLength + " vs " + qualLength);
+		}
+
+		name = copy(name, pos + 1, nameEnd);
+		String readName = new String(name, 0, nameEnd - pos - 1);
+		pos = Math.min(qualEnd + 1, limit);
+		return new FastqSequence(alphabet, seq, qual, seqLength, readName);
+	}
+
+	/* (non-Javadoc)
+	 * @see japsa.seq.SequenceReader#remainingStream()
+	 */
+	@Override
+	protected InputStream remainingStream() throws IOException{
+		if (eof)
+			return new ByteArrayInputStream(new byte[0]);
+		eof = true;
+		channel.position(base + pos);
+		buf = null;
+		return Channels.newInputStream(channel);
+	}
+
+	/**
+	 * Close the file
+	 * @throws IOException
+	 */
+	@Override
+	public void close() throws IOException {
+		buf = null;
+		eof = true;
+		channel.close();
+		file.close();
+	}
+}
@@ -0,0 +1,429 @@
+/*****************************************************************************
+ * Copyright (c) Minh Duc Cao, Monash Uni & UQ, All rights reserved.         *
+ *                                                                           *
+ * Redistribution and use in source and binary forms, with or without        *
+ * modification, are permitted provided that the following conditions        *
+ * are met:                                                                  * 
+ *                                                                           *
+ * 1. Redistributions of source code must retain the above copyright notice, *
+ *    this list of conditions and the following disclaimer.                  *
+ * 2. Redistributions in binary form must reproduce the above copyright      *
+ *    notice, this list of conditions and the following disclaimer in the    *
+ *    documentation and/or other materials provided with the distribution.   *
+ * 3. Neither the names of the institutions nor the names of the contributors*
+ *    may be used to endorse or promote products derived from this software  *
+ *    without specific prior written permission.                             *
+ *                                                                           *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS   *
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, *
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR    *
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR         *
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,     *
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,       *
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR        *
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF    *
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING      *
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS        *
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.              *
+ ****************************************************************************/
+
+package japsa.seq;
+
+import java.util.Arrays;
+
+
+/**
+ * A DNA sequence packed at 2 bits per nucleotide. The four standard 
+ * nucleotides A, C, G and T (indices 0 to 3 in all DNA alphabets) are packed
+ * 32 to a long. Any other symbol (N, or the IUPAC codes of DNA16) is kept in
+ * a sparse table of runs, which is small for typical references where such
+ * symbols come in blocks of Ns.
+ * 
+ * The sequence takes about a quarter of the memory of a Sequence, and can be
+ * used wherever an AbstractSequence is expected. 
+ */
+public class PackedSequence extends AbstractSequence {
+	private static final long MASK = 3L;
+
+	private final int length;
+	private final long [] words;
+
+	//Runs of ambiguous symbols, sorted by start, not overlapping
+	private int nRuns = 0;
+	private int [] runStart = new int[0], runEnd = new int[0];
+	private byte [] runSymbol = new byte[0];
+
+	/**
+	 * Create a sequence of all As of the length
+	 * @param alphabet
+	 * @param length
+	 * @param name
+	 */
+	public PackedSequence(Alphabet.DNA alphabet, int length, String name) {
+		super(alphabet, name);
+		this.length = length;
+		this.words = new long[(length + 31) >>> 5];
+	}
+
+	/**
+	 * Pack a sequence of a byte array
+	 * @param alphabet
+	 * @param byteArray
+	 * @param length
+	 * @param name
+	 */
+	public PackedSequence(Alphabet.DNA alphabet, byte[] byteArray, int length, String name) {
+		this(alphabet, length, name);
+
+		for (int i = 0; i < length; i++){
+			int symbol = byteArray[i];
+			if (symbol >= 0 && symbol < 4){
+				words[i >>> 5] |= ((long) symbol) << ((i & 31) << 1);
+			}else{
+				int j = i + 1;
+				while (j < length && byteArray[j] == symbol)
+					j++;
+				addRun(i, j, (byte) symbol);
+				i = j - 1;
+			}
+		}
+	}
+
+	/**
+	 * Pack a DNA sequence. The name and the description are retained.
+	 * @param seq
+	 */
+	public PackedSequence(Sequence seq) {
+		this(dnaAlphabet(seq), seq.toBytes(), seq.length(), seq.getName());
+		setDesc(seq.getDesc());
+	}
+
+	private PackedSequence(Alphabet alphabet, long [] words, int length) {
+		super(alphabet);
+		this.length = length;
+		this.words = words;
+	}
+
+	private static Alphabet.DNA dnaAlphabet(AbstractSequence seq){
+		if (!(seq.alphabet() instanceof Alphabet.DNA))
+			throw new RuntimeException(seq.alphabet() + " is not DNA");
+		return (Alphabet.DNA) seq.alphabet();
+	}
+
+	/* (non-Javadoc)
+	 * @see japsa.seq.AbstractSequence#length()
+	 */
+	@Override
+	public int length() {
+		return length;
+	}
+
+	/**
+	 * Return the 2-bit code at loc, regardless of the ambiguous symbols
+	 */
+	private int code(int loc){
+		return (int) ((words[loc >>> 5] >>> ((loc & 31) << 1)) & MASK);
+	}
+
+	/* (non-Javadoc)
+	 * @see japsa.seq.AbstractSequence#symbolAt(int)
+	 */
+	@Override
+	public int symbolAt(int loc) {
+		if (loc < 0 || loc >= length)
+			throw new IndexOutOfBoundsException("Index " + loc + " out of sequence length " + length);
+		if (nRuns > 0){
+			int run = findRun(loc);
+			if (run >= 0)
+				return runSymbol[run];
+		}
+		return code(loc);
+	}
+
+	/* (non-Javadoc)
+	 * @see japsa.seq.AbstractSequence#getBase(int)
+	 */
+	@Override
+	public byte getBase(int loc) {
+		return (byte) symbolAt(loc);
+	}
+
+	/* (non-Javadoc)
+	 * @see japsa.seq.AbstractSequence#setSymbol(int, int)
+	 */
+	@Override
+	public void setSymbol(int loc, int symbol) {
+		if (loc < 0 || loc >= length)
+			throw new IndexOutOfBoundsException("Index " + loc + " out of sequence length " + length);
+
+		int run = nRuns > 0 ? findRun(loc) : -1;
+		if (run >= 0){
+			if (runSymbol[run] == symbol)
+				return;
+			splitRun(run, loc);
+		}
+
+		int shift = (loc & 31) << 1;
+		words[loc >>> 5] &= ~(MASK << shift);
+		if (symbol >= 0 && symbol < 4)
+			words[loc >>> 5] |= ((long) symbol) << shift;
+		else
+			addRun(loc, loc + 1, (byte) symbol);
+	}
+
+	/* (non-Javadoc)
+	 * @see japsa.seq.AbstractSequence#setBase(int, byte)
+	 */
+	@Override
+	public byte setBase(int loc, byte base) {
+		setSymbol(loc, base);
+		return base;
+	}
+
+	/**
+	 * @return the number of runs of ambiguous symbols in the sequence
+	 */
+	public int ambiguousRuns(){
+		return nRuns;
+	}
+
+	/**
+	 * Return the index of the run covering loc, or -1 if none
+	 */
+	private int findRun(int loc){
+		int low = 0, high = nRuns - 1;
+		while (low <= high){
+			int mid = (low + high) >>> 1;
+			if (runEnd[mid] <= loc)
+				low = mid + 1;
+			else if (runStart[mid] > loc)
+				high = mid - 1;
+			else
+				return mid;
+		}
+		return -1;
+	}
+
+	/**
+	 * Return true if any position in [start, end) is in an ambiguous run
+	 */
+	private boolean hasRun(int start, int end){
+		if (nRuns == 0)
+			return false;
+		//first run ending after start
+		int low = 0, high = nRuns;
+		while (low < high){
+			int mid = (low + high) >>> 1;
+			if (runEnd[mid] <= start)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low < nRuns && runStart[low] < end;
+	}
+
+	/**
+	 * Add run [start, end) of the symbol. The range must not overlap any
+	 * existing run. The run is merged with its neighbours if possible.
+	 */
+	private void addRun(int start, int end, byte symbol){
+		int low = 0, high = nRuns;
+		while (low < high){
+			int mid = (low + high) >>> 1;
+			if (runStart[mid] < start)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		//low is where the new run is inserted
+		boolean mergePrev = low > 0 && runEnd[low - 1] == start && runSymbol[low - 1] == symbol;
+		boolean mergeNext = low < nRuns && runStart[low] == end && runSymbol[low] == symbol;
+
+		if (mergePrev && mergeNext){
+			runEnd[low - 1] = runEnd[low];
+			removeRun(low);
+		}else if (mergePrev){
+			runEnd[low - 1] = end;
+		}else if (mergeNext){
+			runStart[low] = start;
+		}else{
+			if (nRuns == runStart.length){
+				int newLength = Math.max(4, nRuns * 2);
+				runStart = Arrays.copyOf(runStart, newLength);
+				runEnd = Arrays.copyOf(runEnd, newLength);
+				runSymbol = Arrays.copyOf(runSymbol, newLength);
+			}
+			System.arraycopy(runStart, low, runStart, low + 1, nRuns - low);
+			System.arraycopy(runEnd, low, runEnd, low + 1, nRuns - low);
+			System.arraycopy(runSymbol, low, runSymbol, low + 1, nRuns - low);
+			runStart[low] = start;
+			runEnd[low] = end;
+			runSymbol[low] = symbol;
+			nRuns ++;
+		}
+	}
+
+	private void removeRun(int run){
+		System.arraycopy(runStart, run + 1, runStart, run, nRuns - run - 1);
+		System.arraycopy(runEnd, run + 1, runEnd, run, nRuns - run - 1);
+		System.arraycopy(runSymbol, run + 1, runSymbol, run, nRuns - run - 1);
+		nRuns --;
+	}
+
+	/**
+	 * Remove position loc from the run
+	 */
+	private void splitRun(int run, int loc){
+		int start = runStart[run], end = runEnd[run];
+		byte symbol = runSymbol[run];
+		removeRun(run);
+		if (start < loc)
+			addRun(start, loc, symbol);
+		if (loc + 1 < end)
+			addRun(loc + 1, end, symbol);
+	}
+
+	/**
+	 * Extract length 2-bit codes from src starting at position start, as a 
+	 * packed array. Bits beyond the length in the last word are cleared.
+	 */
+	private static long [] extract(long [] src, int start, int length){
+		long [] dst = new long[(length + 31) >>> 5];
+		int first = start >>> 5;
+		int shift = (start & 31) << 1;
+		for (int w = 0; w < dst.length; w++){
+			long word = src[first + w] >>> shift;
+			if (shift > 0 && first + w + 1 < src.length)
+				word |= src[first + w + 1] << (64 - shift);
+			dst[w] = word;
+		}
+		int tail = (length & 31) << 1;
+		if (tail > 0)
+			dst[dst.length - 1] &= (1L << tail) - 1;
+		return dst;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.CharSequence#subSequence(int, int)
+	 */
+	@Override
+	public PackedSequence subSequence(int start, int end) {
+		if (start < 0 || end > length || start > end)
+			throw new IndexOutOfBoundsException("Invalid range [" + start + ", " + end + ") of sequence length " + length);
+
+		PackedSequence sub = new PackedSequence(alphabet(), extract(words, start, end - start), end - start);
+		for (int run = 0; run < nRuns; run++){
+			int s = Math.max(start, runStart[run]), e = Math.min(end, runEnd[run]);
+			if (s < e)
+				sub.addRun(s - start, e - start, runSymbol[run]);
+		}
+		return sub;
+	}
+
+	/**
+	 * Reverse and complement the 2-bit codes in a word
+	 */
+	private static long reverseComplement(long word){
+		word = ~word;//complement: 3 - x == x ^ 3
+		word = ((word >>> 2) & 0x3333333333333333L) | ((word & 0x3333333333333333L) << 2);
+		word = ((word >>> 4) & 0x0F0F0F0F0F0F0F0FL) | ((word & 0x0F0F0F0F0F0F0F0FL) << 4);
+		return Long.reverseBytes(word);
+	}
+
+	/**
+	 * Return the reverse complement of this sequence. The name and
+	 * description are retained.
+	 * @return
+	 */
+	public PackedSequence reverseComplement(){
+		long [] reversed = new long[words.length];
+		for (int w = 0; w < words.length; w++)
+			reversed[w] = reverseComplement(words[words.length - 1 - w]);
+
+		int pad = words.length * 32 - length;
+		PackedSequence rc = new PackedSequence(alphabet(), extract(reversed, pad, length), length);
+		rc.setName(getName());
+		rc.setDesc(getDesc());
+
+		Alphabet.DNA dna = (Alphabet.DNA) alphabet();
+		for (int run = nRuns - 1; run >= 0; run--)
+			rc.addRun(length - runEnd[run], length - runStart[run], (byte) dna.complement(runSymbol[run]));
+		return rc;
+	}
+
+	/**
+	 * The largest k-mer size supported by kmerAt and kmers
+	 */
+	public static final int MAX_K = 31;
+
+	/**
+	 * Return the k-mer at loc, encoded as a long with 2 bits per nucleotide
+	 * and the first nucleotide being the most significant. Return -1 if the
+	 * k-mer contains an ambiguous symbol. Require k <= 31, so that -1 is not
+	 * the encoding of a valid k-mer.
+	 * 
+	 * @param loc
+	 * @param k
+	 * @return
+	 */
+	public long kmerAt(int loc, int k){
+		if (k > MAX_K)
+			throw new RuntimeException("k-mer of size " + k + " cannot be encoded in a long");
+		if (loc < 0 || loc + k > length)
+			throw new IndexOutOfBoundsException("k-mer at " + loc + " out of sequence length " + length);
+		if (hasRun(loc, loc + k))
+			return -1;
+
+		long kmer = 0;
+		for (int i = loc; i < loc + k; i++)
+			kmer = (kmer << 2) | code(i);
+		return kmer;
+	}
+
+	/**
+	 * Return all k-mers of the sequence, kmers[i] being the k-mer starting
+	 * at position i, encoded as in kmerAt. 
+	 * 
+	 * @param k
+	 * @return
+	 */
+	public long [] kmers(int k){
+		if (k > MAX_K)
+			throw new RuntimeException("k-mer of size " + k + " cannot be encoded in a long");
+		if (k > length)
+			return new long[0];
+
+		long [] kmers = new long[length - k + 1];
+		long mask = (1L << (2 * k)) - 1;
+		long kmer = 0;
+		int run = 0;
+		int lastAmbiguous = -1;//last ambiguous position seen
+		for (int i = 0; i < length; i++){
+			while (run < nRuns && runEnd[run] <= i)
+				run ++;
+			if (run < nRuns && runStart[run] <= i)
+				lastAmbiguous = i;
+
+			kmer = ((kmer << 2) | code(i)) & mask;
+			if (i >= k - 1)
+				kmers[i - k + 1] = (lastAmbiguous > i - k) ? -1 : kmer;
+		}
+		return kmers;
+	}
+
+	/**
+	 * Unpack to a Sequence
+	 * @return
+	 */
+	public Sequence toSequence(){
+		byte [] bytes = new byte[length];
+		for (int i = 0; i < length; i++)
+			bytes[i] = (byte) code(i);
+		for (int run = 0; run < nRuns; run++)
+			Arrays.fill(bytes, runStart[run], runEnd[run], runSymbol[run]);
+
+		Sequence seq = new Sequence(alphabet(), bytes, getName());
+		seq.setDesc(getDesc());
+		return seq;
+	}
+}
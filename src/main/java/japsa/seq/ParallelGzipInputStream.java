@@ -0,0 +1,362 @@
+/*****************************************************************************
+ * Copyright (c) Minh Duc Cao, Monash Uni & UQ, All rights reserved.         *
+ *                                                                           *
+ * Redistribution and use in source and binary forms, with or without        *
+ * modification, are permitted provided that the following conditions        *
+ * are met:                                                                  * 
+ *                                                                           *
+ * 1. Redistributions of source code must retain the above copyright notice, *
+ *    this list of conditions and the following disclaimer.                  *
+ * 2. Redistributions in binary form must reproduce the above copyright      *
+ *    notice, this list of conditions and the following disclaimer in the    *
+ *    documentation and/or other materials provided with the distribution.   *
+ * 3. Neither the names of the institutions nor the names of the contributors*
+ *    may be used to endorse or promote products derived from this software  *
+ *    without specific prior written permission.                             *
+ *                                                                           *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS   *
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, *
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR    *
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR         *
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,     *
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,       *
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR        *
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF    *
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING      *
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS        *
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.              *
+ ****************************************************************************/
+
+package japsa.seq;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+
+/**
+ * An input stream that decompresses gzipped data in a background stage. 
+ * 
+ * If the input is in BGZF format (as produced by bgzip or samtools), the
+ * compressed blocks are delimited by a reader thread from the block size in
+ * their headers and inflated in parallel on a pool of worker threads. The
+ * decompressed blocks are handed to the consumer in their original order, 
+ * and at most readAhead blocks are kept in flight.
+ * 
+ * Other gzip data (including plain multi-member gzip, whose member 
+ * boundaries cannot be known without inflating) are inflated by a 
+ * GZIPInputStream on the reader thread, so that decompression still 
+ * overlaps with the parsing done by the consumer.
+ *
+ * All threads are daemons, so a stream that is not closed does not prevent
+ * the JVM from exiting.
+ */
+public class ParallelGzipInputStream extends InputStream{
+	//Size of the chunk read from the fall back GZIPInputStream
+	static final int CHUNK_SIZE = 1 << 16;
+
+	private static final byte[] EMPTY = new byte[0];	
+	private static final Future<byte[]> END = CompletableFuture.completedFuture(EMPTY);
+
+	private final InputStream in;
+	private final boolean bgzf;
+	private final ExecutorService pool;
+	private final Thread reader;
+	private final BlockingQueue<Future<byte[]>> blocks;
+
+	private byte[] current = EMPTY;
+	private int pos = 0;
+	private boolean eof = false;
+	private volatile boolean closed = false;
+
+	/**
+	 * Create a stream decompressing the gzip input ins
+	 * @param ins the compressed stream
+	 * @param threads number of inflating threads, used only for BGZF input
+	 * @param readAhead the maximum number of blocks decompressed ahead of 
+	 * the consumer
+	 * @throws IOException
+	 */
+	public ParallelGzipInputStream(InputStream ins, int threads, int readAhead) throws IOException{
+		if (!ins.markSupported())
+			ins = new BufferedInputStream(ins);
+		this.in = ins;
+		this.bgzf = isBGZF(ins);
+		this.blocks = new ArrayBlockingQueue<Future<byte[]>>(Math.max(1, readAhead));
+
+		ThreadFactory daemon = new ThreadFactory(){
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "gzip-inflater");
+				t.setDaemon(true);
+				return t;
+			}
+		};
+
+		if (bgzf){
+			pool = Executors.newFixedThreadPool(Math.max(1, threads), daemon);
+			reader = daemon.newThread(new Runnable(){
+				public void run() {readBlocks();}
+			});
+		}else{
+			pool = null;
+			reader = daemon.newThread(new Runnable(){
+				public void run() {readStream();}
+			});
+		}
+		reader.setName("gzip-reader");
+		reader.start();
+	}
+
+	/**
+	 * @return true if the input is in BGZF format
+	 */
+	public boolean isBGZF(){
+		return bgzf;
+	}
+
+	/**
+	 * Check if the stream starts with a BGZF block header, ie, a gzip header
+	 * with the BC extra subfield. The stream is reset to its start.
+	 */
+	static boolean isBGZF(InputStream ins) throws IOException{
+		byte[] header = new byte[18];
+		ins.mark(header.length);
+		int n = 0, r;
+		while (n < header.length && (r = ins.read(header, n, header.length - n)) > 0)
+			n += r;
+		ins.reset();
+
+		return n == header.length
+			&& (header[0] & 0xff) == 31 && (header[1] & 0xff) == 139 
+			&& header[2] == 8 && (header[3] & 4) != 0
+			&& header[12] == 'B' && header[13] == 'C' && header[14] == 2;
+	}
+
+	/**
+	 * Loop of the reader thread for BGZF input: delimit the compressed blocks
+	 * and submit them for inflation
+	 */
+	private void readBlocks(){
+		try{
+			byte [] header = new byte[12];
+			while (!closed){
+				if (!readFully(header, true))
+					break;//End of stream
+
+				if ((header[0] & 0xff) != 31 || (header[1] & 0xff) != 139 || (header[3] & 4) == 0)
+					throw new IOException("Invalid BGZF block header");
+
+				int xlen = (header[10] & 0xff) | ((header[11] & 0xff) << 8);
+				byte [] extra = new byte[xlen];
+				readFully(extra, false);
+
+				int bsize = -1;
+				for (int i = 0; i + 4 <= xlen;){
+					int slen = (extra[i + 2] & 0xff) | ((extra[i + 3] & 0xff) << 8);
+					if (extra[i] == 'B' && extra[i + 1] == 'C' && slen == 2){
+						bsize = (extra[i + 4] & 0xff) | ((extra[i + 5] & 0xff) << 8);
+						break;
+					}
+					i += 4 + slen;
+				}
+				if (bsize < 0)
+					throw new IOException("Invalid BGZF block: missing block size");
+
+				//Compressed data followed by CRC32 and ISIZE
+				final byte [] data = new byte[bsize - xlen - 11];
+				readFully(data, false);
+
+				blocks.put(pool.submit(new Callable<byte[]>(){
+					@Override
+					public byte[] call() throws Exception {
+						return inflate(data);
+					}
+				}));
+			}
+			blocks.put(END);
+		}catch (Exception e){
+			fail(e);
+		}finally{
+			//no more blocks: the inflaters exit once the submitted blocks are
+			//inflated, even if the stream is never closed
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Loop of the reader thread for other gzip input
+	 */
+	private void readStream(){
+		try{
+			GZIPInputStream gzip = new GZIPInputStream(in, CHUNK_SIZE);
+			while (!closed){
+				byte [] chunk = new byte[CHUNK_SIZE];
+				int n = 0, r = 0;
+				while (n < chunk.length && (r = gzip.read(chunk, n, chunk.length - n)) > 0)
+					n += r;
+
+				if (n > 0)
+					blocks.put(CompletableFuture.completedFuture(n == chunk.length ? chunk : Arrays.copyOf(chunk, n)));
+				if (r < 0)
+					break;
+			}
+			blocks.put(END);
+		}catch (Exception e){
+			fail(e);
+		}
+	}
+
+	private void fail(Exception e){
+		if (closed)
+			return;
+		CompletableFuture<byte[]> failed = new CompletableFuture<byte[]>();
+		failed.completeExceptionally(e);
+		try {
+			blocks.put(failed);
+		} catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Read exactly buf.length bytes from the compressed stream. Return false
+	 * if the stream ends before any byte is read and allowEnd is true.
+	 */
+	private boolean readFully(byte [] buf, boolean allowEnd) throws IOException{
+		int n = 0;
+		while (n < buf.length){
+			int r = in.read(buf, n, buf.length - n);
+			if (r < 0){
+				if (n == 0 && allowEnd)
+					return false;
+				throw new EOFException("Unexpected end of BGZF stream");
+			}
+			n += r;
+		}
+		return true;
+	}
+
+	private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>(){
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater(true);
+		}
+	};
+
+	/**
+	 * Inflate a BGZF block: raw deflate data followed by CRC32 and ISIZE
+	 */
+	static byte[] inflate(byte [] data) throws IOException{
+		int n = data.length - 8;
+		long crc = (data[n] & 0xffL) | ((data[n + 1] & 0xffL) << 8) 
+				| ((data[n + 2] & 0xffL) << 16) | ((data[n + 3] & 0xffL) << 24);
+		int isize = (data[n + 4] & 0xff) | ((data[n + 5] & 0xff) << 8)
+				| ((data[n + 6] & 0xff) << 16) | ((data[n + 7] & 0xff) << 24);
+
+		byte [] out = new byte[isize];
+		Inflater inflater = INFLATER.get();
+		inflater.reset();
+		inflater.setInput(data, 0, n);
+		try{
+			int count = 0;
+			while (count < isize){
+				int r = inflater.inflate(out, count, isize - count);
+				if (r == 0 && (inflater.finished() || inflater.needsInput()))
+					break;
+				count += r;
+			}
+			if (count != isize)
+				throw new IOException("BGZF block inflated to " + count + " bytes, expected " + isize);
+		}catch (DataFormatException e){
+			throw new IOException(e);
+		}
+
+		CRC32 check = new CRC32();
+		check.update(out, 0, isize);
+		if (check.getValue() != crc)
+			throw new IOException("CRC mismatch in BGZF block");
+		return out;
+	}
+
+	/**
+	 * Move to the next non-empty decompressed block. Return false at the end
+	 * of the stream.
+	 */
+	private boolean nextBlock() throws IOException{
+		while (!eof && pos >= current.length){
+			Future<byte[]> next;
+			try{
+				next = blocks.take();
+				if (next == END){
+					eof = true;
+					return false;
+				}
+				current = next.get();
+				pos = 0;
+			}catch (InterruptedException e){
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			}catch (ExecutionException e){
+				eof = true;
+				if (pool != null)
+					pool.shutdownNow();
+				Throwable cause = e.getCause();
+				if (cause instanceof IOException)
+					throw (IOException) cause;
+				throw new IOException(cause);
+			}
+		}
+		return pos < current.length;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!nextBlock())
+			return -1;
+		return current[pos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0)
+			return 0;
+		if (!nextBlock())
+			return -1;
+		int n = Math.min(len, current.length - pos);
+		System.arraycopy(current, pos, b, off, n);
+		pos += n;
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return current.length - pos;
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		eof = true;
+		reader.interrupt();
+		if (pool != null)
+			pool.shutdownNow();
+		blocks.clear();
+		in.close();
+	}
+}
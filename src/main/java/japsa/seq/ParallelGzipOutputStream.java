@@ -0,0 +1,256 @@
+/*****************************************************************************
+ * Copyright (c) Minh Duc Cao, Monash Uni & UQ, All rights reserved.         *
+ *                                                                           *
+ * Redistribution and use in source and binary forms, with or without        *
+ * modification, are permitted provided that the following conditions        *
+ * are met:                                                                  * 
+ *                                                                           *
+ * 1. Redistributions of source code must retain the above copyright notice, *
+ *    this list of conditions and the following disclaimer.                  *
+ * 2. Redistributions in binary form must reproduce the above copyright      *
+ *    notice, this list of conditions and the following disclaimer in the    *
+ *    documentation and/or other materials provided with the distribution.   *
+ * 3. Neither the names of the institutions nor the names of the contributors*
+ *    may be used to endorse or promote products derived from this software  *
+ *    without specific prior written permission.                             *
+ *                                                                           *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS   *
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, *
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR    *
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR         *
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,     *
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,       *
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR        *
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF    *
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING      *
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS        *
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.              *
+ ****************************************************************************/
+
+package japsa.seq;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+
+/**
+ * An output stream that compresses data in BGZF format with a pool of 
+ * threads. The data are cut into blocks of up to 65280 bytes, which are 
+ * compressed in parallel into independent gzip members and written in order
+ * by a writer thread. The output is a valid (multi-member) gzip file, and 
+ * can be read back in parallel by ParallelGzipInputStream.
+ */
+public class ParallelGzipOutputStream extends OutputStream{
+	static final int BLOCK_SIZE = 0xff00;//as bgzip
+	static final int MAX_BLOCK = 1 << 16;
+
+	//The empty block marking the end of a BGZF file
+	static final byte [] EOF_BLOCK = {
+		31, -117, 8, 4, 0, 0, 0, 0, 0, -1, 6, 0, 66, 67, 2, 0, 27, 0, 3, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+
+	private static final Future<byte[]> END = CompletableFuture.completedFuture(null);
+
+	private final OutputStream out;
+	private final ExecutorService pool;
+	private final Thread writer;
+	private final BlockingQueue<Future<byte[]>> blocks;
+
+	private byte [] buf = new byte[BLOCK_SIZE];
+	private int count = 0;
+	private volatile IOException error = null;
+	private boolean closed = false;
+
+	/**
+	 * @param out the underlying stream
+	 * @param threads the number of compressing threads
+	 */
+	public ParallelGzipOutputStream(OutputStream out, int threads) {
+		this.out = out;
+		threads = Math.max(1, threads);
+		this.blocks = new ArrayBlockingQueue<Future<byte[]>>(2 * threads);
+
+		ThreadFactory daemon = new ThreadFactory(){
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "gzip-deflater");
+				t.setDaemon(true);
+				return t;
+			}
+		};
+		pool = Executors.newFixedThreadPool(threads, daemon);
+		writer = daemon.newThread(new Runnable(){
+			public void run() {writeBlocks();}
+		});
+		writer.setName("gzip-writer");
+		writer.start();
+	}
+
+	/**
+	 * Loop of the writer thread
+	 */
+	private void writeBlocks(){
+		try{
+			while (true){
+				Future<byte[]> next = blocks.take();
+				if (next == END)
+					break;
+				if (error != null)
+					continue;//drain the queue
+				try{
+					out.write(next.get());
+				}catch (ExecutionException e){
+					error = (e.getCause() instanceof IOException) ? (IOException) e.getCause() : new IOException(e.getCause());
+				}catch (IOException e){
+					error = e;
+				}
+			}
+		}catch (InterruptedException e){
+			error = new InterruptedIOException("Writer thread interrupted");
+		}
+	}
+
+	private static final ThreadLocal<Deflater> DEFLATER = new ThreadLocal<Deflater>(){
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		}
+	};
+
+	/**
+	 * Compress data into a BGZF block
+	 */
+	static byte [] compress(byte [] data, int length){
+		byte [] block = new byte[MAX_BLOCK];
+		Deflater deflater = DEFLATER.get();
+		deflater.reset();
+		deflater.setInput(data, 0, length);
+		deflater.finish();
+		//18 bytes of header, 8 bytes of trailer
+		int size = deflater.deflate(block, 18, MAX_BLOCK - 26);
+		if (!deflater.finished()){
+			//Incompressible data: store instead
+			Deflater store = new Deflater(Deflater.NO_COMPRESSION, true);
+			store.setInput(data, 0, length);
+			store.finish();
+			size = store.deflate(block, 18, MAX_BLOCK - 26);
+			store.end();
+		}
+
+		int bsize = size + 25;//total block size - 1
+		block[0] = 31; block[1] = (byte) 139; block[2] = 8; block[3] = 4;//FEXTRA
+		//MTIME = 0, XFL = 0
+		block[9] = (byte) 255;//OS unknown
+		block[10] = 6; block[11] = 0;//XLEN
+		block[12] = 'B'; block[13] = 'C'; block[14] = 2; block[15] = 0;
+		block[16] = (byte) bsize; block[17] = (byte) (bsize >>> 8);
+
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, length);
+		long value = crc.getValue();
+		int n = 18 + size;
+		for (int i = 0; i < 4; i++)
+			block[n + i] = (byte) (value >>> (8 * i));
+		for (int i = 0; i < 4; i++)
+			block[n + 4 + i] = (byte) (length >>> (8 * i));
+		return Arrays.copyOf(block, n + 8);
+	}
+
+	/**
+	 * Submit the current buffer for compression
+	 */
+	private void submitBuffer() throws IOException{
+		if (error != null)
+			throw error;
+		if (count == 0)
+			return;
+		final byte [] data = buf;
+		final int length = count;
+		try{
+			blocks.put(pool.submit(new Callable<byte[]>(){
+				@Override
+				public byte[] call() throws Exception {
+					return compress(data, length);
+				}
+			}));
+		}catch (InterruptedException e){
+			throw new InterruptedIOException();
+		}
+		buf = new byte[BLOCK_SIZE];
+		count = 0;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (count >= BLOCK_SIZE)
+			submitBuffer();
+		buf[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0){
+			if (count >= BLOCK_SIZE)
+				submitBuffer();
+			int n = Math.min(len, BLOCK_SIZE - count);
+			System.arraycopy(b, off, buf, count, n);
+			count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Flush the data written so far as a (possibly short) block. Note that 
+	 * the block may not yet reach the underlying stream when this method 
+	 * returns.
+	 */
+	@Override
+	public void flush() throws IOException {
+		submitBuffer();
+	}
+
+	/**
+	 * Write all remaining blocks and the BGZF end of file marker, and close
+	 * the underlying stream
+	 */
+	@Override
+	public void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		IOException exception = null;
+		try{
+			submitBuffer();
+		}catch (IOException e){
+			exception = e;
+		}
+		try{
+			blocks.put(END);
+			writer.join();
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+		}
+		pool.shutdown();
+
+		if (exception == null)
+			exception = error;
+		if (exception == null)
+			out.write(EOF_BLOCK);
+		out.close();
+		if (exception != null)
+			throw exception;
+	}
+}
@@ -0,0 +1,262 @@
+/*****************************************************************************
+ * Copyright (c) Minh Duc Cao, Monash Uni & UQ, All rights reserved.         *
+ *                                                                           *
+ * Redistribution and use in source and binary forms, with or without        *
+ * modification, are permitted provided that the following conditions        *
+ * are met:                                                                  * 
+ *                                                                           *
+ * 1. Redistributions of source code must retain the above copyright notice, *
+ *    this list of conditions and the following disclaimer.                  *
+ * 2. Redistributions in binary form must reproduce the above copyright      *
+ *    notice, this list of conditions and the following disclaimer in the    *
+ *    documentation and/or other materials provided with the distribution.   *
+ * 3. Neither the names of the institutions nor the names of the contributors*
+ *    may be used to endorse or promote products derived from this software  *
+ *    without specific prior written permission.                             *
+ *                                                                           *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS   *
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, *
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR    *
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR         *
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,     *
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,       *
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR        *
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF    *
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING      *
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS        *
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.              *
+ ****************************************************************************/
+
+package japsa.seq;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * A pipelined reader of fasta/fastq sequences. A splitter thread cuts the
+ * raw byte stream into chunks of batchSize records, by counting lines for
+ * fastq or looking for '>' at the start of a line for fasta, without
+ * decoding them. The chunks are decoded into sequences by a pool of worker
+ * threads with the same parsers as FastaReader and FastqReader, and handed 
+ * to the consumer as batches in the original order through a bounded queue.
+ * 
+ * A batch reader is obtained from SequenceReader.batches(). For fastq input,
+ * the sequences in the batches are FastqSequence objects.
+ */
+public class SequenceBatchReader implements Closeable{
+	static final int BLOCK_SIZE = 1 << 20;
+
+	private static final Future<List<Sequence>> END = CompletableFuture.completedFuture(null);
+
+	private final InputStream in;
+	private final boolean fastq;
+	private final Alphabet alphabet;
+	private final int batchSize;
+
+	private final ExecutorService pool;
+	private final Thread splitter;
+	private final BlockingQueue<Future<List<Sequence>>> batches;
+
+	private boolean eof = false;
+	private volatile boolean closed = false;
+
+	/**
+	 * Create a batch reader of the raw (decompressed) stream ins, which must
+	 * be positioned at the start of a record.
+	 * 
+	 * @param ins the raw stream
+	 * @param fastq true if the stream is in fastq, false if in fasta format
+	 * @param alphabet
+	 * @param batchSize the number of sequences per batch
+	 * @param threads the number of decoding threads
+	 */
+	SequenceBatchReader(InputStream ins, boolean fastq, Alphabet alphabet, int batchSize, int threads){
+		this.in = ins;
+		this.fastq = fastq;
+		this.alphabet = alphabet == null ? Alphabet.DNA16() : alphabet;
+		this.batchSize = Math.max(1, batchSize);
+
+		threads = Math.max(1, threads);
+		this.batches = new ArrayBlockingQueue<Future<List<Sequence>>>(2 * threads);
+
+		ThreadFactory daemon = new ThreadFactory(){
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "sequence-decoder");
+				t.setDaemon(true);
+				return t;
+			}
+		};
+		pool = Executors.newFixedThreadPool(threads, daemon);
+		splitter = daemon.newThread(new Runnable(){
+			public void run() {split();}
+		});
+		splitter.setName("sequence-splitter");
+		splitter.start();
+	}
+
+	/**
+	 * Return the next batch of sequences, or null if there is no more
+	 * sequence. The last batch may have fewer than batchSize sequences.
+	 * @return
+	 * @throws IOException
+	 */
+	public List<Sequence> nextBatch() throws IOException{
+		if (eof)
+			return null;
+		try{
+			Future<List<Sequence>> next = batches.take();
+			if (next == END){
+				eof = true;
+				return null;
+			}
+			return next.get();
+		}catch (InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}catch (ExecutionException e){
+			eof = true;
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException) cause;
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Loop of the splitter thread
+	 */
+	private void split(){
+		try{
+			byte [] buf = new byte[BLOCK_SIZE];
+			int len = 0;//number of bytes in buf			
+			int scan = 0;//where to scan next
+			int records = 0, lines = 0;
+			boolean start = true, end = false;
+
+			while (!closed && !end){
+				if (len == buf.length)
+					buf = Arrays.copyOf(buf, buf.length * 2);
+				int r = in.read(buf, len, buf.length - len);
+				if (r < 0)
+					end = true;
+				else
+					len += r;
+
+				if (start){
+					//skip any blank lines before the first record
+					int skip = 0;
+					while (skip < len && (buf[skip] == '\n' || buf[skip] == '\r'))
+						skip ++;
+					if (skip == len && !end){
+						len = 0;
+						continue;
+					}
+					System.arraycopy(buf, skip, buf, 0, len - skip);
+					len -= skip;
+					start = false;
+					records = (!fastq && len > 0) ? 1 : 0;
+				}
+
+				int cut = 0;//last cut point				
+				for (; scan < len; scan++){
+					if (buf[scan] != '\n')
+						continue;
+					if (fastq){
+						if (++lines < 4)
+							continue;
+						lines = 0;
+						if (++records < batchSize)
+							continue;
+						records = 0;
+					}else{
+						if (scan + 1 >= len){
+							if (end)
+								continue;
+							break;//resolve after next read
+						}
+						if (buf[scan + 1] != '>')
+							continue;
+						if (++records <= batchSize)
+							continue;
+						records = 1;
+					}
+					submit(Arrays.copyOfRange(buf, cut, scan + 1));
+					cut = scan + 1;
+				}
+
+				if (cut > 0){
+					System.arraycopy(buf, cut, buf, 0, len - cut);
+					len -= cut;
+					scan -= cut;
+				}				
+			}
+			if (!closed && len > 0)
+				submit(Arrays.copyOf(buf, len));
+			batches.put(END);
+		}catch (Exception e){
+			if (closed)
+				return;
+			CompletableFuture<List<Sequence>> failed = new CompletableFuture<List<Sequence>>();
+			failed.completeExceptionally(e);
+			try {
+				batches.put(failed);
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void submit(final byte [] chunk) throws InterruptedException{
+		batches.put(pool.submit(new Callable<List<Sequence>>(){
+			@Override
+			public List<Sequence> call() throws Exception {
+				return decode(chunk);
+			}
+		}));
+	}
+
+	/**
+	 * Decode the records in the chunk
+	 */
+	private List<Sequence> decode(byte [] chunk) throws IOException{
+		ArrayList<Sequence> list = new ArrayList<Sequence>(batchSize);
+		SequenceReader reader = fastq ? new FastqReader(new ByteArrayInputStream(chunk))
+				: new FastaReader(new ByteArrayInputStream(chunk));
+		Sequence seq;
+		while ((seq = reader.nextSequence(alphabet)) != null)
+			list.add(seq);
+		reader.close();
+		return list;
+	}
+
+	/**
+	 * Stop the pipeline and close the underlying stream
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		eof = true;
+		splitter.interrupt();
+		pool.shutdownNow();
+		batches.clear();
+		in.close();
+	}
+}
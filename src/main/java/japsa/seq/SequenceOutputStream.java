@@ -117,6 +117,34 @@ public class SequenceOutputStream  extends OutputStream {
 		return new SequenceOutputStream (new FileOutputStream(fileName));
 		
 	}
+	
+	/**
+	 * Create an output stream to a file as makeOutputStream(fileName), with
+	 * the options to write asynchronously and to compress with multiple 
+	 * threads.
+	 * 
+	 * @param fileName the file name; .gz for gzip output, "-" for standard output
+	 * @param async if true, the stream is an AsyncSequenceOutputStream, whose
+	 * writing is done by a background thread
+	 * @param gzipThreads if more than 1 and the file name ends with .gz, the 
+	 * output is compressed in BGZF format by that many threads 
+	 * @return
+	 * @throws IOException
+	 */
+	public static SequenceOutputStream makeOutputStream(String fileName, boolean async, int gzipThreads)throws IOException{
+		OutputStream os;
+		if (fileName.endsWith(".gz")){
+			if (gzipThreads > 1)
+				os = new ParallelGzipOutputStream(new FileOutputStream(fileName), gzipThreads);
+			else
+				os = new GZIPOutputStream(new FileOutputStream(fileName));
+		}else if (fileName.equals("-"))
+			os = System.out;
+		else
+			os = new FileOutputStream(fileName);
+		
+		return async ? new AsyncSequenceOutputStream(os) : new SequenceOutputStream(os);
+	}
 
 	/**
 	 * Writes <code>b.length</code> bytes to this output stream.
@@ -227,7 +255,7 @@ public class SequenceOutputStream  extends OutputStream {
 
 
 	/** Flush the internal buffer */
-	private void flushBuffer() throws IOException {
+	protected void flushBuffer() throws IOException {
 		if (count > 0) {
 			out.write(buf, 0, count);
 			count = 0;
@@ -279,22 +307,121 @@ public class SequenceOutputStream  extends OutputStream {
 	 * @throws IOException
 	 */
 	public void print(int num)throws IOException {
-		//FIXME: this is slow
-		print(Integer.toString(num));		
+		print((long) num);		
 	}
 	
+	/**
+	 * Write the string presenting the number to the stream. The digits are
+	 * written directly to the buffer, without creating a string.
+	 * @param num: the number to write
+	 * @throws IOException
+	 */
 	public void print(long num)throws IOException {
-		//FIXME: this is slow
-		print(Long.toString(num));		
+		if (num == Long.MIN_VALUE){
+			print(Long.toString(num));
+			return;
+		}
+		//at most 20 characters, including the sign
+		if (count + 20 > buf.length) {
+			flushBuffer();
+		}
+		if (num < 0){
+			buf[count++] = '-';
+			num = -num;
+		}
+		int end = count + digits(num);
+		for (int pos = end - 1; pos >= count; pos--){
+			buf[pos] = (byte) ('0' + num % 10);
+			num /= 10;
+		}
+		count = end;
+	}
+	
+	/**
+	 * Number of digits of a non-negative number
+	 */
+	private static int digits(long num){
+		int digits = 1;
+		for (long limit = 10; digits < 19 && num >= limit; limit *= 10)
+			digits ++;
+		return digits;
+	}
+	
+	private static final long [] POWERS_OF_TEN = {1L, 10L, 100L, 1000L, 10000L, 100000L, 1000000L, 
+		10000000L, 100000000L, 1000000000L};
+	//larger numbers are written with String.format
+	private static final double MAX_WHOLE = 1e18;
+	
+	/**
+	 * Write a number with a fixed number of decimal places (up to 9), rounded
+	 * half up, eg, printDecimal(3.14159, 2) writes 3.14. No string is created
+	 * unless the number is NaN, infinite or at least 1e18 in magnitude, in 
+	 * which case String.format is used.
+	 *  
+	 * @param num
+	 * @param decimals
+	 * @throws IOException
+	 */
+	public void printDecimal(double num, int decimals)throws IOException {
+		printDecimal(num, decimals, 0);
+	}
+	
+	/**
+	 * Write a number with a fixed number of decimal places, right justified
+	 * in field spaces, as String.format("%10.6f", num) for field 10 and 6 
+	 * decimals. The rounding is done on the binary value, and the digits 
+	 * beyond the precision of a double (about 15 significant) are not padded
+	 * with zeros, so these may differ from String.format.
+	 *  
+	 * @param num
+	 * @param decimals
+	 * @param field
+	 * @throws IOException
+	 */
+	public void printDecimal(double num, int decimals, int field)throws IOException {
+		if (decimals < 0 || decimals >= POWERS_OF_TEN.length)
+			throw new IllegalArgumentException("Number of decimal places must be between 0 and " + (POWERS_OF_TEN.length - 1));
+		
+		double abs = Math.abs(num);
+		if (Double.isNaN(num) || abs >= MAX_WHOLE){
+			String str = String.format("%." + decimals + "f", num);
+			for (int i = str.length(); i < field; i++)
+				print(' ');
+			print(str);
+			return;
+		}
+		//the whole part is split off first, exactly, so the scaling of the 
+		//fraction loses no precision
+		long scale = POWERS_OF_TEN[decimals];
+		long whole = (long) abs;
+		long fraction = (long) ((abs - whole) * scale + 0.5);
+		if (fraction >= scale){
+			whole ++;
+			fraction -= scale;
+		}
+		boolean negative = num < 0 && (whole != 0 || fraction != 0);
+		int length = (negative ? 1 : 0) + digits(whole) + (decimals > 0 ? decimals + 1 : 0);
+		for (int i = length; i < field; i++)
+			print(' ');
+		if (negative)
+			print('-');
+		print(whole);
+		if (decimals > 0){
+			print('.');
+			for (long p = scale / 10; p > 0; p /= 10){
+				print((char) ('0' + fraction / p));
+				fraction %= p;
+			}
+		}
 	}
 	
 	public void print(float num)throws IOException {
-		//FIXME: this is slow
+		//FIXME: this is slow, use printDecimal if a fixed precision will do
 		print(Float.toString(num));		
 	}
 	
 	public void print(double num)throws IOException {
-		//FIXME: this is slow
+		//FIXME: this is slow, use printDecimal if a fixed precision will do
 		print(Double.toString(num));		
 	}
 	
@@ -39,12 +39,14 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.BufferedReader;
 import java.io.Closeable;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.SequenceInputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.zip.GZIPInputStream;
@@ -106,7 +108,7 @@ public abstract class SequenceReader implements Closeable{
 
 
 		if (magic == GZIPInputStream.GZIP_MAGIC)
-			this.in = new GZIPInputStream(ins);		
+			this.in = gunzip(ins);		
 		else
 			/**************************************************************/
 			this.in = ins;
@@ -123,15 +125,40 @@ public abstract class SequenceReader implements Closeable{
 		this(new FileInputStream(fileName));
 	}
 	
+	/**
+	 * Construct a reader that does not read through the underlying stream,
+	 * such as MappedSequenceReader. Such a reader needs to override 
+	 * nextSequence and close.
+	 */
+	protected SequenceReader() {
+		this.in = null;
+		eof = true;
+	}
+	
 	/**
 	 * Close the stream
 	 * @throws IOException
 	 */
 
 	public void close() throws IOException {
-		in.close();
+		if (in != null)
+			in.close();
 	}	
 	
+	/**
+	 * @return true if the reader reads sequences in fastq format
+	 */
+	public boolean isFastq(){
+		return false;
+	}
+	
+	/**
+	 * @return true if the reader reads sequences in fasta format
+	 */
+	public boolean isFasta(){
+		return false;
+	}
+	
 
 	protected byte[] nextLine = new byte[1024];
 	protected int nextLineLength = 0;
@@ -231,6 +258,39 @@ public abstract class SequenceReader implements Closeable{
 	 * @return
 	 */
 	public abstract Sequence nextSequence(Alphabet alphabet)  throws IOException;
+	
+	/**
+	 * Return the raw bytes of the stream from the current position, which 
+	 * is assumed to be at the start of a record. The reader can no longer be
+	 * used after this call.
+	 * @return
+	 * @throws IOException
+	 */
+	protected InputStream remainingStream() throws IOException{
+		if (eof)
+			return new ByteArrayInputStream(new byte[0]);
+		eof = true;
+		return new SequenceInputStream(new ByteArrayInputStream(buff, pos, count - pos), in);
+	}
+	
+	/**
+	 * Read the remaining sequences in batches with a pipeline: one thread 
+	 * splits the stream into chunks of records and a number of threads
+	 * decode them in parallel. This reader should not be used after this
+	 * call; the batch reader should be closed instead. Only fasta and fastq
+	 * formats are supported.
+	 *  
+	 * @param alphabet
+	 * @param batchSize number of sequences per batch
+	 * @param threads number of decoding threads
+	 * @return the batch reader
+	 * @throws IOException
+	 */
+	public SequenceBatchReader batches(Alphabet alphabet, int batchSize, int threads) throws IOException{
+		if (!isFastq() && !isFasta())
+			throw new RuntimeException("Batch reading is only supported for fasta and fastq format");
+		return new SequenceBatchReader(remainingStream(), isFastq(), alphabet, batchSize, threads);
+	}
 		
 	
 	
@@ -283,10 +343,43 @@ public abstract class SequenceReader implements Closeable{
 		return new BufferedReader(new InputStreamReader(is));
 	}
 	
+	/**
+	 * Number of threads used to inflate BGZF input. If set to 1 or less, 
+	 * gzipped input is inflated on the calling thread with GZIPInputStream.
+	 */
+	public static int GZIP_THREADS = Runtime.getRuntime().availableProcessors();
+	
+	/**
+	 * Maximum number of decompressed blocks kept ahead of the parser
+	 */
+	public static int GZIP_READ_AHEAD = 64;
+	
+	/**
+	 * Return a stream that decompresses the gzipped stream ins. Unless 
+	 * GZIP_THREADS is set to 1 or less, the decompression is done in a 
+	 * background stage by ParallelGzipInputStream.
+	 * @param ins
+	 * @return the decompressed stream
+	 * @throws IOException
+	 */
+	public static InputStream gunzip(InputStream ins) throws IOException{
+		if (GZIP_THREADS <= 1)
+			return new GZIPInputStream(ins);
+		return new ParallelGzipInputStream(ins, GZIP_THREADS, GZIP_READ_AHEAD);
+	}
+	
+	/**
+	 * Whether getReader(String) opens uncompressed fasta/fastq files with 
+	 * MappedSequenceReader. Set to false to always use the stream readers. 
+	 */
+	public static boolean MAPPED_READER = true;
+	
 	/**
 	 * Predict the format of the file and invoke the appropriate Reader. Return
 	 * null if the format is not recognised.
 	 * This class currently only recognises JAPSA, Fasta and Fastq format. 
+	 * Uncompressed fasta and fastq files are read with MappedSequenceReader
+	 * unless MAPPED_READER is turned off.
 	 * 
 	 * @param filename
 	 * @return the file reader, or null if the format is not recognised
@@ -296,6 +389,12 @@ public abstract class SequenceReader implements Closeable{
 	public static SequenceReader getReader (String filename) throws IOException{
 		if ("-".equals(filename))
 			return getReader(System.in);
+		
+		if (MAPPED_READER){
+			SequenceReader reader = MappedSequenceReader.open(filename);
+			if (reader != null)
+				return reader;
+		}
 		return getReader(new FileInputStream(filename));
 	}
 	
@@ -322,7 +421,7 @@ public abstract class SequenceReader implements Closeable{
 		int magic = myBuf[0] & 0xff | ((myBuf[1] << 8) & 0xff00);
 		
 		if (magic == GZIPInputStream.GZIP_MAGIC){
-			ins = new BufferedInputStream(new GZIPInputStream(ins));
+			ins = new BufferedInputStream(gunzip(ins));
 			ins.mark(10);
 			ins.read(myBuf);
 			ins.reset();
@@ -361,4 +460,23 @@ public abstract class SequenceReader implements Closeable{
 		return seqs;
 	}
 	
+	/**
+	 * Read all DNA sequences of a file into 2-bit packed sequences. Only one
+	 * unpacked sequence is held in memory at a time.
+	 * 
+	 * @param fileName
+	 * @param alphabet
+	 * @return
+	 * @throws IOException
+	 */
+	public static ArrayList<PackedSequence> readAllPacked(String fileName, Alphabet.DNA alphabet) throws IOException{
+		ArrayList<PackedSequence> seqs = new ArrayList<PackedSequence>();
+		SequenceReader reader = getReader(fileName);
+		Sequence seq;
+		while ((seq = reader.nextSequence(alphabet)) != null)
+			seqs.add(new PackedSequence(seq));
+		reader.close();
+		return seqs;
+	}
+	
 }
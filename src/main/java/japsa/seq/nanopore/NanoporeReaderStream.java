@@ -35,24 +35,44 @@
 package japsa.seq.nanopore;
 
 import java.io.BufferedWriter;
-import java.io.File;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintWriter;
-import java.net.Socket;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.text.DecimalFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
-
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import japsa.seq.AsyncSequenceOutputStream;
 import japsa.seq.FastqSequence;
 import japsa.seq.SequenceOutputStream;
 import japsa.seq.nanopore.Fast5NPReader.BaseCalledFastq;
 import japsa.util.DoubleArray;
 import japsa.util.IntArray;
 import japsa.util.JapsaException;
+import japsa.util.net.ReconnectingOutputStream;
 import japsa.util.net.StreamClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -71,14 +91,14 @@ public class NanoporeReaderStream{
     public String prepareIO(){
 		String msg = null;
 		try{
-			sos = SequenceOutputStream.makeOutputStream(output);
+			sos = SequenceOutputStream.makeOutputStream(output, true, 1);
 			if (streamServers != null && streamServers.trim().length() > 0){
 				@SuppressWarnings("resource")
 				StreamClient streamClient = new StreamClient(streamServers);
-				ArrayList<Socket>  sockets = streamClient.getSockets();
-				networkOS = new ArrayList<SequenceOutputStream>(sockets.size());				
-				for (Socket socket:sockets)					
-					networkOS.add(new SequenceOutputStream(socket.getOutputStream()));			
+				ArrayList<ReconnectingOutputStream>  streams = streamClient.getOutputStreams();
+				networkOS = new ArrayList<SequenceOutputStream>(streams.size());				
+				for (ReconnectingOutputStream stream:streams)					
+					networkOS.add(new AsyncSequenceOutputStream(stream));			
 			}			
 		}catch (Exception e){
 			msg = e.getMessage();
@@ -101,6 +121,11 @@ public class NanoporeReaderStream{
 		}
 		if(dmplx!=null)
 			dmplx.close();
+		if (checkpointWriter != null){
+			flushCheckpoint();
+			checkpointWriter.close();
+			checkpointWriter = null;
+		}
         LOG.info("npReader closed");
 		//done = true;		
 	}
@@ -131,6 +156,19 @@ public class NanoporeReaderStream{
 	private static final byte MIN_QUAL = '!';//The minimum quality
 	
 	public boolean exhaustive = false;
+	/**
+	 * Discover new files with a WatchService instead of walking the folder
+	 * every interval (in realtime mode)
+	 */
+	public boolean watch = false;
+	/**
+	 * File listing the fast5 files already read, to resume from; null for none
+	 */
+	public String checkpoint = null;
+	/**
+	 * Number of threads extracting fast5 files
+	 */
+	public int threads = 1;
 	Demultiplexer dmplx = null;
 	private String bcFile = null;
 	
@@ -189,63 +227,232 @@ public class NanoporeReaderStream{
 	}
 
 
-	public boolean readFastq2(String fileName) throws JapsaException, IOException{
-		//LOG.info("Open " + fileName);
-		try{					
+	/**
+	 * The reads extracted from a fast5 file
+	 */
+	static class Extraction{
+		final String fileName;
+		ArrayList<BaseCalledFastq> seqList = null;
+		long timeStamp = 0;
+		JapsaException error = null;
+		Extraction(String fileName){
+			this.fileName = fileName;
+		}
+	}
+
+	/**
+	 * Extract the reads from a fast5 file. This does not change the state of
+	 * the reader, so can be called from the worker threads.
+	 * @param fileName
+	 * @return
+	 */
+	Extraction extract(String fileName){
+		Extraction extraction = new Extraction(fileName);
+		try{
 			Fast5NPReader npReader = new Fast5NPReader(fileName);
 			npReader.readFastq();
 			if (getTimeStamp)
 			    npReader.readTime();
 			npReader.close();
+			extraction.seqList = npReader.getFastqList();
+			extraction.timeStamp = npReader.timeStamp;
+		}catch (JapsaException e){
+			extraction.error = e;
+		}catch (Exception e){
+            LOG.error("Problem with reading " + fileName + ":" + e.getMessage());
+			e.printStackTrace();
+		}
+		return extraction;
+	}
 
-			ArrayList<BaseCalledFastq> seqList = npReader.getFastqList();
-			if(seqList == null || seqList.isEmpty())
-				return false;
-			else{
-				for (BaseCalledFastq fq:seqList){
-					if (fq.length() >= minLength){
-						fq.setName((number?(getTotalFilesNumber() *3 + fq.type()) + "_":"") + fq.getName() +
-                                (getTimeStamp? (" timestamp=" +(npReader.timeStamp/rps)):"")
-                        );
-						//do multiplexing here
-						if(dmplx!=null)
-							dmplx.clustering(fq);
-						
-						print(fq);						
-						if (stats){						
-							lengths.add(fq.length());
-							double sumQual  = 0;
-							for (int p = 0; p < fq.length(); p++){
-								sumQual += (fq.getQualByte(p) - MIN_QUAL);
-							}
-							if (fq.isTwoDim()){
-								lengths2D.add(fq.length());
-								twoDCount ++;
-								qual2D.add(sumQual/fq.length());
-							}else if (fq.isComplement()){
-								lengthsComp.add(fq.length());
-								compCount ++;
-								qualComp.add(sumQual/fq.length());
-							}else if (fq.isTemplate()){
-								lengthsTemp.add(fq.length());
-								tempCount ++;
-								qualTemp.add(sumQual/fq.length());								
-							}
+	/**
+	 * Output (and collect statistics of) the reads extracted from a file 
+	 * @param extraction
+	 * @return true if the file has reads
+	 */
+	boolean output(Extraction extraction){
+		ArrayList<BaseCalledFastq> seqList = extraction.seqList;
+		if(seqList == null || seqList.isEmpty())
+			return false;
+		try{
+			for (BaseCalledFastq fq:seqList){
+				if (fq.length() >= minLength){
+					fq.setName((number?(getTotalFilesNumber() *3 + fq.type()) + "_":"") + fq.getName() +
+                            (getTimeStamp? (" timestamp=" +(extraction.timeStamp/rps)):"")
+                    );
+					//do multiplexing here
+					if(dmplx!=null)
+						dmplx.clustering(fq);
+					
+					print(fq);						
+					if (stats){						
+						lengths.add(fq.length());
+						double sumQual  = 0;
+						for (int p = 0; p < fq.length(); p++){
+							sumQual += (fq.getQualByte(p) - MIN_QUAL);
+						}
+						if (fq.isTwoDim()){
+							lengths2D.add(fq.length());
+							twoDCount ++;
+							qual2D.add(sumQual/fq.length());
+						}else if (fq.isComplement()){
+							lengthsComp.add(fq.length());
+							compCount ++;
+							qualComp.add(sumQual/fq.length());
+						}else if (fq.isTemplate()){
+							lengthsTemp.add(fq.length());
+							tempCount ++;
+							qualTemp.add(sumQual/fq.length());								
 						}
 					}
 				}
 			}
-
 			//fileNumber ++;			
-		}catch (JapsaException e){
-			throw e;
 		}catch (Exception e){
-            LOG.error("Problem with reading " + fileName + ":" + e.getMessage());
+            LOG.error("Problem with reading " + extraction.fileName + ":" + e.getMessage());
 			e.printStackTrace();
 			return false;
 		}		
 		return true;
 	}
+
+	public boolean readFastq2(String fileName) throws JapsaException, IOException{
+		//LOG.info("Open " + fileName);
+		Extraction extraction = extract(fileName);
+		if (extraction.error != null)
+			throw extraction.error;
+		return output(extraction);
+	}
+
+	/*****************************************************************************/
+	//Extraction by a pool of workers, with the reads written in the order the
+	//files are submitted
+	private ExecutorService workers = null;
+	private final ArrayDeque<Future<Extraction>> inFlight = new ArrayDeque<Future<Extraction>>();
+
+	private void startWorkers(){
+		if (threads <= 1)
+			return;
+		workers = Executors.newFixedThreadPool(threads, new ThreadFactory(){
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "fast5-reader");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	private void stopWorkers() throws IOException{
+		drainWorkers();
+		if (workers != null){
+			workers.shutdown();
+			workers = null;
+		}
+	}
+
+	/**
+	 * Submit a file for extraction, unless it is already in flight 
+	 * @param fileName
+	 * @throws IOException
+	 */
+	private void submit(final String fileName) throws IOException{
+		synchronized (this){
+			if (!filesPending.add(fileName))
+				return;
+		}
+		if (workers == null){
+			complete(extract(fileName));
+			return;
+		}
+		inFlight.add(workers.submit(new Callable<Extraction>(){
+			@Override
+			public Extraction call() {
+				return extract(fileName);
+			}
+		}));
+		//bound the backlog held in memory
+		while (inFlight.size() >= threads * 2)
+			completeNext();
+	}
+
+	private void completeNext() throws IOException{
+		try{
+			complete(inFlight.poll().get());
+		}catch (InterruptedException e){
+			throw new InterruptedIOException();
+		}catch (ExecutionException e){
+			throw new IOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Wait for the files in flight and output their reads
+	 * @throws IOException
+	 */
+	private void drainWorkers() throws IOException{
+		while (!inFlight.isEmpty())
+			completeNext();
+		flushCheckpoint();
+	}
+
+	private void complete(Extraction extraction) throws IOException{
+		boolean ok = false;
+		if (extraction.error != null)
+			extraction.error.printStackTrace();
+		else
+			ok = output(extraction);
+
+		synchronized (this){
+			filesPending.remove(extraction.fileName);
+			if (extraction.error != null)
+				return;//to be tried again
+			if (ok){
+				filesOK.add(extraction.fileName);
+				filesSkipped.remove(extraction.fileName);
+				if (checkpointWriter != null)
+					checkpointQueue.add(extraction.fileName);
+			}else
+				filesSkipped.add(extraction.fileName);
+		}
+	}
+
+	/*****************************************************************************/
+	//Checkpoint: the list of files whose reads have been written out
+	private BufferedWriter checkpointWriter = null;
+	private final ArrayList<String> checkpointQueue = new ArrayList<String>();
+
+	private void loadCheckpoint() throws IOException{
+		if (checkpoint == null || checkpointWriter != null)
+			return;
+		Path path = Paths.get(checkpoint);
+		if (Files.exists(path)){
+			int count = 0;
+			for (String line:Files.readAllLines(path)){
+				line = line.trim();
+				if (line.length() > 0 && filesOK.add(line))
+					count ++;
+			}
+			LOG.info("Resume from checkpoint " + checkpoint + ": " + count + " files already read");
+		}
+		checkpointWriter = new BufferedWriter(new FileWriter(checkpoint, true));
+	}
+
+	/**
+	 * Record the files completed, once their reads are flushed to the output
+	 */
+	private void flushCheckpoint() throws IOException{
+		if (checkpointWriter == null || checkpointQueue.isEmpty())
+			return;
+		sos.flush();
+		for (String fileName:checkpointQueue){
+			checkpointWriter.write(fileName);
+			checkpointWriter.newLine();
+		}
+		checkpointQueue.clear();
+		checkpointWriter.flush();
+	}
+
 	/*****************************************************************************/
 
 	/**
@@ -257,13 +464,30 @@ public class NanoporeReaderStream{
 	 */
 	HashSet<String> filesOK = new HashSet<String>(),
 					filesSkipped = new HashSet<String>();
-	public void readFast5() throws JapsaException, IOException{
-		if (minLength < 1)
-			minLength = 1;
-
-        LOG.info("Start reading " + folder);
+	HashSet<String> filesPending = new HashSet<String>();
 
+	/**
+	 * Whether a path is a fast5 file to be read (the fail folder is excluded
+	 * unless doFail is set)
+	 */
+	private boolean isFast5(Path p){
+		if (!p.toString().endsWith("fast5"))
+			return false;
+		Path failFolderPath = Paths.get(folder, "fail");
+		if (doFail || !failFolderPath.toFile().isDirectory())
+			return true;
+		try{
+			return !Files.isSameFile(p.getParent(), failFolderPath);
+		}catch(IOException e){
+			e.printStackTrace();
+			return false;
+		}
+	}
 
+	/**
+	 * Discover the fast5 files by walking the folder every interval seconds
+	 */
+	private void scanFast5() throws IOException{
 		//HashSet<String> filesDone = new HashSet<String>();
 
 		while (wait){
@@ -275,21 +499,8 @@ public class NanoporeReaderStream{
 				Files.walk(Paths.get(folder))
 				//is a file
 				.filter(Files::isRegularFile)
-				//fail folder
-				.filter(p -> {
-					try{
-						Path failFolderPath= Paths.get(folder+ File.separator + "fail");
-						if(failFolderPath.toFile().isDirectory())
-							return doFail || !Files.isSameFile(p.getParent(), failFolderPath);
-						else 
-							return true;
-					}catch(IOException e){
-						e.printStackTrace();
-						return false;
-					}
-				})
-				//fast5 file
-				.filter(p -> p.toString().endsWith("fast5"))
+				//fast5 file, not in the fail folder
+				.filter(p -> isFast5(p))
 				//age is old enough
 				.filter(p -> {		        	
 					try{					
@@ -305,14 +516,8 @@ public class NanoporeReaderStream{
 				.forEach(p -> {
 				//	System.out.println(p);
 					try {
-						if (readFastq2(p.toString())){
-							filesOK.add(p.toString());
-							filesSkipped.remove(p.toString());
-						}
-						else
-							filesSkipped.add(p.toString());
-						
-					} catch (JapsaException | IOException e) {
+						submit(p.toString());
+					} catch (IOException e) {
 						e.printStackTrace();
 					}		
 	
@@ -323,6 +528,7 @@ public class NanoporeReaderStream{
 			}catch(BreakException e){
                 LOG.info("Stop to read on directory " + folder);
 			}
+			drainWorkers();
 		/*******************************************************/
 			if (!realtime)
 				break;
@@ -336,6 +542,137 @@ public class NanoporeReaderStream{
 			}
 
 		}//while			
+	}
+
+	/**
+	 * Discover the fast5 files incrementally with a WatchService: the folder
+	 * is walked once, then only the files created or modified since are 
+	 * considered. A file is read once it is older than age; a file skipped
+	 * (e.g., not yet base-called) is tried again when it is modified.
+	 */
+	private void watchFast5() throws IOException{
+		final Path root = Paths.get(folder);
+		final WatchService watcher = root.getFileSystem().newWatchService();
+		final HashMap<WatchKey, Path> dirs = new HashMap<WatchKey, Path>();
+		//files waiting to be old enough
+		final LinkedHashSet<Path> candidates = new LinkedHashSet<Path>();
+
+		try{
+			watchTree(root, watcher, dirs, candidates);
+			LOG.info("Watching " + dirs.size() + " folders under " + folder + ", " + candidates.size() + " files found");
+
+			while (wait){
+				WatchKey key;
+				try{
+					key = watcher.poll(interval, TimeUnit.SECONDS);
+				}catch (InterruptedException e){
+					break;
+				}
+				boolean overflow = false;
+				while (key != null){
+					Path dir = dirs.get(key);
+					for (WatchEvent<?> event:key.pollEvents()){
+						if (event.kind() == StandardWatchEventKinds.OVERFLOW){
+							overflow = true;
+							continue;
+						}
+						if (dir == null)
+							continue;
+						Path p = dir.resolve((Path) event.context());
+						if (Files.isDirectory(p))
+							watchTree(p, watcher, dirs, candidates);
+						else if (isFast5(p))
+							candidates.add(p);
+					}
+					if (!key.reset())
+						dirs.remove(key);
+					key = watcher.poll();
+				}
+				if (overflow){
+					//events lost: catch up with a walk
+					LOG.warn("Too many events, rescan " + folder);
+					watchTree(root, watcher, dirs, candidates);
+				}
+
+				long now = System.currentTimeMillis();
+				Iterator<Path> iter = candidates.iterator();
+				while (iter.hasNext() && wait){
+					Path p = iter.next();
+					String fileName = p.toString();
+					if (filesOK.contains(fileName)){
+						iter.remove();
+						continue;
+					}
+					long modified;
+					try{
+						modified = Files.getLastModifiedTime(p).toMillis();
+					}catch (IOException e){
+						iter.remove();//removed
+						continue;
+					}
+					if (now - modified > age){
+						iter.remove();
+						submit(fileName);
+					}
+				}
+				drainWorkers();
+			}
+			if (!wait)
+				LOG.info("Stop to read on directory " + folder);
+		}finally{
+			watcher.close();
+		}
+	}
+
+	/**
+	 * Register a folder and its sub-folders, and take the fast5 files already
+	 * there as candidates
+	 */
+	private void watchTree(Path start, final WatchService watcher, final HashMap<WatchKey, Path> dirs, final LinkedHashSet<Path> candidates) throws IOException{
+		Files.walkFileTree(start, new SimpleFileVisitor<Path>(){
+			@Override
+			public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException{
+				dirs.put(dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY), dir);
+				return FileVisitResult.CONTINUE;
+			}
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs){
+				if (attrs.isRegularFile() && isFast5(file) && !filesOK.contains(file.toString()) 
+						&& (exhaustive || !filesSkipped.contains(file.toString())))
+					candidates.add(file);
+				return FileVisitResult.CONTINUE;
+			}
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException e){
+				LOG.warn("Cannot access " + file + ": " + e.getMessage());
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+
+	/**
+	 * @return the number of files being extracted
+	 */
+	public synchronized int getPendingFilesNumber(){
+		return filesPending.size();
+	}
+
+	public void readFast5() throws JapsaException, IOException{
+		if (minLength < 1)
+			minLength = 1;
+
+        LOG.info("Start reading " + folder);
+
+		loadCheckpoint();
+		startWorkers();
+		try{
+			if (watch && realtime)
+				watchFast5();
+			else
+				scanFast5();
+		}finally{
+			stopWorkers();
+		}
         LOG.info("EXITING");
 
 
@@ -35,12 +35,8 @@ package japsa.tools.bio.hts;
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMFileHeader.SortOrder;
 import htsjdk.samtools.SAMRecord;
-import htsjdk.samtools.SAMRecordIterator;
 import htsjdk.samtools.SAMTextWriter;
-import htsjdk.samtools.SamInputResource;
-import htsjdk.samtools.SamReader;
-import htsjdk.samtools.SamReaderFactory;
-import htsjdk.samtools.ValidationStringency;
+import japsa.bio.hts.BamPass;
 import japsa.seq.Alphabet;
 import japsa.seq.Sequence;
 import japsa.util.CommandLine;
@@ -87,56 +83,50 @@ public class AddReadSequence2SamCmd extends CommandLine{
 		String output = cmdLine.getStringVal("output");
 		String inFile = cmdLine.getStringVal("input");
 
-		SamReaderFactory.setDefaultValidationStringency(ValidationStringency.SILENT);
-		SamReader 
-		samReader = "-".equals(inFile)?SamReaderFactory.makeDefault().open(SamInputResource.of(System.in)):
-			SamReaderFactory.makeDefault().open(new File(inFile));
+		BamPass pass = new BamPass(inFile);
 
+		SAMFileHeader samHeader = pass.getFileHeader();
 
-		SAMFileHeader samHeader = samReader.getFileHeader();
-
-		SAMTextWriter samWriter = null;
-		if ("-".equals(output)){
-			samWriter = new SAMTextWriter(System.out);
-		}else{
-			samWriter = new SAMTextWriter(new File(output));			
-		}			
+		final SAMTextWriter samWriter = "-".equals(output)?new SAMTextWriter(System.out):
+			new SAMTextWriter(new File(output));
 
 		samWriter.setSortOrder(SortOrder.unsorted, false);		
 		samWriter.writeHeader(samHeader.getTextHeader());
 
-		String readID = "";
-		String readSequence  = null;
-		String revSequence = null;
-		boolean firstFlag = true;
-
-		SAMRecordIterator samIter = samReader.iterator();
-		while (samIter.hasNext()){
-			SAMRecord sam = samIter.next();
-			if (!readID.equals(sam.getReadName())){				
-				readSequence = sam.getReadString();
-				if (readSequence.length() < 2){
-					LOG.error("Some thing wrong " + sam.getReadName());
-					continue;
-				}
-				readID = sam.getReadName();
-				revSequence = null;
-				firstFlag = sam.getReadNegativeStrandFlag();
-				readID = sam.getReadName();
-			}else if (sam.getReadString().length() < 2){
-				if (sam.getReadNegativeStrandFlag() == firstFlag)
-					sam.setReadString(readSequence);
-				else{
-					if (revSequence == null){
-						Sequence seq = new Sequence(Alphabet.DNA6(), readSequence, "somename");
-						revSequence = Alphabet.DNA16.complement(seq).toString();
+		pass.subscribe(new BamPass.OrderedVisitor(){
+			String readID = "";
+			String readSequence  = null;
+			String revSequence = null;
+			boolean firstFlag = true;
+
+			@Override
+			public boolean visit(SAMRecord sam) throws IOException {
+				if (!readID.equals(sam.getReadName())){				
+					readSequence = sam.getReadString();
+					if (readSequence.length() < 2){
+						LOG.error("Some thing wrong " + sam.getReadName());
+						return true;
+					}
+					readID = sam.getReadName();
+					revSequence = null;
+					firstFlag = sam.getReadNegativeStrandFlag();
+					readID = sam.getReadName();
+				}else if (sam.getReadString().length() < 2){
+					if (sam.getReadNegativeStrandFlag() == firstFlag)
+						sam.setReadString(readSequence);
+					else{
+						if (revSequence == null){
+							Sequence seq = new Sequence(Alphabet.DNA6(), readSequence, "somename");
+							revSequence = Alphabet.DNA16.complement(seq).toString();
+						}
+						sam.setReadString(revSequence);
 					}
-					sam.setReadString(revSequence);
-				}
-			}			
-			samWriter.writeAlignment(sam);
-		}//while
-		samReader.close();
+				}			
+				samWriter.writeAlignment(sam);
+				return true;
+			}
+		});
+		pass.run();
 		samWriter.close();
 	}
 }
@@ -34,23 +34,18 @@
 package japsa.tools.bio.hts;
 
 
-import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintStream;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 
-import htsjdk.samtools.SAMRecord;
-import htsjdk.samtools.SAMRecordIterator;
-import htsjdk.samtools.SamReader;
-import htsjdk.samtools.SamReaderFactory;
-import htsjdk.samtools.ValidationStringency;
+import japsa.bio.hts.BamPass;
+import japsa.bio.hts.IdentityStatistics;
 import japsa.seq.Alphabet;
 import japsa.seq.Sequence;
 import japsa.seq.SequenceReader;
 import japsa.util.CommandLine;
-import japsa.util.HTSUtilities;
 import japsa.util.JapsaMath;
 import japsa.util.deploy.Deployable;
 import org.slf4j.Logger;
@@ -232,70 +227,28 @@ public class AlignmentParamOptCmd extends CommandLine{
 	 */
 	static double[] paramEst(String bamFile, String refFile, int qual) throws IOException{	
 
-		SamReaderFactory.setDefaultValidationStringency(ValidationStringency.SILENT);
-		SamReader samReader = SamReaderFactory.makeDefault().open(new File(bamFile));	
-
-		SAMRecordIterator samIter = samReader.iterator();
 		//Read the reference genome
 		ArrayList<Sequence> genomes = SequenceReader.readAll(refFile, Alphabet.DNA());
 
-		//get the first chrom
-		int currentIndex = 0;
-		Sequence chr = genomes.get(currentIndex);
-
-		long    totBaseIns = 0,
-				totBaseDel = 0,
-				totNumIns = 0,
-				totNumDel = 0,
-				totMisMatch = 0,
-				totMatch = 0;
-		long totReadBase = 0, totRefBase = 0;
-		int  numReads = 0, numReadsConsidered = 0;
-
-
-		while (samIter.hasNext()){
-			SAMRecord sam = samIter.next();
-			numReads ++;
-			if (sam.getReadUnmappedFlag())
-				continue;
-
-			if (sam.getMappingQuality() < qual)
-				continue;			
-
-			
-			//int refPos = sam.getAlignmentStart() - 1;//convert to 0-based index
-			int refIndex = sam.getReferenceIndex();
-
-			//if move to another chrom, get that chrom
-			if (refIndex != currentIndex){
-				currentIndex = refIndex;
-				chr = genomes.get(currentIndex);
-			}
-			
-			//make the read seq			
-			Sequence readSeq = new Sequence(Alphabet.DNA(), sam.getReadString(), sam.getReadName());
-			if (readSeq.length() <= 1){
-				LOG.warn(sam.getReadName() +" ignored");
-				continue;
-			}
-			
-			japsa.util.HTSUtilities.IdentityProfile profile = 
-					HTSUtilities.identity(chr, readSeq, sam);			
-
-			
-			totBaseIns  += profile.baseIns;
-			totBaseDel  += profile.baseDel;
-			totNumIns   += profile.numIns;
-			totNumDel   += profile.numDel;			
-			totMisMatch += profile.mismatch;
-			totMatch    += profile.match;
-
-			totReadBase += profile.readBase;
-			totRefBase  += profile.refBase;
-
-			numReadsConsidered ++;
-		}		
-		samReader.close();
+		BamPass pass = new BamPass(bamFile);
+		pass.setThreads(thread);
+		BamPass.Subscription<IdentityStatistics.Totals> identity = 
+				pass.subscribe(new IdentityStatistics(genomes, qual, null));
+		pass.run();
+
+		IdentityStatistics.Totals totals = identity.getResult();
+		if (totals.numNoSequence > 0)
+			LOG.warn(totals.numNoSequence + " records with no read sequence ignored");
+
+		long    totBaseIns = totals.baseIns,
+				totBaseDel = totals.baseDel,
+				totNumIns = totals.numIns,
+				totNumDel = totals.numDel,
+				totMisMatch = totals.mismatch,
+				totMatch = totals.match;
+		long totReadBase = totals.readBase, totRefBase = totals.refBase;
+		long numReads = totals.numRecords, numReadsConsidered = totals.numAligned;
+
 		//Done
 		System.out.println("===================================================");
 		System.out.println(numReads + "  " + numReadsConsidered);		
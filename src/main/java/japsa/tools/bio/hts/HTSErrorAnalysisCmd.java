@@ -33,24 +33,21 @@
 
 package japsa.tools.bio.hts;
 
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMTextWriter;
+import htsjdk.samtools.SAMFileHeader.SortOrder;
+import japsa.bio.hts.BamPass;
+import japsa.bio.hts.IdentityStatistics;
 import japsa.seq.Alphabet;
 import japsa.seq.Sequence;
 import japsa.seq.SequenceReader;
 import japsa.util.CommandLine;
-import japsa.util.HTSUtilities;
 import japsa.util.deploy.Deployable;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 
-import htsjdk.samtools.SAMRecord;
-import htsjdk.samtools.SamInputResource;
-import htsjdk.samtools.SAMRecordIterator;
-import htsjdk.samtools.SamReader;
-import htsjdk.samtools.SamReaderFactory;
-import htsjdk.samtools.ValidationStringency;
-
 
 /**
  * @author minhduc
@@ -72,6 +69,11 @@ public class HTSErrorAnalysisCmd extends CommandLine{
 		addString("reference", null, "Name of reference genome",true);
 		addString("pattern", null, "Pattern of read name, used for filtering");
 		addInt("qual", 0, "Minimum quality required");
+		addInt("thread", 1, "Number of threads");
+		addString("trFile", null, "Name of the regions file, for the span and intersect outputs");
+		addString("spanOutput", null, "Name of the sam file to write the reads spanning a region, in the same pass");
+		addString("intersectOutput", null, "Name of the sam file to write the reads intersecting a region, in the same pass");
+		addInt("flanking", 120, "Flanking regions for the intersect output");
 
 		addStdHelp();		
 	} 
@@ -87,7 +89,19 @@ public class HTSErrorAnalysisCmd extends CommandLine{
 		String pattern = cmdLine.getStringVal("pattern");
 		String bamFile = cmdLine.getStringVal("bamFile");
 
-		errorAnalysis(bamFile, reference, pattern, qual);		
+		int threads = cmdLine.getIntVal("thread");
+
+		String trFile = cmdLine.getStringVal("trFile");
+		String spanOutput = cmdLine.getStringVal("spanOutput");
+		String intersectOutput = cmdLine.getStringVal("intersectOutput");
+		if (trFile == null && (spanOutput != null || intersectOutput != null)){
+			System.err.print("ERROR: trFile is required by spanOutput and intersectOutput\n");
+			System.err.println(cmdLine.usageString());
+			System.exit(1);
+		}
+
+		errorAnalysis(bamFile, reference, pattern, qual, threads, 
+			trFile, spanOutput, intersectOutput, cmdLine.getIntVal("flanking"));		
 
 
 		//paramEst(bamFile, reference, qual);
@@ -97,99 +111,65 @@ public class HTSErrorAnalysisCmd extends CommandLine{
 	/**
 	 * Error analysis of a bam file. Assume it has been sorted
 	 */
-	static void errorAnalysis(String bamFile, String refFile, String pattern, int qual) throws IOException{	
-
-		SamReaderFactory.setDefaultValidationStringency(ValidationStringency.SILENT);
-		SamReader samReader = null;//SamReaderFactory.makeDefault().open(new File(bamFile));
-
-                if ("-".equals(bamFile))
-		    samReader = SamReaderFactory.makeDefault().open(SamInputResource.of(System.in));
-        	else
-                    samReader = SamReaderFactory.makeDefault().open(new File(bamFile));
-
+	static void errorAnalysis(String bamFile, String refFile, String pattern, int qual, int threads) throws IOException{
+		errorAnalysis(bamFile, refFile, pattern, qual, threads, null, null, null, 0);
+	}
 
-		SAMRecordIterator samIter = samReader.iterator();
+	/**
+	 * Error analysis of a (sorted) bam file. In the same pass over the file, 
+	 * also write the reads spanning (as jsa.hts.selectSpan) and/or the reads
+	 * intersecting (as jsa.hts.selectIntesect, with minimum mapping quality 
+	 * qual) a region in trFile, if spanOutput and/or intersectOutput are not
+	 * null. 
+	 */
+	static void errorAnalysis(String bamFile, String refFile, String pattern, int qual, int threads,
+			String trFile, String spanOutput, String intersectOutput, int flanking) throws IOException{	
 		//Read the reference genome
 		ArrayList<Sequence> genomes = SequenceReader.readAll(refFile, Alphabet.DNA());
 
-		//get the first chrom
-		int currentIndex = 0;
-		Sequence chr = genomes.get(currentIndex);
-
-		long    totBaseIns = 0,
-			totBaseDel = 0,
-			totNumIns = 0,
-			totNumDel = 0,
-			totMisMatch = 0,
-			totMatch = 0,
-			totClipped = 0;
-
-		long totReadBase = 0, totRefBase = 0;
-		int  numReads = 0;
-
-		int numNotAligned = 0;
-
-		//String log = "###Read_name\tRead_length\tReference_length\tInsertions\tDeletions\tMismatches\n";
-		while (samIter.hasNext()){
-			SAMRecord sam = samIter.next();
-
-			if (pattern != null && (!sam.getReadName().contains(pattern)))
-				continue;
-
-			//make the read seq			
-			Sequence readSeq = new Sequence(Alphabet.DNA(), sam.getReadString(), sam.getReadName());
-			if (readSeq.length() <= 1){
-				//LOG.warn(sam.getReadName() +" ignored");
-				//TODO: This might be secondary alignment, need to do something about it
-				continue;
-			}			
-
-			numReads ++;
-
-
-			if (sam.getReadUnmappedFlag()){
-				numNotAligned ++;
-				continue;
+		BamPass pass = new BamPass(bamFile);
+		pass.setThreads(threads);
+		BamPass.Subscription<IdentityStatistics.Totals> identity = 
+			pass.subscribe(new IdentityStatistics(genomes, qual, pattern));
+
+		SAMTextWriter spanWriter = null, intersectWriter = null;
+		boolean subscribed = false;
+		try{
+			if (spanOutput != null){
+				spanWriter = openWriter(pass.getFileHeader(), spanOutput);
+				pass.subscribe(SelectReadSpanCmd.spanFilter(pass.getFileHeader(), spanWriter, trFile, bamFile));
 			}
-
-			int flag = sam.getFlags();
-
-
-			if (sam.getMappingQuality() < qual) {
-				numNotAligned ++;
-				continue;
+			//last, as it modifies the records it writes
+			if (intersectOutput != null){
+				intersectWriter = openWriter(pass.getFileHeader(), intersectOutput);
+				pass.subscribe(SelectReadIntersectCmd.intersectFilter(pass.getFileHeader(), intersectWriter, trFile, flanking, qual, bamFile));
 			}
-
-
-
-			//int refPos = sam.getAlignmentStart() - 1;//convert to 0-based index
-			int refIndex = sam.getReferenceIndex();
-
-			//if move to another chrom, get that chrom
-			if (refIndex != currentIndex){
-				currentIndex = refIndex;
-				chr = genomes.get(currentIndex);
+			subscribed = true;
+		}finally{
+			if (!subscribed){
+				pass.close();
+				closeWriters(spanWriter, intersectWriter);
 			}
-
-			japsa.util.HTSUtilities.IdentityProfile profile = 
-				HTSUtilities.identity(chr, readSeq, sam);			
-
-			//log+=sam.getReadName() + "\t" + profile.readBase + "\t" + profile.refBase + "\t" + profile.baseIns + "\t" + profile.baseDel + "\t" + profile.mismatch+ "\n";
-
-			totBaseIns  += profile.baseIns;
-			totBaseDel  += profile.baseDel;
-			totNumIns   += profile.numIns;
-			totNumDel   += profile.numDel;			
-			totMisMatch += profile.mismatch;
-			totMatch    += profile.match;
-
-			totReadBase += profile.readBase;
-			totRefBase  += profile.refBase;			
-			totClipped += profile.readClipped;
-			//numReadsConsidered ++;
-			
-		}		
-		samReader.close();
+		}
+
+		try{
+			pass.run();
+		}finally{
+			closeWriters(spanWriter, intersectWriter);
+		}
+
+		IdentityStatistics.Totals totals = identity.getResult();
+		long    totBaseIns = totals.baseIns,
+			totBaseDel = totals.baseDel,
+			totNumIns = totals.numIns,
+			totNumDel = totals.numDel,
+			totMisMatch = totals.mismatch,
+			totMatch = totals.match,
+			totClipped = totals.readClipped;
+
+		long totReadBase = totals.readBase, totRefBase = totals.refBase;
+		long numReads = totals.numRecords - totals.numNoSequence;
+		long numNotAligned = totals.numNotAligned;
 
 		System.out.println("========================= TOTAL ============================");
 
@@ -240,6 +220,20 @@ public class HTSErrorAnalysisCmd extends CommandLine{
 		//System.out.println(log);
 	}
 
+	private static SAMTextWriter openWriter(SAMFileHeader samHeader, String outFile){
+		SAMTextWriter samWriter = new SAMTextWriter(new File(outFile));
+		samWriter.setSortOrder(SortOrder.unsorted, false);		
+		samWriter.writeHeader( samHeader.getTextHeader());
+		return samWriter;
+	}
+
+	private static void closeWriters(SAMTextWriter ... samWriters){
+		for (SAMTextWriter samWriter:samWriters){
+			if (samWriter != null)
+				samWriter.close();
+		}
+	}
+
 }
 
 /*RST*
@@ -252,6 +246,10 @@ of errors (mismatches, indels etc) from a bam file. Obviously, it does not disti
 sequencing errors from mutations, and hence consider mutations as errors. It is best to use
 with the bam file from aligning sequencing reads to a reliable assembly of the sample.
 
+With *--trFile*, the same pass over the bam file can also write the reads spanning
+a region (*--spanOutput*, as *jsa.hts.selectSpan*) and the reads intersecting a region
+(*--intersectOutput*, as *jsa.hts.selectIntesect*) to sam files.
+
 <usage>
 
 *RST*/
@@ -38,12 +38,9 @@ package japsa.tools.bio.hts;
 
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMRecord;
-import htsjdk.samtools.SAMRecordIterator;
 import htsjdk.samtools.SAMTextWriter;
-import htsjdk.samtools.SamReader;
-import htsjdk.samtools.SamReaderFactory;
-import htsjdk.samtools.ValidationStringency;
 import htsjdk.samtools.SAMFileHeader.SortOrder;
+import japsa.bio.hts.BamPass;
 import japsa.bio.tr.TandemRepeat;
 import japsa.seq.SequenceReader;
 import japsa.util.CommandLine;
@@ -109,244 +106,252 @@ public class SelectReadIntersectCmd extends CommandLine{
 	 * @param strFile
 	 * @throws IOException
 	 */
-	static void filterSam(String inFile, String outFile, String strFile, int gaps)
+	static void filterSam(final String inFile, String outFile, String strFile, final int gaps)
 			throws IOException {				
 		/////////////////////////////////////////////////////////////////////////////	
 		
-		SamReaderFactory.setDefaultValidationStringency(ValidationStringency.SILENT);		
-		SamReader samReader = SamReaderFactory.makeDefault().open(new File(inFile));
-		SAMFileHeader samHeader = samReader.getFileHeader();
+		BamPass pass = new BamPass(inFile);
+		final SAMFileHeader samHeader = pass.getFileHeader();
 		
-		SAMTextWriter samWriter = new SAMTextWriter(new File(outFile));
+		final SAMTextWriter samWriter = new SAMTextWriter(new File(outFile));
 		samWriter.setSortOrder(SortOrder.unsorted, false);		
 		samWriter.writeHeader( samHeader.getTextHeader());		
 		
-		ArrayList<TandemRepeat>  myList = TandemRepeat.readFromFile(SequenceReader.openFile(strFile), new ArrayList<String>());
-		TandemRepeat str = myList.get(0);
-
-		int strIndex = 0;
-
-		int strSeqIndex = samHeader.getSequenceIndex(str.getChr());
-		if (strSeqIndex < 0){
-			samReader.close();	
+		try{
+			pass.subscribe(intersectFilter(samHeader, samWriter, strFile, gaps, qual, inFile));
+		}catch (RuntimeException e){
+			pass.close();
 			samWriter.close();
-			throw new RuntimeException("Sequence " + str.getChr() + " not found in the header of b/sam file " + inFile);
+			throw e;
 		}
+		pass.run();
+		samWriter.close();
+	}
 
-		SAMRecordIterator samIter = samReader.iterator();
-		while (samIter.hasNext()){
-			SAMRecord sam = samIter.next();	
-			if (sam.getMappingQuality() < qual)
-				continue;
-
-			int seqIndex = sam.getReferenceIndex();
-
-			//the samrecod is in an ealier sequence
-			if (seqIndex < strSeqIndex)
-				continue;
-
-			int posStart = sam.getAlignmentStart();
-			int posEnd = sam.getAlignmentEnd();
-
-			//the sam is before the next region
-			if (seqIndex == strSeqIndex && posEnd < str.getStart() - gaps)
-				continue;
-
-			//assert: seqIndex > strSeqIndex || postEnd >= str.start - gaps						
-			if (seqIndex == strSeqIndex && posStart <= str.getEnd() + gaps){
-
-				if (sam.getReadPairedFlag()){
-					if (sam.getFirstOfPairFlag())
-						sam.setReadName(sam.getReadName()+"-1");
-					else
-						sam.setReadName(sam.getReadName()+"-2");
-					sam.setReadPairedFlag(false);
-					sam.setProperPairFlag(false);
-					sam.setFirstOfPairFlag(false);
-					sam.setSecondOfPairFlag(false);
-					sam.setMateAlignmentStart(0);
-					sam.setMateReferenceIndex(-1);
-					sam.setInferredInsertSize(0);				
+	/**
+	 * The filter of {@link #filterSam}: write the (sorted) records of inFile
+	 * that intersect one of the regions in strFile to samWriter, as single 
+	 * reads. The filter renames and unpairs the records it writes, so it 
+	 * should be the last one subscribed to a shared {@link BamPass}.
+	 * 
+	 * @param samHeader the header of inFile
+	 * @param samWriter where the intersecting records are written
+	 * @param strFile the regions
+	 * @param gaps the flanking allowed around a region
+	 * @param minQual minimum mapping quality of the records written
+	 * @param inFile the name of the b/sam file, for error messages
+	 * @return the filter
+	 * @throws IOException
+	 */
+	static BamPass.OrderedVisitor intersectFilter(final SAMFileHeader samHeader, final SAMTextWriter samWriter, String strFile, 
+			final int gaps, final int minQual, final String inFile) throws IOException {
+		final ArrayList<TandemRepeat>  myList = TandemRepeat.readFromFile(SequenceReader.openFile(strFile), new ArrayList<String>());
+		TandemRepeat firstSTR = myList.get(0);
+
+		final int firstSeqIndex = samHeader.getSequenceIndex(firstSTR.getChr());
+		if (firstSeqIndex < 0)
+			throw new RuntimeException("Sequence " + firstSTR.getChr() + " not found in the header of b/sam file " + inFile);
+
+		return new BamPass.OrderedVisitor(){
+			TandemRepeat str = myList.get(0);
+			int strIndex = 0;
+			int strSeqIndex = firstSeqIndex;
+
+			@Override
+			public boolean visit(SAMRecord sam) throws IOException {
+				if (sam.getMappingQuality() < minQual)
+					return true;
+
+				int seqIndex = sam.getReferenceIndex();
+
+				//the samrecod is in an ealier sequence
+				if (seqIndex < strSeqIndex)
+					return true;
+
+				int posStart = sam.getAlignmentStart();
+				int posEnd = sam.getAlignmentEnd();
+
+				//the sam is before the next region
+				if (seqIndex == strSeqIndex && posEnd < str.getStart() - gaps)
+					return true;
+
+				//assert: seqIndex > strSeqIndex || postEnd >= str.start - gaps						
+				if (seqIndex == strSeqIndex && posStart <= str.getEnd() + gaps){
+					if (sam.getReadPairedFlag()){
+						if (sam.getFirstOfPairFlag())
+							sam.setReadName(sam.getReadName()+"-1");
+						else
+							sam.setReadName(sam.getReadName()+"-2");
+						sam.setReadPairedFlag(false);
+						sam.setProperPairFlag(false);
+						sam.setFirstOfPairFlag(false);
+						sam.setSecondOfPairFlag(false);
+						sam.setMateAlignmentStart(0);
+						sam.setMateReferenceIndex(-1);
+						sam.setInferredInsertSize(0);				
+					}
+					samWriter.addAlignment(sam);
+					return true;
 				}
-				samWriter.addAlignment(sam);
-
-				//count ++;
-				continue;
-			}
-			//assert: seqIndex > strSeqIndex || postStart > str.End
-
-
-			while (seqIndex > strSeqIndex || (seqIndex == strSeqIndex && posStart > str.getEnd() + gaps)){
-				strIndex ++;
-				//System.err.println(count);
-			//	count = 0;
-				if (strIndex < myList.size()){
-					str = myList.get(strIndex);
-					strSeqIndex = samHeader.getSequenceIndex(str.getChr());
-					if (strSeqIndex < 0){
-						samReader.close();
-						samWriter.close();
-						throw new RuntimeException("Sequence " + str.getChr() + " not found in the header of b/sam file " + inFile);
+				//assert: seqIndex > strSeqIndex || postStart > str.End
+
+				while (seqIndex > strSeqIndex || (seqIndex == strSeqIndex && posStart > str.getEnd() + gaps)){
+					strIndex ++;
+					if (strIndex < myList.size()){
+						str = myList.get(strIndex);
+						strSeqIndex = samHeader.getSequenceIndex(str.getChr());
+						if (strSeqIndex < 0){
+							samWriter.close();
+							throw new RuntimeException("Sequence " + str.getChr() + " not found in the header of b/sam file " + inFile);
+						}
+					}else{
+						str = null;
+						break;//while
 					}
-					//System.err.print(str.toString()+" : ");					
-				}else{
-					str = null;
-					break;//while
 				}
-			}
 
-			if (str == null)
-				break;
-
-			if (seqIndex == strSeqIndex && posStart <= str.getEnd() + gaps && posEnd >=  str.getStart() - gaps){
-				if (sam.getReadPairedFlag()){
-					if (sam.getFirstOfPairFlag())
-						sam.setReadName(sam.getReadName()+"-1");
-					else
-						sam.setReadName(sam.getReadName()+"-2");
-					sam.setReadPairedFlag(false);
-					sam.setProperPairFlag(false);
-					sam.setFirstOfPairFlag(false);
-					sam.setSecondOfPairFlag(false);
-					sam.setMateAlignmentStart(0);
-					sam.setMateReferenceIndex(-1);
-					sam.setInferredInsertSize(0);				
+				if (str == null)
+					return false;
+
+				if (seqIndex == strSeqIndex && posStart <= str.getEnd() + gaps && posEnd >=  str.getStart() - gaps){
+					if (sam.getReadPairedFlag()){
+						if (sam.getFirstOfPairFlag())
+							sam.setReadName(sam.getReadName()+"-1");
+						else
+							sam.setReadName(sam.getReadName()+"-2");
+						sam.setReadPairedFlag(false);
+						sam.setProperPairFlag(false);
+						sam.setFirstOfPairFlag(false);
+						sam.setSecondOfPairFlag(false);
+						sam.setMateAlignmentStart(0);
+						sam.setMateReferenceIndex(-1);
+						sam.setInferredInsertSize(0);				
+					}
+					samWriter.addAlignment(sam);
 				}
-				samWriter.addAlignment(sam);
-				//count ++;
-				continue;
-			}			
-		}
-		samReader.close();
-		samWriter.close();
+				return true;
+			}
+		};
 	}
 
 
-	private static void filterSamPair(String inFile, String outFile, String strFile, int gaps)
+	private static void filterSamPair(final String inFile, String outFile, String strFile, final int gaps)
 			throws IOException {				
 		
-		SamReaderFactory.setDefaultValidationStringency(ValidationStringency.SILENT);		
-		SamReader samReader = SamReaderFactory.makeDefault().open(new File(inFile));
-		SAMFileHeader samHeader = samReader.getFileHeader();
+		BamPass pass = new BamPass(inFile);
+		final SAMFileHeader samHeader = pass.getFileHeader();
 		/////////////////////////////////////////////////////////////////////////////		
 		
 		//FIXME: check with preOrder
-		SAMTextWriter samWriter = new SAMTextWriter(new File(outFile));
+		final SAMTextWriter samWriter = new SAMTextWriter(new File(outFile));
 		samWriter.setSortOrder(SortOrder.unsorted, false);		
 		samWriter.writeHeader( samHeader.getTextHeader());
-				
-		//SAMTextWriter samWriter = new SAMTextWriter(new File(outFile));
-		//samWriter.writeHeader(samHeader.getTextHeader());
-
-		ArrayList<TandemRepeat>  myList = TandemRepeat.readFromFile(SequenceReader.openFile(strFile), new ArrayList<String>());
-		TandemRepeat str = myList.get(0);
 
-		//		System.err.print(str.toString()+" : ");
-		int strIndex = 0;		
+		final ArrayList<TandemRepeat>  myList = TandemRepeat.readFromFile(SequenceReader.openFile(strFile), new ArrayList<String>());
+		TandemRepeat firstSTR = myList.get(0);
 
-		HashSet<String> set = new HashSet<String>();
+		final HashSet<String> set = new HashSet<String>();
 
-		int strSeqIndex = samHeader.getSequenceIndex(str.getChr());
-		if (strSeqIndex < 0){
-			samReader.close();
+		final int firstSeqIndex = samHeader.getSequenceIndex(firstSTR.getChr());
+		if (firstSeqIndex < 0){
+			pass.close();
 			samWriter.close();
-			throw new RuntimeException("Sequence " + str.getChr() + " not found in the header of b/sam file " + inFile);
+			throw new RuntimeException("Sequence " + firstSTR.getChr() + " not found in the header of b/sam file " + inFile);
 		}
 
-		SAMRecordIterator samIter = samReader.iterator();
-		while (samIter.hasNext()){
-			SAMRecord sam = samIter.next();
+		pass.subscribe(new BamPass.OrderedVisitor(){
+			TandemRepeat str = myList.get(0);
+			int strIndex = 0;
+			int strSeqIndex = firstSeqIndex;
 
-			//if the pair is already in the set 
-			if (set.remove(sam.getReadName())){
-				samWriter.addAlignment(sam);
-				continue;
-			}		
+			@Override
+			public boolean visit(SAMRecord sam) throws IOException {
+				//if the pair is already in the set 
+				if (set.remove(sam.getReadName())){
+					samWriter.addAlignment(sam);
+					return true;
+				}		
 
-			if (sam.getMappingQuality() < qual)
-				continue;
+				if (sam.getMappingQuality() < qual)
+					return true;
 
-			int seqIndex = sam.getReferenceIndex();
+				int seqIndex = sam.getReferenceIndex();
 
-			//the samrecod is in an ealier sequence
-			if (seqIndex < strSeqIndex)
-				continue;
+				//the samrecod is in an ealier sequence
+				if (seqIndex < strSeqIndex)
+					return true;
 
-			int posStart = sam.getAlignmentStart();
-			int posEnd = sam.getAlignmentEnd();
+				int posStart = sam.getAlignmentStart();
+				int posEnd = sam.getAlignmentEnd();
 
-			//the sam is before the next region
-			if (seqIndex == strSeqIndex && posEnd < str.getStart() - gaps)
-				continue;
+				//the sam is before the next region
+				if (seqIndex == strSeqIndex && posEnd < str.getStart() - gaps)
+					return true;
 
-			//assert: seqIndex > strSeqIndex || postEnd >= str.start - gaps						
-			if (seqIndex == strSeqIndex && posStart <= str.getEnd() + gaps){
-				set.add(sam.getReadName());
-				samWriter.addAlignment(sam);
-				continue;
-			}
+				//assert: seqIndex > strSeqIndex || postEnd >= str.start - gaps						
+				if (seqIndex == strSeqIndex && posStart <= str.getEnd() + gaps){
+					set.add(sam.getReadName());
+					samWriter.addAlignment(sam);
+					return true;
+				}
 
-			//assert: seqIndex > strSeqIndex || postStart > str.End		
+				//assert: seqIndex > strSeqIndex || postStart > str.End		
 
-			while (seqIndex > strSeqIndex || (seqIndex == strSeqIndex && posStart > str.getEnd() + gaps)){
-				strIndex ++;
-				//System.err.println(count);
-				//count = 0;
-				if (strIndex < myList.size()){
-					str = myList.get(strIndex);
+				while (seqIndex > strSeqIndex || (seqIndex == strSeqIndex && posStart > str.getEnd() + gaps)){
+					strIndex ++;
+					if (strIndex < myList.size()){
+						str = myList.get(strIndex);
 
-					int newSTRIndex = samHeader.getSequenceIndex(str.getChr());
+						int newSTRIndex = samHeader.getSequenceIndex(str.getChr());
 
-					if (newSTRIndex != strSeqIndex){
-						System.out.println(samHeader.getSequence(strSeqIndex).getSequenceName() + "   " + set.size() + " at " + System.currentTimeMillis());
-						strSeqIndex = newSTRIndex; 
-					}
+						if (newSTRIndex != strSeqIndex){
+							System.out.println(samHeader.getSequence(strSeqIndex).getSequenceName() + "   " + set.size() + " at " + System.currentTimeMillis());
+							strSeqIndex = newSTRIndex; 
+						}
 
-					if (strSeqIndex < 0){
-						samReader.close();
-						samWriter.close();
-						throw new RuntimeException("Sequence " + str.getChr() + " not found in the header of b/sam file " + inFile);
+						if (strSeqIndex < 0){
+							samWriter.close();
+							throw new RuntimeException("Sequence " + str.getChr() + " not found in the header of b/sam file " + inFile);
+						}
+					}else{
+						str = null;
+						break;//while
 					}
-					//System.err.print(str.toString()+" : ");					
-				}else{
-					str = null;
-					break;//while
 				}
-			}
 
-			if (str == null)
-				break;
+				if (str == null)
+					return false;
 
-			if (seqIndex == strSeqIndex && posStart <= str.getEnd() + gaps && posEnd >=  str.getStart() - gaps){
-				samWriter.addAlignment(sam);
-				set.add(sam.getReadName());				
-				continue;
-			}//if			
-		}//while
+				if (seqIndex == strSeqIndex && posStart <= str.getEnd() + gaps && posEnd >=  str.getStart() - gaps){
+					samWriter.addAlignment(sam);
+					set.add(sam.getReadName());				
+				}
+				return true;
+			}
+		});
+		pass.run();
 
 		samWriter.close();
 		System.out.println("Writing out " + set.size() * 2 + " at " + System.currentTimeMillis());
-		//close samReader
-		samReader.close();
-
 
 		//Iterate the second time
 		if (set.size() > 0){		
-			samReader = SamReaderFactory.makeDefault().open(new File(inFile));				
-			
-			samWriter = new SAMTextWriter(new File("2_" + outFile));
-			samWriter.setSortOrder(SortOrder.unsorted, false);		
-			samWriter.writeHeader(samHeader.getTextHeader());
-
-			samIter = samReader.iterator();
-			while (samIter.hasNext()){
-				SAMRecord sam = samIter.next();
-				if (set.remove(sam.getReadName())){
-					samWriter.addAlignment(sam);				
+			pass = new BamPass(inFile);
+
+			final SAMTextWriter mateWriter = new SAMTextWriter(new File("2_" + outFile));
+			mateWriter.setSortOrder(SortOrder.unsorted, false);		
+			mateWriter.writeHeader(samHeader.getTextHeader());
+
+			pass.subscribe(new BamPass.OrderedVisitor(){
+				@Override
+				public boolean visit(SAMRecord sam) throws IOException {
+					if (set.remove(sam.getReadName()))
+						mateWriter.addAlignment(sam);
+					return true;
 				}
-			}		
-			samWriter.close();
-			samReader.close();
+			});
+			pass.run();
+			mateWriter.close();
 			System.out.println("Done " + set.size() * 2 + " at " + System.currentTimeMillis());
 		}
 	}
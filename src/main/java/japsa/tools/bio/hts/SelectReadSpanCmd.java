@@ -38,12 +38,9 @@ package japsa.tools.bio.hts;
 
 import htsjdk.samtools.SAMFileHeader;
 import htsjdk.samtools.SAMRecord;
-import htsjdk.samtools.SAMRecordIterator;
 import htsjdk.samtools.SAMTextWriter;
-import htsjdk.samtools.SamReader;
-import htsjdk.samtools.SamReaderFactory;
-import htsjdk.samtools.ValidationStringency;
 import htsjdk.samtools.SAMFileHeader.SortOrder;
+import japsa.bio.hts.BamPass;
 import japsa.bio.tr.TandemRepeat;
 import japsa.seq.SequenceReader;
 import japsa.util.CommandLine;
@@ -90,85 +87,104 @@ public class SelectReadSpanCmd extends CommandLine{
 		filterSam(samFile, output, trFile);		
 	}
 
-	static void filterSam(String inFile, String outFile, String trFile)
+	static void filterSam(final String inFile, String outFile, String trFile)
 		throws IOException {				
 		/////////////////////////////////////////////////////////////////////////////
-		SamReaderFactory.setDefaultValidationStringency(ValidationStringency.SILENT);
-		SamReader samReader = SamReaderFactory.makeDefault().open(new File(inFile));						
+		BamPass pass = new BamPass(inFile);
 
-
-		SAMFileHeader samHeader = samReader.getFileHeader();		
-		SAMTextWriter samWriter = new SAMTextWriter(new File(outFile));
+		final SAMFileHeader samHeader = pass.getFileHeader();		
+		final SAMTextWriter samWriter = new SAMTextWriter(new File(outFile));
 		samWriter.setSortOrder(SortOrder.unsorted, false);		
 		samWriter.writeHeader( samHeader.getTextHeader());
 
-		ArrayList<TandemRepeat>  myList = TandemRepeat.readFromFile(SequenceReader.openFile(trFile), new ArrayList<String>());
-		TandemRepeat tr = myList.get(0);
-
-		System.err.print(tr.toString()+" : ");
-		int trIndex = 0;
-		int count = 0;
-
-		int trSeqIndex = samHeader.getSequenceIndex(tr.getChr());
-		if (trSeqIndex < 0){
-			samReader.close();
+		try{
+			pass.subscribe(spanFilter(samHeader, samWriter, trFile, inFile));
+		}catch (RuntimeException e){
+			pass.close();
 			samWriter.close();
-			throw new RuntimeException("Sequence " + tr.getChr() + " not found in the header of b/sam file " + inFile);
+			throw e;
 		}
+		pass.run();
+		samWriter.close();
+	}
 
-		SAMRecordIterator samIter = samReader.iterator();
-		while (samIter.hasNext()){
-			SAMRecord sam = samIter.next();			
-
-
-			int seqIndex = sam.getReferenceIndex();
-
-			//the samrecod is in an ealier sequence
-			if (seqIndex < trSeqIndex)
-				continue;
-
-			int posStart = sam.getAlignmentStart();
-			int posEnd = sam.getAlignmentEnd();
-
-			if (seqIndex == trSeqIndex && posEnd <= tr.getEnd() + pad)
-				continue;
-
-			if (seqIndex == trSeqIndex && posStart < tr.getStart() - pad){
-				samWriter.addAlignment(sam);
-				count ++;
-				continue;
-			}
+	/**
+	 * The filter of {@link #filterSam}: write the (sorted) records of inFile 
+	 * that span one of the regions in trFile to samWriter. The filter can be
+	 * subscribed to a {@link BamPass} shared with other analyses.
+	 * 
+	 * @param samHeader the header of inFile
+	 * @param samWriter where the spanning records are written
+	 * @param trFile the regions
+	 * @param inFile the name of the b/sam file, for error messages
+	 * @return the filter
+	 * @throws IOException
+	 */
+	static BamPass.OrderedVisitor spanFilter(final SAMFileHeader samHeader, final SAMTextWriter samWriter, String trFile, final String inFile)
+		throws IOException {
+		final ArrayList<TandemRepeat>  myList = TandemRepeat.readFromFile(SequenceReader.openFile(trFile), new ArrayList<String>());
+		TandemRepeat firstTR = myList.get(0);
+
+		System.err.print(firstTR.toString()+" : ");
+
+		final int firstSeqIndex = samHeader.getSequenceIndex(firstTR.getChr());
+		if (firstSeqIndex < 0)
+			throw new RuntimeException("Sequence " + firstTR.getChr() + " not found in the header of b/sam file " + inFile);
+
+		return new BamPass.OrderedVisitor(){
+			TandemRepeat tr = myList.get(0);
+			int trIndex = 0;
+			int count = 0;
+			int trSeqIndex = firstSeqIndex;
+
+			@Override
+			public boolean visit(SAMRecord sam) throws IOException {
+				int seqIndex = sam.getReferenceIndex();
+
+				//the samrecod is in an ealier sequence
+				if (seqIndex < trSeqIndex)
+					return true;
+
+				int posStart = sam.getAlignmentStart();
+				int posEnd = sam.getAlignmentEnd();
+
+				if (seqIndex == trSeqIndex && posEnd <= tr.getEnd() + pad)
+					return true;
+
+				if (seqIndex == trSeqIndex && posStart < tr.getStart() - pad){
+					samWriter.addAlignment(sam);
+					count ++;
+					return true;
+				}
 
-			while (seqIndex > trSeqIndex || (seqIndex == trSeqIndex && posStart > tr.getStart() - pad)){
-				trIndex ++;
-				System.err.println(count);
-				count = 0;
-				if (trIndex < myList.size()){
-					tr = myList.get(trIndex);
-					trSeqIndex = samHeader.getSequenceIndex(tr.getChr());
-					if (trSeqIndex < 0){
-						samReader.close();
-						samWriter.close();
-						throw new RuntimeException("Sequence " + tr.getChr() + " not found in the header of b/sam file " + inFile);
+				while (seqIndex > trSeqIndex || (seqIndex == trSeqIndex && posStart > tr.getStart() - pad)){
+					trIndex ++;
+					System.err.println(count);
+					count = 0;
+					if (trIndex < myList.size()){
+						tr = myList.get(trIndex);
+						trSeqIndex = samHeader.getSequenceIndex(tr.getChr());
+						if (trSeqIndex < 0){
+							samWriter.close();
+							throw new RuntimeException("Sequence " + tr.getChr() + " not found in the header of b/sam file " + inFile);
+						}
+						System.err.print(tr.toString()+" : ");					
+					}else{
+						tr = null;
+						break;//while
 					}
-					System.err.print(tr.toString()+" : ");					
-				}else{
-					tr = null;
-					break;//while
 				}
-			}
 
-			if (tr == null)
-				break;
+				if (tr == null)
+					return false;
 
-			if (seqIndex == trSeqIndex && posStart > tr.getStart() - pad && posEnd < tr.getEnd() + pad){
-				samWriter.addAlignment(sam);
-				count ++;
-				continue;
+				if (seqIndex == trSeqIndex && posStart > tr.getStart() - pad && posEnd < tr.getEnd() + pad){
+					samWriter.addAlignment(sam);
+					count ++;
+				}
+				return true;
 			}
-		}
-		samWriter.close();
-		samReader.close();
+		};
 	}
 }
 
@@ -34,20 +34,29 @@
  ****************************************************************************/
 package japsa.tools.bio.hts;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.apache.commons.math3.stat.clustering.Cluster;
 import org.apache.commons.math3.stat.clustering.KMeansPlusPlusClusterer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import htsjdk.samtools.CigarElement;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordIterator;
 import htsjdk.samtools.SamReader;
@@ -69,6 +78,7 @@ import japsa.seq.XAFReader;
 import japsa.util.ByteArray;
 import japsa.util.CommandLine;
 import japsa.util.DoubleArray;
+import japsa.util.HTSUtilities;
 import japsa.util.IntArray;
 import japsa.util.JapsaMath;
 import japsa.util.deploy.Deployable;
@@ -116,6 +126,8 @@ public class VNTRLongReadsCmd  extends CommandLine {
 				"The ploidy of the genome 1 =  happloid, 2 = diploid. Currenly only support up to 2-ploidy");
 		addString("prefix", "",
 				"Prefix of temporary files, if not specified, will be automatically generated");
+		addInt("thread", 1, "Number of threads genotyping repeats in parallel, each with its own reader of the bam file");
+		addInt("batch", 16, "Number of consecutive repeats of a chromosome genotyped together by a thread");
 
 		///////////////Adding galaxy support/////////////
 		flankingOpt.setGalaxySetting(new GalaxySetting("integer", null,false));
@@ -134,11 +146,6 @@ public class VNTRLongReadsCmd  extends CommandLine {
 	} 
 
 	static Alphabet dna = Alphabet.DNA16();
-	static IntArray profilePositions = new IntArray();
-	static IntArray seqPositions = new IntArray();		
-	static DoubleArray costGeneration = new DoubleArray();
-	static ByteArray byteArray = new ByteArray();
-
 
 	public static void main(String[] args) throws Exception,
 	InterruptedException {
@@ -164,6 +171,13 @@ public class VNTRLongReadsCmd  extends CommandLine {
 		if (prefix == null || prefix.length() == 0) {
 			prefix = "p" + System.currentTimeMillis();
 		}
+
+		int threads = cmdLine.getIntVal("thread");
+		if (threads < 1)
+			threads = 1;
+		int batchSize = cmdLine.getIntVal("batch");
+		if (batchSize < 1)
+			batchSize = 1;
 		/**********************************************************************/
 
 		SequenceOutputStream outOS = SequenceOutputStream
@@ -192,16 +206,14 @@ public class VNTRLongReadsCmd  extends CommandLine {
 		XAFReader xafReader = new XAFReader(strFile);
 
 		SamReaderFactory.setDefaultValidationStringency(ValidationStringency.SILENT);
-		SamReader reader = SamReaderFactory.makeDefault().open(new File(bamFile));						
-
 		Expert.setAlphabet(Alphabet.DNA4());
 
-		ArrayList<Sequence> readSequences = new ArrayList<Sequence>(); 
+		Genotyper genotyper = new Genotyper(bamFile, flanking, qual, prefix, headers, threads, outOS);
 
-		//Go through the list of repeats
+		//Go through the list of repeats, cutting them into batches of
+		//consecutive repeats of a chromosome
+		ArrayList<Locus> batch = new ArrayList<Locus>(batchSize);
 		while (xafReader.next() != null){
-			List<ReadAllele> accumulator = new ArrayList<ReadAllele>();
-			List<ReadAllele> accumulator_batch = new ArrayList<ReadAllele>();
 			TandemRepeat str = TandemRepeat.read(xafReader);
 
 			//start,end = the start and end of the region (including flanks)
@@ -224,6 +236,227 @@ public class VNTRLongReadsCmd  extends CommandLine {
 			if (start < 1)
 				start = 1;
 
+			if (batch.size() >= batchSize || (batch.size() > 0 && batch.get(0).seq != seq)){
+				genotyper.submit(batch);
+				batch = new ArrayList<Locus>(batchSize);
+			}
+			batch.add(new Locus(str, seq, start, end));
+		}// for
+		if (batch.size() > 0)
+			genotyper.submit(batch);
+		xafReader.close();
+
+		genotyper.close();
+		outOS.close();
+	}
+
+	/**
+	 * A tandem repeat to genotype, with the region of the reference 
+	 * (including flanks) that reads have to span
+	 */
+	static class Locus{
+		final TandemRepeat str;
+		final Sequence seq;
+		final int start, end;
+
+		Locus(TandemRepeat str, Sequence seq, int start, int end){
+			this.str = str;
+			this.seq = seq;
+			this.start = start;
+			this.end = end;
+		}
+	}
+
+	/**
+	 * What a worker keeps from locus to locus: its own reader of the bam 
+	 * file, the reads of the current locus, the best path of the last 
+	 * alignment and the output of the current batch. The lattice of the
+	 * alignments is kept by the thread, see ProfileDP.alignDense.
+	 */
+	static class Workspace{
+		final SamReader reader;
+		final ArrayList<Sequence> readSequences = new ArrayList<Sequence>(); 
+		final IntArray profilePositions = new IntArray();
+		final IntArray seqPositions = new IntArray();		
+		final DoubleArray costGeneration = new DoubleArray();
+		final ByteArray byteArray = new ByteArray();
+
+		final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		final SequenceOutputStream outOS = new SequenceOutputStream(buffer);
+		//the estimates of the alignments and of the rounds of training
+		final ByteArrayOutputStream traceBuffer = new ByteArrayOutputStream();
+		final PrintStream trace = new PrintStream(traceBuffer);
+
+		Workspace(String bamFile){
+			reader = SamReaderFactory.makeDefault().open(new File(bamFile));
+		}
+	}
+
+	/**
+	 * The output of a batch, ready to be written
+	 */
+	static class BatchResult{
+		byte[] output, trace;
+		int loci, reads;
+	}
+
+	/**
+	 * Genotype batches of repeats by a pool of workers, each with its own 
+	 * workspace, and write their output in the order the batches are 
+	 * submitted. With one thread, batches are genotyped by the calling 
+	 * thread.
+	 */
+	static class Genotyper{
+		//report the progress every so many milliseconds
+		static long reportInterval = 30000;
+
+		private final String bamFile;
+		private final int flanking, qual, threads;
+		private final String prefix;
+		private final String[] headers;
+		private final SequenceOutputStream outOS;
+
+		private final ArrayList<Workspace> workspaces = new ArrayList<Workspace>();
+		private final ThreadLocal<Workspace> workspace = new ThreadLocal<Workspace>(){
+			@Override
+			protected Workspace initialValue(){
+				Workspace ws = new Workspace(bamFile);
+				synchronized (workspaces){
+					workspaces.add(ws);
+				}
+				return ws;
+			}
+		};
+
+		private ExecutorService workers = null;
+		private final ArrayDeque<Future<BatchResult>> inFlight = new ArrayDeque<Future<BatchResult>>();
+
+		private final long startTime = System.currentTimeMillis();
+		private long lastReport = startTime;
+		private int lociDone = 0, readsDone = 0;
+
+		Genotyper(String bamFile, int flanking, int qual, String prefix, String[] headers, int threads, SequenceOutputStream outOS){
+			this.bamFile = bamFile;
+			this.flanking = flanking;
+			this.qual = qual;
+			this.prefix = prefix;
+			this.headers = headers;
+			this.threads = threads;
+			this.outOS = outOS;
+
+			if (threads > 1){
+				workers = Executors.newFixedThreadPool(threads, new ThreadFactory(){
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "vntr-genotyper");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+			}
+		}
+
+		/**
+		 * Submit a batch of repeats, all on the same chromosome
+		 * @param batch
+		 * @throws IOException
+		 */
+		void submit(final List<Locus> batch) throws IOException{
+			if (workers == null){
+				complete(process(batch));
+				return;
+			}
+			inFlight.add(workers.submit(new Callable<BatchResult>(){
+				@Override
+				public BatchResult call() throws IOException {
+					return process(batch);
+				}
+			}));
+			//bound the output held in memory
+			while (inFlight.size() >= threads * 2)
+				completeNext();
+		}
+
+		/**
+		 * Wait for the batches in flight, write their output and close 
+		 * the readers of the workers
+		 * @throws IOException
+		 */
+		void close() throws IOException{
+			while (!inFlight.isEmpty())
+				completeNext();
+			if (workers != null){
+				workers.shutdown();
+				workers = null;
+			}
+			synchronized (workspaces){
+				for (Workspace ws:workspaces)
+					ws.reader.close();
+				workspaces.clear();
+			}
+			report();
+		}
+
+		private void completeNext() throws IOException{
+			try{
+				complete(inFlight.poll().get());
+			}catch (InterruptedException e){
+				throw new InterruptedIOException();
+			}catch (ExecutionException e){
+				throw new IOException(e.getCause());
+			}
+		}
+
+		private void complete(BatchResult result) throws IOException{
+			System.out.write(result.trace);
+			outOS.write(result.output);
+
+			lociDone += result.loci;
+			readsDone += result.reads;
+			long now = System.currentTimeMillis();
+			if (now - lastReport >= reportInterval){
+				lastReport = now;
+				report();
+			}
+		}
+
+		private void report(){
+			double seconds = Math.max(System.currentTimeMillis() - startTime, 1) / 1000.0;
+			LOG.info(String.format("Genotyped %d repeats (%.2f/s) from %d reads (%.1f/s) with %d thread(s)", 
+				lociDone, lociDone / seconds, readsDone, readsDone / seconds, threads));
+		}
+
+		private BatchResult process(List<Locus> batch) throws IOException{
+			Workspace ws = workspace.get();
+			BatchResult result = new BatchResult();
+			for (Locus locus:batch){
+				result.reads += genotype(locus, ws);
+				result.loci ++;
+			}
+			ws.outOS.flush();
+			result.output = ws.buffer.toByteArray();
+			ws.trace.flush();
+			result.trace = ws.traceBuffer.toByteArray();
+			ws.buffer.reset();
+			ws.traceBuffer.reset();
+			return result;
+		}
+
+		/**
+		 * Genotype a repeat, writing to the output of the workspace 
+		 * @param locus
+		 * @param ws
+		 * @return the number of reads spanning the repeat
+		 * @throws IOException
+		 */
+		private int genotype(Locus locus, Workspace ws) throws IOException{
+			List<ReadAllele> accumulator = new ArrayList<ReadAllele>();
+			List<ReadAllele> accumulator_batch = new ArrayList<ReadAllele>();
+			TandemRepeat str = locus.str;
+			Sequence seq = locus.seq;
+			int start = locus.start, end = locus.end;
+			SequenceOutputStream outOS = ws.outOS;
+
 			int hmmFlank = flanking;
 			int period = str.getPeriod();
 			double fraction = str.getUnitNo() - Math.floor(str.getUnitNo());			
@@ -241,7 +474,10 @@ public class VNTRLongReadsCmd  extends CommandLine {
 				hmmSeq.setBase(i,base);				
 			}
 
+			//The reference is aligned with the initial parameters of the profile,
+			//which are then trained on the reads
 			ProfileDP dp = new ProfileDP(hmmSeq, hmmFlank + hmmPad, hmmFlank + hmmPad + str.getPeriod() - 1);//-1 for 0-index, inclusive
+			dp.setTrace(ws.trace);
 
 			//System.out.println("Lengths: " + hmmFlank + ", " + hmmPad + " " + str.getPeriod() + " " + hmmSeq.length() );			
 			//System.out.println("CHECKING BEGIN");
@@ -259,11 +495,11 @@ public class VNTRLongReadsCmd  extends CommandLine {
 			{
 				Sequence refRepeat = seq.subSequence(start, end);
 				refRepeat.setName("reference");
-				processRead(refRepeat, dp, fraction,  hmmFlank, hmmPad, period,  outOS , accumulator);
+				processRead(refRepeat, dp, fraction,  hmmFlank, hmmPad, period,  ws , accumulator);
 
 			}
 
-			SAMRecordIterator iter = reader.query(str.getParent(), start, end, false);
+			SAMRecordIterator iter = ws.reader.query(str.getParent(), start, end, false);
 
 			String fileName = prefix + "_" + str.getID() + "_i.fasta";
 			SequenceOutputStream os = SequenceOutputStream.makeOutputStream(fileName);
@@ -275,6 +511,7 @@ public class VNTRLongReadsCmd  extends CommandLine {
 			int readIndex = 0;
 
 			//Clear the list
+			ArrayList<Sequence> readSequences = ws.readSequences;
 			readSequences.clear();
 			while (iter.hasNext()) {
 				SAMRecord rec = iter.next();
@@ -315,8 +552,7 @@ public class VNTRLongReadsCmd  extends CommandLine {
 			os.close();
 			//readSequences: an array of reads
 
-			ProfileDP dpBatch = new ProfileDP(hmmSeq, hmmFlank + hmmPad, hmmFlank + hmmPad + str.getPeriod() - 1);//-1 for 0-index, inclusive
-			processBatch(readSequences, dpBatch, fraction,  hmmFlank, hmmPad, period,  outOS, accumulator_batch );
+			processBatch(readSequences, dp, fraction,  hmmFlank, hmmPad, period,  ws, accumulator_batch );
 
 			outOS.print(trVar.toString(headers));
 			outOS.print('\n');
@@ -333,13 +569,15 @@ public class VNTRLongReadsCmd  extends CommandLine {
 			outOS.print("Genotypes_batch|Counts_elbow\t"+Arrays.asList(genotypes_batch1[0])+"\t"+Arrays.asList(genotypes_batch1[1])+"\n");
 			//outOS.print("Genotypes|Counts_elbow_outliers\t"+Arrays.asList(genotypes2[0])+"\t"+Arrays.asList(genotypes2[1])+"\n");
 			outOS.print("Genotypes_batch|Counts_elbow_outliers\t"+Arrays.asList(genotypes_batch2[0])+"\t"+Arrays.asList(genotypes_batch2[1])+"\n");
-		}// for
-
-		reader.close();
-		outOS.close();
+			return readSequences.size();
+		}
 	}
 
-	static private void processBatch(ArrayList<Sequence> readBatch, ProfileDP dpBatch, double fraction, int hmmFlank, int hmmPad, int period, SequenceOutputStream outOS, List<ReadAllele> read_alleles ) throws IOException{
+	static private void processBatch(ArrayList<Sequence> readBatch, ProfileDP dpBatch, double fraction, int hmmFlank, int hmmPad, int period, Workspace ws, List<ReadAllele> read_alleles ) throws IOException{
+		SequenceOutputStream outOS = ws.outOS;
+		IntArray profilePositions = ws.profilePositions, seqPositions = ws.seqPositions;
+		DoubleArray costGeneration = ws.costGeneration;
+		ByteArray byteArray = ws.byteArray;
 
 
 		for (int round = 0; round < 5;round ++){
@@ -347,7 +585,7 @@ public class VNTRLongReadsCmd  extends CommandLine {
 			int countIns = 0, countDel = 0, countMG = 0, countMB = 0;
 			//Estimate error profiles
 			for (Sequence readSeq:readBatch){
-				EmissionState bestState = dpBatch.align(readSeq);
+				EmissionState bestState = dpBatch.alignDense(readSeq);
 				//TODO: make a filter here: select only eligible alignment
 				double alignScore = bestState.getScore();
 				countIns += bestState.getCountIns();
@@ -364,7 +602,7 @@ public class VNTRLongReadsCmd  extends CommandLine {
 			double matP = (countMG + countMB + 1.0) /sum;
 			double matchP = (countMG + 1.0) / (countMG + countMB + 2.0);
 			double misMatchP = 1 - matchP;
-			System.out.printf("Total: %3d %3d %3d %3d %8.4f %8.4f %8.4f %8.4f\n", countMG, countMB, countIns, countDel,  insP, delP,  misMatchP,myCost);
+			ws.trace.printf("Total: %3d %3d %3d %3d %8.4f %8.4f %8.4f %8.4f\n", countMG, countMB, countIns, countDel,  insP, delP,  misMatchP,myCost);
 			dpBatch.setTransitionProbability(matP, insP, delP);
 			dpBatch.setMatchProbability(matchP);			
 		}//round
@@ -385,7 +623,7 @@ public class VNTRLongReadsCmd  extends CommandLine {
 			outOS.print("Markov " + costM + "\t" + (costM / readSeq.length()) + "\n");
 
 
-			EmissionState bestState = dpBatch.align(readSeq);
+			EmissionState bestState = dpBatch.alignDense(readSeq);
 			double alignScore = bestState.getScore();
 			//System.out.println("Score " + alignScore + " vs " + readSeq.length()*2 + " (" + alignScore/readSeq.length() +")");
 			double bestIter = bestState.getIter() + fraction;
@@ -576,7 +814,11 @@ public class VNTRLongReadsCmd  extends CommandLine {
 	}
 
 
-	static private void processRead(Sequence readSeq, ProfileDP dp, double fraction, int hmmFlank, int hmmPad, int period, SequenceOutputStream outOS, List<ReadAllele> read_alleles ) throws IOException{
+	static private void processRead(Sequence readSeq, ProfileDP dp, double fraction, int hmmFlank, int hmmPad, int period, Workspace ws, List<ReadAllele> read_alleles ) throws IOException{
+		SequenceOutputStream outOS = ws.outOS;
+		IntArray profilePositions = ws.profilePositions, seqPositions = ws.seqPositions;
+		DoubleArray costGeneration = ws.costGeneration;
+		ByteArray byteArray = ws.byteArray;
 
 
 		MarkovExpert expert = new MarkovExpert(1);
@@ -592,7 +834,7 @@ public class VNTRLongReadsCmd  extends CommandLine {
 
 		outOS.print("Markov " + costM + "\t" + (costM / readSeq.length()) + "\n");
 
-		EmissionState bestState = dp.align(readSeq);
+		EmissionState bestState = dp.alignDense(readSeq);
 		double alignScore = bestState.getScore();
 		//System.out.println("Score " + alignScore + " vs " + readSeq.length()*2 + " (" + alignScore/readSeq.length() +")");
 		double bestIter = bestState.getIter() + fraction;
@@ -760,78 +1002,7 @@ public class VNTRLongReadsCmd  extends CommandLine {
 	}
 
 	public static Sequence getReadPosition(SAMRecord rec, int startRef, int endRef){
-		byte[]  seqRead = rec.getReadBases();//
-		if (seqRead.length <= 1)
-			return null;
-
-		int startRead = -1, endRead = -1;
-
-		int refPos = rec.getAlignmentStart();
-		int readPos = 0;		
-		//currentRefPos <= startRead				
-
-		for (final CigarElement e : rec.getCigar().getCigarElements()) {
-			int length = e.getLength();
-			switch (e.getOperator()) {
-			case H:
-				break; // ignore hard clips
-			case P:
-				break; // ignore pads
-			case S:
-				readPos += e.getLength();								
-				break; // soft clip read bases
-			case N: // N ~ D
-			case D:
-				refPos += length;
-
-				if (startRead < 0  && refPos >= startRef){					
-					startRead = readPos;
-				}
-
-				if (endRead < 0  && refPos >= endRef){					
-					endRead = readPos;
-				}
-
-				break;// case
-			case I:				
-				readPos += length;						
-				break;
-
-			case M:
-			case EQ:
-			case X:				
-				if ((startRead < 0) && refPos + length >= startRef) {
-					startRead = readPos + startRef - refPos;					
-				}
-
-				if ((endRead < 0) && (refPos + length >= endRef)){
-					endRead = readPos + endRef - refPos;
-				}
-
-				refPos += length;
-				readPos += length;				
-				break;
-			default:
-				throw new IllegalStateException(
-						"Case statement didn't deal with cigar op: "
-								+ e.getOperator());
-			}// case
-			if (refPos >= endRef)
-				break;//for
-
-		}// for
-		if (startRead < 0 || endRead < 0){
-			LOG.warn(" " + refPos + "  " + readPos + " " + startRead + " " + endRead);
-			return null;
-		}		
-
-		Alphabet alphabet = Alphabet.DNA16();
-		Sequence retSeq = new Sequence(alphabet, endRead - startRead + 1, rec.getReadName() + "/" + startRead + "_" + endRead);
-		for (int i = 0; i < retSeq.length();i++){
-			retSeq.setBase(i, alphabet.byte2index(seqRead[startRead + i]));			
-		}
-		return retSeq;
-
+		return HTSUtilities.getReadPosition(rec, startRef, endRef);
 	}
 
 	/**
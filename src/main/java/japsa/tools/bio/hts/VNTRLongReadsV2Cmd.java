@@ -50,6 +50,7 @@ import japsa.seq.XAFReader;
 import japsa.util.ByteArray;
 import japsa.util.CommandLine;
 import japsa.util.DoubleArray;
+import japsa.util.HTSUtilities;
 import japsa.util.IntArray;
 import japsa.util.JapsaMath;
 import japsa.util.deploy.Deployable;
@@ -62,7 +63,6 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 
-import htsjdk.samtools.CigarElement;
 import htsjdk.samtools.SAMRecord;
 import htsjdk.samtools.SAMRecordIterator;
 import htsjdk.samtools.SamReader;
@@ -391,7 +391,7 @@ public class VNTRLongReadsV2Cmd  extends CommandLine {
 
 		outOS.print("Markov " + costM + "\t" + (costM / readSeq.length()) + "\n");
 
-		EmissionState bestState = dp.align(readSeq);
+		EmissionState bestState = dp.alignDense(readSeq);
 		double alignScore = bestState.getScore();
 		//System.out.println("Score " + alignScore + " vs " + readSeq.length()*2 + " (" + alignScore/readSeq.length() +")");
 		double bestIter = bestState.getIter() + fraction;
@@ -555,79 +555,7 @@ public class VNTRLongReadsV2Cmd  extends CommandLine {
 	}
 	
 	public static Sequence getReadPosition(SAMRecord rec, int startRef, int endRef){
-		byte[]  seqRead = rec.getReadBases();//
-		if (seqRead.length <= 1)
-			return null;
-
-		int startRead = -1, endRead = -1;
-
-		int refPos = rec.getAlignmentStart();
-		int readPos = 0;		
-		//currentRefPos <= startRead				
-
-		for (final CigarElement e : rec.getCigar().getCigarElements()) {
-			int length = e.getLength();
-			switch (e.getOperator()) {
-			case H:
-				break; // ignore hard clips
-			case P:
-				break; // ignore pads
-			case S:
-				readPos += e.getLength();								
-				break; // soft clip read bases
-			case N: // N ~ D
-			case D:
-				refPos += length;
-
-				if (startRead < 0  && refPos >= startRef){					
-					startRead = readPos;
-				}
-
-				if (endRead < 0  && refPos >= endRef){					
-					endRead = readPos;
-				}
-
-				break;// case
-			case I:				
-				readPos += length;						
-				break;
-
-			case M:
-			case EQ:
-			case X:				
-				if ((startRead < 0) && refPos + length >= startRef) {
-					startRead = readPos + startRef - refPos;					
-				}
-
-				if ((endRead < 0) && (refPos + length >= endRef)){
-					endRead = readPos + endRef - refPos;
-				}
-
-				refPos += length;
-				readPos += length;				
-				break;
-			default:
-				throw new IllegalStateException(
-						"Case statement didn't deal with cigar op: "
-								+ e.getOperator());
-			}// case
-			if (refPos >= endRef)
-				break;//for
-
-		}// for
-		if (startRead < 0 || endRead < 0){
-			LOG.warn(" " + refPos + "  " + readPos + " " + startRead + " " + endRead);
-			return null;
-		}		
-
-		Alphabet alphabet = Alphabet.DNA16();
-		Sequence retSeq = new Sequence(alphabet, endRead - startRead + 1, rec.getReadName() + "/" + startRead + "_" + endRead);
-
-		for (int i = 0; i < retSeq.length();i++){
-			retSeq.setBase(i, alphabet.byte2index(seqRead[startRead + i]));			
-		}
-		return retSeq;
-
+		return HTSUtilities.getReadPosition(rec, startRef, endRef);
 	}
 
 	/*******************************************************************************
@@ -29,7 +29,7 @@ public class ConsensusCmd extends CommandLine{
 
         addString("input", null, "Name of the input FASTA file for all sequences", true);
         addString("prefix", "out", "Prefix for the output files");
-        addString("aligner", "kalign", "Name of the aligner used for multiple-alignment in grouping phase");
+        addString("aligner", "kalign", "Name of the aligner used for multiple-alignment in grouping phase, japsa-poa for the in-process aligner");
         addStdHelp();
     }
 
@@ -34,6 +34,7 @@
 
 package japsa.tools.bio.np;
 
+import japsa.bio.alignment.MinimizerMapper;
 import japsa.bio.hts.scaffold.ContigBridge;
 import japsa.bio.hts.scaffold.RealtimeScaffolding;
 import japsa.bio.hts.scaffold.ScaffoldGraph;
@@ -75,8 +76,9 @@ public class NPScarfCmd extends CommandLine{
 		addBoolean("index", true, "Whether to index the contigs sequence by the aligner or not.");
 		//TODO: adding minimap2 as default aligner
 		//options: -aligner <bwa|minimap2> ; -command "customized cmd for alignment"
+		addString("aligner", "bwa", "Aligner of fasta/fastq reads to the contigs: bwa, or japsa for the built-in minimizer mapper");
 		addString("bwaExe", "bwa", "Path to bwa");
-		addInt("bwaThread", 4, "Theads used by bwa");
+		addInt("bwaThread", 4, "Theads used by bwa (or the built-in mapper)");
 		addBoolean("long", false, "Whether report all sequences, including short/repeat contigs (default) or only long/unique/completed sequences.");
 		
 		addString("spadesDir", null, "Name of the output folder by SPAdes: assembly graph and paths will be used for better gap-filling.");
@@ -130,55 +132,70 @@ public class NPScarfCmd extends CommandLine{
 				pathFile = new File(spadesFolder+"/contigs.paths");
 
 
+		String aligner = cmdLine.getStringVal("aligner");
+		boolean builtin = MinimizerMapper.NAME.equals(aligner);
+		if (!builtin && !"bwa".equals(aligner)){
+			LOG.error("Unrecognized aligner: " + aligner);
+			System.exit(1);
+		}
+		if (builtin){
+			//the contigs are indexed in-process
+			bwaExe = MinimizerMapper.NAME;
+		}
+
 		if (format.startsWith("fastq") ||
 				format.startsWith("fasta") ||
 				format.startsWith("fq") ||
 				format.startsWith("fa")){
-			try{
-				ProcessBuilder pb = new ProcessBuilder(bwaExe).redirectErrorStream(true);
-				Process process =  pb.start();
-				//BWA process doesn't produce gzip-compressed output
-				BufferedReader bf = SequenceReader.openInputStream(process.getInputStream());
-
-
-				String line;
-				String version = "";
-				Pattern versionPattern = Pattern.compile("^Version:\\s(\\d+\\.\\d+\\.\\d+).*");
-				Matcher matcher=versionPattern.matcher("");
+			if (builtin){
+				LOG.info("Reads are mapped by the built-in mapper");
+			}else{
+				try{
+					ProcessBuilder pb = new ProcessBuilder(bwaExe).redirectErrorStream(true);
+					Process process =  pb.start();
+					//BWA process doesn't produce gzip-compressed output
+					BufferedReader bf = SequenceReader.openInputStream(process.getInputStream());
+
+
+					String line;
+					String version = "";
+					Pattern versionPattern = Pattern.compile("^Version:\\s(\\d+\\.\\d+\\.\\d+).*");
+					Matcher matcher=versionPattern.matcher("");
 				
-				while ((line = bf.readLine())!=null){				
-					matcher.reset(line);
-					if (matcher.find()){
-					    version = matcher.group(1);
-					    break;//while
-					}
+					while ((line = bf.readLine())!=null){				
+						matcher.reset(line);
+						if (matcher.find()){
+						    version = matcher.group(1);
+						    break;//while
+						}
 					
 									
-				}	
-				bf.close();
+					}	
+					bf.close();
 				
-				if (version.length() == 0){
-					LOG.error(bwaExe + " is not the right path to bwa. bwa is required");
-					System.exit(1);
-				}else{
-					LOG.info("bwa version: " + version);
-					if (version.compareTo("0.7.11") < 0){
-						LOG.error(" Require bwa of 0.7.11 or above");
+					if (version.length() == 0){
+						LOG.error(bwaExe + " is not the right path to bwa. bwa is required");
 						System.exit(1);
+					}else{
+						LOG.info("bwa version: " + version);
+						if (version.compareTo("0.7.11") < 0){
+							LOG.error(" Require bwa of 0.7.11 or above");
+							System.exit(1);
+						}
 					}
-				}
 				
-				//run indexing 
-				if(cmdLine.getBooleanVal("index")){
-					LOG.info("bwa index running...");
-					ProcessBuilder pb2 = new ProcessBuilder(bwaExe,"index",sequenceFile);
-					Process indexProcess =  pb2.start();
-					indexProcess.waitFor();
-					LOG.info("bwa index finished!");
+					//run indexing 
+					if(cmdLine.getBooleanVal("index")){
+						LOG.info("bwa index running...");
+						ProcessBuilder pb2 = new ProcessBuilder(bwaExe,"index",sequenceFile);
+						Process indexProcess =  pb2.start();
+						indexProcess.waitFor();
+						LOG.info("bwa index finished!");
+					}
+				}catch (IOException e){
+					System.err.println(e.getMessage());
+					System.exit(1);
 				}
-			}catch (IOException e){
-				System.err.println(e.getMessage());
-				System.exit(1);
 			}
 
 		}else if (format.startsWith("sam") || format.startsWith("bam")){
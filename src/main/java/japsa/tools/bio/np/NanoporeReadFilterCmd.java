@@ -35,10 +35,13 @@
 package japsa.tools.bio.np;
 
 import java.io.IOException;
+import java.util.List;
 
 import japsa.seq.Alphabet;
 import japsa.seq.FastqReader;
 import japsa.seq.FastqSequence;
+import japsa.seq.Sequence;
+import japsa.seq.SequenceBatchReader;
 import japsa.seq.SequenceOutputStream;
 import japsa.seq.nanopore.NanoporeReaderStream;
 import japsa.util.CommandLine;
@@ -93,6 +96,8 @@ public class NanoporeReadFilterCmd extends CommandLine{
 		//CommandLine.Option formatOpt =
 		addString("format", "fastq", "Format of the output file");
 
+		addInt("thread", 1, "Number of threads to decode the input");
+
 		addStdHelp();
 
 
@@ -140,69 +145,73 @@ public class NanoporeReadFilterCmd extends CommandLine{
 
 		SequenceOutputStream sos = SequenceOutputStream.makeOutputStream(output);
 
+		int thread = cmdLine.getIntVal("thread");
+
 		FastqReader reader = "-".equals(input)? (new FastqReader(System.in) ) 
 				: (new FastqReader(input));
-		FastqSequence seq;
-
+		SequenceBatchReader batchReader = reader.batches(Alphabet.DNA(), 1000, thread);
+		List<Sequence> batch;
 
+		while ( (batch = batchReader.nextBatch()) != null){
+			for (Sequence s:batch){
+				FastqSequence seq = (FastqSequence) s;
+				//Min length
+				if (seq.length() < lenMin)
+					continue;
 
-		while ( (seq = reader.nextSequence(Alphabet.DNA())) != null){
-			//Min length
-			if (seq.length() < lenMin)
-				continue;
+				//max length
+				if (seq.length() > lenMax)
+					continue;
 
-			//max length
-			if (seq.length() > lenMax)
-				continue;
-
-			double qual = -1;
-
-			//min quality
-			if (qualMin > 0.0){
-				qual = NanoporeReaderStream.averageQuality(seq);
-				if (qual < qualMin)
-					continue;				
-			}
+				double qual = -1;
 
-			//max quality			
-			if (qualMax < 1000.0){
-				if (qual < 0)
+				//min quality
+				if (qualMin > 0.0){
 					qual = NanoporeReaderStream.averageQuality(seq);
-				if (qual >= qualMax)
-					continue;		
-			}
+					if (qual < qualMin)
+						continue;				
+				}
+
+				//max quality			
+				if (qualMax < 1000.0){
+					if (qual < 0)
+						qual = NanoporeReaderStream.averageQuality(seq);
+					if (qual >= qualMax)
+						continue;		
+				}
 
-			if (excludeComplement && seq.getName().contains("complement"))
-				continue;
+				if (excludeComplement && seq.getName().contains("complement"))
+					continue;
 
-			if (excludeTemplate && seq.getName().contains("template"))
-				continue;
+				if (excludeTemplate && seq.getName().contains("template"))
+					continue;
 
-			if (exclude2D && seq.getName().contains("twodim"))
-				continue;
+				if (exclude2D && seq.getName().contains("twodim"))
+					continue;
 
-			if (group.length() > 0){
-				String [] toks = seq.getName().split(" ");
-				boolean match = false;
-				for (String tok:toks){
-					if (tok.startsWith("group=")&&tok.substring(6).equals(group)){
-						match = true;
-						break;
+				if (group.length() > 0){
+					String [] toks = seq.getName().split(" ");
+					boolean match = false;
+					for (String tok:toks){
+						if (tok.startsWith("group=")&&tok.substring(6).equals(group)){
+							match = true;
+							break;
+						}
 					}
+					if (!match)
+						continue;//while
 				}
-				if (!match)
-					continue;//while
-			}
 
-			//done all the fitlering
-			if (fastaOutput)
-				seq.writeFasta(sos);
-			else
-				seq.print(sos);
+				//done all the fitlering
+				if (fastaOutput)
+					seq.writeFasta(sos);
+				else
+					seq.print(sos);
 
+			}
 		}
 
-		reader.close();		
+		batchReader.close();		
 		sos.close();
 	}//main
 }
@@ -74,6 +74,9 @@ public class NanoporeReaderCmd extends CommandLine{
 		addBoolean("time", false,"Extract the sequencing time of each read -- experimental");
 		addBoolean("exhaustive", false,"Whether to traverse the input directory exhaustively (albacore) or lazily (metrichor)");
 		addString("barcode", null,"The file containing all barcode sequences for demultiplexing.");
+		addBoolean("watch", false,"In real-time mode, discover new files with a file watcher instead of rescanning the folder");
+		addString("checkpoint", null,"File recording the fast5 files read, to resume from if the program is restarted");
+		addInt("threads", 1,"Number of threads reading fast5 files");
 
 		addStdHelp();		
 	}
@@ -96,6 +99,9 @@ public class NanoporeReaderCmd extends CommandLine{
 		String streamServers = cmdLine.getStringVal("streams");
 		boolean exhaustive = cmdLine.getBooleanVal("exhaustive");
 		String barcode = cmdLine.getStringVal("barcode");
+		boolean watch = cmdLine.getBooleanVal("watch");
+		String checkpoint = cmdLine.getStringVal("checkpoint");
+		int threads = cmdLine.getIntVal("threads");
 		int age = 20 * 1000;//cmdLine.getIntVal("age") * 1000;//in second
 		int interval = 30;
 
@@ -123,6 +129,9 @@ public class NanoporeReaderCmd extends CommandLine{
 		reader.realtime = realtime;
 		reader.streamServers = streamServers;
 		reader.exhaustive = exhaustive;
+		reader.watch = watch;
+		reader.checkpoint = checkpoint;
+		reader.threads = threads;
 		
 		if(barcode != null)
 			reader.updateDemultiplexFile(barcode);
@@ -67,6 +67,10 @@ public class RealtimeMLSTCmd extends CommandLine{
 		addBoolean("twodonly", false,  "Use only two dimentional reads");		
 		addInt("read", 50,  "Minimum number of reads between analyses");		
 		addInt("time", 30,   "Minimum number of seconds between analyses");
+		addString("msa", "kalign",
+			"Name of the msa method, support japsa-poa (in-process), poa, kalign, muscle and clustalo");
+		addInt("candidates", 20,
+			"Number of alleles per gene, shortlisted by shared k-mers with the consensus, to score by alignment (0 for all)");
 		
 		addStdHelp();		
 	} 
@@ -93,6 +97,8 @@ public class RealtimeMLSTCmd extends CommandLine{
 		RealtimeMLST paTyping = new RealtimeMLST(mlstDir, output, read, time);
 		paTyping.setTwoDOnly(twodonly);
 		paTyping.setMinQual(qual);
+		paTyping.setMsa(cmdLine.getStringVal("msa"));
+		paTyping.setCandidates(cmdLine.getIntVal("candidates"));
 		paTyping.typing(bamFile,  top);
 
 	}
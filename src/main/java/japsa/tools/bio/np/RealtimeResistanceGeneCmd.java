@@ -62,7 +62,7 @@ public class RealtimeResistanceGeneCmd extends CommandLine{
 
 		addDouble("score", 0.0001,  "The alignment score threshold");
 		addString("msa", "kalign",
-			"Name of the msa method, support poa, kalign, muscle and clustalo");
+			"Name of the msa method, support japsa-poa (in-process), poa, kalign, muscle and clustalo");
 
 		addString("tmp", "_tmpt",  "Temporary folder");				
 		addString("resDB", null,  "Path to resistance database", true);
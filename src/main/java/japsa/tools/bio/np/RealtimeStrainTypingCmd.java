@@ -68,6 +68,7 @@ public class RealtimeStrainTypingCmd extends CommandLine{
 		addInt("time", 30,   "Minimum number of seconds between analyses");
 
 		addString("output", "output.dat",  "Output file");
+		addInt("thread", 1,  "Number of threads bootstrapping the confidence intervals");
 
 		addStdHelp();		
 	} 
@@ -92,6 +93,7 @@ public class RealtimeStrainTypingCmd extends CommandLine{
 		RealtimeStrainTyping paTyping = new RealtimeStrainTyping(read, time, geneDB,  output);
 		paTyping.setMinQual(qual);	
 		paTyping.setTwoOnly(twoOnly);
+		paTyping.setThreads(cmdLine.getIntVal("thread"));
 		paTyping.typing(bamFile);
 	}
 }
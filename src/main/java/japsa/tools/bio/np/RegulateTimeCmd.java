@@ -38,8 +38,6 @@ import java.io.IOException;
 import java.util.Date;
 
 import japsa.seq.Alphabet;
-import japsa.seq.FastqReader;
-import japsa.seq.FastaReader;
 import japsa.seq.FastqSequence;
 import japsa.seq.Sequence;
 import japsa.seq.SequenceOutputStream;
@@ -94,8 +92,8 @@ public class RegulateTimeCmd extends CommandLine {
 
 		SequenceReader reader = SequenceReader.getReader(input);
 		
-		boolean isFastq = (reader instanceof FastqReader),
-				isFasta = (reader instanceof FastaReader);
+		boolean isFastq = reader.isFastq(),
+				isFasta = reader.isFasta();
 		Sequence seq;		
 		
 
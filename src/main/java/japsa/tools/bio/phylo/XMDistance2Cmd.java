@@ -79,7 +79,9 @@ public class XMDistance2Cmd  extends CommandLine{
 			"Running in optimise mode, just report the entropy,recommended for long sequence");
 		addInt("checkPoint", 10000000, "Frequency of check point");
 		addString("hashType", "hash",
-			"Type of Hash table: hash=hashtable, sft=SuffixTree,sfa = SuffixArray");
+			"Type of Hash table: hash=hashtable, arena=compact hashtable, sft=SuffixTree,sfa = SuffixArray");
+		addInt("hashLimit", 0,
+			"Maximum number of positions kept by the arena hashtable (oldest evicted), 0 for no limit");
 		addBoolean("selfRep", true,
 			"Propose experts from the sequence to compressed?");	
 
@@ -37,19 +37,22 @@ package japsa.tools.bio.phylo;
 import japsa.seq.Alphabet;
 import japsa.seq.FastaReader;
 import japsa.seq.Sequence;
+import japsa.seq.SequenceOutputStream;
 import japsa.tools.bio.xm.ExpertModelCmd;
 import japsa.util.CommandLine;
 import japsa.util.deploy.Deployable;
 import japsa.xm.ExpertModel;
+import japsa.xm.hash.MyHashtable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedOutputStream;
 import java.io.FileOutputStream;
-import java.io.PrintStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.TimeUnit;
 
 
@@ -80,7 +83,9 @@ public class XMDistanceCmd  extends CommandLine{
 			"Running in optimise mode, just report the entropy,recommended for long sequence");
 		addInt("checkPoint", 1000000, "Frequency of check point");
 		addString("hashType", "hash",
-			"Type of Hash table: hash=hashtable, sft=SuffixTree,sfa = SuffixArray");
+			"Type of Hash table: hash=hashtable, arena=compact hashtable, sft=SuffixTree,sfa = SuffixArray");
+		addInt("hashLimit", 0,
+			"Maximum number of positions kept by the arena hashtable (oldest evicted), 0 for no limit");
 		addBoolean("selfRep", true,
 			"Propose experts from the sequence to compressed?");	
 
@@ -114,44 +119,22 @@ public class XMDistanceCmd  extends CommandLine{
 		resultSingle =new double[seqs.size()];
 
 
-		ExecutorService executor = Executors.newFixedThreadPool(thread);
-		//Sequence [] mS = new Sequence[2];
-		//Sequence [] sS = new Sequence[1];
-		//ExpertModel eModel = ExpertModelDriver.getExpertModel(cmdLine);
+		//Each sequence is hashed once as the background of all the others, 
+		//and the pairs are encoded on forks of the hash. A few backgrounds are
+		//in flight at a time to bound the memory.
+		ForkJoinPool pool = new ForkJoinPool(thread);
+		ArrayDeque<ForkJoinTask<?>> backgrounds = new ArrayDeque<ForkJoinTask<?>>();
 
-		resultBG[0][0] = 0.0;
 		for (int i = 0; i < seqs.size();i++){
-			executor.execute(new CompressSingle(cmdLine,i));			
-			//sS[0] = seqs.get(i);
-			//resultSingle[i] = eModel.encode_optimise(sS);
-
-			//System.out.println("Single " +  i + " : " + resultSingle[i]);
+			resultBG[i][i] = 0.0;
+			if (backgrounds.size() >= BACKGROUNDS_IN_FLIGHT)
+				backgrounds.poll().join();
+			backgrounds.add(pool.submit(new CompressBackground(cmdLine, i)));
 		}
-
-		for (int i = 1; i < seqs.size();i++){
-			synchronized (resultBG){
-				resultBG[i][i] = 0.0;
-			}
-			for (int j = 0; j < i; j++){				
-				executor.execute(new CompressSingle(cmdLine,i,j));				
-				//mS[0] = seqs.get(i);
-				//mS[1] = seqs.get(j);
-				//double e_ij = eModel.encode_optimise(mS);
-
-				//System.out.println("BG " +  i +"," + j + " : " + e_ij);
-
-				//mS[1] = seqs.get(i);
-				//mS[0] = seqs.get(j);
-				//double e_ji = eModel.encode_optimise(mS);
-				//System.out.println("BG " +  j +"," + i + " : " + e_ji);
-
-
-				//resultBG[i][j] = resultBG[j][i] = (e_ij + e_ji)/(resultSingle[i] + resultSingle[j]);				
-				//System.out.println(i + "  -  " + j + " : " + resultBG[i][j]);
-			}
-		}
-		executor.shutdown();
-		boolean finished = executor.awaitTermination(3, TimeUnit.DAYS);
+		while (!backgrounds.isEmpty())
+			backgrounds.poll().join();
+		pool.shutdown();
+		boolean finished = pool.awaitTermination(3, TimeUnit.DAYS);
 
 		double [][] mtx = new double[seqs.size()] [seqs.size()];
 		LOG.info("ALL DONE " + finished);
@@ -163,9 +146,9 @@ public class XMDistanceCmd  extends CommandLine{
 		}
 
 
-		PrintStream out = 
-			new PrintStream(new BufferedOutputStream(new FileOutputStream(
-				cmdLine.getStringVal("output"))));		
+		SequenceOutputStream out = 
+			new SequenceOutputStream(new FileOutputStream(
+				cmdLine.getStringVal("output")));		
 		printMtx(seqs, mtx, out);		
 		/***********************************************
 		BufferedOutputStream out = 
@@ -191,83 +174,90 @@ public class XMDistanceCmd  extends CommandLine{
 
 
 
+	/**
+	 * Write the distance matrix in phylip format, the distances formatted as
+	 * " %10f " without creating strings
+	 */
 	public static void printMtx(ArrayList<Sequence> dnaSeqs, double[][] mtx,
-		PrintStream out) {		
-		out.println(" " + dnaSeqs.size());
+		SequenceOutputStream out) throws IOException {		
+		out.print(' ');
+		out.print(dnaSeqs.size());
+		out.println();
 		for (int s = 0; s < dnaSeqs.size(); s++) {
-			out.printf("%-12s ", dnaSeqs.get(s).getName());
+			String name = dnaSeqs.get(s).getName();
+			out.print(name);
+			for (int i = name.length(); i < 12; i++)
+				out.print(' ');
+			out.print(' ');
 			for (int x = 0; x < dnaSeqs.size(); x++) {
-				out.printf(" %10f ", mtx[s][x]);
+				out.print(' ');
+				out.printDecimal(mtx[s][x], 6, 10);
+				out.print(' ');
 			}
 			out.println();			
 		}
 	}
 
-	static class CompressSingle implements Runnable {
-		ExpertModel eModel;		
-
-		int index1;
-		int index2;		
-
-		private CompressSingle(CommandLine cmdLine) throws Exception{
-			eModel = ExpertModelCmd.getExpertModel(cmdLine);
+	//Number of background hashes kept at a time
+	static final int BACKGROUNDS_IN_FLIGHT = 2;
+
+	/**
+	 * Compress a sequence on its own, then hash it as the background and
+	 * compress every other sequence against it
+	 */
+	static class CompressBackground extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		final CommandLine cmdLine;
+		final int index;
+
+		CompressBackground(CommandLine cmdLine, int index){
+			this.cmdLine = cmdLine;
+			this.index = index;
 		}
 
-		public CompressSingle(CommandLine cmdLine, int i1) throws Exception{
-			this(cmdLine);
-			this.index1 = i1;
-			this.index2 = -1;
-		}
-
-		public CompressSingle(CommandLine cmdLine, int i1, int i2) throws Exception{
-			this(cmdLine);
-			this.index1 = i1;
-			this.index2 = i2;
-		}
-
-
-		/* (non-Javadoc)
-		 * @see java.lang.Runnable#run()
-		 */
 		@Override
-		public void run() {
+		protected void compute() {
 			try {
-				if (index2 < 0){
-					LOG.info("Thread Single " + index1 + " started");
-					Sequence [] mS = new Sequence[1];
-					mS[0] = seqs.get(index1);
-					double score = eModel.encode_optimise(mS);
-					synchronized(resultSingle){
-						resultSingle[index1] = score;
-					}
-					LOG.info("Thread Single " + index1 + " done!");
-				}else{
-					LOG.info("Thread GB " + index1 + " - " + index2 + " started");
-					Sequence [] mS = new Sequence[2];
-					mS[0] = seqs.get(index1);
-					mS[1] = seqs.get(index2);
-					double e_ij = eModel.encode_optimise(mS);
-					synchronized(resultBG){
-						resultBG[index1][index2] = e_ij; 
-					}
-					LOG.info("Thread GB " + index1 + " - " + index2 + " done");
-
-
-					LOG.info("Thread GB2 " + index2 + " - " + index1 + " started");
-					mS[0] = seqs.get(index2);
-					mS[1] = seqs.get(index1);					
-					double e_ji = eModel.encode_optimise(mS);
-
-					synchronized(resultBG){
-						resultBG[index2][index1] = e_ji; 
-					}
-					LOG.info("Thread GB2 " + index2 + " - " + index1 + " done");
+				ExpertModel eModel = ExpertModelCmd.getExpertModel(cmdLine);
+				LOG.info("Thread Single " + index + " started");
+				Sequence [] mS = new Sequence[1];
+				mS[0] = seqs.get(index);
+				double score = eModel.encode_optimise(mS);
+				synchronized(resultSingle){
+					resultSingle[index] = score;
 				}
+				LOG.info("Thread Single " + index + " done!");
+
+				//the arena hash is not forked
+				final MyHashtable hash = "arena".equals(eModel.hashType) ? null : eModel.hashBackground(seqs.get(index));
+				ArrayList<RecursiveAction> pairs = new ArrayList<RecursiveAction>(seqs.size());
+				for (int j = 0; j < seqs.size(); j++){
+					if (j == index)
+						continue;
+					final int target = j;
+					pairs.add(new RecursiveAction(){
+						private static final long serialVersionUID = 1L;
+						@Override
+						protected void compute() {
+							try{
+								LOG.info("Thread GB " + index + " - " + target + " started");
+								ExpertModel model = ExpertModelCmd.getExpertModel(cmdLine);
+								double e_ij = (hash != null) ? model.encode_optimise(seqs.get(index), hash, seqs.get(target))
+									: model.encode_optimise(new Sequence[]{seqs.get(index), seqs.get(target)});
+								synchronized(resultBG){
+									resultBG[index][target] = e_ij; 
+								}
+								LOG.info("Thread GB " + index + " - " + target + " done");
+							} catch (Exception e) {
+								e.printStackTrace();
+							}
+						}
+					});
+				}
+				invokeAll(pairs);
 			} catch (Exception e) {
-				// TODO Auto-generated catch block
 				e.printStackTrace();
 			}
 		}
-
 	}
 }
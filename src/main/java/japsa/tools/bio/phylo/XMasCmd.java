@@ -37,14 +37,14 @@ package japsa.tools.bio.phylo;
 import japsa.seq.Alphabet;
 import japsa.seq.FastaReader;
 import japsa.seq.Sequence;
+import japsa.seq.SequenceOutputStream;
 import japsa.util.CommandLine;
 import japsa.util.JapsaMath;
 import japsa.util.deploy.Deployable;
 
-import java.io.BufferedOutputStream;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.PrintStream;
+import java.io.IOException;
 import java.util.ArrayList;
 
 
@@ -84,9 +84,9 @@ public class XMasCmd  extends CommandLine{
 
 		double[][] mtx = buildMtx(seqs);
 		
-		PrintStream out = 
-			new PrintStream(new BufferedOutputStream(new FileOutputStream(
-					cmdLine.getStringVal("output"))));		
+		SequenceOutputStream out = 
+			new SequenceOutputStream(new FileOutputStream(
+				cmdLine.getStringVal("output")));		
 		printMtx(seqs, mtx, out);		
 		/***********************************************
 		BufferedOutputStream out = 
@@ -285,13 +285,25 @@ public class XMasCmd  extends CommandLine{
 
 	/********************************************************************/
 
+	/**
+	 * Write the distance matrix in phylip format, the distances formatted as
+	 * " %10f " without creating strings
+	 */
 	public static void printMtx(ArrayList<Sequence> dnaSeqs, double[][] mtx,
-			PrintStream out) {		
-		out.println(" " + dnaSeqs.size());
+		SequenceOutputStream out) throws IOException {		
+		out.print(' ');
+		out.print(dnaSeqs.size());
+		out.println();
 		for (int s = 0; s < dnaSeqs.size(); s++) {
-			out.printf("%-12s ", dnaSeqs.get(s).getName());
+			String name = dnaSeqs.get(s).getName();
+			out.print(name);
+			for (int i = name.length(); i < 12; i++)
+				out.print(' ');
+			out.print(' ');
 			for (int x = 0; x < dnaSeqs.size(); x++) {
-				out.printf(" %10f ", mtx[s][x]);
+				out.print(' ');
+				out.printDecimal(mtx[s][x], 6, 10);
+				out.print(' ');
 			}
 			out.println();			
 		}
@@ -39,6 +39,7 @@ import japsa.seq.Sequence;
 import japsa.seq.SequenceReader;
 import japsa.util.CommandLine;
 import japsa.util.deploy.Deployable;
+import japsa.xm.ChunkedExpertModel;
 import japsa.xm.ExpertModel;
 import japsa.xm.expert.RepeatCountExpert;
 import japsa.xm.expert.RepeatExpert;
@@ -85,9 +86,18 @@ public class ExpertModelCmd extends CommandLine{
 
 		addInt("checkPoint", 1000000, "Frequency of check point");
 		addString("hashType", "hash",
-			"Type of Hash table: hash=hashtable, sft=SuffixTree,sfa = SuffixArray");
+			"Type of Hash table: hash=hashtable, arena=compact hashtable, sft=SuffixTree,sfa = SuffixArray");
+		addInt("hashLimit", 0,
+			"Maximum number of positions kept by the arena hashtable (oldest evicted), 0 for no limit");
 		addBoolean("selfRep", true,
 			"Propose experts from the sequence to compressed?");
+		addInt("thread", 1,
+			"Number of threads: if more than 1, the sequence is encoded in chunks in parallel (except in optimise mode)");
+		addInt("chunk", 1000000, "Size of the chunks for parallel encoding");
+		addInt("warmUp", 100000,
+			"Number of symbols before a chunk modelled (but not counted) to warm up the model");
+		addDouble("tolerance", 0.01,
+			"A chunk is encoded again with a longer warm-up if it starts this much (in bits per symbol) worse than the previous chunk");
 		
 		addStdHelp();		
 	} 
@@ -190,6 +200,14 @@ public class ExpertModelCmd extends CommandLine{
 		}
 		System.out.println("--------------------------------------------------------");
 
+		ChunkedExpertModel chunked = null;
+		if (cmdLine.getIntVal("thread") > 1) {
+			chunked = new ChunkedExpertModel(eModel, cmdLine.getIntVal("thread"));
+			chunked.setChunkSize(cmdLine.getIntVal("chunk"));
+			chunked.setWarmUp(cmdLine.getIntVal("warmUp"));
+			chunked.setTolerance(cmdLine.getDoubleVal("tolerance"));
+		}
+
 		long start;
 		/*************************************************************************/
 		if (cmdLine.getBooleanVal("optimise")) {
@@ -221,8 +239,8 @@ public class ExpertModelCmd extends CommandLine{
 			System.gc();
 			System.out.println("Real  encoding");
 			start = System.currentTimeMillis();
-			File outputFile = eModel.realEncode(dnaArray, cmdLine
-				.getStringVal("real"));
+			File outputFile = (chunked != null) ? chunked.realEncode(dnaArray, cmdLine.getStringVal("real"))
+				: eModel.realEncode(dnaArray, cmdLine.getStringVal("real"));
 
 			System.out.println(" Time encode "
 				+ (System.currentTimeMillis() - start) / 1000.0
@@ -230,12 +248,18 @@ public class ExpertModelCmd extends CommandLine{
 			System.out.println(" Encoding cost = "
 				+ (outputFile.length() * 8.0)
 				/ dnaArray[dnaArray.length - 1].length() + "bps");
+			if (chunked != null)
+				System.out.println(" " + chunked.summary());
 
 		} else if (cmdLine.getStringVal("info") != null) {
 			System.gc();
 			start = System.currentTimeMillis();
-			eModel.encode(dnaArray, cmdLine.getStringVal("info"), cmdLine
-				.getStringVal("markov"));// ,args[1]);
+			if (chunked != null)
+				chunked.encode(dnaArray, cmdLine.getStringVal("info"), cmdLine
+					.getStringVal("markov"));
+			else
+				eModel.encode(dnaArray, cmdLine.getStringVal("info"), cmdLine
+					.getStringVal("markov"));// ,args[1]);
 			System.out.println("Total time "
 				+ (System.currentTimeMillis() - start) + "ms");
 		} else {// Normal
@@ -243,12 +267,14 @@ public class ExpertModelCmd extends CommandLine{
 			System.gc();
 			start = System.currentTimeMillis();
 			// seqHash[1] = japsa.seq;
-			double costs = eModel.encode1(dnaArray);// ,args[1]);
+			double costs = (chunked != null) ? chunked.encode1(dnaArray) : eModel.encode1(dnaArray);// ,args[1]);
 
 			long time = (System.currentTimeMillis() - start);
 			// System.out.printf(" Comp rate : #%f#\n",total /
 			// costs.length);
 			System.out.printf("%f bps in %d ms\n", costs, time);
+			if (chunked != null)
+				System.out.println(chunked.summary());
 			System.out
 			.println("=============================================================================");
 		}
@@ -275,6 +301,7 @@ public class ExpertModelCmd extends CommandLine{
 			expertsLimit, listenThreshold, chances, cmdLine
 			.getBooleanVal("binaryHash"));
 		eModel.setHashType(cmdLine.getStringVal("hashType"));
+		eModel.setHashLimit(cmdLine.getIntVal("hashLimit"));
 
 		eModel.setSelfRep(cmdLine.getBooleanVal("selfRep"));
 
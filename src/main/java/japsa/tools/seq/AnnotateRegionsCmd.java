@@ -33,11 +33,13 @@
  ****************************************************************************/
 package japsa.tools.seq;
 
+import japsa.seq.FeatureIndex;
 import japsa.seq.JapsaAnnotation;
 import japsa.seq.JapsaFeature;
 import japsa.seq.JapsaFileFormat;
 import japsa.seq.SequenceOutputStream;
 import japsa.util.CommandLine;
+import japsa.util.IntArray;
 import japsa.util.deploy.Deployable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -87,19 +89,19 @@ public class AnnotateRegionsCmd extends CommandLine{
 			System.out.println(inputAnno.getDescription() + 
 					"      " + annoAnno.getDescription());			
 			
-			//TODO: A slow version
+			FeatureIndex index = annoAnno.getIndex();
+			IntArray hits = new IntArray();
 			for (int i = 0; i < inputAnno.numFeatures();i++){
 				JapsaFeature inputFeature = inputAnno.getFeature(i);
 				
 				String dDest = "";
-				for (int j = 0; j < annoAnno.numFeatures(); j++){
-					
-					JapsaFeature annoFeature = annoAnno.getFeature(j);
-					if (inputFeature.getStart() < annoFeature.getEnd()
-						&& 	inputFeature.getEnd() > annoFeature.getStart()
-					){
-						dDest = dDest +("@"+annoFeature.getType() + "(" + annoFeature.getID()+"," + annoFeature.getParent()+")");
-					}//if
+				//annotations that start before the end of the region and end
+				//after its start
+				hits.clear();
+				index.query(inputFeature.getEnd() - 1, inputFeature.getStart() + 1, hits);
+				for (int j = 0; j < hits.size(); j++){
+					JapsaFeature annoFeature = index.getFeature(hits.get(j));
+					dDest = dDest +("@"+annoFeature.getType() + "(" + annoFeature.getID()+"," + annoFeature.getParent()+")");
 				}//for
 				if(dDest.length() > 0)
 					inputFeature.addDesc("@"+dDest);
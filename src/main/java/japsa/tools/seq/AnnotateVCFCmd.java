@@ -34,11 +34,13 @@
 
 package japsa.tools.seq;
 
+import japsa.seq.FeatureIndex;
 import japsa.seq.JapsaAnnotation;
 import japsa.seq.JapsaFeature;
 import japsa.seq.SequenceOutputStream;
 import japsa.seq.XAFReader;
 import japsa.util.CommandLine;
+import japsa.util.IntArray;
 import japsa.util.deploy.Deployable;
 
 import java.io.FileInputStream;
@@ -95,6 +97,7 @@ public class AnnotateVCFCmd extends CommandLine{
 		SequenceOutputStream out =  SequenceOutputStream.makeOutputStream(output);
 
 		JapsaAnnotation anno = null;
+		IntArray hits = new IntArray();
 		XAFReader xaf = new XAFReader(vcf);		
 		while (xaf.next() != null){
 			//System.out.println(xaf.recordNo());			
@@ -117,20 +120,17 @@ public class AnnotateVCFCmd extends CommandLine{
 			
 			if (anno != null){
 				//System.out.println(anno.getAnnotationID() + " : " + anno.numFeatures() + " " + pos);
-				for (int i =0; i < anno.numFeatures(); i++){
-					JapsaFeature feature = anno.getFeature(i);
-					//System.out.println("====" + feature.getStart() + " -- " + feature.getEnd());
-					if (feature.getStart() <= pos && feature.getEnd() >= pos){
-						out.print("\t" + feature.getID() + "(" + feature.getStart()+"," + feature.getEnd()+")");
-						String [] tt = feature.getDesc().split(";|\n");
-						for (String t:tt){
-							if (t.startsWith("product="))
-								out.print(";" + t);
-						}
-
-
-					}else if (feature.getStart() > pos)
-						break;//for					
+				FeatureIndex index = anno.getIndex();
+				hits.clear();
+				index.overlap(pos, pos, hits);
+				for (int i =0; i < hits.size(); i++){
+					JapsaFeature feature = index.getFeature(hits.get(i));
+					out.print("\t" + feature.getID() + "(" + feature.getStart()+"," + feature.getEnd()+")");
+					String [] tt = feature.getDesc().split(";|\n");
+					for (String t:tt){
+						if (t.startsWith("product="))
+							out.print(";" + t);
+					}
 				}
 			}
 			out.println();
@@ -35,7 +35,6 @@
 package japsa.tools.seq;
 
 import japsa.seq.Alphabet;
-import japsa.seq.FastqReader;
 import japsa.seq.FastqSequence;
 import japsa.seq.Sequence;
 import japsa.seq.SequenceOutputStream;
@@ -208,7 +207,7 @@ public class BinningSequenceCmd extends CommandLine{
 		//2.Binning based on the map
 		SequenceReader seqReader = SequenceReader.getReader(seqFile);
 		String extension;
-		if(seqReader instanceof FastqReader)
+		if(seqReader.isFastq())
 			extension=".fastq";
 		else
 			extension=".fasta";
@@ -35,6 +35,7 @@
 package japsa.tools.seq;
 
 import japsa.seq.Alphabet;
+import japsa.seq.IndexedFastaReader;
 import japsa.seq.JapsaAnnotation;
 import japsa.seq.JapsaFeature;
 import japsa.seq.Sequence;
@@ -102,6 +103,26 @@ public class ExtractGeneSequenceCmd extends CommandLine{
 
 		LOG.info("Read " + annos.size());
 
+		//Extract the regions directly with the index if possible 
+		IndexedFastaReader indexedReader = IndexedFastaReader.openIfIndexable(sequence);
+		if (indexedReader != null){
+			for (JapsaAnnotation anno:annos){
+				if (!indexedReader.contains(anno.getAnnotationID())){
+					LOG.error("Sequence " + anno.getAnnotationID() + " not found");
+					indexedReader.close();
+					out.close();				
+					System.exit(1);
+				}
+				for (JapsaFeature feature:anno.getFeatureList()){
+					Sequence featureSeq = featureSequence(indexedReader, anno.getAnnotationID(), feature, flank);
+					featureSeq.setDesc(feature.getDesc());
+					featureSeq.writeFasta(out);
+				}
+			}
+			indexedReader.close();
+			return;
+		}
+
 		SequenceReader reader = SequenceReader.getReader(sequence);
 		Sequence seq = reader.nextSequence(Alphabet.DNA());
 
@@ -137,6 +158,23 @@ public class ExtractGeneSequenceCmd extends CommandLine{
 		reader.close();
 	}
 
+	/**
+	 * Extract the sequence of a feature, with flanking regions, through the
+	 * fasta index. The name of the sequence is set in the same way as the 
+	 * extraction from a loaded sequence.
+	 */
+	static Sequence featureSequence(IndexedFastaReader indexedReader, String seqName, JapsaFeature feature, int flank) throws IOException{
+		int start = feature.getStart() - 1;//note: convert 1-index, inclusive to 0-index inclusive 
+		int end = feature.getEnd();//note: 1-index, inclusive == 0-index exclusive
+		Sequence featureSeq = indexedReader.subsequenceWithFlank(seqName, start, end, flank, Alphabet.DNA());
+
+		if (feature.getStrand() == '-')
+			featureSeq = Alphabet.DNA.complement(featureSeq);
+
+		featureSeq.setName(seqName + ":" + (start + 1) + "-" + end +":" + feature.getStrand() + ":" + indexedReader.sequenceLength(seqName));
+		return featureSeq;
+	}
+
 	public static HashMap<String, Sequence>  extractGenes(String sequence, String gff, String type, int flank) throws IOException{
 		HashMap<String, Sequence> seqList = new HashMap<String, Sequence>();
 
@@ -147,6 +185,25 @@ public class ExtractGeneSequenceCmd extends CommandLine{
 
 		LOG.info("Read " + annos.size());
 
+		//Extract the regions directly with the index if possible 
+		IndexedFastaReader indexedReader = IndexedFastaReader.openIfIndexable(sequence);
+		if (indexedReader != null){
+			for (JapsaAnnotation anno:annos){
+				if (!indexedReader.contains(anno.getAnnotationID())){
+					LOG.error("Sequence " + anno.getAnnotationID() + " not found");
+					indexedReader.close();
+					System.exit(1);
+				}
+				for (JapsaFeature feature:anno.getFeatureList()){
+					Sequence featureSeq = featureSequence(indexedReader, anno.getAnnotationID(), feature, flank);
+					featureSeq.setDesc("Type=" + feature.getType() + ";" + feature.getDesc());
+					seqList.put(featureSeq.getName(),featureSeq);
+				}
+			}
+			indexedReader.close();
+			return seqList;
+		}
+
 		SequenceReader reader = SequenceReader.getReader(sequence);
 		Sequence seq = reader.nextSequence(Alphabet.DNA());
 
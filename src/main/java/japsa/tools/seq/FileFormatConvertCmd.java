@@ -64,6 +64,7 @@ public class FileFormatConvertCmd extends CommandLine{
 		addString("output", "-", "Name of the output file,  - for standard output");
 		addString("format", "fasta", "Format of output file. Options : japsa, fasta and phylip");
 		addStdAlphabet();
+		addInt("thread", 1, "Number of threads to compress the output if it is gzipped (.gz)");
 	
 		addStdHelp();		
 	} 
@@ -88,7 +89,7 @@ public class FileFormatConvertCmd extends CommandLine{
 		/********************************************************************/
 
 		SequenceReader reader = SequenceReader.getReader(input);
-		SequenceOutputStream out = SequenceOutputStream.makeOutputStream((output));			
+		SequenceOutputStream out = SequenceOutputStream.makeOutputStream(output, true, cmdLine.getIntVal("thread"));			
 
 		Sequence seq;
 		//if (format.equals("nexus")){
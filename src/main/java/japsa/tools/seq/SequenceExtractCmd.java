@@ -5,6 +5,7 @@ package japsa.tools.seq;
 
 
 import japsa.seq.Alphabet;
+import japsa.seq.IndexedFastaReader;
 import japsa.seq.Sequence;
 import japsa.seq.SequenceOutputStream;
 import japsa.seq.SequenceReader;
@@ -65,7 +66,11 @@ public class SequenceExtractCmd extends CommandLine {
 		boolean rev = cmdLine.getBooleanVal("reverse");
 		
 		/**********************************************************************/		
-		ArrayList<Sequence> seqs = SequenceReader.readAll(inputFile, alphabet);		
+		//Use the fasta index if possible, otherwise load all sequences
+		IndexedFastaReader indexedReader = IndexedFastaReader.openIfIndexable(inputFile);
+		ArrayList<Sequence> seqs = null;
+		if (indexedReader == null)
+			seqs = SequenceReader.readAll(inputFile, alphabet);		
 		SequenceOutputStream ps = SequenceOutputStream
 				.makeOutputStream(outputFile);		
 
@@ -76,11 +81,13 @@ public class SequenceExtractCmd extends CommandLine {
 			int start = Integer.parseInt(toks[0]);
 			int end = Integer.parseInt(toks[1]);
 			
-			Sequence seq = findSequence(seqs, chr);
-			if (seq == null){
+			boolean found = (indexedReader != null) ? indexedReader.contains(chr) 
+					: (findSequence(seqs, chr) != null);
+			if (!found){
 				LOG.error("Sequence " + chr + " not found");
 			}else{
-				Sequence newSequence = seq.subSequence(start - 1, end);			
+				Sequence newSequence = (indexedReader != null) ? indexedReader.subSequence(chr, start - 1, end, alphabet)
+						: findSequence(seqs, chr).subSequence(start - 1, end);			
 				if (rev)
 					newSequence = Alphabet.DNA.complement(newSequence);
 				
@@ -92,6 +99,8 @@ public class SequenceExtractCmd extends CommandLine {
 			}
 		}// for
 		ps.close();
+		if (indexedReader != null)
+			indexedReader.close();
 	}
 	/**
 	 * Find a sequence with ID from a list
@@ -37,11 +37,13 @@ package japsa.tools.seq;
 
 import japsa.seq.Alphabet;
 import japsa.seq.Sequence;
+import japsa.seq.SequenceBatchReader;
 import japsa.seq.SequenceReader;
 import japsa.util.CommandLine;
 import japsa.util.deploy.Deployable;
 
 import java.io.IOException;
+import java.util.List;
 
 
 /**
@@ -61,6 +63,7 @@ public class SequenceStatsCmd extends CommandLine{
 
 		addStdInputFile();
 		addStdAlphabet();//aphabet
+		addInt("thread", 1, "Number of threads to decode the input");
 
 		addStdHelp();		
 	}
@@ -78,22 +81,41 @@ public class SequenceStatsCmd extends CommandLine{
 		/**********************************************************************/	
 
 
+		int thread = cmdLine.getIntVal("thread");
+
 		SequenceReader reader = SequenceReader.getReader(input);
 		long total = 0;
 		int numSeq = 0;
-		Sequence seq;
-		while ((seq = reader.nextSequence(alphabet))!= null){
-			total += seq.length();
-			numSeq ++;
-			System.out.println(seq.getName() + " :  " + seq.length() + " bases");
-			System.out.println(seq.getDesc());
-			getComposition(seq);
+		if (thread > 1 && (reader.isFasta() || reader.isFastq())){
+			SequenceBatchReader batchReader = reader.batches(alphabet, 1000, thread);
+			List<Sequence> batch;
+			while ((batch = batchReader.nextBatch()) != null){
+				for (Sequence seq:batch){
+					total += seq.length();
+					numSeq ++;
+					printStats(seq);
+				}
+			}
+			batchReader.close();
+		}else{
+			Sequence seq;
+			while ((seq = reader.nextSequence(alphabet))!= null){
+				total += seq.length();
+				numSeq ++;
+				printStats(seq);
+			}
+			reader.close();
 		}
-		reader.close();
 		System.out.println("Total = " + total + " bases in " + numSeq + " sequences.");
 	}
 
 
+	static private void printStats(Sequence seq) {
+		System.out.println(seq.getName() + " :  " + seq.length() + " bases");
+		System.out.println(seq.getDesc());
+		getComposition(seq);
+	}
+
 	/**
 	 * Get properties of the sequences in the file
 	 * 
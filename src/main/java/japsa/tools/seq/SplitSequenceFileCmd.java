@@ -36,6 +36,7 @@ package japsa.tools.seq;
 
 import japsa.seq.Alphabet;
 import japsa.seq.Sequence;
+import japsa.seq.SequenceOutputStream;
 import japsa.seq.SequenceReader;
 import japsa.util.CommandLine;
 import japsa.util.deploy.Deployable;
@@ -91,11 +92,15 @@ public class SplitSequenceFileCmd extends CommandLine{
 		Sequence seq;
 		if (format.equals("fasta")){
 			while ((seq = reader.nextSequence(alphabet)) != null){
-				seq.writeFasta(output+seq.getName()+".fasta");
+				SequenceOutputStream out = SequenceOutputStream.makeOutputStream(output+seq.getName()+".fasta", true, 1);
+				seq.writeFasta(out);
+				out.close();
 			}
 		}else {//if (outType.equals("jsa")){
 			while ((seq = reader.nextSequence(alphabet)) != null){
-				seq.writeJSA(output+seq.getName()+".jsa");
+				SequenceOutputStream out = SequenceOutputStream.makeOutputStream(output+seq.getName()+".jsa", true, 1);
+				seq.writeJSA(out);
+				out.close();
 			}
 		}		
 		reader.close();
@@ -35,6 +35,7 @@ package japsa.tools.util;
 
 import japsa.util.CommandLine;
 import japsa.util.deploy.Deployable;
+import japsa.util.net.ReconnectingOutputStream;
 import japsa.util.net.StreamClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,7 +43,6 @@ import org.slf4j.LoggerFactory;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.Socket;
 import java.util.Date;
 
 /**
@@ -65,6 +65,8 @@ public class StreamClientCmd extends CommandLine{
 
 		addStdInputFile();
 		addString("server",null, "Stream output to one or more servers, format IP:port,IP:port",true);
+		addInt("retries",StreamClient.retries, "Number of attempts to reconnect to a server, negative to retry forever");
+		addInt("retryDelay",(int) StreamClient.retryDelay, "Delay between attempts to reconnect (in milliseconds)");
 		
 		addStdHelp();
 	} 
@@ -83,6 +85,8 @@ public class StreamClientCmd extends CommandLine{
 		args = cmdLine.stdParseLine(args);						
 		/**********************************************************************/
 		String input = cmdLine.getStringVal("input");
+		StreamClient.retries = cmdLine.getIntVal("retries");
+		StreamClient.retryDelay = cmdLine.getIntVal("retryDelay");
 		StreamClient client = new StreamClient(cmdLine.getStringVal("server"));
 		LOG.info("Connection established at " + new Date());
 
@@ -95,14 +99,14 @@ public class StreamClientCmd extends CommandLine{
 				break;
 			int count = 0;
 			
-			for (Socket socket:client.getSockets()){
-				if (!socket.isClosed()){
+			for (ReconnectingOutputStream out:client.getOutputStreams()){
+				if (out.isOpen()){
 					try {
-						socket.getOutputStream().write(buffer,0, ret);
+						out.write(buffer,0, ret);
 						count ++;
 					} catch (IOException e) {
-						LOG.info("Connection to " + socket.getRemoteSocketAddress() + " closed at "+ new Date());
-						socket.close();
+						LOG.info("Connection to " + out + " closed at "+ new Date() + ": " + e.getMessage());
+						out.close();
 					}					
 				}				
 			}
@@ -36,12 +36,11 @@ package japsa.tools.util;
 import japsa.util.CommandLine;
 import japsa.util.deploy.Deployable;
 
+import japsa.util.net.StreamHub;
+
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.util.Date;
 
-import com.google.common.io.ByteStreams;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -66,6 +65,15 @@ public class StreamServerCmd extends CommandLine{
 		setDesc(annotation.scriptDesc());
 		
 		addInt("port", DEFAULT_PORT,  "Port to listen to");	
+		addString("output", "-",  "Output of the merged stream: - for standard output, or none");
+		addString("forward", null,  "Also forward the merged stream to one or more servers, format IP:port,IP:port");
+		addString("policy", "block",  "What to do when the buffer of a subscriber is full: block (wait for it) or drop (discard new records)");
+		addInt("buffer", 64,  "Size of the buffer of each subscriber (in MB)");
+		addInt("retryDelay", 1000,  "Delay between attempts to reconnect a forward server (in milliseconds)");
+		addString("format", "auto",  "Format of the records: fastq, fasta, line, or auto to detect from the first record");
+		addBoolean("persist", false,  "Keep listening after all producers have disconnected");
+		addInt("grace", 30,  "Seconds to wait for producers to reconnect after the last one disconnects, if not persist");
+		addInt("report", 0,  "Report throughput every this many seconds, 0 to report only at the end");
 		
 		addStdHelp();		
 	} 
@@ -83,14 +91,51 @@ public class StreamServerCmd extends CommandLine{
 		/**********************************************************************/
 				
 		int port = cmdLine.getIntVal("port");
-		
-		ServerSocket serverSocket = new ServerSocket(port);
-		LOG.info("Listen on " +  serverSocket.getInetAddress() + ":" + serverSocket.getLocalPort());
-	    Socket clientSocket = serverSocket.accept();	    
-	    LOG.info("Connection established at " + new Date());
-	    ByteStreams.copy(clientSocket.getInputStream(), System.out);
-	    serverSocket.close();
-	    LOG.info("Connection closed at " + new Date());
+		String output = cmdLine.getStringVal("output");
+		String forward = cmdLine.getStringVal("forward");
+		String policyStr = cmdLine.getStringVal("policy");
+		long capacity = cmdLine.getIntVal("buffer") * (1L << 20);
+
+		StreamHub.Policy policy;
+		if (policyStr.equals("block"))
+			policy = StreamHub.Policy.BLOCK;
+		else if (policyStr.equals("drop"))
+			policy = StreamHub.Policy.DROP;
+		else{
+			System.err.println("Unknown policy " + policyStr + "\n" + cmdLine.usageString());
+			System.exit(-1);
+			return;
+		}
+
+		StreamHub hub = new StreamHub(port);
+		hub.setPersist(cmdLine.getBooleanVal("persist"));
+		hub.setGrace(cmdLine.getIntVal("grace"));
+		try{
+			hub.setFormat(cmdLine.getStringVal("format"));
+		}catch (IllegalArgumentException e){
+			System.err.println(e.getMessage() + "\n" + cmdLine.usageString());
+			System.exit(-1);
+		}
+		hub.setReportInterval(cmdLine.getIntVal("report"));
+
+		if (output.equals("-"))
+			hub.addSubscriber("stdout", System.out, policy, capacity);
+		else if (!output.equals("none")){
+			System.err.println("Unknown output " + output + "\n" + cmdLine.usageString());
+			System.exit(-1);
+		}
+		if (forward != null){
+			for (String server:forward.split(",")){
+				String [] toks = server.trim().split(":");
+				int serverPort = toks.length > 1 ? Integer.parseInt(toks[1]) : DEFAULT_PORT;
+				hub.addSubscriber(toks[0], serverPort, policy, capacity, cmdLine.getIntVal("retryDelay"));
+			}
+		}
+
+		LOG.info("Hub started at " + new Date());
+		hub.run();
+		hub.close();
+		LOG.info("Hub stopped at " + new Date());
 	}
 }
 
@@ -105,6 +150,22 @@ output. *jsa.util.streamServer* and *jsa.util.streamClient* can be used to
 set up streaming applications such as real-time analyses. By default, 
 the server listens on port 3456, unless specified otherwise.
 
+The server accepts many clients at the same time, and merges their streams
+record by record (fastq, fasta or lines), so a record is never broken by 
+another. The merged stream is written to the standard output, and can also
+be forwarded to other servers (option --forward), each with its own buffer.
+When the buffer of a subscriber is full, the server either waits for it 
+(--policy block) or discards new records for that subscriber (--policy drop), 
+so a slow subscriber does not hold up the others. Forward servers are 
+reconnected when their connection is lost. The server stops when no client
+has been connected for --grace seconds, unless --persist is set, so clients
+that lost their connection have time to reconnect. The data of a client
+that reconnects are skipped to its first complete fastq or fasta record;
+set --format when the first client to connect may start in the middle of 
+a record. Clients reconnect and resume, but there are no acknowledgements:
+records of a client that reconnects may be received twice, and data still
+in transit when a connection drops may be lost.
+
 <usage>
 
 
@@ -35,8 +35,10 @@ package japsa.util;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import htsjdk.samtools.CigarElement;
+import htsjdk.samtools.CigarOperator;
 import htsjdk.samtools.SAMRecord;
 import japsa.seq.Alphabet;
 import japsa.seq.Sequence;
@@ -68,59 +70,42 @@ public class HTSUtilities {
 		if(refStart > fromPos || refEnd < toPos)
 			return null;
 
-		int refPos = refStart;
-		int readPos = 0;
 		int readFrom = 0, readTo = 0;
 
-		for (final CigarElement e : record.getCigar().getCigarElements()){
-			if (readTo > 0)
-				break;
-
-			final int  length = e.getLength();
-			switch (e.getOperator()) {
+		CigarWalker walker = new CigarWalker().reset(record);
+		while (readTo == 0 && walker.next()){
+			switch (walker.getOperator()) {
 			case H :
-				break; // ignore hard clips
-			case P :				 					
-				break; // ignore pads	                
+			case P :
 			case S :
-				readPos += length;
-				break; // soft clip read bases	                	
 			case N : 
-				refPos += length;				
-				break;  // reference skip
+			case I :
+				break;
 			case D ://deletion 
-				refPos += length;
-
-				if (refPos >=fromPos && readFrom == 0){					
-					readFrom = readPos;
+				if (walker.getRefEnd() >= fromPos && readFrom == 0){					
+					readFrom = walker.getReadEnd();
 				}
 
-				if (refPos >=toPos && readTo == 0){					
-					readTo = readPos + 1;
+				if (walker.getRefEnd() >= toPos && readTo == 0){					
+					readTo = walker.getReadEnd() + 1;
 				}
 
-				break;
-			case I :	                	
-				readPos += length;
 				break;
 			case M :
 			case EQ :				
 			case X :				
-				readPos += length;
-				refPos  += length;
-
-				if (refPos >=fromPos && readFrom == 0){					
-					readFrom = readPos - refPos + fromPos;
+				if (walker.getRefEnd() >= fromPos && readFrom == 0){					
+					readFrom = walker.getReadEnd() - walker.getRefEnd() + fromPos;
 				}
 
-				if (refPos >=toPos && readTo == 0){			
-					readTo = readPos - refPos + toPos;					
+				if (walker.getRefEnd() >= toPos && readTo == 0){			
+					readTo = walker.getReadEnd() - walker.getRefEnd() + toPos;					
 				}
 
 				break;
-			default : throw new IllegalStateException("Case statement didn't deal with cigar op: " + e.getOperator());
+			default : throw new IllegalStateException("Case statement didn't deal with cigar op: " + walker.getOperator());
 			}//case
-		}//for	
+		}//while	
 
 		if (readFrom ==0 || readTo ==0){
 			LOG.error("Error at HTSUtilities.readSequence " + readFrom + " " + readTo, 1);
@@ -146,66 +131,13 @@ public class HTSUtilities {
 		if (seqRead.length <= 1)
 			return null;
 
-		int startRead = -1, endRead = -1;
-
-		int refPos = rec.getAlignmentStart();
-		int readPos = 0;		
-		//currentRefPos <= startRead				
-
-		for (final CigarElement e : rec.getCigar().getCigarElements()) {
-			int length = e.getLength();
-			switch (e.getOperator()) {
-			case H:
-				break; // ignore hard clips
-			case P:
-				break; // ignore pads
-			case S:
-				readPos += e.getLength();								
-				break; // soft clip read bases
-			case N: // N ~ D
-			case D:
-				refPos += length;
-
-				if (startRead < 0  && refPos >= startRef){					
-					startRead = readPos;
-				}
-
-				if (endRead < 0  && refPos >= endRef){					
-					endRead = readPos;
-				}
-
-				break;// case
-			case I:				
-				readPos += length;						
-				break;
-
-			case M:
-			case EQ:
-			case X:				
-				if ((startRead < 0) && refPos + length >= startRef) {
-					startRead = readPos + startRef - refPos;					
-				}
-
-				if ((endRead < 0) && (refPos + length >= endRef)){
-					endRead = readPos + endRef - refPos;
-				}
-
-				refPos += length;
-				readPos += length;				
-				break;
-			default:
-				throw new IllegalStateException(
-						"Case statement didn't deal with cigar op: "
-								+ e.getOperator());
-			}// case
-			if (refPos >= endRef)
-				break;//for
-
-		}// for
-		if (startRead < 0 || endRead < 0){
-			LOG.warn(" " + refPos + "  " + readPos + " " + startRead + " " + endRead);
+		CigarWalker walker = new CigarWalker();
+		int [] range = new int[2];
+		if (!walker.readRange(rec, startRef, endRef, range)){
+			LOG.warn(" " + walker.getRefEnd() + "  " + walker.getReadEnd() + " " + range[0] + " " + range[1]);
 			return null;
-		}		
+		}
+		int startRead = range[0], endRead = range[1];
 
 		Alphabet alphabet = Alphabet.DNA16();
 		Sequence retSeq = new Sequence(alphabet, endRead - startRead + 1, rec.getReadName() + "/" + startRead + "_" + endRead);
@@ -240,9 +172,10 @@ public class HTSUtilities {
 			//readStart = position of alignment start of read
 			//readEnd = position of alignment end of read
 			boolean enterAlignment = false;		
-			for (final CigarElement e : record.getCigar().getCigarElements()) {				
-				final int  length = e.getLength();
-				switch (e.getOperator()) {
+			CigarWalker walker = new CigarWalker().reset(record);
+			while (walker.next()) {				
+				final int  length = walker.getLength();
+				switch (walker.getOperator()) {
 				case H :
 				case P : //pad is a kind of clipped
 					//throw new RuntimeException("Hard clipping is not supported for this read");
@@ -268,9 +201,9 @@ public class HTSUtilities {
 						enterAlignment = true;
 					}
 					break;				
-				default : throw new IllegalStateException("Case statement didn't deal with cigar op: " + e.getOperator());
+				default : throw new IllegalStateException("Case statement didn't deal with cigar op: " + walker.getOperator());
 				}//case
-			}//for
+			}//while
 
 			if (readEnd == 0)
 				readEnd = readLength;//1-index
@@ -324,100 +257,23 @@ public class HTSUtilities {
 	/**
 	 * Get the identity between a read sequence from a sam and a reference sequence
 	 * @param refSeq
+	 * @param readSeq the read, in Alphabet.DNA()
 	 * @param sam
 	 * @return
 	 */
 	public static IdentityProfile identity(Sequence refSeq, Sequence readSeq,  SAMRecord sam){
-		IdentityProfile profile = new IdentityProfile();
-
-		int readPos = 0;//start from 0					
-		int refPos = sam.getAlignmentStart() - 1;//convert to 0-based index				
-
-		profile.readClipped = 0;
-		profile.refClipped = sam.getAlignmentStart() + refSeq.length() - sam.getAlignmentEnd();
-		profile.baseDel = 0;
-		profile.baseIns = 0;
-		profile.numDel = 0;
-		profile.numIns = 0;
-		profile.match = 0;
-		profile.mismatch = 0;
-		profile.refBase = 0;
-		profile.readBase = 0;//the number of bases from ref and read
-
-		for (final CigarElement e : sam.getCigar().getCigarElements()) {
-			final int  length = e.getLength();
-			switch (e.getOperator()) {
-			case H :
-				//nothing todo
-				profile.readClipped += length;
-				break; // ignore hard clips
-			case P : 
-				profile.readClipped += length;
-				//pad is a kind of hard clipped ?? 					
-				break; // ignore pads	                
-			case S :
-				//advance on the reference
-				profile.readClipped += length;
-				readPos += length;
-				break; // soft clip read bases	                	
-			case N : 
-				refPos += length; 
-				profile.refClipped += length;
-				break;  // reference skip
-
-			case D ://deletion      	
-				refPos += length;
-				profile.refBase += length;
-
-				profile.baseDel += length;
-				profile.numDel ++;
-				break; 	
-
-			case I :	                	
-				readPos += length;
-				profile.readBase += length;
-
-				profile.baseIns += length;
-				profile.numIns ++;
-				break;
-			case M :
-				for (int i = 0; i < length && refPos + i < refSeq.length(); i++){
-					if (refSeq.getBase(refPos + i) == readSeq.getBase(readPos + i))
-						profile.match ++;
-					else
-						profile.mismatch ++;
-				}
-				profile.readBase += length;
-				profile.refBase += length;
-
-				readPos += length;
-				refPos  += length;
-				break;
-
-			case EQ :
-				readPos += length;
-				refPos  += length;
-
-				profile.readBase += length;
-				profile.refBase += length;
-				profile.match += length;
-				break;
-
-			case X :
-				readPos += length;
-				refPos  += length;
-
-				profile.readBase += length;
-				profile.refBase += length;
-
-				profile.mismatch += length;
-				break;
-			default : throw new IllegalStateException("Case statement didn't deal with cigar op: " + e.getOperator());
-			}//case
-		}//for			
-
-		return profile;
+		return new CigarWalker().identity(refSeq.toBytes(), readSeq.toBytes(), sam, new IdentityProfile());
+	}
 
+	/**
+	 * Get the identity between the read of a sam and a reference sequence,
+	 * taking the read bases from the sam record
+	 * @param refSeq
+	 * @param sam
+	 * @return
+	 */
+	public static IdentityProfile identity(Sequence refSeq, SAMRecord sam){
+		return new CigarWalker().identity(refSeq.toBytes(), sam, new IdentityProfile());
 	}
 
 
@@ -428,74 +284,315 @@ public class HTSUtilities {
 	 * @return
 	 */
 	public static int[] positionsInRead(SAMRecord sam, final int [] refPositions){
-		int readPos = 0;//start from 0					
-		int refPos = sam.getAlignmentStart();//convert to 0-based index		
-		int [] readPositions = new int[refPositions.length];
-		int index = 0;
+		return new CigarWalker().positionsInRead(sam, refPositions, new int[refPositions.length]);
+	}
 
-		while (index < refPositions.length && refPositions[index] <= refPos)
-			index ++;
+	/**
+	 * A cursor over the cigar of an alignment. It walks the cigar elements 
+	 * one at a time, keeping track of the positions on the reference and on 
+	 * the read at the start of the current element, and answers the queries
+	 * of this class directly from the read bases of the record 
+	 * (SAMRecord.getReadBases()) and the bytes of the reference, without
+	 * creating any intermediate Sequence or String. 
+	 * 
+	 * A walker can be reused for many records, but is not thread-safe.
+	 */
+	public static class CigarWalker{
+		private List<CigarElement> elements;
+		private int index;
+
+		private CigarOperator operator;
+		private int length;
+		//position (1-based) on the reference and (0-based) on the read, 
+		//including soft-clipped bases, at the start of the current element
+		private int refStart, readStart;
+
+		/**
+		 * Start walking the cigar of a record
+		 * @param sam
+		 * @return this walker
+		 */
+		public CigarWalker reset(SAMRecord sam){
+			elements = sam.getCigar().getCigarElements();
+			index = 0;
+			operator = null;
+			length = 0;
+			refStart = sam.getAlignmentStart();
+			readStart = 0;
+			return this;
+		}
 
-		if (index >= refPositions.length) 
-			return readPositions;		
+		/**
+		 * Move to the next cigar element
+		 * @return false if there is no more element
+		 */
+		public boolean next(){
+			refStart = getRefEnd();
+			readStart = getReadEnd();
+			if (index >= elements.size()){
+				operator = null;
+				length = 0;
+				return false;
+			}
+			CigarElement e = elements.get(index++);
+			operator = e.getOperator();
+			length = e.getLength();
+			return true;
+		}
 
-		for (final CigarElement e : sam.getCigar().getCigarElements()) {
-			//assert: refPositions[index] > refPos
+		/**
+		 * @return the operator of the current element
+		 */
+		public CigarOperator getOperator() {
+			return operator;
+		}
 
-			final int  length = e.getLength();
-			switch (e.getOperator()) {
-			case H :
-				//nothing todo				
-				break; // ignore hard clips
-			case P :				
-				//pad is a kind of hard clipped ?? 					
-				break; // ignore pads	                
-			case S :
-				//soft clip: advance on the reference				
-				readPos += length;
-				break; // soft clip read bases	                	
-			case N : 
-				refPos += length;
+		/**
+		 * @return the length of the current element
+		 */
+		public int getLength() {
+			return length;
+		}
 
-				//advance index
-				while (index < refPositions.length && refPositions[index] <= refPos)
-					index ++;
+		/**
+		 * @return the reference position (1-based) at the start of the 
+		 * current element
+		 */
+		public int getRefStart() {
+			return refStart;
+		}
 
-				if (index >= refPositions.length) 
-					return readPositions;				
-				break;  // reference skip
+		/**
+		 * @return the reference position after the current element
+		 */
+		public int getRefEnd() {
+			return (operator != null && operator.consumesReferenceBases()) ? refStart + length : refStart;
+		}
 
-			case D ://deletion      	
-				refPos += length;
-				while (index < refPositions.length && refPositions[index] <= refPos){
-					readPositions[index] = readPos;					
-					index ++;					
-				}
-				if (index >= refPositions.length) 
-					return readPositions;				
-				break;
-			case I :	                	
-				readPos += length;
-				break;
-			case M :
-			case EQ:
-			case X:
-				while (index < refPositions.length && refPositions[index] <= refPos +length){
-					readPositions[index] = readPos + refPositions[index] - refPos;
-					index ++;					
-				}
-				if (index >= refPositions.length) 
-					return readPositions;		
+		/**
+		 * @return the read position (0-based, soft clips included) at the 
+		 * start of the current element
+		 */
+		public int getReadStart() {
+			return readStart;
+		}
 
-				readPos += length;
-				refPos  += length;
-				break;
-			default : throw new IllegalStateException("Case statement didn't deal with cigar op: " + e.getOperator());
-			}//case
-		}//for			
+		/**
+		 * @return the read position after the current element
+		 */
+		public int getReadEnd() {
+			return (operator != null && operator.consumesReadBases()) ? readStart + length : readStart;
+		}
 
-		return readPositions;
+		/**
+		 * Compute the identity profile of an alignment against the reference
+		 * 
+		 * @param ref the reference, in the indices of Alphabet.DNA() as 
+		 * returned by Sequence.toBytes()
+		 * @param sam the alignment, the read bases are taken from the record
+		 * @param profile the profile to fill in
+		 * @return profile
+		 */
+		public IdentityProfile identity(byte [] ref, SAMRecord sam, IdentityProfile profile){
+			return identity(ref, sam.getReadBases(), DNA_INDEX, sam, profile);
+		}
+
+		/**
+		 * Compute the identity profile of an alignment against the reference
+		 * 
+		 * @param ref the reference, in the indices of Alphabet.DNA()
+		 * @param read the read, in the indices of Alphabet.DNA()
+		 * @param sam the alignment
+		 * @param profile the profile to fill in
+		 * @return profile
+		 */
+		public IdentityProfile identity(byte [] ref, byte [] read, SAMRecord sam, IdentityProfile profile){
+			return identity(ref, read, null, sam, profile);
+		}
+
+		private IdentityProfile identity(byte [] ref, byte [] read, byte [] readIndex, SAMRecord sam, IdentityProfile profile){
+			reset(sam);
+
+			profile.readClipped = 0;
+			profile.refClipped = sam.getAlignmentStart() + ref.length - sam.getAlignmentEnd();
+			profile.baseDel = 0;
+			profile.baseIns = 0;
+			profile.numDel = 0;
+			profile.numIns = 0;
+			profile.match = 0;
+			profile.mismatch = 0;
+			profile.refBase = 0;
+			profile.readBase = 0;//the number of bases from ref and read
+
+			while (next()){
+				switch (operator) {
+				case H :
+				case P : //pad is a kind of hard clipped ?? 
+				case S :
+					profile.readClipped += length;
+					break;
+				case N : 
+					profile.refClipped += length;
+					break;  // reference skip
+				case D ://deletion
+					profile.refBase += length;
+					profile.baseDel += length;
+					profile.numDel ++;
+					break; 	
+				case I :	                	
+					profile.readBase += length;
+					profile.baseIns += length;
+					profile.numIns ++;
+					break;
+				case M :
+					int refPos = refStart - 1;//convert to 0-based index
+					int end = Math.min(length, ref.length - refPos);
+					int match = 0;
+					if (readIndex == null){
+						for (int i = 0; i < end; i++){
+							if (ref[refPos + i] == read[readStart + i])
+								match ++;
+						}
+					}else{
+						for (int i = 0; i < end; i++){
+							if (ref[refPos + i] == readIndex[read[readStart + i] & 0xff])
+								match ++;
+						}
+					}
+					if (end > 0){
+						profile.match += match;
+						profile.mismatch += end - match;
+					}
+					profile.readBase += length;
+					profile.refBase += length;
+					break;
+				case EQ :
+					profile.readBase += length;
+					profile.refBase += length;
+					profile.match += length;
+					break;
+				case X :
+					profile.readBase += length;
+					profile.refBase += length;
+					profile.mismatch += length;
+					break;
+				default : throw new IllegalStateException("Case statement didn't deal with cigar op: " + operator);
+				}//case
+			}//while
+			return profile;
+		}
+
+		/**
+		 * Map a list of positions on the reference to the positions on the 
+		 * read, in one walk of the cigar. A position in a deletion is mapped 
+		 * to the read position after the deletion; positions not covered by
+		 * the alignment are mapped to 0.
+		 * 
+		 * @param sam
+		 * @param refPositions positions on the reference, sorted ascendingly
+		 * @param readPositions the array to fill in, at least as long as
+		 * refPositions
+		 * @return readPositions
+		 */
+		public int[] positionsInRead(SAMRecord sam, final int [] refPositions, int [] readPositions){
+			reset(sam);
+			int index = 0;
+			while (index < refPositions.length && refPositions[index] <= refStart)
+				readPositions[index++] = 0;
+
+			while (index < refPositions.length && next()){
+				//assert: refPositions[index] > refStart
+				switch (operator) {
+				case H :
+				case P :
+				case S :
+				case I :
+					break;
+				case N : 
+					while (index < refPositions.length && refPositions[index] <= refStart + length)
+						readPositions[index++] = 0;
+					break;  // reference skip
+				case D ://deletion      	
+					while (index < refPositions.length && refPositions[index] <= refStart + length)
+						readPositions[index++] = readStart;
+					break;
+				case M :
+				case EQ:
+				case X:
+					while (index < refPositions.length && refPositions[index] <= refStart + length){
+						readPositions[index] = readStart + refPositions[index] - refStart;
+						index ++;
+					}
+					break;
+				default : throw new IllegalStateException("Case statement didn't deal with cigar op: " + operator);
+				}//case
+			}//while
+
+			while (index < refPositions.length)
+				readPositions[index++] = 0;
+
+			return readPositions;
+		}
+
+		/**
+		 * Find the read positions (0-based) aligned to positions startRef and
+		 * endRef on the reference. If a position falls in a deletion, the 
+		 * read position after the deletion is taken.
+		 * 
+		 * @param sam
+		 * @param startRef
+		 * @param endRef
+		 * @param readRange array of at least 2 to store the start and the end
+		 * on the read
+		 * @return true if both positions are found
+		 */
+		public boolean readRange(SAMRecord sam, int startRef, int endRef, int [] readRange){
+			reset(sam);
+			int startRead = -1, endRead = -1;
+
+			while (next()){
+				switch (operator) {
+				case H:
+				case P:
+				case S:
+				case I:
+					break;
+				case N: // N ~ D
+				case D:
+					if (startRead < 0  && refStart + length >= startRef)
+						startRead = readStart;
+
+					if (endRead < 0  && refStart + length >= endRef)
+						endRead = readStart;
+					break;// case
+				case M:
+				case EQ:
+				case X:				
+					if (startRead < 0 && refStart + length >= startRef)
+						startRead = readStart + startRef - refStart;
+
+					if (endRead < 0 && refStart + length >= endRef)
+						endRead = readStart + endRef - refStart;
+					break;
+				default:
+					throw new IllegalStateException("Case statement didn't deal with cigar op: " + operator);
+				}// case
+				if (getRefEnd() >= endRef)
+					break;//while
+			}// while
+			readRange[0] = startRead;
+			readRange[1] = endRead;
+			return startRead >= 0 && endRead >= 0;
+		}
+	}
 
+	//The index of the read bases (from SAMRecord.getReadBases()) in 
+	//Alphabet.DNA(), the same as when reading the bases as a string
+	private static final byte [] DNA_INDEX = new byte[256];
+	static{
+		Alphabet dna = Alphabet.DNA();
+		for (int i = 0; i < DNA_INDEX.length; i++)
+			DNA_INDEX[i] = (byte) dna.char2int((char) i);
 	}
 
 	public static class IdentityProfile{
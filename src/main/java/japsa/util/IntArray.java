@@ -94,6 +94,13 @@ public final class IntArray {
         return buf[index];
     }
 
+    /**
+     * Replace the value at an index position in the array.
+     */
+    public void set(int index, int value) {
+        buf[index] = value;
+    }
+
 }
 
    
\ No newline at end of file
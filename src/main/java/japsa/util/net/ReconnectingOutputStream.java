@@ -0,0 +1,193 @@
+/*****************************************************************************
+ * Copyright (c) Minh Duc Cao, Monash Uni & UQ, All rights reserved.         *
+ *                                                                           *
+ * Redistribution and use in source and binary forms, with or without        *
+ * modification, are permitted provided that the following conditions        *
+ * are met:                                                                  * 
+ *                                                                           *
+ * 1. Redistributions of source code must retain the above copyright notice, *
+ *    this list of conditions and the following disclaimer.                  *
+ * 2. Redistributions in binary form must reproduce the above copyright      *
+ *    notice, this list of conditions and the following disclaimer in the    *
+ *    documentation and/or other materials provided with the distribution.   *
+ * 3. Neither the names of the institutions nor the names of the contributors*
+ *    may be used to endorse or promote products derived from this software  *
+ *    without specific prior written permission.                             *
+ *                                                                           *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS   *
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, *
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR    *
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR         *
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,     *
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,       *
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR        *
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF    *
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING      *
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS        *
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.              *
+ ****************************************************************************/
+package japsa.util.net;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An output stream to a server that reconnects when the connection is lost.
+ * A write that fails is retried on a new connection, after a delay, up to a
+ * number of attempts (or forever if the number is negative). The bytes of a
+ * write that failed part way are sent again in full; the receiving end 
+ * (e.g., {@link StreamHub}) drops incomplete records of the lost connection
+ * and skips to the first complete record of the new one. The stream thus
+ * reconnects and resumes, with no delivery guarantee: the records of the 
+ * failed write that had already reached the server are sent twice, and the
+ * data of earlier writes still in the TCP send buffer when the server died
+ * are lost without an error, as the server does not acknowledge them.
+ */
+public class ReconnectingOutputStream extends OutputStream{
+	private static final Logger LOG = LoggerFactory.getLogger(ReconnectingOutputStream.class);
+
+	private final String host;
+	private final int port;
+	private final int retries;
+	private final long delay;
+
+	private volatile Socket socket = null;
+	private OutputStream out = null;
+	private volatile boolean closed = false;
+
+	/**
+	 * @param host
+	 * @param port
+	 * @param retries the number of attempts to reconnect before a write fails,
+	 * negative to retry forever
+	 * @param delay delay between attempts in milliseconds
+	 */
+	public ReconnectingOutputStream(String host, int port, int retries, long delay){
+		this.host = host;
+		this.port = port;
+		this.retries = retries;
+		this.delay = delay;
+	}
+
+	/**
+	 * Try to connect once
+	 * @return true if connected
+	 */
+	public synchronized boolean connect(){
+		if (out != null)
+			return true;
+		try{
+			socket = new Socket(host, port);
+			out = socket.getOutputStream();
+			LOG.info("Connection to " + this + " established");
+			return true;
+		}catch (IOException e){
+			LOG.warn("Could not connect to " + this + ": " + e.getMessage());
+			return false;
+		}
+	}
+
+	private void disconnect(){
+		if (socket != null){
+			try{
+				socket.close();
+			}catch (IOException e){
+				//ignore: the connection is dropped anyway
+			}
+		}
+		socket = null;
+		out = null;
+	}
+
+	/**
+	 * @return false once the stream has been closed
+	 */
+	public boolean isOpen(){
+		return !closed;
+	}
+
+	/**
+	 * @return the current socket, or null if not connected
+	 */
+	public Socket getSocket(){
+		return socket;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.OutputStream#write(byte[], int, int)
+	 */
+	@Override
+	public synchronized void write(byte[] b, int off, int len) throws IOException {
+		for (int attempt = 0; ; attempt++){
+			if (closed)
+				throw new IOException("Stream to " + this + " closed");
+			if (out != null || connect()){
+				try{
+					out.write(b, off, len);
+					return;
+				}catch (IOException e){
+					LOG.warn("Connection to " + this + " lost: " + e.getMessage());
+					disconnect();
+				}
+			}
+			if (retries >= 0 && attempt >= retries)
+				throw new IOException("Could not reconnect to " + this + " after " + attempt + " attempts");
+			try{
+				wait(delay);
+			}catch (InterruptedException e){
+				throw new InterruptedIOException();
+			}
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.OutputStream#write(int)
+	 */
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[]{(byte) b}, 0, 1);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.io.OutputStream#flush()
+	 */
+	@Override
+	public synchronized void flush() throws IOException {
+		if (out != null){
+			try{
+				out.flush();
+			}catch (IOException e){
+				LOG.warn("Connection to " + this + " lost: " + e.getMessage());
+				disconnect();
+			}
+		}
+	}
+
+	/**
+	 * Close the connection and stop retrying. 
+	 */
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		//unblock a pending write before taking the lock
+		Socket current = socket;
+		if (current != null){
+			LOG.info("Connection to " + this + " closed");
+			current.close();
+		}
+		synchronized (this){
+			notifyAll();
+			disconnect();
+		}
+	}
+
+	@Override
+	public String toString(){
+		return host + ":" + port;
+	}
+}
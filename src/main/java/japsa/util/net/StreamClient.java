@@ -41,19 +41,33 @@ import org.slf4j.LoggerFactory;
 import java.io.Closeable;
 import java.io.IOException;
 import java.net.Socket;
-import java.net.UnknownHostException;
 import java.util.ArrayList;
 
 /**
+ * Connections to one or more stream servers. Each connection is a
+ * {@link ReconnectingOutputStream}, which reconnects to its server if the
+ * connection is lost.
+ * 
  * @author minhduc
  *
  */
 public class StreamClient implements Closeable{
     private static final Logger LOG = LoggerFactory.getLogger(StreamClient.class);
-	private ArrayList<Socket> sockets;
+
+	/**
+	 * Number of attempts to reconnect to a server before giving up on it, 
+	 * negative to retry forever
+	 */
+	public static int retries = 10;
+	/**
+	 * Delay (in milliseconds) between attempts to reconnect
+	 */
+	public static long retryDelay = 1000;
+
+	private ArrayList<ReconnectingOutputStream> streams;
 
 	public StreamClient(String serverList){
-		sockets = new ArrayList<Socket> ();
+		streams = new ArrayList<ReconnectingOutputStream> ();
 		String [] servers = serverList.split(",");
 		for (String server:servers){
 			String [] toks = server.trim().split(":");
@@ -61,32 +75,40 @@ public class StreamClient implements Closeable{
 			if (toks.length > 1)
 				portNumber = Integer.parseInt(toks[1]);			
 			LOG.info("Trying to connect " + toks[0] + ":" + portNumber);
-			try {
-				Socket socket = new Socket(toks[0], portNumber);
-				sockets.add(socket);
-				LOG.info("Connection to " + toks[0] + ":" + portNumber + " established");
-			} catch (UnknownHostException e) {
-				//e.printStackTrace();
-				LOG.warn("Could not connect to " + toks[0] + ":" + portNumber);
-			} catch (IOException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-
-
+			ReconnectingOutputStream stream = new ReconnectingOutputStream(toks[0], portNumber, retries, retryDelay);
+			//a server not yet up is tried again on the first write
+			stream.connect();
+			streams.add(stream);
 		}		
 	}
+
+	/**
+	 * @return the sockets currently connected
+	 */
 	public ArrayList<Socket>  getSockets(){
+		ArrayList<Socket> sockets = new ArrayList<Socket>();
+		for (ReconnectingOutputStream stream:streams){
+			Socket socket = stream.getSocket();
+			if (socket != null)
+				sockets.add(socket);
+		}
 		return sockets;
 	}
+
+	/**
+	 * @return the output streams to the servers
+	 */
+	public ArrayList<ReconnectingOutputStream> getOutputStreams(){
+		return streams;
+	}
+
 	/* (non-Javadoc)
 	 * @see java.io.Closeable#close()
 	 */
 	@Override
 	public void close() throws IOException {
-		for (Socket socket:sockets){
-			socket.close();
-			LOG.info("Connection to " + socket.getRemoteSocketAddress() + " closed");
+		for (ReconnectingOutputStream stream:streams){
+			stream.close();
 		}
 	}	
 
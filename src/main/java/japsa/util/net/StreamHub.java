@@ -0,0 +1,626 @@
+/*****************************************************************************
+ * Copyright (c) Minh Duc Cao, Monash Uni & UQ, All rights reserved.         *
+ *                                                                           *
+ * Redistribution and use in source and binary forms, with or without        *
+ * modification, are permitted provided that the following conditions        *
+ * are met:                                                                  * 
+ *                                                                           *
+ * 1. Redistributions of source code must retain the above copyright notice, *
+ *    this list of conditions and the following disclaimer.                  *
+ * 2. Redistributions in binary form must reproduce the above copyright      *
+ *    notice, this list of conditions and the following disclaimer in the    *
+ *    documentation and/or other materials provided with the distribution.   *
+ * 3. Neither the names of the institutions nor the names of the contributors*
+ *    may be used to endorse or promote products derived from this software  *
+ *    without specific prior written permission.                             *
+ *                                                                           *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS   *
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, *
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR    *
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR         *
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,     *
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,       *
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR        *
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF    *
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING      *
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS        *
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.              *
+ ****************************************************************************/
+package japsa.util.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A hub that receives streams of sequences from many producers and forwards
+ * them to many subscribers.
+ * 
+ * Producers connect to the port of the hub and are served by a single
+ * selector thread. The data of each producer are cut into whole records, 
+ * and the records of all producers are merged into one stream, so a record
+ * is never interleaved with another. The format of the records (fastq, 
+ * fasta or lines) is the same for the whole hub: it is either set with 
+ * {@link #setFormat(String)} or detected from the first record the hub 
+ * receives. A connection that drops in the middle of a record loses that 
+ * record; the data of every connection are skipped to the first fastq or
+ * fasta header at a record boundary, so a connection that starts in the 
+ * middle of a record (e.g., a reconnected producer) is synchronised to its
+ * first complete record. Lines cannot be synchronised this way.
+ * 
+ * A producer writing through a {@link ReconnectingOutputStream} 
+ * reconnects and resumes, but delivery is not guaranteed either way: the 
+ * failed write is resent in full, so its records that had already been 
+ * received are received again, while earlier writes that were accepted by 
+ * the TCP send buffer but not received before the connection dropped are 
+ * lost without an error, as there are no acknowledgements.
+ * 
+ * When the last producer disconnects, the hub waits for a grace period
+ * (see {@link #setGrace(int)}) for producers to reconnect before it stops,
+ * unless it is set to persist.
+ * 
+ * Each subscriber has its own bounded buffer and writer thread, so a slow
+ * subscriber only holds up the others if its policy is to block. When its
+ * buffer is full, a subscriber with policy {@link Policy#BLOCK} stops the 
+ * hub from reading (and hence all producers from sending), and one with 
+ * {@link Policy#DROP} discards the new records instead. Subscribers on the
+ * network are reconnected when their connection is lost.
+ */
+public class StreamHub implements Closeable{
+	private static final Logger LOG = LoggerFactory.getLogger(StreamHub.class);
+
+	/**
+	 * What a subscriber does with new records when its buffer is full
+	 */
+	public enum Policy {BLOCK, DROP}
+
+	private static final int READ_SIZE = 1 << 16;
+
+	/**
+	 * A run of whole records
+	 */
+	private static final class Batch{
+		final byte [] data;
+		final int records;
+		Batch(byte [] data, int records){
+			this.data = data;
+			this.records = records;
+		}
+	}
+
+	private final Selector selector;
+	private final ServerSocketChannel server;
+	//copied on write, so records are published without holding a lock while
+	//a blocking subscriber waits
+	private final CopyOnWriteArrayList<Subscriber> subscribers = new CopyOnWriteArrayList<Subscriber>();
+
+	private int format = Producer.UNKNOWN;
+	private boolean persist = false;
+	private long grace = 30000;
+	private volatile boolean stopped = false;
+	private long reportInterval = 0;
+
+	private volatile int producers = 0;
+	private final AtomicLong producersTotal = new AtomicLong(),
+		recordsIn = new AtomicLong(), bytesIn = new AtomicLong();
+
+	/**
+	 * Create a hub listening to producers on a port
+	 * @param port
+	 * @throws IOException
+	 */
+	public StreamHub(int port) throws IOException{
+		selector = Selector.open();
+		server = ServerSocketChannel.open();
+		server.bind(new InetSocketAddress(port));
+		server.configureBlocking(false);
+		server.register(selector, SelectionKey.OP_ACCEPT);
+		LOG.info("Listen on " + server.getLocalAddress());
+	}
+
+	/**
+	 * Keep listening after all producers have disconnected. By default, the 
+	 * hub stops when the last producer disconnects.
+	 * @param persist
+	 */
+	public void setPersist(boolean persist){
+		this.persist = persist;
+	}
+
+	/**
+	 * Set the time to wait for producers to reconnect after the last one 
+	 * disconnects, before the hub stops. Ignored if the hub persists.
+	 * @param seconds
+	 */
+	public void setGrace(int seconds){
+		this.grace = seconds * 1000L;
+	}
+
+	/**
+	 * Set the format of the records: fastq, fasta, line, or auto to detect
+	 * it from the first record received
+	 * @param format
+	 */
+	public void setFormat(String format){
+		if ("fastq".equals(format))
+			this.format = Producer.FASTQ;
+		else if ("fasta".equals(format))
+			this.format = Producer.FASTA;
+		else if ("line".equals(format))
+			this.format = Producer.LINE;
+		else if ("auto".equals(format))
+			this.format = Producer.UNKNOWN;
+		else
+			throw new IllegalArgumentException("Unknown format " + format);
+	}
+
+	/**
+	 * Log the counters every interval (in seconds), 0 to log them only
+	 * at the end
+	 * @param seconds
+	 */
+	public void setReportInterval(int seconds){
+		this.reportInterval = seconds * 1000L;
+	}
+
+	/**
+	 * @return the port the hub listens to
+	 * @throws IOException
+	 */
+	public int getPort() throws IOException{
+		return ((InetSocketAddress) server.getLocalAddress()).getPort();
+	}
+
+	/**
+	 * Add a subscriber writing to a stream (e.g., the standard output)
+	 * @param name
+	 * @param out
+	 * @param policy
+	 * @param capacity the size of its buffer in bytes
+	 */
+	public void addSubscriber(String name, OutputStream out, Policy policy, long capacity){
+		Subscriber subscriber = new Subscriber(name, out, policy, capacity);
+		subscribers.add(subscriber);
+		subscriber.start();
+	}
+
+	/**
+	 * Add a subscriber on the network, which is reconnected every retryDelay 
+	 * milliseconds if the connection is lost
+	 * @param host
+	 * @param port
+	 * @param policy
+	 * @param capacity
+	 * @param retryDelay
+	 */
+	public void addSubscriber(String host, int port, Policy policy, long capacity, long retryDelay){
+		ReconnectingOutputStream out = new ReconnectingOutputStream(host, port, -1, retryDelay);
+		out.connect();
+		addSubscriber(out.toString(), out, policy, capacity);
+	}
+
+	/**
+	 * Stop the hub, from any thread
+	 */
+	public void stop(){
+		stopped = true;
+		selector.wakeup();
+	}
+
+	/**
+	 * Serve the producers until the hub is stopped, or, if the hub does not
+	 * persist, until no producer has been connected for the grace period.
+	 * @throws IOException
+	 */
+	public void run() throws IOException{
+		ByteBuffer buffer = ByteBuffer.allocateDirect(READ_SIZE);
+		long lastReport = System.currentTimeMillis();
+		long lastDisconnect = 0;
+
+		while (!stopped){
+			long timeout = reportInterval;
+			if (!persist && producers == 0 && producersTotal.get() > 0){
+				long remain = Math.max(1, lastDisconnect + grace - System.currentTimeMillis());
+				timeout = (timeout > 0) ? Math.min(timeout, remain) : remain;
+			}
+			selector.select(timeout);
+
+			Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+			while (iter.hasNext()){
+				SelectionKey key = iter.next();
+				iter.remove();
+				if (!key.isValid())
+					continue;
+
+				if (key.isAcceptable()){
+					SocketChannel channel = server.accept();
+					if (channel == null)
+						continue;
+					channel.configureBlocking(false);
+					Producer producer = new Producer(channel.getRemoteAddress().toString());
+					channel.register(selector, SelectionKey.OP_READ, producer);
+					producers ++;
+					producersTotal.incrementAndGet();
+					LOG.info("Producer " + producer.name + " connected (" + producers + " active)");
+				}else if (key.isReadable()){
+					SocketChannel channel = (SocketChannel) key.channel();
+					Producer producer = (Producer) key.attachment();
+					int ret;
+					try{
+						buffer.clear();
+						ret = channel.read(buffer);
+					}catch (IOException e){
+						LOG.warn("Producer " + producer.name + ": " + e.getMessage());
+						ret = -1;
+					}
+					if (producer.format == Producer.UNKNOWN)
+						producer.format = format;
+					if (ret > 0){
+						buffer.flip();
+						producer.append(buffer);
+						publish(producer.split(false), producer.records);
+					}else if (ret < 0){
+						publish(producer.split(true), producer.records);
+						key.cancel();
+						channel.close();
+						producers --;
+						lastDisconnect = System.currentTimeMillis();
+						LOG.info("Producer " + producer.name + " disconnected (" + producers + " active)");
+					}
+					//the first producer to send a record sets the format of the hub
+					if (format == Producer.UNKNOWN)
+						format = producer.format;
+				}
+			}
+
+			if (reportInterval > 0 && System.currentTimeMillis() - lastReport >= reportInterval){
+				LOG.info(report());
+				lastReport = System.currentTimeMillis();
+			}
+			if (!persist && producers == 0 && producersTotal.get() > 0 
+					&& System.currentTimeMillis() - lastDisconnect >= grace)
+				break;
+		}
+		LOG.info(report());
+	}
+
+	private void publish(byte [] data, int records) throws IOException{
+		if (records == 0)
+			return;
+		recordsIn.addAndGet(records);
+		bytesIn.addAndGet(data.length);
+
+		Batch batch = new Batch(data, records);
+		for (Subscriber subscriber:subscribers)
+			subscriber.offer(batch);
+	}
+
+	/**
+	 * @return a summary of the counters
+	 */
+	public String report(){
+		StringBuilder sb = new StringBuilder();
+		sb.append("Received ").append(recordsIn.get()).append(" records (")
+			.append(bytesIn.get()).append(" bytes) from ").append(producersTotal.get())
+			.append(" producers, ").append(producers).append(" active");
+		for (Subscriber subscriber:subscribers)
+			sb.append("; ").append(subscriber.report());
+		return sb.toString();
+	}
+
+	/**
+	 * @return the number of records received
+	 */
+	public long getRecordsIn(){
+		return recordsIn.get();
+	}
+
+	/**
+	 * @return the number of bytes of whole records received
+	 */
+	public long getBytesIn(){
+		return bytesIn.get();
+	}
+
+	/**
+	 * Stop accepting producers, and wait until the subscribers have written
+	 * out their buffers.
+	 */
+	@Override
+	public void close() throws IOException {
+		for (SelectionKey key:selector.keys())
+			key.channel().close();
+		selector.close();
+
+		IOException exception = null;
+		for (Subscriber subscriber:subscribers){
+			try{
+				subscriber.finish();
+			}catch (IOException e){
+				exception = e;
+			}
+		}
+		if (exception != null)
+			throw exception;
+	}
+
+	/**
+	 * A connected producer: accumulates its data and cuts them into records
+	 */
+	private static final class Producer{
+		static final int UNKNOWN = 0, FASTQ = 1, FASTA = 2, LINE = 3;
+
+		final String name;
+		byte [] buf = new byte[READ_SIZE * 2];
+		int length = 0;
+		//the format of the hub, or UNKNOWN until the first record
+		int format = UNKNOWN;
+
+		//output of the last split
+		byte [] out = new byte[READ_SIZE * 2];
+		int outLength = 0;
+		int records = 0;
+
+		Producer(String name){
+			this.name = name;
+		}
+
+		void append(ByteBuffer buffer){
+			int n = buffer.remaining();
+			if (length + n > buf.length){
+				byte [] newBuf = new byte[Math.max(buf.length * 2, length + n)];
+				System.arraycopy(buf, 0, newBuf, 0, length);
+				buf = newBuf;
+			}
+			buffer.get(buf, length, n);
+			length += n;
+		}
+
+		private int endOfLine(int from){
+			for (int i = from; i < length; i++){
+				if (buf[i] == '\n')
+					return i;
+			}
+			return -1;
+		}
+
+		private void emit(int start, int end){
+			int n = end - start;
+			if (outLength + n > out.length){
+				byte [] newOut = new byte[Math.max(out.length * 2, outLength + n)];
+				System.arraycopy(out, 0, newOut, 0, outLength);
+				out = newOut;
+			}
+			System.arraycopy(buf, start, out, outLength, n);
+			outLength += n;
+			records ++;
+		}
+
+		/**
+		 * Take the whole records off the data received so far
+		 * @param eof whether the producer has disconnected
+		 * @return the records, which are counted in records
+		 */
+		byte [] split(boolean eof){
+			outLength = 0;
+			records = 0;
+			//the last line of a producer that disconnects is complete
+			if (eof && length > 0 && buf[length - 1] != '\n'){
+				append(ByteBuffer.wrap(new byte[]{'\n'}));
+			}
+
+			int pos = 0;
+			if (format == UNKNOWN){
+				while (pos < length && Character.isWhitespace(buf[pos]))
+					pos ++;
+				if (pos < length){
+					format = buf[pos] == '@' ? FASTQ : (buf[pos] == '>' ? FASTA : LINE);
+				}
+			}
+
+			while (pos < length){
+				int eol = endOfLine(pos);
+				if (eol < 0)
+					break;
+				if (format == FASTQ){
+					if (buf[pos] != '@'){
+						pos = eol + 1;//skip to a header
+						continue;
+					}
+					int eol2 = endOfLine(eol + 1);
+					if (eol2 < 0)
+						break;
+					if (eol2 + 1 < length && buf[eol2 + 1] != '+'){
+						pos = eol + 1;//not a header, but a quality line starting with @
+						continue;
+					}
+					int eol3 = endOfLine(eol2 + 1);
+					if (eol3 < 0)
+						break;
+					int eol4 = endOfLine(eol3 + 1);
+					if (eol4 < 0)
+						break;
+					emit(pos, eol4 + 1);
+					pos = eol4 + 1;
+				}else if (format == FASTA){
+					if (buf[pos] != '>'){
+						pos = eol + 1;//skip to a header
+						continue;
+					}
+					//the record ends at the next header
+					int next = eol + 1;
+					boolean found = false;
+					while (next < length){
+						if (buf[next] == '>'){
+							found = true;
+							break;
+						}
+						int end = endOfLine(next);
+						if (end < 0)
+							break;
+						next = end + 1;
+					}
+					if (!found && !(eof && next >= length))
+						break;
+					emit(pos, next);
+					pos = next;
+				}else{
+					emit(pos, eol + 1);
+					pos = eol + 1;
+				}
+			}
+
+			if (eof){
+				length = 0;
+			}else if (pos > 0){
+				System.arraycopy(buf, pos, buf, 0, length - pos);
+				length -= pos;
+			}
+
+			byte [] data = new byte[outLength];
+			System.arraycopy(out, 0, data, 0, outLength);
+			return data;
+		}
+	}
+
+	/**
+	 * A subscriber with its bounded buffer and writer thread
+	 */
+	private static final class Subscriber{
+		final String name;
+		final OutputStream out;
+		final Policy policy;
+		final long capacity;
+
+		private final ArrayDeque<Batch> queue = new ArrayDeque<Batch>();
+		private long queued = 0;
+		private boolean finished = false;
+		private IOException error = null;
+		private Thread writer;
+
+		private long recordsOut = 0, bytesOut = 0, dropped = 0;
+
+		Subscriber(String name, OutputStream out, Policy policy, long capacity){
+			this.name = name;
+			this.out = out;
+			this.policy = policy;
+			this.capacity = capacity;
+		}
+
+		void start(){
+			writer = new Thread(new Runnable(){
+				public void run() {drain();}
+			}, "hub-" + name);
+			writer.setDaemon(true);
+			writer.start();
+		}
+
+		/**
+		 * Queue a batch, or wait for space or drop it following the policy.
+		 * A batch larger than the buffer is taken when the buffer is empty.
+		 */
+		synchronized void offer(Batch batch) throws IOException{
+			if (error != null){
+				dropped += batch.records;
+				return;
+			}
+			while (queued > 0 && queued + batch.data.length > capacity){
+				if (policy == Policy.DROP){
+					dropped += batch.records;
+					return;
+				}
+				try{
+					wait();
+				}catch (InterruptedException e){
+					throw new InterruptedIOException();
+				}
+				if (error != null){
+					dropped += batch.records;
+					return;
+				}
+			}
+			queue.add(batch);
+			queued += batch.data.length;
+			notifyAll();
+		}
+
+		private synchronized Batch take() throws InterruptedException{
+			while (queue.isEmpty() && !finished)
+				wait();
+			return queue.peek();
+		}
+
+		private void drain(){
+			try{
+				while (true){
+					Batch batch = take();
+					if (batch == null)
+						break;//finished
+					out.write(batch.data);
+					synchronized (this){
+						queue.poll();
+						queued -= batch.data.length;
+						recordsOut += batch.records;
+						bytesOut += batch.data.length;
+						notifyAll();
+						if (!queue.isEmpty())
+							continue;
+					}
+					out.flush();
+				}
+				out.flush();
+			}catch (Exception e){
+				LOG.warn("Subscriber " + name + " failed: " + e.getMessage());
+				synchronized (this){
+					error = (e instanceof IOException) ? (IOException) e : new IOException(e);
+					for (Batch batch:queue)
+						dropped += batch.records;
+					queue.clear();
+					queued = 0;
+					notifyAll();
+				}
+			}
+		}
+
+		/**
+		 * Write out the buffer and wait for the writer to finish
+		 */
+		void finish() throws IOException{
+			synchronized (this){
+				finished = true;
+				notifyAll();
+			}
+			try{
+				while (writer.isAlive()){
+					writer.join(1000);
+					//do not wait for a subscriber that is being reconnected
+					if (out instanceof ReconnectingOutputStream && ((ReconnectingOutputStream) out).getSocket() == null)
+						out.close();
+				}
+			}catch (InterruptedException e){
+				throw new InterruptedIOException();
+			}
+			if (out instanceof ReconnectingOutputStream)
+				out.close();
+		}
+
+		synchronized String report(){
+			return name + ": sent " + recordsOut + " records (" + bytesOut + " bytes), dropped " 
+				+ dropped + ", buffered " + queued + " bytes";
+		}
+	}
+}
@@ -0,0 +1,327 @@
+/*****************************************************************************
+ * Copyright (c) Minh Duc Cao, Monash Uni & UQ, All rights reserved.         *
+ *                                                                           *
+ * Redistribution and use in source and binary forms, with or without        *
+ * modification, are permitted provided that the following conditions        *
+ * are met:                                                                  * 
+ *                                                                           *
+ * 1. Redistributions of source code must retain the above copyright notice, *
+ *    this list of conditions and the following disclaimer.                  *
+ * 2. Redistributions in binary form must reproduce the above copyright      *
+ *    notice, this list of conditions and the following disclaimer in the    *
+ *    documentation and/or other materials provided with the distribution.   *
+ * 3. Neither the names of the institutions nor the names of the contributors*
+ *    may be used to endorse or promote products derived from this software  *
+ *    without specific prior written permission.                             *
+ *                                                                           *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS   *
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, *
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR    *
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR         *
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,     *
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,       *
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR        *
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF    *
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING      *
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS        *
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.              *
+ ****************************************************************************/
+
+package japsa.xm;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import com.colloquial.arithcode.ArithDecoder;
+import com.colloquial.arithcode.ArithEncoder;
+import com.colloquial.arithcode.BitInput;
+
+import japsa.seq.AbstractSequence;
+import japsa.seq.Alphabet;
+import japsa.seq.Sequence;
+
+/**
+ * Encode a long sequence in chunks, in parallel. Each chunk is encoded by a
+ * copy of the model, which first stores all the positions before the chunk
+ * in its hash (so repeats from anywhere before can still be proposed), and
+ * then runs the full model over a warm-up region just before the chunk to 
+ * propose and weigh the experts, without counting its cost.
+ * 
+ * A chunk thus starts with a model close to, but not the same as, that of 
+ * the serial encoding. The costs of the end of the warm-up region of a
+ * chunk are compared to the costs of the same positions encoded (as part of
+ * the previous chunk); if the chunk starts more than the tolerance (in bits
+ * per symbol of the chunk) worse, it is encoded again with twice the 
+ * warm-up.
+ * 
+ * In real encoding, each chunk is arithmetic-coded on its own. The file
+ * starts with CHUNKED (where a serial encoding has the length), then the
+ * length, the number of chunks, and for each chunk its start, warm-up and
+ * code length, followed by the codes. Decoding goes through the chunks in 
+ * order, as each needs the sequence decoded before it.
+ */
+public class ChunkedExpertModel {
+	/**
+	 * Marker of a chunked encoding, in place of the length
+	 */
+	public static final int CHUNKED = -1;
+	static final int MAX_ROUNDS = 4;
+
+	private final ExpertModel model;
+	private final int threads;
+	private int chunkSize = 1000000;
+	private int warmUp = 100000;
+	private double tolerance = 0.01;
+
+	private int chunksEncoded = 0;
+	private double deviation = 0;
+
+	/**
+	 * @param model the model whose parameters are used 
+	 * @param threads
+	 */
+	public ChunkedExpertModel(ExpertModel model, int threads) {
+		this.model = model;
+		this.threads = threads;
+	}
+
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	public void setWarmUp(int warmUp) {
+		this.warmUp = warmUp;
+	}
+
+	/**
+	 * @param tolerance in bits per symbol
+	 */
+	public void setTolerance(double tolerance) {
+		this.tolerance = tolerance;
+	}
+
+	/**
+	 * A chunk, and the results of its last encoding 
+	 */
+	static class Chunk {
+		final int start, end;
+		int warm;
+		double[] warmCosts;
+		byte[] code;
+
+		Chunk(int start, int end, int warm) {
+			this.start = start;
+			this.end = end;
+			this.warm = warm;
+		}
+
+		/**
+		 * How much worse (in bits) the chunk starts than the serial encoding,
+		 * estimated on the second half of the warm-up
+		 */
+		double deviation(double[] costs) {
+			double sum = 0;
+			for (int i = start - warm / 2; i < start; i++)
+				sum += warmCosts[i - start + warm] - costs[i];
+			return sum;
+		}
+	}
+
+	/**
+	 * Encode the last sequence of the array
+	 * @param costs the cost of each position
+	 * @param markovCosts the cost of each position by the Markov experts,
+	 * can be null
+	 * @param real whether to arithmetic-code the chunks
+	 * @return the chunks
+	 */
+	private List<Chunk> encode(final AbstractSequence[] seqArray, final double[] costs, final double[] markovCosts, final boolean real) throws IOException {
+		int length = seqArray[seqArray.length - 1].length();
+		List<Chunk> chunks = new ArrayList<Chunk>();
+		int size = Math.max(1, chunkSize);
+		for (int start = 0; start < length; start += size)
+			chunks.add(new Chunk(start, Math.min(length, start + size), Math.min(warmUp, start)));
+
+		ForkJoinPool pool = new ForkJoinPool(threads);
+		try {
+			List<Chunk> todo = chunks;
+			for (int round = 0; !todo.isEmpty(); round++) {
+				List<Future<Chunk>> futures = new ArrayList<Future<Chunk>>(todo.size());
+				for (final Chunk chunk : todo) {
+					futures.add(pool.submit(new Callable<Chunk>() {
+						@Override
+						public Chunk call() throws IOException {
+							ExpertModel chunkModel = model.copy();
+							chunk.warmCosts = chunkModel.prepareChunk(seqArray, chunk.start - chunk.warm, chunk.start);
+							ByteArrayOutputStream bytes = null;
+							ArithEncoder encoder = null;
+							if (real) {
+								bytes = new ByteArrayOutputStream();
+								encoder = new ArithEncoder(bytes);
+							}
+							chunkModel.encodeChunk(seqArray, chunk.end, costs, markovCosts, encoder);
+							if (real) {
+								encoder.close();
+								chunk.code = bytes.toByteArray();
+							}
+							return chunk;
+						}
+					}));
+				}
+				for (Future<Chunk> future : futures)
+					future.get();
+				chunksEncoded += todo.size();
+
+				//chunks to encode again with a longer warm-up
+				todo = new ArrayList<Chunk>();
+				if (round + 1 < MAX_ROUNDS) {
+					for (Chunk chunk : chunks) {
+						if (chunk.warm < chunk.start 
+								&& chunk.deviation(costs) > tolerance * (chunk.end - chunk.start)) {
+							chunk.warm = Math.min(chunk.start, chunk.warm * 2);
+							todo.add(chunk);
+						}
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause());
+		} finally {
+			pool.shutdown();
+		}
+
+		deviation = 0;
+		for (Chunk chunk : chunks) {
+			if (chunk.warm > 0)
+				deviation += Math.max(0, chunk.deviation(costs));
+		}
+		deviation /= length;
+		return chunks;
+	}
+
+	/**
+	 * Report of the last encoding
+	 */
+	public String summary() {
+		return String.format("Chunked encoding: %d chunk encodings with %d threads, estimated %.5f bps above serial",
+				chunksEncoded, threads, deviation);
+	}
+
+	/**
+	 * @see ExpertModel#encode(AbstractSequence[])
+	 */
+	public double[] encode(AbstractSequence[] seqArray) throws IOException {
+		double[] costs = new double[seqArray[seqArray.length - 1].length()];
+		encode(seqArray, costs, null, false);
+		return costs;
+	}
+
+	/**
+	 * @see ExpertModel#encode1(AbstractSequence[])
+	 */
+	public double encode1(AbstractSequence[] seqArray) throws IOException {
+		double[] costs = encode(seqArray);
+		double totalCost = 0;
+		for (double cost : costs)
+			totalCost += cost;
+		return totalCost / costs.length;
+	}
+
+	/**
+	 * @see ExpertModel#encode(AbstractSequence[], String, String)
+	 */
+	public void encode(AbstractSequence[] seqArray, String infoFile, String markovFile) throws IOException {
+		int length = seqArray[seqArray.length - 1].length();
+		double[] costs = new double[length];
+		double[] markovCosts = (markovFile != null) ? new double[length] : null;
+		encode(seqArray, costs, markovCosts, false);
+
+		double totalCost = 0.0, totalMarkovCost = 0.0;
+		PrintStream infoPs = new PrintStream(new BufferedOutputStream(new FileOutputStream(infoFile)));
+		infoPs.println("#Information content produced by the eXpert Model (XM,DCC'07, doi:10.1109/DCC.2007.7) ");
+		for (double cost : costs) {
+			totalCost += cost;
+			infoPs.println(cost);
+		}
+		infoPs.close();
+
+		if (markovCosts != null) {
+			PrintStream markovPs = new PrintStream(new BufferedOutputStream(new FileOutputStream(markovFile)));
+			markovPs.println("#Information content produced using Markov Model by the eXpert Model (XM,DCC'07, doi:10.1109/DCC.2007.7) ");
+			for (double cost : markovCosts) {
+				totalMarkovCost += cost;
+				markovPs.println(cost);
+			}
+			markovPs.close();
+		}
+
+		System.out.println(totalCost / length + "    " + totalMarkovCost / length);
+	}
+
+	/**
+	 * @see ExpertModel#realEncode(AbstractSequence[], String)
+	 */
+	public File realEncode(AbstractSequence[] seqArray, String filename) throws IOException {
+		int length = seqArray[seqArray.length - 1].length();
+		List<Chunk> chunks = encode(seqArray, new double[length], null, true);
+
+		File file = new File(filename);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		out.writeInt(CHUNKED);
+		out.writeInt(length);
+		out.writeInt(chunks.size());
+		for (Chunk chunk : chunks) {
+			out.writeInt(chunk.start);
+			out.writeInt(chunk.warm);
+			out.writeInt(chunk.code.length);
+		}
+		for (Chunk chunk : chunks)
+			out.write(chunk.code);
+		out.close();
+		return file;
+	}
+
+	/**
+	 * Decode a chunked encoding, after the CHUNKED marker has been read
+	 */
+	static void decode(ExpertModel model, AbstractSequence[] seqArray, InputStream in) throws IOException {
+		DataInputStream dataIn = new DataInputStream(in);
+		int length = dataIn.readInt();
+		int numChunks = dataIn.readInt();
+		int[] starts = new int[numChunks + 1], warms = new int[numChunks], codeLengths = new int[numChunks];
+		for (int i = 0; i < numChunks; i++) {
+			starts[i] = dataIn.readInt();
+			warms[i] = dataIn.readInt();
+			codeLengths[i] = dataIn.readInt();
+		}
+		starts[numChunks] = length;
+
+		seqArray[seqArray.length - 1] = new Sequence(Alphabet.DNA4(), length);
+		for (int i = 0; i < numChunks; i++) {
+			byte[] code = new byte[codeLengths[i]];
+			dataIn.readFully(code);
+
+			ExpertModel chunkModel = model.copy();
+			chunkModel.prepareChunk(seqArray, starts[i] - warms[i], starts[i]);
+			ArithDecoder decoder = new ArithDecoder(new BitInput(new ByteArrayInputStream(code)));
+			chunkModel.decodeChunk(seqArray, starts[i + 1], decoder);
+			decoder.close();
+		}
+	}
+}
@@ -57,6 +57,7 @@ import japsa.xm.expert.CombinationExpert;
 import japsa.xm.expert.Expert;
 import japsa.xm.expert.MarkovExpert;
 import japsa.xm.expert.RepeatExpert;
+import japsa.xm.hash.ArenaHashtable;
 import japsa.xm.hash.GappedHashtable;
 import japsa.xm.hash.MyBinaryHashtable;
 import japsa.xm.hash.MyHashtable;
@@ -96,6 +97,8 @@ public class ExpertModel {
 	double[] finalD;// ,baseD;
 	double[] markovD;
 	public String hashType = "hash";
+	//Maximum number of positions kept by an arena hash, 0 for no limit
+	int hashLimit = 0;
 	int currentInd;
 
 	public static double[] markovCost = null;
@@ -168,6 +171,9 @@ public class ExpertModel {
 		// Normal hash
 		if ("hash".equals(hashT))
 			this.hashType = "hash";
+		// Open addressing table and arena of positions
+		else if ("arena".equals(hashT))
+			this.hashType = "arena";
 		// Suffix array
 		else if ("sfa".equals(hashT))
 			this.hashType = "" + "sfa";
@@ -196,6 +202,15 @@ public class ExpertModel {
 		}
 	}
 
+	/**
+	 * Limit the number of positions kept by the arena hash; the oldest are
+	 * evicted beyond the limit
+	 * @param limit the maximum number of positions, 0 for no limit
+	 */
+	public void setHashLimit(int limit) {
+		hashLimit = limit;
+	}
+
 	public void printParams() {
 		String hashName = "Hashtable";
 
@@ -205,6 +220,8 @@ public class ExpertModel {
 			hashName = "PrefixArray";
 		else if ("sft".equals(hashType)) {
 			hashName = "PrefixTree";
+		} else if ("arena".equals(hashType)) {
+			hashName = "Arena" + (hashLimit > 0 ? "(" + hashLimit + ")" : "");
 		} else {
 			hashName = "Gapped(" + hashType + ")";
 		}
@@ -242,6 +259,14 @@ public class ExpertModel {
 		store(seqArray);
 	}
 
+	protected void initiliseArenaHash(AbstractSequence[] seqArray) {
+		/*************************************************************************/
+		myHash = new ArenaHashtable(hashSize, (int) Math.ceil(JapsaMath.log2(alphabet.size())), hashLimit);
+		/*************************************************************************/
+
+		store(seqArray);
+	}
+
 	public void store(AbstractSequence[] seqArray) {
 		// Store all back ground sequence in the hash
 		for (int sid = 0; sid < seqArray.length - 1; sid++) {
@@ -253,6 +278,49 @@ public class ExpertModel {
 	}
 
 	protected void initilise_optimise(AbstractSequence[] seqArray) {
+		initiliseExperts(seqArray);
+
+		if ("arena".equals(hashType)) {
+			//grows as needed, so does not need the first pass
+			initiliseArenaHash(seqArray);
+			checkPoint(0);
+
+			bitSet = new MyBitSet(lengthSeqs);
+			pBitSet = new MyBitSet(lengthSeqs * 2);
+			return;
+		}
+
+		MyHashtable hash = new MyHashtable(hashSize, (int) Math.ceil(JapsaMath.log2(alphabet.size())));
+		/*************************************************************************/
+
+		//System.out.println("Run first pass");
+
+		for (int sid = 0; sid < seqArray.length; sid++) {
+			for (int i = 0; i < seqArray[sid].length(); i++) {
+				hash.nextKey(seqArray[sid].symbolAt(i));
+				hash.putCurrentValue_psuedo((sid << posSize) + i);
+			}
+		}
+
+		hash.reinitialise_optimise();
+		//System.out.println("Finish first pass");
+
+		myHash = hash;
+		store(seqArray);
+
+		checkPoint(0);
+
+		bitSet = new MyBitSet(lengthSeqs);
+		pBitSet = new MyBitSet(lengthSeqs * 2);
+
+	}
+
+	/**
+	 * Set up the lengths and the base experts for encoding the last of the
+	 * sequences (but not the hash)
+	 * @param seqArray
+	 */
+	private void initiliseExperts(AbstractSequence[] seqArray) {
 		// Common stuff
 		lengthSeqs = 0;
 		accLengths = new int[seqArray.length + 1];
@@ -280,30 +348,49 @@ public class ExpertModel {
 
 		repEx = new CombinationExpert();
 		panel = new LinkedList<RepeatExpert>();
+	}
 
+	/**
+	 * Hash a background sequence, so that many sequences can be encoded 
+	 * against it (with {@link #encode_optimise(AbstractSequence, MyHashtable, AbstractSequence)})
+	 * without hashing it again. The table is only read afterwards, so can be
+	 * shared by models in different threads.
+	 * 
+	 * @param background
+	 * @return the hash of the background
+	 */
+	public MyHashtable hashBackground(AbstractSequence background) {
+		//positions are stored as for a pair of sequences (sid = 0)
 		MyHashtable hash = new MyHashtable(hashSize, (int) Math.ceil(JapsaMath.log2(alphabet.size())));
-		/*************************************************************************/
-
-		//System.out.println("Run first pass");
-
-		for (int sid = 0; sid < seqArray.length; sid++) {
-			for (int i = 0; i < seqArray[sid].length(); i++) {
-				hash.nextKey(seqArray[sid].symbolAt(i));
-				hash.putCurrentValue_psuedo((sid << posSize) + i);
-			}
+		for (int i = 0; i < background.length(); i++) {
+			hash.nextKey(background.symbolAt(i));
+			hash.putCurrentValue(i);
 		}
+		return hash;
+	}
 
-		hash.reinitialise_optimise();
-		//System.out.println("Finish first pass");
+	/**
+	 * Encode a sequence given a background sequence, whose hash has been
+	 * computed by {@link #hashBackground(AbstractSequence)}. This gives the 
+	 * same result as encode_optimise(new AbstractSequence[]{background, seq}),
+	 * working on a fork of the hash of the background instead of hashing
+	 * both sequences.
+	 * 
+	 * @param background
+	 * @param backgroundHash
+	 * @param seq
+	 * @return
+	 */
+	public double encode_optimise(AbstractSequence background, MyHashtable backgroundHash, AbstractSequence seq) {
+		AbstractSequence[] seqArray = {background, seq};
+		initiliseExperts(seqArray);
 
-		myHash = hash;
-		store(seqArray);
-
-		checkPoint(0);
+		myHash = backgroundHash.fork();
 
 		bitSet = new MyBitSet(lengthSeqs);
 		pBitSet = new MyBitSet(lengthSeqs * 2);
 
+		return encodeLast(seqArray);
 	}
 
 	protected void initiliseCommon(AbstractSequence[] seqArray) {
@@ -334,6 +421,8 @@ public class ExpertModel {
 
 		if ("hash".equals(this.hashType))
 			initiliseHash(seqArray);
+		else if ("arena".equals(this.hashType))
+			initiliseArenaHash(seqArray);
 		else {
 			initiliseGappedHash(seqArray);
 		}
@@ -597,6 +686,12 @@ public class ExpertModel {
 			throws IOException {
 		FileInputStream fileIn = new FileInputStream(encodedFile);
 		int length = (new DataInputStream(fileIn)).readInt();
+		if (length == ChunkedExpertModel.CHUNKED) {
+			//encoded in chunks
+			ChunkedExpertModel.decode(this, seqArray, fileIn);
+			fileIn.close();
+			return;
+		}
 
 		// Get the sequence to be encode
 		seqArray[seqArray.length - 1] = new Sequence(Alphabet.DNA4(), length);
@@ -610,29 +705,9 @@ public class ExpertModel {
 
 		currentInd = 0;
 		while (!decoder.endOfStream()) {
-			int mid = decoder.getCurrentSymbolCount(total);
-			if (mid >= total)
+			int actual = decodeSymbol(decoder);
+			if (actual < 0)
 				break;
-			preCoding();
-
-			int actual = 0;
-			double accu = 0;
-
-			// Will later implement using binary search, for now just linear
-			// search
-
-			while (actual < finalD.length - 1 && (mid >= (int) ((accu + finalD[actual]) * total))) {
-				accu += finalD[actual];
-				actual++;
-			}
-
-			int low = (int) (accu * total);
-			int high = (int) Math.ceil((accu + finalD[actual]) * total) ;
-			if (high > total)
-				high = total;
-			//int high = (actual == finalD.length - 1)? total:  (int) ((accu + finalD[actual]) * total);
-
-			decoder.removeSymbolFromStream(low, high, total);
 			seq.setSymbol(currentInd,  actual);
 
 			/***********************************************************************
@@ -657,6 +732,151 @@ public class ExpertModel {
 		decoder.close();
 	}
 
+	/**
+	 * Arithmetic-code a symbol with the current distribution
+	 */
+	private void encodeSymbol(ArithEncoder encoder, int actual) throws IOException {
+		double accu = 0;
+		for (int j = 0; j < actual; ++j) {
+			accu += finalD[j];
+		}
+		int low  = (int) (accu * total);
+		int high = (int) Math.ceil((accu + finalD[actual]) * total);
+		if (high > total)
+			high = total;
+
+		//int high = (int) Math.ceil((accu + finalD[actual]) * total);
+		//int high = (actual == finalD.length - 1)? total:  (int) ((accu + finalD[actual]) * total);
+		encoder.encode(low, high, total);
+	}
+
+	/**
+	 * Decode the next symbol, computing the distribution first
+	 * @return the symbol, or -1 if the stream has ended
+	 */
+	private int decodeSymbol(ArithDecoder decoder) throws IOException {
+		int mid = decoder.getCurrentSymbolCount(total);
+		if (mid >= total)
+			return -1;
+		preCoding();
+
+		int actual = 0;
+		double accu = 0;
+
+		// Will later implement using binary search, for now just linear
+		// search
+
+		while (actual < finalD.length - 1 && (mid >= (int) ((accu + finalD[actual]) * total))) {
+			accu += finalD[actual];
+			actual++;
+		}
+
+		int low = (int) (accu * total);
+		int high = (int) Math.ceil((accu + finalD[actual]) * total) ;
+		if (high > total)
+			high = total;
+		//int high = (actual == finalD.length - 1)? total:  (int) ((accu + finalD[actual]) * total);
+
+		decoder.removeSymbolFromStream(low, high, total);
+		return actual;
+	}
+
+	/**********************************************************************/
+	// Chunks of the sequence to encode, see ChunkedExpertModel
+
+	/**
+	 * A new model with the same parameters as this one
+	 */
+	public ExpertModel copy() {
+		ExpertModel model = new ExpertModel(hashSize, alphabet, Expert.CONTEXT_LENGTH,
+				expertsLimit, 0, chances, binaryHash);
+		model.repeatPrior = repeatPrior;
+		model.repeatPriorProb = repeatPriorProb;
+		model.hashType = hashType;
+		model.hashLimit = hashLimit;
+		model.selfRep = selfRep;
+		model.offSetSeed = offSetSeed;
+		model.palinSeed = palinSeed;
+		model.checkPoint = checkPoint;
+		return model;
+	}
+
+	/**
+	 * Bring the model to position start of the last sequence: positions 
+	 * before warmStart are only stored in the hash and fed to the Markov 
+	 * experts, and positions from warmStart are modelled as in encoding but
+	 * not counted.
+	 * 
+	 * @return the costs of positions warmStart to start
+	 */
+	double[] prepareChunk(AbstractSequence[] seqArray, int warmStart, int start) {
+		initiliseCommon(seqArray);
+
+		int sid = seqArray.length - 1;
+		AbstractSequence seq = seqArray[sid];
+		for (currentInd = 0; currentInd < warmStart; currentInd++) {
+			int actual = seq.symbolAt(currentInd);
+			markovEx.update(actual);
+			adapMarkovEx.update(actual);
+			myHash.nextKey(actual);
+			if (selfRep)
+				myHash.putCurrentValue((sid << posSize) + currentInd);
+		}
+
+		double[] warmCosts = new double[start - warmStart];
+		for (; currentInd < start; currentInd++) {
+			preCoding();
+			int actual = seq.symbolAt(currentInd);
+			warmCosts[currentInd - warmStart] = -JapsaMath.log2(finalD[actual]);
+			updateExperts(actual);
+			postCoding(seqArray, sid);
+		}
+		return warmCosts;
+	}
+
+	/**
+	 * Encode the last sequence from the current position (after 
+	 * prepareChunk) to end
+	 * @param costs to store the cost of each position
+	 * @param markovCosts to store the cost of each position by the Markov 
+	 * experts, can be null
+	 * @param encoder the arithmetic encoder, can be null
+	 */
+	void encodeChunk(AbstractSequence[] seqArray, int end, double[] costs, double[] markovCosts, ArithEncoder encoder) throws IOException {
+		int sid = seqArray.length - 1;
+		AbstractSequence seq = seqArray[sid];
+		for (; currentInd < end; currentInd++) {
+			preCoding();
+			int actual = seq.symbolAt(currentInd);
+			costs[currentInd] = -JapsaMath.log2(finalD[actual]);
+			if (markovCosts != null)
+				markovCosts[currentInd] = -JapsaMath.log2(markovD[actual]);
+			if (encoder != null)
+				encodeSymbol(encoder, actual);
+
+			updateExperts(actual);
+			postCoding(seqArray, sid);
+		}
+	}
+
+	/**
+	 * Decode the last sequence from the current position (after 
+	 * prepareChunk) to end
+	 */
+	void decodeChunk(AbstractSequence[] seqArray, int end, ArithDecoder decoder) throws IOException {
+		int sid = seqArray.length - 1;
+		AbstractSequence seq = seqArray[sid];
+		for (; currentInd < end && !decoder.endOfStream(); currentInd++) {
+			int actual = decodeSymbol(decoder);
+			if (actual < 0)
+				break;
+			seq.setSymbol(currentInd,  actual);
+
+			updateExperts(actual);
+			postCoding(seqArray, sid);
+		}
+	}
+
 	/**********************************************************************/
 	public File realEncode(AbstractSequence[] seqArray, String filename) {
 
@@ -680,21 +900,7 @@ public class ExpertModel {
 			for (currentInd = 0; currentInd < seq.length(); currentInd++) {
 				preCoding();
 				int actual = seq.symbolAt(currentInd);
-
-				/**********************************************************************/
-				double accu = 0;
-				for (int j = 0; j < actual; ++j) {
-					accu += finalD[j];
-				}
-				int low  = (int) (accu * total);
-				int high = (int) Math.ceil((accu + finalD[actual]) * total);
-				if (high > total)
-					high = total;
-
-				//int high = (int) Math.ceil((accu + finalD[actual]) * total);
-				//int high = (actual == finalD.length - 1)? total:  (int) ((accu + finalD[actual]) * total);
-				encoder.encode(low, high, total);
-				/**********************************************************************/
+				encodeSymbol(encoder, actual);
 
 				/***********************************************************************
 				if (currentInd > 45460){
@@ -805,6 +1011,14 @@ public class ExpertModel {
 		this.initilise_optimise(seqArray);
 		// initiliseCommon(seqArray);
 
+		return encodeLast(seqArray);
+	}
+
+	/**
+	 * Encode the last sequence of the array, once the model is initialised
+	 * @return the cost per symbol
+	 */
+	private double encodeLast(AbstractSequence[] seqArray) {
 		// Get the sequence to be encode		
 		int sid = seqArray.length - 1;
 		AbstractSequence seq = seqArray[seqArray.length - 1]; 
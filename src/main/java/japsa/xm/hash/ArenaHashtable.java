@@ -0,0 +1,318 @@
+/*****************************************************************************
+ * Copyright (c) Minh Duc Cao, Monash Uni & UQ, All rights reserved.         *
+ *                                                                           *
+ * Redistribution and use in source and binary forms, with or without        *
+ * modification, are permitted provided that the following conditions        *
+ * are met:                                                                  * 
+ *                                                                           *
+ * 1. Redistributions of source code must retain the above copyright notice, *
+ *    this list of conditions and the following disclaimer.                  *
+ * 2. Redistributions in binary form must reproduce the above copyright      *
+ *    notice, this list of conditions and the following disclaimer in the    *
+ *    documentation and/or other materials provided with the distribution.   *
+ * 3. Neither the names of the institutions nor the names of the contributors*
+ *    may be used to endorse or promote products derived from this software  *
+ *    without specific prior written permission.                             *
+ *                                                                           *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS   *
+ * IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, *
+ * THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR    *
+ * PURPOSE ARE DISCLAIMED.  IN NO EVENT SHALL THE COPYRIGHT OWNER OR         *
+ * CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL,     *
+ * EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO,       *
+ * PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR        *
+ * PROFITS; OR BUSINESS INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF    *
+ * LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING      *
+ * NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE OF THIS        *
+ * SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.              *
+ ****************************************************************************/
+
+package japsa.xm.hash;
+
+import japsa.util.IntIterator;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A PatternStore in a few flat primitive arrays, for long hash keys or large
+ * collections of sequences where {@link MyHashtable}, which allocates a
+ * count and an array for every possible key, runs out of memory.
+ * 
+ * Keys present are kept in an open-addressing table. The positions of all 
+ * keys are kept in one arena, each pointing to the previous position with
+ * the same key, so a key costs three ints and a position two (three if 
+ * limited). Positions of a key are proposed from the most recent, instead
+ * of in a random order as in MyHashtable.
+ * 
+ * Optionally, the number of positions kept can be limited, in which case 
+ * the arena is a ring and the oldest positions are evicted to make room for
+ * new ones.
+ */
+public class ArenaHashtable implements PatternStore {
+	public Random rnd = new Random(1);
+
+	static final int INITIAL_CAPACITY = 1 << 16;
+	static final int MAXIMUM_CAPACITY = 1 << 30;
+
+	private final int hashSize;
+	private final int _bitPerSymbol;
+	private final int _usableBitMask;
+	private final int preCompute;
+	private final byte complement;
+	//Maximum number of positions kept, 0 for no limit
+	private final int limit;
+
+	private int currentKey = 0;
+	private int psuedoPalinKey = 0;
+
+	//Open addressing table of the keys present: the key (-1 if the slot is 
+	//empty), the id of its last position and the number of its positions
+	private int[] slotKey, slotHead, slotCount;
+	private int slotShift;
+	private int keys = 0;
+
+	//Arena of positions: the value, the id of the previous position with the
+	//same key (-1 if none), and its key (only needed to evict). The position
+	//with id is at id % limit if limited, and at id otherwise.
+	private int[] nodeValue, nodeNext, nodeKey;
+	private int stored = 0, evicted = 0;
+
+	public ArenaHashtable(int hashSize, int bpp) {
+		this(hashSize, bpp, 0);
+	}
+
+	/**
+	 * @param hashSize
+	 * @param bpp bits per symbol
+	 * @param limit the maximum number of positions to keep, 0 for no limit
+	 */
+	public ArenaHashtable(int hashSize, int bpp, int limit) {
+		if (hashSize * bpp > 30)
+			throw new RuntimeException("Hash size " + hashSize + " too large, maximum " + (30 / bpp));
+		if (limit < 0)
+			throw new RuntimeException("Limit must not be negative: " + limit);
+
+		this.hashSize = hashSize;
+		this._bitPerSymbol = bpp;
+		this.limit = limit;
+		complement = (byte) ((1 << bpp) - 1);
+		_usableBitMask = (1 << (hashSize * bpp)) - 1;
+		preCompute = bpp * (hashSize - 1);
+
+		clear();
+	}
+
+	public void clear() {
+		slotKey = new int[INITIAL_CAPACITY];
+		Arrays.fill(slotKey, -1);
+		slotHead = new int[INITIAL_CAPACITY];
+		slotCount = new int[INITIAL_CAPACITY];
+		slotShift = 32 - Integer.numberOfTrailingZeros(INITIAL_CAPACITY);
+		keys = 0;
+
+		int arenaSize = limit > 0 ? Math.min(limit, INITIAL_CAPACITY) : INITIAL_CAPACITY;
+		nodeValue = new int[arenaSize];
+		nodeNext = new int[arenaSize];
+		nodeKey = limit > 0 ? new int[arenaSize] : null;
+		stored = evicted = 0;
+
+		currentKey = psuedoPalinKey = 0;
+	}
+
+	public void nextKey(int baseInd) {
+		currentKey <<= _bitPerSymbol;
+		currentKey &= _usableBitMask;
+		currentKey |= baseInd;
+
+		psuedoPalinKey >>= _bitPerSymbol;
+		psuedoPalinKey |= (complement - baseInd) << preCompute;
+	}
+
+	/**
+	 * @param key
+	 * @return the slot of the key, or -1 if the key is not present
+	 */
+	private int find(int key) {
+		int mask = slotKey.length - 1;
+		for (int slot = (key * 0x9E3779B9) >>> slotShift; ; slot = (slot + 1) & mask) {
+			if (slotKey[slot] == key)
+				return slot;
+			if (slotKey[slot] < 0)
+				return -1;
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return the slot of the key, which is added if not present
+	 */
+	private int slotOf(int key) {
+		int mask = slotKey.length - 1;
+		int slot = (key * 0x9E3779B9) >>> slotShift;
+		for (; slotKey[slot] >= 0; slot = (slot + 1) & mask) {
+			if (slotKey[slot] == key)
+				return slot;
+		}
+		if ((keys + 1) * 2 > slotKey.length && slotKey.length < MAXIMUM_CAPACITY) {
+			growTable();
+			return slotOf(key);
+		}
+		slotKey[slot] = key;
+		slotHead[slot] = -1;
+		slotCount[slot] = 0;
+		keys++;
+		return slot;
+	}
+
+	private void growTable() {
+		int[] oldKey = slotKey, oldHead = slotHead, oldCount = slotCount;
+		int capacity = oldKey.length << 1;
+		slotKey = new int[capacity];
+		Arrays.fill(slotKey, -1);
+		slotHead = new int[capacity];
+		slotCount = new int[capacity];
+		slotShift--;
+
+		int mask = capacity - 1;
+		for (int i = 0; i < oldKey.length; i++) {
+			if (oldKey[i] < 0)
+				continue;
+			int slot = (oldKey[i] * 0x9E3779B9) >>> slotShift;
+			while (slotKey[slot] >= 0)
+				slot = (slot + 1) & mask;
+			slotKey[slot] = oldKey[i];
+			slotHead[slot] = oldHead[i];
+			slotCount[slot] = oldCount[i];
+		}
+	}
+
+	private int index(int id) {
+		return limit > 0 ? id % limit : id;
+	}
+
+	/**
+	 * Make room in the arena for a new position, evicting the oldest if full
+	 */
+	private void reserve() {
+		if (limit > 0 && stored >= limit) {
+			int oldest = stored - limit;
+			int slot = find(nodeKey[index(oldest)]);
+			slotCount[slot]--;
+			if (slotHead[slot] == oldest)
+				slotHead[slot] = -1;
+			evicted++;
+			return;
+		}
+		if (stored == nodeValue.length) {
+			if (stored == Integer.MAX_VALUE)
+				throw new RuntimeException("Too many positions in the hash");
+			long size = Math.min((long) stored + (stored >> 1) + 1, limit > 0 ? limit : Integer.MAX_VALUE);
+			nodeValue = Arrays.copyOf(nodeValue, (int) size);
+			nodeNext = Arrays.copyOf(nodeNext, (int) size);
+			if (nodeKey != null)
+				nodeKey = Arrays.copyOf(nodeKey, (int) size);
+		}
+	}
+
+	public void putCurrentValue(int val) {
+		reserve();
+		int slot = slotOf(currentKey);
+		int i = index(stored);
+		nodeValue[i] = val;
+		nodeNext[i] = slotHead[slot];
+		if (nodeKey != null)
+			nodeKey[i] = currentKey;
+		slotHead[slot] = stored;
+		slotCount[slot]++;
+		stored++;
+	}
+
+	public IntIterator copyIterator() {
+		return new ChainIterator(currentKey, 1);
+	}
+
+	public IntIterator palinIterator() {
+		return new ChainIterator(psuedoPalinKey, -1);
+	}
+
+	public IntIterator iterator() {
+		return new CombinedIterator();
+	}
+
+	/**
+	 * @return the number of positions kept
+	 */
+	public int size() {
+		return stored - evicted;
+	}
+
+	public void printSummary() {
+		long bytes = 12L * slotKey.length + 4L * nodeValue.length * (nodeKey == null ? 2 : 3);
+		System.out.printf(" Keys %d(%d), positions %d, evicted %d, memory %.1f MB\n",
+				keys, slotKey.length, size(), evicted, bytes / 1048576.0);
+	}
+
+	/**
+	 * Iterate the positions of a key from the most recent. As only the oldest
+	 * positions are evicted, the first count positions of the chain are kept.
+	 */
+	class ChainIterator implements IntIterator {
+		private int total;
+		private int id;
+		private final int sign;
+
+		ChainIterator(int key, int sign) {
+			this.sign = sign;
+			int slot = find(key);
+			if (slot >= 0) {
+				total = slotCount[slot];
+				id = slotHead[slot];
+			}
+		}
+
+		public boolean hasNext() {
+			return total > 0;
+		}
+
+		public int sizeAvailable() {
+			return total;
+		}
+
+		public int next() {
+			int i = index(id);
+			id = nodeNext[i];
+			total--;
+			return sign * nodeValue[i];
+		}
+	}
+
+	/**
+	 * Copy and palindrome positions, drawn at random from either as in 
+	 * MyHashtable
+	 */
+	class CombinedIterator implements IntIterator {
+		ChainIterator pIter, cIter;
+
+		CombinedIterator() {
+			pIter = new ChainIterator(psuedoPalinKey, -1);
+			cIter = new ChainIterator(currentKey, 1);
+		}
+
+		public boolean hasNext() {
+			return cIter.hasNext() || pIter.hasNext();
+		}
+
+		public int sizeAvailable() {
+			return cIter.total + pIter.total;
+		}
+
+		public int next() {
+			int random_index = rnd.nextInt(sizeAvailable());
+			if (random_index < cIter.sizeAvailable())
+				return cIter.next();
+			else
+				return pIter.next();
+		}
+	}
+}
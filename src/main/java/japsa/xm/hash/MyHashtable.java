@@ -65,6 +65,10 @@ public class MyHashtable implements PatternStore {
 	private int alloc = 0, used = 0, reallo = 0, init = 0;
 	protected int preCompute;
 
+	//The table this one is forked from: a value array that is the same as
+	//the base's is shared, and is copied before it is changed
+	private MyHashtable base = null;
+
 	// A dummy one, should not call this
 	protected MyHashtable() {
 
@@ -99,7 +103,54 @@ public class MyHashtable implements PatternStore {
 		clear();
 	}
 
+	/**
+	 * Fork a copy of this table, which can be changed without changing this
+	 * one. The value arrays are shared until a fork changes them (by adding 
+	 * a value, or by shuffling them when iterating), so forking costs two 
+	 * array copies of the size of the key space. A table that has been 
+	 * forked should not be changed any more; the forks of it can be used 
+	 * concurrently.
+	 * 
+	 * @return the fork
+	 */
+	public MyHashtable fork() {
+		MyHashtable fork = new MyHashtable();
+		fork.hashSize = hashSize;
+		fork._bitPerSymbol = _bitPerSymbol;
+		fork.complement = complement;
+		fork._usableBitMask = _usableBitMask;
+		fork.preCompute = preCompute;
+
+		fork.currentKey = currentKey;
+		fork.psuedoPalinKey = psuedoPalinKey;
+		fork.values = values.clone();
+		fork.valueCount = valueCount.clone();
+
+		fork.alloc = alloc;
+		fork.used = used;
+		fork.reallo = reallo;
+		fork.init = init;
+
+		fork.base = this;
+		return fork;
+	}
+
+	/**
+	 * Make sure the value array of a key is not shared with the base table
+	 * @param key
+	 * @param extra the extra capacity needed
+	 */
+	private void own(int key, int extra) {
+		if (base != null && values[key] != null && values[key] == base.values[key]) {
+			int[] newArray = new int[values[key].length + extra];
+			System.arraycopy(values[key], 0, newArray, 0, valueCount[key]);
+			alloc += extra;
+			values[key] = newArray;
+		}
+	}
+
 	public void clear() {
+		base = null;
 		// Create an array of entries
 		valueCount = new int[1 << (_bitPerSymbol * hashSize)];
 		values = new int[valueCount.length][];
@@ -202,11 +253,12 @@ public class MyHashtable implements PatternStore {
 	}
 
 	public void putValue(int val, int key) {
+		own(key, (values[key].length >> 1) + 1);
 		// invariat valueCount[key] = values[key].length
 		if (valueCount[key] == values[key].length) {
 			// If no the array is full, reallocate array, doule size
 			// int newArray[] = new int[values[key].length << 1];
-			int newArray[] = new int[(int) (values[key].length * 1.5)];
+			int newArray[] = new int[Math.max((int) (values[key].length * 1.5), values[key].length + 1)];
 			System.arraycopy(values[key], 0, newArray, 0, values[key].length);
 
 			alloc += newArray.length;
@@ -298,6 +350,8 @@ public class MyHashtable implements PatternStore {
 			total = valueCount[currentKey];
 			if (total < 0)
 				total = 0;
+			if (total > 1)
+				own(currentKey, 0);//to be shuffled
 			myArray = values[currentKey];
 		}
 
@@ -337,6 +391,8 @@ public class MyHashtable implements PatternStore {
 			total = valueCount[psuedoPalinKey];
 			if (total < 0)
 				total = 0;
+			if (total > 1)
+				own(psuedoPalinKey, 0);//to be shuffled
 			myArray = values[psuedoPalinKey];
 		}
 
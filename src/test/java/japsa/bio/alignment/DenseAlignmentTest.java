@@ -0,0 +1,104 @@
+package japsa.bio.alignment;
+
+import japsa.seq.Alphabet;
+import japsa.seq.Sequence;
+import japsa.seq.SequenceBuilder;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Random;
+
+import static junit.framework.TestCase.assertEquals;
+
+/**
+ * The dense engines of ProbFSM and ProfileDP must find the same best paths
+ * as the hashed ones.
+ */
+public class DenseAlignmentTest {
+
+  private static Sequence random(Random rnd, int length, String name) {
+    byte[] bases = new byte[length];
+    for (int i = 0; i < length; i++)
+      bases[i] = (byte) rnd.nextInt(4);
+    return new Sequence(Alphabet.DNA(), bases, name);
+  }
+
+  //substitute, insert and delete bases at the given rate
+  private static Sequence mutate(Random rnd, Sequence seq, double rate) {
+    SequenceBuilder sb = new SequenceBuilder(Alphabet.DNA(), seq.length() * 2, seq.getName() + "_m");
+    for (int i = 0; i < seq.length(); i++) {
+      double x = rnd.nextDouble();
+      if (x < rate / 3)
+        continue;
+      if (x < 2 * rate / 3)
+        sb.append((byte) rnd.nextInt(4));
+      sb.append(x < rate ? (byte) rnd.nextInt(4) : seq.getBase(i));
+    }
+    return sb.toSequence();
+  }
+
+  private static String path(ProbFSM.Emission e) {
+    StringBuilder sb = new StringBuilder();
+    for (; e != null; e = e.bwdEmission)
+      sb.append(e.mPos).append(',').append(e.gPos).append(' ').append(e.getScore()).append(';');
+    return sb.toString();
+  }
+
+  private static String path(ProfileDP.EmissionState e) {
+    StringBuilder sb = new StringBuilder();
+    sb.append(e.getCountDel()).append(' ').append(e.getCountIns()).append(' ')
+      .append(e.getCountMG()).append(' ').append(e.getCountMB()).append('|');
+    for (; e != null; e = e.bwdState)
+      sb.append(e.profilePos).append(',').append(e.seqPos).append(',').append(e.iter).append(' ').append(e.score).append(';');
+    return sb.toString();
+  }
+
+  @Test
+  public void testProbFSM() throws Exception {
+    Random rnd = new Random(5);
+    for (int it = 0; it < 30; it++) {
+      Sequence genome = random(rnd, 50 + rnd.nextInt(200), "g");
+      Sequence read = mutate(rnd, genome, 0.15);
+      for (int k = 0; k < 2; k++) {
+        ProbFSM hashed = k == 0 ? new ProbFSM.ProbThreeSM(genome) : new ProbFSM.ProbOneSM(genome);
+        ProbFSM dense = k == 0 ? new ProbFSM.ProbThreeSM(genome) : new ProbFSM.ProbOneSM(genome);
+
+        assertEquals(path(hashed.align(read)), path(dense.alignDense(read)));
+        assertEquals(path(hashed.alignGenerative(read)), path(dense.alignGenerativeDense(read)));
+      }
+    }
+  }
+
+  @Test
+  public void testProfileDP() throws Exception {
+    Random rnd = new Random(7);
+    PrintStream trace = new PrintStream(new ByteArrayOutputStream());
+    for (int it = 0; it < 30; it++) {
+      Sequence unit = random(rnd, 2 + rnd.nextInt(8), "u");
+      Sequence left = random(rnd, 30, "l"), right = random(rnd, 30, "r");
+      int copies = 2 + rnd.nextInt(6);
+
+      SequenceBuilder profile = new SequenceBuilder(Alphabet.DNA(), 100, "profile");
+      SequenceBuilder tr = new SequenceBuilder(Alphabet.DNA(), 200, "read");
+      for (int i = 0; i < left.length(); i++) {
+        profile.append(left.getBase(i));
+        tr.append(left.getBase(i));
+      }
+      for (int i = 0; i < unit.length(); i++)
+        profile.append(unit.getBase(i));
+      for (int c = 0; c < copies; c++)
+        for (int i = 0; i < unit.length(); i++)
+          tr.append(unit.getBase(i));
+      for (int i = 0; i < right.length(); i++) {
+        profile.append(right.getBase(i));
+        tr.append(right.getBase(i));
+      }
+      Sequence read = mutate(rnd, tr.toSequence(), 0.1);
+
+      ProfileDP dp = new ProfileDP(profile.toSequence(), left.length(), left.length() + unit.length() - 1);
+      dp.setTrace(trace);
+      assertEquals(path(dp.align(read)), path(dp.alignDense(read)));
+    }
+  }
+}
@@ -0,0 +1,75 @@
+package japsa.bio.alignment;
+
+import japsa.util.IntArray;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static junit.framework.TestCase.assertEquals;
+
+/**
+ * The global banded alignment filling the gap between two anchors must find
+ * a path through the band when the gaps on the read and on the reference
+ * differ by more than the band, as chaining allows.
+ */
+public class MinimizerMapperTest {
+
+  private static byte[] random(Random rnd, int length) {
+    byte[] bases = new byte[length];
+    for (int i = 0; i < length; i++)
+      bases[i] = (byte) rnd.nextInt(4);
+    return bases;
+  }
+
+  //score of the best global alignment, without band
+  private static int fullScore(byte[] a, int n, byte[] b, int m) {
+    int[][] score = new int[n + 1][m + 1];
+    for (int i = 0; i <= n; i++)
+      for (int j = 0; j <= m; j++) {
+        if (i == 0 || j == 0) {
+          score[i][j] = -(i + j) * MinimizerMapper.GAP;
+          continue;
+        }
+        int s = score[i - 1][j - 1] + (a[i - 1] == b[j - 1] ? MinimizerMapper.MATCH : -MinimizerMapper.MISMATCH);
+        s = Math.max(s, score[i - 1][j] - MinimizerMapper.GAP);
+        score[i][j] = Math.max(s, score[i][j - 1] - MinimizerMapper.GAP);
+      }
+    return score[n][m];
+  }
+
+  @Test
+  public void testLargeGapDifference() throws Exception {
+    Random rnd = new Random(11);
+    int[][] sizes = {{2, 300}, {2, 400}, {2, 502}, {3, 502}, {1, 500}, {0, 200}, {120, 620}, {502, 2}, {620, 120}};
+    for (int[] size : sizes) {
+      int n = size[0], m = size[1];
+      byte[] a = random(rnd, n), b = random(rnd, m);
+      IntArray ops = new IntArray();
+      int[] end = MinimizerMapper.bandedAlign(a, n, b, m, true, ops);
+      assertEquals(n, end[0]);
+      assertEquals(m, end[1]);
+
+      //replay the path, from its start; the operations are M = 0, I = 1, D = 2
+      int i = 0, j = 0, score = 0;
+      for (int x = ops.size() - 1; x >= 0; x--) {
+        int op = ops.get(x) & 3, length = ops.get(x) >>> 2;
+        for (int y = 0; y < length; y++) {
+          if (op == 0) {
+            score += a[i] == b[j] ? MinimizerMapper.MATCH : -MinimizerMapper.MISMATCH;
+            i++;
+            j++;
+          } else if (op == 1) {
+            score -= MinimizerMapper.GAP;
+            i++;
+          } else {
+            score -= MinimizerMapper.GAP;
+            j++;
+          }
+        }
+      }
+      assertEquals(n + "x" + m, n, i);
+      assertEquals(n + "x" + m, m, j);
+      assertEquals(n + "x" + m, fullScore(a, n, b, m), score);
+    }
+  }
+}
@@ -0,0 +1,91 @@
+package japsa.seq;
+
+import japsa.util.IntArray;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static junit.framework.TestCase.assertEquals;
+
+/**
+ * The queries of FeatureIndex must find what a scan of the feature list finds,
+ * in the order of the list.
+ */
+public class FeatureIndexTest {
+
+  private static final int OVERLAP = 0, CONTAIN = 1, WITHIN = 2;
+
+  private static IntArray scan(List<JapsaFeature> features, int start, int end, int query) {
+    IntArray found = new IntArray();
+    for (int i = 0; i < features.size(); i++) {
+      JapsaFeature f = features.get(i);
+      boolean hit;
+      if (query == OVERLAP)
+        hit = f.getStart() <= end && f.getEnd() >= start;
+      else if (query == CONTAIN)
+        hit = f.getStart() <= start && f.getEnd() >= end;
+      else
+        hit = f.getStart() >= start && f.getEnd() <= end;
+      if (hit)
+        found.add(i);
+    }
+    return found;
+  }
+
+  private static void assertFound(String query, IntArray expected, IntArray found, int count) {
+    assertEquals(query, expected.size(), found.size());
+    assertEquals(query, expected.size(), count);
+    for (int i = 0; i < expected.size(); i++)
+      assertEquals(query, expected.get(i), found.get(i));
+  }
+
+  @Test
+  public void testQueries() throws Exception {
+    Random rnd = new Random(1);
+    for (int trial = 0; trial < 100; trial++) {
+      //mostly short features, with some long ones spanning many others
+      int n = rnd.nextInt(300);
+      List<JapsaFeature> features = new ArrayList<JapsaFeature>();
+      for (int i = 0; i < n; i++) {
+        int start = rnd.nextInt(5000) - 50;
+        int length = rnd.nextInt(10) == 0 ? rnd.nextInt(3000) : rnd.nextInt(60);
+        features.add(new JapsaFeature(start, start + length));
+      }
+      FeatureIndex index = new FeatureIndex(features);
+      assertEquals(n, index.size());
+
+      for (int q = 0; q < 100; q++) {
+        int start = rnd.nextInt(5200) - 100;
+        int end = start + rnd.nextInt(q % 3 == 0 ? 500 : 20);
+
+        IntArray found = new IntArray();
+        int count = index.overlap(start, end, found);
+        IntArray expected = scan(features, start, end, OVERLAP);
+        assertFound("overlap", expected, found, count);
+        assertEquals(expected.size() > 0, index.overlaps(start, end));
+
+        found = new IntArray();
+        count = index.contain(start, end, found);
+        assertFound("contain", scan(features, start, end, CONTAIN), found, count);
+
+        found = new IntArray();
+        count = index.within(start, end, found);
+        assertFound("within", scan(features, start, end, WITHIN), found, count);
+
+        int nearest = index.nearest(start, end);
+        if (n == 0)
+          assertEquals(-1, nearest);
+        else if (expected.size() > 0)
+          assertEquals(expected.get(0), nearest);
+        else {
+          int best = Integer.MAX_VALUE;
+          for (int i = 0; i < n; i++)
+            best = Math.min(best, index.distance(i, start, end));
+          assertEquals(best, index.distance(nearest, start, end));
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,49 @@
+package japsa.seq;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+
+import static junit.framework.TestCase.assertEquals;
+
+/**
+ * printDecimal must write what String.format writes, within the precision of
+ * a double and away from exact ties.
+ */
+public class SequenceOutputStreamTest {
+
+  private static String printDecimal(double num, int decimals, int field) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    SequenceOutputStream out = new SequenceOutputStream(bytes);
+    out.printDecimal(num, decimals, field);
+    out.close();
+    return bytes.toString();
+  }
+
+  @Test
+  public void testPrintDecimal() throws Exception {
+    Random rnd = new Random(13);
+    for (int i = 0; i < 10000; i++) {
+      //random magnitudes, from 1e-8 to 1e8, of both signs
+      double num = (rnd.nextDouble() - 0.5) * Math.pow(10, rnd.nextInt(17) - 8);
+      int decimals = rnd.nextInt(10), field = rnd.nextInt(16);
+      //String.format rounds the shortest representation, which only matters
+      //near the precision of a double
+      if (Math.abs(num) * Math.pow(10, decimals) >= 1e12)
+        continue;
+      String format = "%" + (field > 0 ? field : "") + "." + decimals + "f";
+      String expected = String.format(format, num);
+      //String.format keeps the sign of a negative number rounded to zero
+      if (num < 0 && expected.trim().matches("-0\\.?0*"))
+        expected = String.format(format, 0.0);
+      assertEquals(format + " " + num, expected, printDecimal(num, decimals, field));
+    }
+
+    assertEquals("  3.14", printDecimal(3.14159, 2, 6));
+    assertEquals("-1", printDecimal(-0.5, 0, 0));
+    assertEquals("0.000000", printDecimal(0, 6, 0));
+    assertEquals("       NaN", printDecimal(Double.NaN, 6, 10));
+    assertEquals("Infinity", printDecimal(Double.POSITIVE_INFINITY, 6, 0));
+  }
+}
@@ -0,0 +1,118 @@
+package japsa.util;
+
+import htsjdk.samtools.CigarOperator;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMSequenceRecord;
+import japsa.seq.Alphabet;
+import japsa.seq.Sequence;
+import org.junit.Test;
+
+import static junit.framework.TestCase.assertEquals;
+import static junit.framework.TestCase.assertFalse;
+import static junit.framework.TestCase.assertTrue;
+
+/**
+ * Walk a hand-built alignment with all cigar operators:
+ * <pre>
+ * ref  (1-based)   1 2 3 4 5 6 7 8 9 ...
+ * ref              A C G T T G C A A C G T T G C A A C G T
+ * cigar 2H3S4M1I2D3=1X2N2M1P1S from position 3
+ * read             TTT GTTC A .. ACG A .. CA T
+ * </pre>
+ */
+public class CigarWalkerTest {
+  private static final String REF = "ACGTTGCAACGTTGCAACGT";
+  private static final String READ = "TTTGTTCAACGACAT";
+
+  private static SAMRecord record() {
+    SAMFileHeader header = new SAMFileHeader();
+    header.addSequence(new SAMSequenceRecord("ref", REF.length()));
+    SAMRecord sam = new SAMRecord(header);
+    sam.setReadName("read");
+    sam.setReferenceName("ref");
+    sam.setAlignmentStart(3);
+    sam.setCigarString("2H3S4M1I2D3=1X2N2M1P1S");
+    sam.setReadString(READ);
+    return sam;
+  }
+
+  private static byte[] dna(String bases) {
+    return new Sequence(Alphabet.DNA(), bases, "s").toBytes();
+  }
+
+  @Test
+  public void testWalk() throws Exception {
+    CigarOperator[] ops = {CigarOperator.H, CigarOperator.S, CigarOperator.M, CigarOperator.I, CigarOperator.D,
+      CigarOperator.EQ, CigarOperator.X, CigarOperator.N, CigarOperator.M, CigarOperator.P, CigarOperator.S};
+    int[] refStarts = {3, 3, 3, 7, 7, 9, 12, 13, 15, 17, 17};
+    int[] readStarts = {0, 0, 3, 7, 8, 8, 11, 12, 12, 14, 14};
+
+    HTSUtilities.CigarWalker walker = new HTSUtilities.CigarWalker().reset(record());
+    for (int i = 0; i < ops.length; i++) {
+      assertTrue(walker.next());
+      assertEquals(ops[i], walker.getOperator());
+      assertEquals("refStart " + i, refStarts[i], walker.getRefStart());
+      assertEquals("readStart " + i, readStarts[i], walker.getReadStart());
+    }
+    assertEquals(17, walker.getRefEnd());
+    assertEquals(READ.length(), walker.getReadEnd());
+    assertFalse(walker.next());
+  }
+
+  @Test
+  public void testIdentity() throws Exception {
+    SAMRecord sam = record();
+    HTSUtilities.CigarWalker walker = new HTSUtilities.CigarWalker();
+    HTSUtilities.IdentityProfile[] profiles = {
+      walker.identity(dna(REF), sam, new HTSUtilities.IdentityProfile()),
+      walker.identity(dna(REF), dna(READ), sam, new HTSUtilities.IdentityProfile())};
+
+    for (HTSUtilities.IdentityProfile profile : profiles) {
+      //M compares the bases (GTTG vs GTTC, CA vs CA), = and X do not
+      assertEquals(8, profile.match);
+      assertEquals(2, profile.mismatch);
+      assertEquals(1, profile.baseIns);
+      assertEquals(1, profile.numIns);
+      assertEquals(2, profile.baseDel);
+      assertEquals(1, profile.numDel);
+      //H, S and P
+      assertEquals(7, profile.readClipped);
+      //outside [3, 16], and N
+      assertEquals(9, profile.refClipped);
+      assertEquals(12, profile.refBase);
+      assertEquals(11, profile.readBase);
+    }
+  }
+
+  @Test
+  public void testPositionsInRead() throws Exception {
+    int[] refPositions = {1, 3, 6, 7, 8, 9, 11, 12, 13, 14, 15, 16, 17, 30};
+    //0 outside the alignment and in N, the read position after a deletion
+    int[] expected = {0, 0, 6, 7, 8, 8, 10, 11, 12, 0, 0, 13, 14, 0};
+    int[] readPositions = new HTSUtilities.CigarWalker().positionsInRead(record(), refPositions, new int[refPositions.length]);
+    for (int i = 0; i < expected.length; i++)
+      assertEquals("position " + refPositions[i], expected[i], readPositions[i]);
+  }
+
+  @Test
+  public void testReadRange() throws Exception {
+    HTSUtilities.CigarWalker walker = new HTSUtilities.CigarWalker();
+    SAMRecord sam = record();
+    int[] range = new int[2];
+
+    assertTrue(walker.readRange(sam, 6, 12, range));
+    assertEquals(6, range[0]);
+    assertEquals(11, range[1]);
+
+    //start in the deletion, end in N
+    assertTrue(walker.readRange(sam, 8, 14, range));
+    assertEquals(8, range[0]);
+    assertEquals(12, range[1]);
+
+    //end past the alignment
+    assertFalse(walker.readRange(sam, 16, 40, range));
+    assertEquals(13, range[0]);
+    assertEquals(-1, range[1]);
+  }
+}
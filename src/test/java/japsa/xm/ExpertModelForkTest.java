@@ -0,0 +1,62 @@
+package japsa.xm;
+
+import japsa.seq.Alphabet;
+import japsa.seq.Sequence;
+import japsa.xm.expert.RepeatCountExpert;
+import japsa.xm.expert.RepeatExpert;
+import japsa.xm.hash.MyHashtable;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static junit.framework.TestCase.assertEquals;
+
+/**
+ * Encoding a sequence against the forked hash of a background must cost the
+ * same as encoding the pair, and leave the hash of the background intact for
+ * the next sequence.
+ */
+public class ExpertModelForkTest {
+
+  private static ExpertModel newModel() {
+    ExpertModel model = new ExpertModel(11, Alphabet.DNA4(), 15, 200, 0.15, 20, false);
+    model.setHashType("hash");
+    model.setSelfRep(true);
+    model.offSetSeed = new RepeatCountExpert(new Sequence(null, 0), 0, null, RepeatExpert.COPY_TYPE);
+    model.palinSeed = new RepeatCountExpert(new Sequence(null, 0), 0, null, RepeatExpert.PALIN_TYPE);
+    return model;
+  }
+
+  //a sequence sharing (mutated and reverse-complemented) segments with seq
+  private static Sequence relative(Random rnd, Sequence seq, int length, String name) {
+    byte[] bases = new byte[length];
+    int i = 0;
+    while (i < length) {
+      int segment = Math.min(length - i, 50 + rnd.nextInt(200));
+      int from = rnd.nextInt(seq.length() - segment);
+      boolean reverse = rnd.nextInt(4) == 0;
+      for (int j = 0; j < segment; j++, i++) {
+        byte base = reverse ? (byte) (3 - seq.getBase(from + segment - 1 - j)) : seq.getBase(from + j);
+        bases[i] = rnd.nextInt(20) == 0 ? (byte) rnd.nextInt(4) : base;
+      }
+    }
+    return new Sequence(Alphabet.DNA4(), bases, name);
+  }
+
+  @Test
+  public void testFork() throws Exception {
+    Random rnd = new Random(3);
+    byte[] bases = new byte[3000];
+    for (int i = 0; i < bases.length; i++)
+      bases[i] = (byte) rnd.nextInt(4);
+    Sequence background = new Sequence(Alphabet.DNA4(), bases, "background");
+
+    MyHashtable hash = newModel().hashBackground(background);
+    for (int k = 0; k < 3; k++) {
+      Sequence seq = relative(rnd, background, 2000 + 500 * k, "seq" + k);
+      double combined = newModel().encode_optimise(new Sequence[]{background, seq});
+      double forked = newModel().encode_optimise(background, hash, seq);
+      assertEquals(combined, forked, 0.0);
+    }
+  }
+}